@@ -0,0 +1,141 @@
+package com.opentok.accelerator.annotation;
+
+import android.util.Base64;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class AnnotationsStrokeCodecTest {
+
+    private static final double DELTA = 0.001;
+
+    @Test
+    public void testStrokeRoundTrip() throws Exception {
+        AnnotationsStrokeCodec sender = new AnnotationsStrokeCodec();
+        AnnotationsStrokeCodec receiver = new AnnotationsStrokeCodec();
+
+        String start = sender.encodeStart("canvas-1", 0xFFFF0000, 2.5f, 640, 480, 1080, 1920,
+                                          true, false, "android", 100.25f, 200.5f, false);
+        Assert.assertTrue(start.startsWith(AnnotationsStrokeCodec.STROKE_PREFIX));
+        JSONObject first = receiver.decode("peer", start);
+        Assert.assertEquals("canvas-1", first.getString("id"));
+        Assert.assertEquals("peer", first.getString("fromId"));
+        Assert.assertEquals(100.25, first.getDouble("fromX"), DELTA);
+        Assert.assertEquals(200.5, first.getDouble("fromY"), DELTA);
+        Assert.assertEquals(100.25, first.getDouble("toX"), DELTA);
+        Assert.assertEquals(200.5, first.getDouble("toY"), DELTA);
+        Assert.assertEquals("#FF0000", first.getString("color"));
+        Assert.assertEquals(2.5, first.getDouble("lineWidth"), DELTA);
+        Assert.assertEquals(640, first.getLong("videoWidth"));
+        Assert.assertEquals(480, first.getLong("videoHeight"));
+        Assert.assertEquals(1080, first.getLong("canvasWidth"));
+        Assert.assertEquals(1920, first.getLong("canvasHeight"));
+        Assert.assertTrue(first.getBoolean("mirrored"));
+        Assert.assertFalse(first.getBoolean("smoothed"));
+        Assert.assertTrue(first.getBoolean("startPoint"));
+        Assert.assertFalse(first.getBoolean("endPoint"));
+        Assert.assertEquals("android", first.getString("platform"));
+        Assert.assertEquals(AnnotationsView.Mode.Pen.toString(), first.getString("mode"));
+
+        String point = sender.encodePoint(103.75f, 198f, false);
+        // Only the offsets travel after the first point
+        Assert.assertTrue(point.length() < start.length() / 2);
+        JSONObject second = receiver.decode("peer", point);
+        Assert.assertEquals("canvas-1", second.getString("id"));
+        Assert.assertEquals(100.25, second.getDouble("fromX"), DELTA);
+        Assert.assertEquals(200.5, second.getDouble("fromY"), DELTA);
+        Assert.assertEquals(103.75, second.getDouble("toX"), DELTA);
+        Assert.assertEquals(198, second.getDouble("toY"), DELTA);
+        Assert.assertFalse(second.getBoolean("startPoint"));
+
+        JSONObject last = receiver.decode("peer", sender.encodePoint(90f, 210.25f, true));
+        Assert.assertEquals(103.75, last.getDouble("fromX"), DELTA);
+        Assert.assertEquals(90, last.getDouble("toX"), DELTA);
+        Assert.assertEquals(210.25, last.getDouble("toY"), DELTA);
+        Assert.assertTrue(last.getBoolean("endPoint"));
+
+        // The stroke is over: a point without a new start is dropped
+        Assert.assertNull(receiver.decode("peer", sender.encodePoint(91f, 211f, false)));
+    }
+
+    @Test
+    public void testSequenceWrapsAround() throws Exception {
+        AnnotationsStrokeCodec sender = new AnnotationsStrokeCodec();
+        AnnotationsStrokeCodec receiver = new AnnotationsStrokeCodec();
+
+        Assert.assertNotNull(receiver.decode("peer", sender.encodeStart(
+            "canvas-1", 0x00FF00, 1f, 640, 480, 640, 480, false, true, "android", 0f, 0f, false)));
+        // Well past 256 points, so the sequence wraps several times
+        for (int i = 1; i <= 600; i++) {
+            JSONObject point = receiver.decode("peer", sender.encodePoint(i, 2 * i, i == 600));
+            Assert.assertNotNull("Point " + i + " dropped", point);
+            Assert.assertEquals(i, point.getDouble("toX"), DELTA);
+            Assert.assertEquals(2 * i, point.getDouble("toY"), DELTA);
+        }
+    }
+
+    @Test
+    public void testStrokeWithMissingOrReorderedPointsIsDropped() throws Exception {
+        AnnotationsStrokeCodec sender = new AnnotationsStrokeCodec();
+        AnnotationsStrokeCodec receiver = new AnnotationsStrokeCodec();
+
+        Assert.assertNotNull(receiver.decode("peer", sender.encodeStart(
+            "canvas-1", 0x0000FF, 1f, 640, 480, 640, 480, false, false, "android", 10f, 10f,
+            false)));
+        String second = sender.encodePoint(11f, 11f, false);
+        String third = sender.encodePoint(12f, 12f, false);
+        // The third point arrives first: its offset is meaningless, so the stroke is dropped
+        Assert.assertNull(receiver.decode("peer", third));
+        Assert.assertNull(receiver.decode("peer", second));
+        Assert.assertNull(receiver.decode("peer", sender.encodePoint(13f, 13f, true)));
+
+        // Until the next stroke starts
+        JSONObject start = receiver.decode("peer", sender.encodeStart(
+            "canvas-1", 0x0000FF, 1f, 640, 480, 640, 480, false, false, "android", 20f, 20f,
+            false));
+        Assert.assertNotNull(start);
+        Assert.assertEquals(20, start.getDouble("toX"), DELTA);
+        sender.encodePoint(21f, 21f, false);
+        // A lost point drops the stroke too
+        Assert.assertNull(receiver.decode("peer", sender.encodePoint(22f, 22f, false)));
+    }
+
+    @Test
+    public void testStrokesAreKeptPerConnection() throws Exception {
+        AnnotationsStrokeCodec alice = new AnnotationsStrokeCodec();
+        AnnotationsStrokeCodec bob = new AnnotationsStrokeCodec();
+        AnnotationsStrokeCodec receiver = new AnnotationsStrokeCodec();
+
+        receiver.decode("alice", alice.encodeStart(
+            "canvas-1", 0xFF0000, 1f, 640, 480, 640, 480, false, false, "android", 0f, 0f, false));
+        receiver.decode("bob", bob.encodeStart(
+            "canvas-1", 0x00FF00, 1f, 640, 480, 640, 480, false, false, "ios", 50f, 50f, false));
+
+        JSONObject fromAlice = receiver.decode("alice", alice.encodePoint(1f, 1f, false));
+        JSONObject fromBob = receiver.decode("bob", bob.encodePoint(51f, 51f, false));
+        Assert.assertEquals(1, fromAlice.getDouble("toX"), DELTA);
+        Assert.assertEquals("#FF0000", fromAlice.getString("color"));
+        Assert.assertEquals(51, fromBob.getDouble("toX"), DELTA);
+        Assert.assertEquals("#00FF00", fromBob.getString("color"));
+        Assert.assertEquals("ios", fromBob.getString("platform"));
+    }
+
+    @Test
+    public void testMalformedDataIsDropped() throws Exception {
+        AnnotationsStrokeCodec receiver = new AnnotationsStrokeCodec();
+
+        Assert.assertNull(receiver.decode("peer", AnnotationsStrokeCodec.STROKE_PREFIX + "!!"));
+        Assert.assertNull(receiver.decode("peer", AnnotationsStrokeCodec.STROKE_PREFIX + "AQ=="));
+        // A start point whose id length is a varint over 63 bits, so it's negative
+        byte[] negativeLength = {1, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1};
+        Assert.assertNull(receiver.decode("peer", AnnotationsStrokeCodec.STROKE_PREFIX +
+            Base64.encodeToString(negativeLength, Base64.NO_WRAP)));
+        // A string longer than the data
+        byte[] longString = {1, 0, 100, 'a'};
+        Assert.assertNull(receiver.decode("peer", AnnotationsStrokeCodec.STROKE_PREFIX +
+            Base64.encodeToString(longString, Base64.NO_WRAP)));
+    }
+}
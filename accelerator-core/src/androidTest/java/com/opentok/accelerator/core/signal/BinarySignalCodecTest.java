@@ -0,0 +1,129 @@
+package com.opentok.accelerator.core.signal;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collection;
+
+@RunWith(AndroidJUnit4.class)
+public class BinarySignalCodecTest {
+
+    @Test
+    public void testAnnotationStrokeRoundTripIsSmaller() {
+        BinarySignalCodec codec = new BinarySignalCodec();
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 20; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"abc-123\",\"fromId\":\"abc-123\",\"fromX\":").append(100.5 + i)
+                .append(",\"fromY\":").append(200.25 - i).append(",\"toX\":").append(101 + i)
+                .append(",\"toY\":").append(199 - i).append(",\"color\":\"#FF0000\"")
+                .append(",\"lineWidth\":2,\"videoWidth\":640,\"videoHeight\":480")
+                .append(",\"canvasWidth\":1080,\"canvasHeight\":1920,\"mirrored\":false")
+                .append(",\"smoothed\":true,\"startPoint\":").append(i == 0)
+                .append(",\"endPoint\":").append(i == 19).append(",\"platform\":\"android\"}");
+        }
+        json.append(']');
+
+        String encoded = codec.encode(json.toString());
+
+        Assert.assertTrue(encoded.startsWith(BinarySignalCodec.BINARY_PREFIX));
+        Assert.assertTrue(encoded.length() * 3 < json.length());
+        Assert.assertEquals(json.toString(), codec.decode(encoded));
+    }
+
+    @Test
+    public void testEscapesAndUnicodeRoundTrip() {
+        BinarySignalCodec codec = new BinarySignalCodec();
+        String json = "{\"text\":\"quote \\\" backslash \\\\ line\\nbreak tab\\t \\u0001\"," +
+            "\"sender\":{\"alias\":\"Jos\u00e9 \u4f60\u597d \ud83d\ude00\",\"id\":null}," +
+            "\"sentOn\":1520000000000,\"empty\":{},\"list\":[]}";
+
+        Assert.assertEquals(json, codec.decode(codec.encode(json)));
+    }
+
+    @Test
+    public void testNumbersKeepTheirText() {
+        BinarySignalCodec codec = new BinarySignalCodec();
+        String json = "[0,-1,9223372036854775807,-9223372036854775808,1.50,-0.05,0.0," +
+            "123456789012345678901234,1e10,-2.5E-3,3.141592653589793238]";
+
+        Assert.assertEquals(json, codec.decode(codec.encode(json)));
+    }
+
+    @Test
+    public void testWhitespaceIsRemoved() {
+        BinarySignalCodec codec = new BinarySignalCodec();
+
+        Assert.assertEquals("{\"a\":[1,true,\"b\"]}",
+                            codec.decode(codec.encode(" {\n \"a\" : [ 1 , true , \"b\" ] }\t")));
+    }
+
+    @Test
+    public void testInvalidJsonIsNotEncoded() {
+        BinarySignalCodec codec = new BinarySignalCodec();
+
+        Assert.assertNull(codec.encode("plain text"));
+        Assert.assertNull(codec.encode("{\"a\":1"));
+        Assert.assertNull(codec.encode("[1,2]]"));
+        Assert.assertNull(codec.encode("{\"a\" 1}"));
+        Assert.assertNull(codec.encode("01"));
+        Assert.assertNull(codec.encode(""));
+    }
+
+    @Test
+    public void testMalformedDataIsRejected() {
+        BinarySignalCodec codec = new BinarySignalCodec();
+        String encoded = codec.encode("{\"text\":\"hello\"}");
+
+        try {
+            codec.decode(encoded.substring(0, encoded.length() - 4));
+            Assert.fail("Truncated data decoded");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testChannelEncodesOnlyForSupportingPeers() {
+        BinarySignalChannel sender = new BinarySignalChannel("signal");
+        BinarySignalChannel receiver = new BinarySignalChannel("signal");
+        String json = "[{\"fromX\":10.5,\"fromY\":20.25,\"toX\":11,\"toY\":21,\"lineWidth\":2}," +
+            "{\"fromX\":11,\"fromY\":21,\"toX\":12.5,\"toY\":22.75,\"lineWidth\":2}]";
+        sender.addPeer("peer");
+
+        SignalInfo<String> plain = single(sender.getOutputProtocol().processSignal(
+            new SignalInfo<String>(null, null, "signal", json)));
+        Assert.assertEquals(json, plain.mData);
+
+        // The peer says hello
+        Assert.assertNull(sender.getInputProtocol().processSignal(
+            new SignalInfo<String>("peer", null, BinarySignalChannel.HELLO_SIGNAL, "1")));
+        Assert.assertTrue(sender.isSupportedBy("peer"));
+
+        SignalInfo<String> encoded = single(sender.getOutputProtocol().processSignal(
+            new SignalInfo<String>(null, null, "signal", json)));
+        Assert.assertTrue(encoded.mData.startsWith(BinarySignalCodec.BINARY_PREFIX));
+        SignalInfo<String> decoded = single(receiver.getInputProtocol().processSignal(
+            new SignalInfo<String>("me", null, "signal", encoded.mData)));
+        Assert.assertEquals(json, decoded.mData);
+
+        // Not for other signals, nor for peers that don't support it
+        Assert.assertEquals(json, single(sender.getOutputProtocol().processSignal(
+            new SignalInfo<String>(null, null, "other", json))).mData);
+        sender.addPeer("legacy");
+        Assert.assertEquals(json, single(sender.getOutputProtocol().processSignal(
+            new SignalInfo<String>(null, null, "signal", json))).mData);
+        Assert.assertTrue(single(sender.getOutputProtocol().processSignal(
+            new SignalInfo<String>(null, "peer", "signal", json))).mData
+            .startsWith(BinarySignalCodec.BINARY_PREFIX));
+    }
+
+    private static SignalInfo<String> single(Collection<SignalInfo<String>> signals) {
+        Assert.assertEquals(1, signals.size());
+        return signals.iterator().next();
+    }
+}
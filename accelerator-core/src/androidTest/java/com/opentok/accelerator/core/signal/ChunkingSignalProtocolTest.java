@@ -0,0 +1,142 @@
+package com.opentok.accelerator.core.signal;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.opentok.accelerator.core.utils.Callback;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class ChunkingSignalProtocolTest {
+
+    private static final int MAX_LENGTH = 200;
+
+    @Test
+    public void testSmallSignalsArePassedThrough() {
+        ChunkingSignalProtocol chunker = new ChunkingSignalProtocol(MAX_LENGTH);
+        SignalInfo<String> signal = signal("src", "hello");
+
+        Collection<SignalInfo<String>> chunks = chunker.processSignal(signal);
+
+        Assert.assertEquals(1, chunks.size());
+        Assert.assertSame(signal, chunks.iterator().next());
+    }
+
+    @Test
+    public void testOutOfOrderChunksAreReassembled() {
+        ChunkingSignalProtocol chunker = new ChunkingSignalProtocol(MAX_LENGTH);
+        ReassemblingSignalProtocol reassembler = new ReassemblingSignalProtocol();
+        String data = longText(5000);
+
+        List<SignalInfo<String>> chunks =
+            new ArrayList<SignalInfo<String>>(chunker.processSignal(signal("src", data)));
+        Assert.assertTrue(chunks.size() > 1);
+        for (SignalInfo<String> chunk : chunks) {
+            Assert.assertTrue(Utf8.length(chunk.mData) <= MAX_LENGTH);
+        }
+        Collections.shuffle(chunks, new Random(42));
+
+        SignalInfo<String> rebuilt = null;
+        for (int i = 0; i < chunks.size(); i++) {
+            Collection<SignalInfo<String>> output = reassembler.processSignal(chunks.get(i));
+            if (i < chunks.size() - 1) {
+                Assert.assertNull(output);
+            } else {
+                rebuilt = output.iterator().next();
+            }
+        }
+        Assert.assertEquals(data, rebuilt.mData);
+        Assert.assertEquals("src", rebuilt.mSrcConnId);
+        Assert.assertEquals("signal", rebuilt.mSignalName);
+    }
+
+    @Test
+    public void testBufferLimitEvictsOldestPartialMessage() {
+        ChunkingSignalProtocol chunker = new ChunkingSignalProtocol(MAX_LENGTH);
+        ReassemblingSignalProtocol reassembler = new ReassemblingSignalProtocol(1000, 1000, 60000);
+
+        List<SignalInfo<String>> first =
+            new ArrayList<SignalInfo<String>>(chunker.processSignal(signal("a", longText(900))));
+        List<SignalInfo<String>> second =
+            new ArrayList<SignalInfo<String>>(chunker.processSignal(signal("b", longText(900))));
+        // All but the last chunk of both messages: they don't fit together
+        for (int i = 0; i < first.size() - 1; i++) {
+            reassembler.processSignal(first.get(i));
+        }
+        for (int i = 0; i < second.size() - 1; i++) {
+            reassembler.processSignal(second.get(i));
+        }
+        Assert.assertEquals(1, reassembler.getDiscardedMessages());
+
+        Assert.assertNull(reassembler.processSignal(first.get(first.size() - 1)));
+        Assert.assertNotNull(reassembler.processSignal(second.get(second.size() - 1)));
+    }
+
+    @Test
+    public void testStalePartialMessagesAreDiscarded() {
+        ChunkingSignalProtocol chunker = new ChunkingSignalProtocol(MAX_LENGTH);
+        ReassemblingSignalProtocol reassembler = new ReassemblingSignalProtocol(1000, 1000, 100);
+        List<SignalInfo<String>> chunks =
+            new ArrayList<SignalInfo<String>>(chunker.processSignal(signal("a", longText(500))));
+        reassembler.processSignal(chunks.get(0));
+
+        reassembler.processTick(System.currentTimeMillis() + 1000);
+
+        Assert.assertEquals(1, reassembler.getDiscardedMessages());
+    }
+
+    @Test
+    public void testOutboxSignalIsSentWithItsLastChunk() {
+        ChunkingSignalProtocol chunker = new ChunkingSignalProtocol(MAX_LENGTH);
+        final AtomicInteger sent = new AtomicInteger();
+        SignalInfo<String> signal = signal("src", longText(1000));
+        signal.mOnSent = new Callback<SignalInfo>() {
+            @Override
+            public void run(SignalInfo sentSignal) {
+                sent.incrementAndGet();
+            }
+        };
+
+        List<SignalInfo<String>> chunks =
+            new ArrayList<SignalInfo<String>>(chunker.processSignal(signal));
+        PersistentSignalOutbox.onProtocolOut(signal.mOnSent, chunks);
+
+        Assert.assertTrue(chunks.size() > 1);
+        for (SignalInfo<String> chunk : chunks) {
+            Assert.assertEquals(0, sent.get());
+            chunk.mOnSent.run(chunk);
+        }
+        Assert.assertEquals(1, sent.get());
+    }
+
+    private static SignalInfo<String> signal(String src, String data) {
+        return new SignalInfo<String>(src, null, "signal", data);
+    }
+
+    private static String longText(int length) {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(length);
+        while (text.length() < length) {
+            // Mix single and multi byte characters, including surrogate pairs
+            switch (random.nextInt(4)) {
+                case 0:
+                    text.append("\u00f1");
+                    break;
+                case 1:
+                    text.append("\ud83d\ude00");
+                    break;
+                default:
+                    text.append((char) ('a' + random.nextInt(26)));
+                    break;
+            }
+        }
+        return text.toString();
+    }
+}
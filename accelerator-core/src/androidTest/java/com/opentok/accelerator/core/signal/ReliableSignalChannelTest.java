@@ -0,0 +1,124 @@
+package com.opentok.accelerator.core.signal;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ReliableSignalChannelTest {
+
+    @Test
+    public void testLostFirstSignalIsRetransmitted() {
+        ReliableSignalChannel alice = new ReliableSignalChannel();
+        ReliableSignalChannel bob = new ReliableSignalChannel();
+        alice.addPeer("bob");
+
+        SignalInfo<String> first = send(alice, "first");
+        SignalInfo<String> second = send(alice, "second");
+        // The first one is lost, and the second one arrives
+        Assert.assertEquals("second", receive(bob, second, "alice", "bob").mData);
+        deliverAcks(bob, alice, "bob", "alice");
+        // Only the second one is acknowledged
+        Assert.assertEquals(1, alice.getOutboxSize());
+
+        List<SignalInfo<String>> retransmitted = tick(alice, 2000);
+        Assert.assertEquals(1, retransmitted.size());
+        Assert.assertEquals(1, alice.getRetransmittedSignals());
+        Assert.assertEquals("first", receive(bob, retransmitted.get(0), "alice", "bob").mData);
+        // The original first signal arrives late: it's a duplicate now
+        Assert.assertNull(receive(bob, first, "alice", "bob"));
+        Assert.assertEquals(1, bob.getDuplicateSignals());
+        deliverAcks(bob, alice, "bob", "alice");
+        Assert.assertEquals(0, alice.getOutboxSize());
+    }
+
+    @Test
+    public void testLateJoinerDoesNotWaitForEarlierSignals() {
+        ReliableSignalChannel alice = new ReliableSignalChannel();
+        ReliableSignalChannel bob = new ReliableSignalChannel();
+        alice.addPeer("carol");
+        for (int i = 0; i < 3; i++) {
+            send(alice, "before " + i);
+        }
+
+        alice.addPeer("bob");
+        // Carol hasn't acknowledged the first signals, so they could still be sent: bob only
+        // acknowledges what it has received
+        Assert.assertNotNull(receive(bob, send(alice, "joined"), "alice", "bob"));
+        SignalInfo<String> bobAck = ack(bob, "bob", "alice");
+        Assert.assertEquals("alice=b0+4", bobAck.mData);
+        alice.getInputProtocol().processSignal(bobAck);
+
+        // Once carol acknowledges everything there's no gap left
+        alice.getInputProtocol().processSignal(
+            new SignalInfo<String>("carol", "alice", ReliableSignalChannel.ACK_SIGNAL, "alice=b4"));
+        Assert.assertEquals(0, alice.getOutboxSize());
+        Assert.assertNotNull(receive(bob, send(alice, "next"), "alice", "bob"));
+        Assert.assertEquals("alice=b5", ack(bob, "bob", "alice").mData);
+    }
+
+    @Test
+    public void testPiggybackedAcksFitInASignal() {
+        ReliableSignalChannel alice = new ReliableSignalChannel();
+        ReliableSignalChannel sender = new ReliableSignalChannel();
+        for (int i = 0; i < 400; i++) {
+            String peer = "peer-with-a-long-connection-id-" + i;
+            sender.addPeer(peer);
+            receive(alice, send(sender, "hello"), peer, "alice");
+        }
+        char[] data = new char[7000];
+        Arrays.fill(data, 'x');
+
+        SignalInfo<String> signal = send(alice, new String(data));
+
+        Assert.assertTrue(Utf8.length(signal.mData) <= SignalInfo.MAX_OPENTOK_DATA_LENGTH);
+        Assert.assertEquals(1, alice.getPiggybackedAcks());
+        // The acks that didn't fit are sent on their own
+        Assert.assertFalse(tick(alice, 100).isEmpty());
+        Assert.assertTrue(alice.getAckSignals() > 0);
+    }
+
+    private static SignalInfo<String> send(ReliableSignalChannel channel, String data) {
+        Collection<SignalInfo<String>> wire = channel.getOutputProtocol().processSignal(
+            new SignalInfo<String>(null, null, "signal", data));
+        Assert.assertEquals(1, wire.size());
+        return wire.iterator().next();
+    }
+
+    private static SignalInfo<String> receive(ReliableSignalChannel channel,
+                                              SignalInfo<String> wire, String src, String dst) {
+        Collection<SignalInfo<String>> received = channel.getInputProtocol().processSignal(
+            new SignalInfo<String>(src, dst, wire.mSignalName, wire.mData));
+        return received != null ? received.iterator().next() : null;
+    }
+
+    private static List<SignalInfo<String>> tick(ReliableSignalChannel channel, long delayMs) {
+        Collection<SignalInfo<String>> signals =
+            channel.getOutputProtocol().processTick(System.currentTimeMillis() + delayMs);
+        return signals != null ? new ArrayList<SignalInfo<String>>(signals)
+                               : new ArrayList<SignalInfo<String>>();
+    }
+
+    private static SignalInfo<String> ack(ReliableSignalChannel channel, String own,
+                                          String peer) {
+        for (SignalInfo<String> signal : tick(channel, 100)) {
+            if (ReliableSignalChannel.ACK_SIGNAL.equals(signal.mSignalName) &&
+                peer.equals(signal.mDstConnId)) {
+                return new SignalInfo<String>(own, peer, signal.mSignalName, signal.mData);
+            }
+        }
+        Assert.fail("No ack for " + peer);
+        return null;
+    }
+
+    private static void deliverAcks(ReliableSignalChannel from, ReliableSignalChannel to,
+                                    String fromId, String toId) {
+        to.getInputProtocol().processSignal(ack(from, fromId, toId));
+    }
+}
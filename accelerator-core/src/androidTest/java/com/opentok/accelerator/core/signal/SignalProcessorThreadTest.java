@@ -0,0 +1,78 @@
+package com.opentok.accelerator.core.signal;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.opentok.accelerator.core.utils.Callback;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class SignalProcessorThreadTest {
+
+    private static final int BULK_SIGNALS = 50;
+
+    private static class PassThroughProtocol extends ThreadedSignalProtocol<String, String> {
+        @Override
+        protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+            return Collections.singletonList(signalInfo);
+        }
+    }
+
+    @Test
+    public void testControlSignalsOvertakeReadyBulkSignals() throws Exception {
+        PassThroughProtocol protocol = new PassThroughProtocol();
+        final CountDownLatch ready = new CountDownLatch(BULK_SIGNALS + 1);
+        // The processor reads it blocking, so it doesn't use the ready listener
+        protocol.setReadyListener(new Runnable() {
+            @Override
+            public void run() {
+                ready.countDown();
+            }
+        });
+        protocol.start();
+        final CountDownLatch firstDelivered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(BULK_SIGNALS + 1);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        SignalProcessorThread<String, String> processor = new SignalProcessorThread<String, String>(
+            protocol, new Callback<SignalInfo<String>>() {
+                @Override
+                public void run(SignalInfo<String> signalInfo) {
+                    delivered.add(signalInfo.mSignalName);
+                    firstDelivered.countDown();
+                    try {
+                        // Hold the processor until everything is ready to be delivered
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            });
+        processor.setSignalPriorities(new SignalPriorities.SignalPrioritiesBuilder()
+                                          .priority("chat", SignalPriority.CONTROL)
+                                          .priority("bulk", SignalPriority.BULK)
+                                          .build());
+
+        protocol.write(new SignalInfo<String>("src", null, "bulk", "0"));
+        Assert.assertTrue(firstDelivered.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < BULK_SIGNALS; i++) {
+            protocol.write(new SignalInfo<String>("src", null, "bulk", Integer.toString(i)));
+        }
+        protocol.write(new SignalInfo<String>("src", null, "chat", "hello"));
+        Assert.assertTrue(ready.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("chat", delivered.get(1));
+        Assert.assertEquals(BULK_SIGNALS + 1, delivered.size());
+        processor.switchPipe(null);
+    }
+}
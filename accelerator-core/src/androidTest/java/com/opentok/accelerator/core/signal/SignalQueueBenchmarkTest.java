@@ -0,0 +1,174 @@
+package com.opentok.accelerator.core.signal;
+
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the default linked queues against the ring buffer engine (with each wait strategy).
+ * The results are written to logcat with the SignalQueueBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SignalQueueBenchmarkTest {
+
+    private static final String LOG_TAG = "SignalQueueBenchmark";
+    private static final int CAPACITY = 1024;
+    private static final int THROUGHPUT_SIGNALS = 200000;
+    private static final int LATENCY_ROUND_TRIPS = 20000;
+
+    private interface QueueFactory {
+        SignalQueue<SignalInfo<String>> create();
+    }
+
+    @Test
+    public void testRingBufferKeepsOrderAndRoundsCapacity() throws Exception {
+        RingBufferSignalQueue<SignalInfo<String>> queue =
+            new RingBufferSignalQueue<SignalInfo<String>>(5, WaitStrategy.PARK);
+        Assert.assertEquals(8, queue.getCapacity());
+
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(queue.offer(signal(i)));
+        }
+        Assert.assertFalse("A full ring buffer must reject new elements", queue.offer(signal(8)));
+        Assert.assertEquals(8, queue.size());
+
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals(String.valueOf(i), queue.take().mData);
+        }
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testThreadedProtocolWithRingBuffers() throws Exception {
+        ThreadedSignalProtocol<String, String> protocol =
+            new ThreadedSignalProtocol<String, String>(16, WaitStrategy.YIELD) {
+                @Override
+                protected java.util.Collection<SignalInfo<String>> processSignal(
+                        SignalInfo<String> signalInfo) {
+                    return java.util.Collections.singletonList(signalInfo);
+                }
+            };
+        protocol.start();
+        Thread writer = startProducer(new Producer() {
+            @Override
+            public void write(int i) {
+                protocol.write(signal(i));
+            }
+        }, 1000);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(String.valueOf(i), protocol.read().mData);
+        }
+        writer.join();
+        protocol.close();
+    }
+
+    @Test
+    public void testCompareQueueEngines() throws Exception {
+        report("LinkedSignalQueue", new QueueFactory() {
+            @Override
+            public SignalQueue<SignalInfo<String>> create() {
+                return new LinkedSignalQueue<SignalInfo<String>>();
+            }
+        });
+        for (final WaitStrategy strategy : WaitStrategy.values()) {
+            if (strategy == WaitStrategy.SPIN && Runtime.getRuntime().availableProcessors() < 2) {
+                // Spinning on a single core just burns the time slice of the other thread
+                continue;
+            }
+            report("RingBufferSignalQueue(" + strategy + ")", new QueueFactory() {
+                @Override
+                public SignalQueue<SignalInfo<String>> create() {
+                    return new RingBufferSignalQueue<SignalInfo<String>>(CAPACITY, strategy);
+                }
+            });
+        }
+    }
+
+    private void report(String name, QueueFactory factory) throws Exception {
+        // Warm up
+        throughput(factory.create(), THROUGHPUT_SIGNALS / 10);
+        latency(factory.create(), factory.create(), LATENCY_ROUND_TRIPS / 10);
+
+        double signalsPerSecond = throughput(factory.create(), THROUGHPUT_SIGNALS);
+        double roundTripMicros = latency(factory.create(), factory.create(), LATENCY_ROUND_TRIPS);
+        Log.i(LOG_TAG, String.format("%-32s throughput: %,12.0f signals/s  round trip: %8.2f us",
+            name, signalsPerSecond, roundTripMicros));
+    }
+
+    private double throughput(final SignalQueue<SignalInfo<String>> queue, int count)
+            throws Exception {
+        final SignalInfo<String> signal = signal(0);
+        long start = System.nanoTime();
+        Thread producer = startProducer(new Producer() {
+            @Override
+            public void write(int i) throws InterruptedException {
+                queue.put(signal);
+            }
+        }, count);
+        for (int i = 0; i < count; i++) {
+            Assert.assertNotNull(queue.take());
+        }
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        return count * 1e9 / elapsed;
+    }
+
+    private double latency(final SignalQueue<SignalInfo<String>> ping,
+                           final SignalQueue<SignalInfo<String>> pong, int roundTrips)
+            throws Exception {
+        Thread echo = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SignalInfo<String> signalInfo;
+                    while ((signalInfo = ping.take()).mData != null) {
+                        pong.put(signalInfo);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        echo.start();
+        SignalInfo<String> signal = signal(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < roundTrips; i++) {
+            ping.put(signal);
+            Assert.assertSame(signal, pong.take());
+        }
+        long elapsed = System.nanoTime() - start;
+        ping.put(new SignalInfo<String>("", "", "stop", null));
+        echo.join();
+        return elapsed / 1000.0 / roundTrips;
+    }
+
+    private interface Producer {
+        void write(int i) throws InterruptedException;
+    }
+
+    private Thread startProducer(final Producer producer, final int count) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        producer.write(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static SignalInfo<String> signal(int i) {
+        return new SignalInfo<String>("src", "dst", "otAnnotation_pen", String.valueOf(i));
+    }
+}
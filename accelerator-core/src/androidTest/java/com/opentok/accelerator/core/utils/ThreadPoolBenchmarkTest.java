@@ -0,0 +1,145 @@
+package com.opentok.accelerator.core.utils;
+
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the tasks per second of ThreadPool and WorkStealingThreadPool with several threads
+ * submitting at the same time. The results are written to logcat with the ThreadPoolBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThreadPoolBenchmarkTest {
+
+    private static final String LOG_TAG = "ThreadPoolBenchmark";
+    private static final int TASKS = 200000;
+    private static final int[] SUBMITTERS = {1, 4, 8};
+
+    private interface PoolFactory {
+        TaskRunner create();
+
+        void finish(TaskRunner pool);
+    }
+
+    @Test
+    public void testRunsEveryTaskWithBoundedThreads() throws Exception {
+        final WorkStealingThreadPool pool =
+            new WorkStealingThreadPool(1, 3, 50, TimeUnit.MILLISECONDS);
+        final AtomicInteger maxLive = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10000);
+        for (int i = 0; i < 5000; i++) {
+            pool.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    maxLive.set(Math.max(maxLive.get(), pool.getLiveThreads()));
+                    done.countDown();
+                    // Tasks submitted from a task go to the deque of its thread
+                    pool.runAsync(new Runnable() {
+                        @Override
+                        public void run() {
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue("Too many threads: " + maxLive.get(), maxLive.get() <= 3);
+
+        // The threads above the minimum finish once they've been idle for the keep alive time
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getLiveThreads() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, pool.getLiveThreads());
+
+        pool.finish();
+        final CountDownLatch late = new CountDownLatch(1);
+        pool.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                late.countDown();
+            }
+        });
+        Assert.assertFalse(late.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCompareThreadPools() throws Exception {
+        for (int submitters : SUBMITTERS) {
+            report("ThreadPool", submitters, new PoolFactory() {
+                @Override
+                public TaskRunner create() {
+                    return new ThreadPool();
+                }
+
+                @Override
+                public void finish(TaskRunner pool) {
+                    ((ThreadPool) pool).finish();
+                }
+            });
+            report("WorkStealingThreadPool", submitters, new PoolFactory() {
+                @Override
+                public TaskRunner create() {
+                    return new WorkStealingThreadPool();
+                }
+
+                @Override
+                public void finish(TaskRunner pool) {
+                    ((WorkStealingThreadPool) pool).finish();
+                }
+            });
+        }
+    }
+
+    private void report(String name, int submitters, PoolFactory factory) throws Exception {
+        // Warm up
+        throughput(factory, submitters, TASKS / 10);
+
+        double tasksPerSecond = throughput(factory, submitters, TASKS);
+        Log.i(LOG_TAG, String.format("%-24s submitters: %d  throughput: %,12.0f tasks/s",
+            name, submitters, tasksPerSecond));
+    }
+
+    private double throughput(PoolFactory factory, int submitters, int count) throws Exception {
+        final TaskRunner pool = factory.create();
+        final CountDownLatch done = new CountDownLatch(count);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        final int perSubmitter = count / submitters;
+        Thread[] threads = new Thread[submitters];
+        long start = System.nanoTime();
+        for (int i = 0; i < submitters; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perSubmitter; j++) {
+                        pool.runAsync(task);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        // Tasks lost to the rounding of perSubmitter
+        for (int i = perSubmitter * submitters; i < count; i++) {
+            pool.runAsync(task);
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        factory.finish(pool);
+        return count * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,122 @@
+package com.opentok.accelerator.core.wrapper;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class ConnectionRegistryTest {
+
+    @Test
+    public void testRanksFollowCreationTime() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        registry.add("c", 300, null);
+        registry.add("a", 100, null);
+        registry.add("b", 200, null);
+
+        Assert.assertEquals(3, registry.size());
+        Assert.assertTrue(registry.isOldest("a"));
+        Assert.assertEquals(1, registry.getRank("b"));
+        Assert.assertEquals(2, registry.getRank("c"));
+        Assert.assertEquals(-1, registry.getRank("unknown"));
+        Assert.assertEquals("b", registry.select(1).mConnectionId);
+        Assert.assertNull(registry.select(3));
+
+        registry.remove("a");
+        Assert.assertTrue(registry.isOldest("b"));
+        Assert.assertEquals(2, registry.size());
+        Assert.assertEquals(-1, registry.compareCreationTimes("b", "c"));
+    }
+
+    @Test
+    public void testTiesAreBrokenById() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        registry.add("y", 100, null);
+        registry.add("x", 100, null);
+
+        Assert.assertTrue(registry.isOldest("x"));
+        Assert.assertEquals(1, registry.getRank("y"));
+        Assert.assertEquals(0, registry.compareCreationTimes("x", "y"));
+    }
+
+    @Test
+    public void testAddingTwiceDoesNothing() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        Assert.assertTrue(registry.add("a", 100, "role=host"));
+        Assert.assertFalse(registry.add("a", 50, "role=guest"));
+
+        Assert.assertEquals(1, registry.size());
+        Assert.assertEquals(100, registry.getEntry("a").mCreationTime);
+        Assert.assertEquals(1, registry.countByAttribute("role", "host"));
+        Assert.assertEquals(0, registry.countByAttribute("role", "guest"));
+    }
+
+    @Test
+    public void testConnectionsAreIndexedByAttribute() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        registry.add("a", 100, "role=host&name=Ann");
+        registry.add("b", 200, "role=guest, name=Bob");
+        registry.add("c", 300, "role=guest");
+        registry.add("d", 400, "free text");
+
+        Assert.assertEquals("Bob", registry.getEntry("b").getAttribute("name"));
+        Assert.assertTrue(registry.getEntry("d").getAttributes().isEmpty());
+        List<ConnectionRegistry.ConnectionEntry> guests = registry.findByAttribute("role", "guest");
+        Assert.assertEquals(2, guests.size());
+        Assert.assertEquals("b", guests.get(0).mConnectionId);
+
+        registry.remove("b");
+        Assert.assertEquals(1, registry.countByAttribute("role", "guest"));
+        Assert.assertTrue(registry.findByAttribute("name", "Bob").isEmpty());
+    }
+
+    @Test
+    public void testMatchesSortedListUnderChurn() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        List<ConnectionRegistry.ConnectionEntry> expected = new ArrayList<>();
+        Random random = new Random(42);
+        int nextId = 0;
+
+        for (int i = 0; i < 5000; i++) {
+            if (expected.isEmpty() || random.nextInt(3) != 0) {
+                String id = "conn" + nextId++;
+                long creationTime = random.nextInt(1000);
+                Assert.assertTrue(registry.add(id, creationTime, null));
+                expected.add(registry.getEntry(id));
+            } else {
+                ConnectionRegistry.ConnectionEntry removed =
+                    expected.remove(random.nextInt(expected.size()));
+                Assert.assertSame(removed, registry.remove(removed.mConnectionId));
+            }
+            if (i % 100 == 0) {
+                assertSameOrder(expected, registry);
+            }
+        }
+        assertSameOrder(expected, registry);
+    }
+
+    private static void assertSameOrder(List<ConnectionRegistry.ConnectionEntry> entries,
+                                        ConnectionRegistry registry) {
+        List<ConnectionRegistry.ConnectionEntry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, new Comparator<ConnectionRegistry.ConnectionEntry>() {
+            @Override
+            public int compare(ConnectionRegistry.ConnectionEntry a,
+                               ConnectionRegistry.ConnectionEntry b) {
+                return a.compareTo(b);
+            }
+        });
+        Assert.assertEquals(sorted.size(), registry.size());
+        for (int rank = 0; rank < sorted.size(); rank++) {
+            Assert.assertEquals(rank, registry.getRank(sorted.get(rank).mConnectionId));
+            Assert.assertSame(sorted.get(rank), registry.select(rank));
+        }
+        Assert.assertEquals(sorted.subList(0, Math.min(10, sorted.size())), registry.getOldest(10));
+    }
+}
@@ -0,0 +1,287 @@
+package com.opentok.accelerator.annotation;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Encodes and decodes the compact stroke stream format of the pen annotations. The legacy format
+ * sends, for every point, a JSON object with the absolute coordinates and all the metadata of the
+ * stroke. In the stroke stream format:
+ *   - The first point of a stroke carries the metadata (canvas id, color, line width, canvas and
+ *     video sizes, mirroring, platform) and its absolute coordinates.
+ *   - Each following point carries only its offset from the previous one.
+ * Coordinates are quantized to 1/QUANTIZATION pixels and written as zig-zag varints, so a point
+ * usually takes 2 or 3 bytes. The data is armored in Base64 after the {@link #STROKE_PREFIX}
+ * prefix, because signals can only carry strings.
+ * Format: <flags> <sequence> [<metadata>] <x> <y>, where flags are START, END, MIRRORED and
+ * SMOOTHED, sequence is the index of the point in the stroke (modulo 256), and x and y are the
+ * absolute coordinates for the first point and the offsets for the others.
+ * Decoding keeps the stroke in progress of each connection, and returns each point as the legacy
+ * JSON object, so both formats are drawn the same way. A stroke whose points are lost or
+ * reordered is dropped until the next one starts.
+ * It's not thread safe: it's only used from the UI thread.
+ */
+class AnnotationsStrokeCodec {
+    private static final String LOG_TAG = AnnotationsStrokeCodec.class.getSimpleName();
+
+    static final String STROKE_PREFIX = "otStroke:";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int QUANTIZATION = 4;
+    private static final int START = 1;
+    private static final int END = 2;
+    private static final int MIRRORED = 4;
+    private static final int SMOOTHED = 8;
+
+    // Metadata of a stroke, and position on it
+    private static final class Stroke {
+        String mId;
+        int mColor;
+        long mLineWidth;
+        long mVideoWidth;
+        long mVideoHeight;
+        long mCanvasWidth;
+        long mCanvasHeight;
+        boolean mMirrored;
+        boolean mSmoothed;
+        String mPlatform;
+        long mX;
+        long mY;
+        int mSequence;
+    }
+
+    private final Stroke mLocalStroke = new Stroke();
+    private final HashMap<String, Stroke> mRemoteStrokes = new HashMap<>();
+    private byte[] mBytes = new byte[64];
+    private int mLength;
+    private int mPosition;
+
+    /**
+     * Encodes the first point of a stroke.
+     */
+    String encodeStart(String id, int color, float lineWidth, int videoWidth, int videoHeight,
+                       int canvasWidth, int canvasHeight, boolean mirrored, boolean smoothed,
+                       String platform, float x, float y, boolean endPoint) {
+        Stroke stroke = mLocalStroke;
+        stroke.mId = id;
+        stroke.mColor = color & 0xFFFFFF;
+        stroke.mLineWidth = quantize(lineWidth);
+        stroke.mVideoWidth = videoWidth;
+        stroke.mVideoHeight = videoHeight;
+        stroke.mCanvasWidth = canvasWidth;
+        stroke.mCanvasHeight = canvasHeight;
+        stroke.mMirrored = mirrored;
+        stroke.mSmoothed = smoothed;
+        stroke.mPlatform = platform;
+        stroke.mX = quantize(x);
+        stroke.mY = quantize(y);
+        stroke.mSequence = 0;
+
+        mLength = 0;
+        writeVarint(START | (endPoint ? END : 0) | (mirrored ? MIRRORED : 0) |
+                    (smoothed ? SMOOTHED : 0));
+        writeVarint(0);
+        writeString(id);
+        writeVarint(stroke.mColor);
+        writeVarint(stroke.mLineWidth);
+        writeSigned(videoWidth);
+        writeSigned(videoHeight);
+        writeSigned(canvasWidth);
+        writeSigned(canvasHeight);
+        writeString(platform);
+        writeSigned(stroke.mX);
+        writeSigned(stroke.mY);
+        return armor();
+    }
+
+    /**
+     * Encodes a point of the stroke started with {@link #encodeStart}.
+     */
+    String encodePoint(float x, float y, boolean endPoint) {
+        Stroke stroke = mLocalStroke;
+        long qx = quantize(x);
+        long qy = quantize(y);
+        stroke.mSequence = (stroke.mSequence + 1) & 0xFF;
+
+        mLength = 0;
+        writeVarint((endPoint ? END : 0) | (stroke.mMirrored ? MIRRORED : 0) |
+                    (stroke.mSmoothed ? SMOOTHED : 0));
+        writeVarint(stroke.mSequence);
+        writeSigned(qx - stroke.mX);
+        writeSigned(qy - stroke.mY);
+        stroke.mX = qx;
+        stroke.mY = qy;
+        return armor();
+    }
+
+    /**
+     * Decodes a point sent by a connection.
+     *
+     * @return The point in the legacy JSON format, or null if it must be dropped
+     */
+    JSONObject decode(String connectionId, String data) throws JSONException {
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(data.substring(STROKE_PREFIX.length()), Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Malformed stroke data");
+            return null;
+        }
+        byte[] buffer = mBytes;
+        mBytes = bytes;
+        mLength = bytes.length;
+        mPosition = 0;
+        try {
+            return decodePoint(connectionId);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Malformed stroke data");
+            mRemoteStrokes.remove(connectionId);
+            return null;
+        } finally {
+            mBytes = buffer;
+        }
+    }
+
+    private JSONObject decodePoint(String connectionId) throws JSONException {
+        int flags = (int) readVarint();
+        int sequence = (int) readVarint();
+        Stroke stroke = mRemoteStrokes.get(connectionId);
+        long fromX;
+        long fromY;
+        if ((flags & START) != 0) {
+            if (stroke == null) {
+                stroke = new Stroke();
+                mRemoteStrokes.put(connectionId, stroke);
+            }
+            stroke.mId = readString();
+            stroke.mColor = (int) readVarint();
+            stroke.mLineWidth = readVarint();
+            stroke.mVideoWidth = readSigned();
+            stroke.mVideoHeight = readSigned();
+            stroke.mCanvasWidth = readSigned();
+            stroke.mCanvasHeight = readSigned();
+            stroke.mPlatform = readString();
+            stroke.mX = readSigned();
+            stroke.mY = readSigned();
+            stroke.mSequence = sequence;
+            fromX = stroke.mX;
+            fromY = stroke.mY;
+        } else {
+            if (stroke == null || sequence != ((stroke.mSequence + 1) & 0xFF)) {
+                // The start, or a point, was lost: the offsets are meaningless until a new stroke
+                Log.w(LOG_TAG, "Dropping stroke point out of sequence");
+                mRemoteStrokes.remove(connectionId);
+                return null;
+            }
+            stroke.mSequence = sequence;
+            fromX = stroke.mX;
+            fromY = stroke.mY;
+            stroke.mX += readSigned();
+            stroke.mY += readSigned();
+        }
+        if (mPosition != mLength) {
+            throw new IllegalArgumentException("Trailing stroke data");
+        }
+        stroke.mMirrored = (flags & MIRRORED) != 0;
+        stroke.mSmoothed = (flags & SMOOTHED) != 0;
+        boolean endPoint = (flags & END) != 0;
+
+        JSONObject json = new JSONObject();
+        json.put("id", stroke.mId);
+        json.put("fromId", connectionId);
+        json.put("fromX", dequantize(fromX));
+        json.put("fromY", dequantize(fromY));
+        json.put("toX", dequantize(stroke.mX));
+        json.put("toY", dequantize(stroke.mY));
+        json.put("color", String.format("#%06X", stroke.mColor));
+        json.put("lineWidth", dequantize(stroke.mLineWidth));
+        json.put("videoWidth", stroke.mVideoWidth);
+        json.put("videoHeight", stroke.mVideoHeight);
+        json.put("canvasWidth", stroke.mCanvasWidth);
+        json.put("canvasHeight", stroke.mCanvasHeight);
+        json.put("mirrored", stroke.mMirrored);
+        json.put("smoothed", stroke.mSmoothed);
+        json.put("startPoint", (flags & START) != 0);
+        json.put("endPoint", endPoint);
+        json.put("platform", stroke.mPlatform);
+        json.put("mode", AnnotationsView.Mode.Pen.toString());
+        if (endPoint) {
+            mRemoteStrokes.remove(connectionId);
+        }
+        return json;
+    }
+
+    private static long quantize(float value) {
+        return Math.round(value * QUANTIZATION);
+    }
+
+    private static double dequantize(long value) {
+        return (double) value / QUANTIZATION;
+    }
+
+    private String armor() {
+        return STROKE_PREFIX + Base64.encodeToString(mBytes, 0, mLength, Base64.NO_WRAP);
+    }
+
+    private void writeString(String string) {
+        byte[] bytes = (string != null ? string : "").getBytes(UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    private void writeSigned(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            mBytes[mLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBytes[mLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBytes.length) {
+            byte[] newBytes = new byte[Math.max(mBytes.length * 2, mLength + extra)];
+            System.arraycopy(mBytes, 0, newBytes, 0, mLength);
+            mBytes = newBytes;
+        }
+    }
+
+    private String readString() {
+        long length = readVarint();
+        if (length < 0 || length > mLength - mPosition) {
+            throw new IllegalArgumentException("Truncated stroke data");
+        }
+        String string = new String(mBytes, mPosition, (int) length, UTF_8);
+        mPosition += (int) length;
+        return string;
+    }
+
+    private long readSigned() {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = mBytes[mPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
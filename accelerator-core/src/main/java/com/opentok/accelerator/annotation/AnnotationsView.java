@@ -22,7 +22,10 @@ import androidx.annotation.NonNull;
 import com.opentok.accelerator.R;
 import com.opentok.accelerator.annotation.config.OpenTokConfig;
 import com.opentok.accelerator.annotation.utils.AnnotationsVideoRenderer;
-import com.opentok.accelerator.core.listeners.SignalListener;
+import com.opentok.accelerator.core.listeners.NonBlockingSignalListener;
+import com.opentok.accelerator.core.signal.FrameSignalBatcher;
+import com.opentok.accelerator.core.signal.SignalDecoder;
+import com.opentok.accelerator.core.signal.SignalDecoders;
 import com.opentok.accelerator.core.signal.SignalInfo;
 import com.opentok.accelerator.core.wrapper.OTAcceleratorSession;
 import com.tokbox.android.logging.OTKAnalytics;
@@ -33,6 +36,7 @@ import org.json.JSONObject;
 
 import java.lang.reflect.Method;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -40,7 +44,7 @@ import java.util.UUID;
 /**
  * Defines the view to draw annotations
  */
-public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.ActionsListener, SignalListener {
+public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.ActionsListener, NonBlockingSignalListener {
     private static final String LOG_TAG = AnnotationsView.class.getSimpleName();
     private static final String SIGNAL_TYPE = "otAnnotation";
     private static final String SIGNAL_PLATFORM = "android";
@@ -96,6 +100,31 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
 
     private OTAcceleratorSession mSession;
 
+    private final AnnotationsStrokeCodec mStrokeCodec = new AnnotationsStrokeCodec();
+    // Received signals are processed in batches, one per frame, with a single redraw for each
+    private final FrameSignalBatcher<String> mSignalBatcher = new FrameSignalBatcher<>(
+        new FrameSignalBatcher.BatchListener<String>() {
+            @Override
+            public void onSignalBatch(List<SignalInfo<String>> signals) {
+                processSignals(signals);
+            }
+        });
+    private boolean mProcessingBatch = false;
+    private boolean mRedrawPending = false;
+    private boolean mStrokeStreamEnabled = false;
+    private boolean mSendingStrokeStream = false;
+
+    // Pen signals in the stroke stream format are decoded by the view, which keeps the state of
+    // each stroke
+    private static final SignalDecoder<JSONArray> PEN_DECODER = new SignalDecoder<JSONArray>() {
+        @Override
+        public JSONArray decode(String data) throws Exception {
+            if (data.startsWith(AnnotationsStrokeCodec.STROKE_PREFIX)) {
+                return null;
+            }
+            return new JSONArray(data);
+        }
+    };
 
     /**
      * Monitors state changes in the Annotations component.
@@ -180,6 +209,8 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         this.mContext = context;
         this.mSession = session;
         this.mPartnerId = partnerId;
+        this.mSession.registerSignalDecoder(Mode.Pen.toString(), PEN_DECODER);
+        this.mSession.registerSignalDecoder(Mode.Text.toString(), SignalDecoders.JSON_ARRAY);
         //add a listener for each type of signal to avoid breaking the interoperability
         this.mSession.addSignalListener(Mode.Pen.toString(), this);
         this.mSession.addSignalListener(Mode.Text.toString(), this);
@@ -211,6 +242,8 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         this.mContext = context;
         this.mSession = session;
         this.mPartnerId = partnerId;
+        this.mSession.registerSignalDecoder(Mode.Pen.toString(), PEN_DECODER);
+        this.mSession.registerSignalDecoder(Mode.Text.toString(), SignalDecoders.JSON_ARRAY);
         //add a listener for each type of signal to avoid breaking the interoperability
         this.mSession.addSignalListener(Mode.Pen.toString(), this);
         this.mSession.addSignalListener(Mode.Text.toString(), this);
@@ -267,6 +300,26 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         this.mListener = listener;
     }
 
+    /**
+     * Sends the pen annotations in the stroke stream format: the metadata of a stroke is sent only
+     * with its first point, and the following points as quantized offsets from the previous one,
+     * which takes about a tenth of the bytes. Pen annotations are always received in both formats,
+     * but only enable it when all the participants use a version that supports it.
+     *
+     * @param enabled true to send the stroke stream format, false (the default) to send the legacy
+     *                JSON format
+     */
+    public void setStrokeStreamEnabled(boolean enabled) {
+        this.mStrokeStreamEnabled = enabled;
+    }
+
+    /**
+     * Returns whether the pen annotations are sent in the stroke stream format
+     */
+    public boolean isStrokeStreamEnabled() {
+        return mStrokeStreamEnabled;
+    }
+
     /**
      * Restarts the AnnotationsView. Clear all the annotations.
      */
@@ -449,6 +502,15 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         invalidate();
     }
 
+    // Redraws the view, or waits for the end of the batch of signals being processed
+    private void redraw() {
+        if (mProcessingBatch) {
+            mRedrawPending = true;
+        } else {
+            invalidate();
+        }
+    }
+
     private void beginTouch(float x, float y) {
         mCurrentPath.moveTo(x, y);
     }
@@ -498,7 +560,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                     jsonArray.put(annotatable.getCId());
                     i--;
                 }
-                invalidate();
+                redraw();
             }
             if (!incoming && !isScreenSharing) {
                 sendAnnotation(mode.toString(), null);
@@ -521,7 +583,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                 }
                 i--;
             }
-            invalidate();
+            redraw();
 
             if (!incoming && !isScreenSharing) {
                 JSONArray jsonArray = new JSONArray();
@@ -674,210 +736,257 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
         return jsonArray.toString();
     }
 
-    private void penAnnotations(String connectionId, String data) {
+    private String buildPenSignal(float x, float y, boolean startPoint, boolean endPoint) {
+        if (startPoint) {
+            // The format can't change in the middle of a stroke
+            mSendingStrokeStream = mStrokeStreamEnabled;
+        }
+        if (!mSendingStrokeStream) {
+            return buildSignalFromPoint(x, y, startPoint, endPoint);
+        }
+        if (!startPoint) {
+            return mStrokeCodec.encodePoint(x, y, endPoint);
+        }
+        boolean mirrored = false;
+
+        int videoWidth = 0;
+        int videoHeight = 0;
+
+        if (videoRenderer != null) {
+            mirrored = videoRenderer.isMirrored();
+            videoWidth = videoRenderer.getVideoWidth();
+            videoHeight = videoRenderer.getVideoHeight();
+        }
+        String id = mRemoteConnId != null ? mRemoteConnId : mSession.getConnection().getConnectionId();
+        return mStrokeCodec.encodeStart(id, mCurrentColor, 2, videoWidth, videoHeight, this.width,
+                                        getDisplayHeight() - getActionBarHeight(), mirrored, false,
+                                        SIGNAL_PLATFORM, x, y, endPoint);
+    }
+
+    private void penAnnotations(String connectionId, SignalInfo signalInfo) {
         mode = Mode.Pen;
-        // Build object from JSON array
         try {
-            JSONArray updates = new JSONArray(data);
+            if (signalInfo.mData instanceof String &&
+                ((String) signalInfo.mData).startsWith(AnnotationsStrokeCodec.STROKE_PREFIX)) {
+                // Stroke stream format: a single point, relative to the previous one
+                JSONObject json = mStrokeCodec.decode(connectionId, (String) signalInfo.mData);
+                if (json != null) {
+                    penAnnotation(connectionId, json);
+                }
+                return;
+            }
+            // Build object from JSON array
+            JSONArray updates = getUpdates(signalInfo);
 
             for (int i = 0; i < updates.length(); i++) {
-                JSONObject json = updates.getJSONObject(i);
+                penAnnotation(connectionId, updates.getJSONObject(i));
+            }
 
-                String platform = null;
-                if (!json.isNull("platform")) {
-                    platform = (String) json.get("platform");
-                }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
 
-                String id = (String) json.get("id");
-                if (json.get("mirrored") instanceof Number) {
-                    Number value = (Number) json.get("mirrored");
-                    mSignalMirrored = value.intValue() == 1;
-                } else {
-                    mSignalMirrored = (boolean) json.get("mirrored");
-                }
+    private void penAnnotation(String connectionId, JSONObject json) throws JSONException {
+        String platform = null;
+        if (!json.isNull("platform")) {
+            platform = (String) json.get("platform");
+        }
 
-                boolean initialPoint = false;
-                boolean secondPoint = false;
-                boolean endPoint = false;
+        String id = (String) json.get("id");
+        if (json.get("mirrored") instanceof Number) {
+            Number value = (Number) json.get("mirrored");
+            mSignalMirrored = value.intValue() == 1;
+        } else {
+            mSignalMirrored = (boolean) json.get("mirrored");
+        }
 
-                if (!json.isNull("endPoint")) {
-                    if (json.get("endPoint") instanceof Number) {
-                        Number value = (Number) json.get("endPoint");
-                        endPoint = value.intValue() == 1;
-                    } else {
-                        endPoint = (boolean) json.get("endPoint");
-                    }
-                }
-                if (!json.isNull("startPoint")) {
-                    if (json.get("startPoint") instanceof Number) {
-                        Number value = (Number) json.get("startPoint");
-                        initialPoint = value.intValue() == 1;
-                    } else {
-                        initialPoint = (boolean) json.get("startPoint");
-                    }
+        boolean initialPoint = false;
+        boolean secondPoint = false;
+        boolean endPoint = false;
 
-                    if (initialPoint) {
+        if (!json.isNull("endPoint")) {
+            if (json.get("endPoint") instanceof Number) {
+                Number value = (Number) json.get("endPoint");
+                endPoint = value.intValue() == 1;
+            } else {
+                endPoint = (boolean) json.get("endPoint");
+            }
+        }
+        if (!json.isNull("startPoint")) {
+            if (json.get("startPoint") instanceof Number) {
+                Number value = (Number) json.get("startPoint");
+                initialPoint = value.intValue() == 1;
+            } else {
+                initialPoint = (boolean) json.get("startPoint");
+            }
 
-                        isStartPoint = true;
-                    } else {
-                        // If the start point flag was already set, we received the next point in the sequence
-                        if (isStartPoint) {
-                            secondPoint = true;
-                            isStartPoint = false;
-                        }
-                    }
-                }
-                if (!json.isNull("color")) {
-                    mCurrentColor = Color.parseColor(((String) json.get("color")).toLowerCase());
-                }
-                if (!json.isNull("lineWidth")) {
-                    mIncomingLineWidth = ((Number) json.get("lineWidth")).floatValue();
-                }
+            if (initialPoint) {
 
-                float scale = 1;
-                float localWidth = 0;
-                float localHeight = 0;
-                if (videoRenderer != null) {
-                    localWidth = (float) videoRenderer.getVideoWidth();
-                    localHeight = (float) videoRenderer.getVideoHeight();
+                isStartPoint = true;
+            } else {
+                // If the start point flag was already set, we received the next point in the sequence
+                if (isStartPoint) {
+                    secondPoint = true;
+                    isStartPoint = false;
                 }
+            }
+        }
+        if (!json.isNull("color")) {
+            mCurrentColor = Color.parseColor(((String) json.get("color")).toLowerCase());
+        }
+        if (!json.isNull("lineWidth")) {
+            mIncomingLineWidth = ((Number) json.get("lineWidth")).floatValue();
+        }
 
-                if (localWidth == 0) {
-                    localWidth = getDisplayWidth();
-                }
-                if (localHeight == 0) {
-                    localHeight = getDisplayHeight();
-                }
+        float scale = 1;
+        float localWidth = 0;
+        float localHeight = 0;
+        if (videoRenderer != null) {
+            localWidth = (float) videoRenderer.getVideoWidth();
+            localHeight = (float) videoRenderer.getVideoHeight();
+        }
 
-                Map<String, Float> canvas = new HashMap<>();
-                canvas.put("width", localWidth);
-                canvas.put("height", localHeight);
+        if (localWidth == 0) {
+            localWidth = getDisplayWidth();
+        }
+        if (localHeight == 0) {
+            localHeight = getDisplayHeight();
+        }
 
-                Map<String, Float> iCanvas = new HashMap<>();
-                iCanvas.put("width", ((Number) json.get("canvasWidth")).floatValue());
-                iCanvas.put("height", ((Number) json.get("canvasHeight")).floatValue());
+        Map<String, Float> canvas = new HashMap<>();
+        canvas.put("width", localWidth);
+        canvas.put("height", localHeight);
 
-                float canvasRatio = canvas.get("width") / canvas.get("height");
+        Map<String, Float> iCanvas = new HashMap<>();
+        iCanvas.put("width", ((Number) json.get("canvasWidth")).floatValue());
+        iCanvas.put("height", ((Number) json.get("canvasHeight")).floatValue());
 
-                if (canvasRatio < 0) {
-                    scale = canvas.get("width") / iCanvas.get("width");
-                } else {
-                    scale = canvas.get("height") / iCanvas.get("height");
-                }
+        float canvasRatio = canvas.get("width") / canvas.get("height");
 
-                float centerX = canvas.get("width") / 2f;
-                float centerY = canvas.get("height") / 2f;
+        if (canvasRatio < 0) {
+            scale = canvas.get("width") / iCanvas.get("width");
+        } else {
+            scale = canvas.get("height") / iCanvas.get("height");
+        }
 
-                float iCenterX = iCanvas.get("width") / 2f;
-                float iCenterY = iCanvas.get("height") / 2f;
+        float centerX = canvas.get("width") / 2f;
+        float centerY = canvas.get("height") / 2f;
 
-                float fromX = ((Number) json.get("fromX")).floatValue();
-                float fromY = ((Number) json.get("fromY")).floatValue();
-                float toY = ((Number) json.get("toY")).floatValue();
-                float toX = ((Number) json.get("toX")).floatValue();
+        float iCenterX = iCanvas.get("width") / 2f;
+        float iCenterY = iCanvas.get("height") / 2f;
 
-                if (platform.equals(SIGNAL_PLATFORM)) {
-                    fromX = centerX - (scale * (iCenterX - ((Number) json.get("fromX")).floatValue()));
-                    toX = centerX - (scale * (iCenterX - ((Number) json.get("toX")).floatValue()));
+        float fromX = ((Number) json.get("fromX")).floatValue();
+        float fromY = ((Number) json.get("fromY")).floatValue();
+        float toY = ((Number) json.get("toY")).floatValue();
+        float toX = ((Number) json.get("toX")).floatValue();
 
-                    fromY = centerY - (scale * (iCenterY - ((Number) json.get("fromY")).floatValue()));
-                    toY = centerY - (scale * (iCenterY - ((Number) json.get("toY")).floatValue()));
-                }
-                fromY = fromY - getActionBarHeight();
-                toY = toY - getActionBarHeight();
+        if (platform.equals(SIGNAL_PLATFORM)) {
+            fromX = centerX - (scale * (iCenterX - ((Number) json.get("fromX")).floatValue()));
+            toX = centerX - (scale * (iCenterX - ((Number) json.get("toX")).floatValue()));
 
-                if (mSignalMirrored) {
-                    Log.i(LOG_TAG, "Signal is mirrored");
-                    fromX = this.width - fromX;
-                    toX = this.width - toX;
-                }
-                mMirrored = videoRenderer.isMirrored();
-                if (mMirrored) {
-                    Log.i(LOG_TAG, "Feed is mirrored");
-                    // Revert (Double negative)
-                    fromX = this.width - fromX;
-                    toX = this.width - toX;
-                }
+            fromY = centerY - (scale * (iCenterY - ((Number) json.get("fromY")).floatValue()));
+            toY = centerY - (scale * (iCenterY - ((Number) json.get("toY")).floatValue()));
+        }
+        fromY = fromY - getActionBarHeight();
+        toY = toY - getActionBarHeight();
 
-                boolean smoothed = false;
+        if (mSignalMirrored) {
+            Log.i(LOG_TAG, "Signal is mirrored");
+            fromX = this.width - fromX;
+            toX = this.width - toX;
+        }
+        mMirrored = videoRenderer.isMirrored();
+        if (mMirrored) {
+            Log.i(LOG_TAG, "Feed is mirrored");
+            // Revert (Double negative)
+            fromX = this.width - fromX;
+            toX = this.width - toX;
+        }
 
-                if (!json.isNull("smoothed")) {
-                    if (json.get("smoothed") instanceof Number) {
-                        Number value = (Number) json.get("smoothed");
-                        smoothed = value.intValue() == 1;
-                    } else {
-                        smoothed = (boolean) json.get("smoothed");
-                    }
-                }
-                if (smoothed) {
-                    if (isStartPoint) {
-                        mAnnotationsActive = true;
-                        createPathAnnotatable(false);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
-                    } else if (secondPoint) {
-                        beginTouch((toX + mCurrentPath.getEndPoint().x) / 2, (toY + mCurrentPath.getEndPoint().y) / 2);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
-                    } else {
-                        moveTouch(toX, toY, true);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
+        boolean smoothed = false;
 
-                        if (endPoint) {
-                            try {
-                                addAnnotatable(connectionId);
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, e.toString());
-                            }
-                            mAnnotationsActive = false;
-                        }
-                    }
-                } else {
-                    if (isStartPoint && endPoint) {
-                        mAnnotationsActive = true;
-                        createPathAnnotatable(false);
-                        mCurrentPath.addPoint(new PointF(fromX, fromY));
-                        // We have a straight line
-                        beginTouch(fromX, fromY);
-                        moveTouch(toX, toY, false);
-                        upTouch();
-                        try {
-                            addAnnotatable(connectionId);
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, e.toString());
-                        }
-                    } else if (isStartPoint) {
-                        mAnnotationsActive = true;
-                        createPathAnnotatable(false);
-                        mCurrentPath.addPoint(new PointF(fromX, fromY));
-                        beginTouch(toX, toY);
-                    } else if (endPoint) {
-                        moveTouch(toX, toY, false);
-                        upTouch();
-                        try {
-                            addAnnotatable(connectionId);
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, e.toString());
-                        }
-                        mAnnotationsActive = false;
-                    } else {
-                        moveTouch(toX, toY, false);
-                        mCurrentPath.addPoint(new PointF(toX, toY));
+        if (!json.isNull("smoothed")) {
+            if (json.get("smoothed") instanceof Number) {
+                Number value = (Number) json.get("smoothed");
+                smoothed = value.intValue() == 1;
+            } else {
+                smoothed = (boolean) json.get("smoothed");
+            }
+        }
+        if (smoothed) {
+            if (isStartPoint) {
+                mAnnotationsActive = true;
+                createPathAnnotatable(false);
+                mCurrentPath.addPoint(new PointF(toX, toY));
+            } else if (secondPoint) {
+                beginTouch((toX + mCurrentPath.getEndPoint().x) / 2, (toY + mCurrentPath.getEndPoint().y) / 2);
+                mCurrentPath.addPoint(new PointF(toX, toY));
+            } else {
+                moveTouch(toX, toY, true);
+                mCurrentPath.addPoint(new PointF(toX, toY));
+
+                if (endPoint) {
+                    try {
+                        addAnnotatable(connectionId);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, e.toString());
                     }
+                    mAnnotationsActive = false;
                 }
-
-                invalidate(); // Need this to finalize the drawing on the screen
             }
+        } else {
+            if (isStartPoint && endPoint) {
+                mAnnotationsActive = true;
+                createPathAnnotatable(false);
+                mCurrentPath.addPoint(new PointF(fromX, fromY));
+                // We have a straight line
+                beginTouch(fromX, fromY);
+                moveTouch(toX, toY, false);
+                upTouch();
+                try {
+                    addAnnotatable(connectionId);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, e.toString());
+                }
+            } else if (isStartPoint) {
+                mAnnotationsActive = true;
+                createPathAnnotatable(false);
+                mCurrentPath.addPoint(new PointF(fromX, fromY));
+                beginTouch(toX, toY);
+            } else if (endPoint) {
+                moveTouch(toX, toY, false);
+                upTouch();
+                try {
+                    addAnnotatable(connectionId);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, e.toString());
+                }
+                mAnnotationsActive = false;
+            } else {
+                moveTouch(toX, toY, false);
+                mCurrentPath.addPoint(new PointF(toX, toY));
+            }
+        }
 
-        } catch (JSONException e) {
-            e.printStackTrace();
+        redraw(); // Need this to finalize the drawing on the screen
+    }
+
+    // The session decodes the annotations just once for all its listeners (see the decoders
+    // registered in the constructors). Parse them here only if they weren't decoded
+    private JSONArray getUpdates(SignalInfo signalInfo) throws JSONException {
+        if (signalInfo.mDecodedData instanceof JSONArray) {
+            return (JSONArray) signalInfo.mDecodedData;
         }
+        return new JSONArray(signalInfo.mData.toString());
     }
 
-    private void textAnnotation(String connectionId, String data) {
+    private void textAnnotation(String connectionId, SignalInfo signalInfo) {
 
         mode = Mode.Text;
         // Build object from JSON array
         try {
-            JSONArray updates = new JSONArray(data);
+            JSONArray updates = getUpdates(signalInfo);
 
             for (int i = 0; i < updates.length(); i++) {
                 JSONObject json = updates.getJSONObject(i);
@@ -994,7 +1103,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                 mAnnotationsActive = false;
                 addAnnotatable(connectionId);
                 mCurrentText = null;
-                invalidate(); // Need this to finalize the drawing on the screen
+                redraw(); // Need this to finalize the drawing on the screen
             }
 
         } catch (JSONException e) {
@@ -1044,7 +1153,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                         createPathAnnotatable(false);
                         beginTouch(x, y);
                         mCurrentPath.addPoint(new PointF(x, y));
-                        sendAnnotation(mode.toString(), buildSignalFromPoint(x, y, true, false));
+                        sendAnnotation(mode.toString(), buildPenSignal(x, y, true, false));
                         invalidate();
                         addLogEvent(OpenTokConfig.LOG_ACTION_START_DRAWING, OpenTokConfig.LOG_VARIATION_SUCCESS);
                     }
@@ -1052,7 +1161,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                     case MotionEvent.ACTION_MOVE: {
                         moveTouch(x, y, true);
 
-                        sendAnnotation(mode.toString(), buildSignalFromPoint(x, y, false, false));
+                        sendAnnotation(mode.toString(), buildPenSignal(x, y, false, false));
                         mCurrentPath.addPoint(new PointF(x, y));
                         invalidate();
                     }
@@ -1060,7 +1169,7 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
                     case MotionEvent.ACTION_UP: {
                         addLogEvent(OpenTokConfig.LOG_ACTION_END_DRAWING, OpenTokConfig.LOG_VARIATION_ATTEMPT);
                         upTouch();
-                        sendAnnotation(mode.toString(), buildSignalFromPoint(x, y, false, true));
+                        sendAnnotation(mode.toString(), buildPenSignal(x, y, false, true));
                         try {
                             addAnnotatable(mSession.getConnection().getConnectionId());
 
@@ -1288,66 +1397,83 @@ public class AnnotationsView extends ViewGroup implements AnnotationsToolbar.Act
     }
 
     @Override
-    public void onSignalReceived(final SignalInfo signalInfo, boolean isSelfSignal) {
+    public void onSignalReceived(SignalInfo signalInfo, boolean isSelfSignal) {
         Log.i(LOG_TAG, "Signal info: " + signalInfo.mSignalName);
-        ((Activity) mContext).runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (!loaded) {
-                    resize();
-                    loaded = true;
-                }
+        // It's a non blocking listener: it only hands the signal to the batcher, which delivers
+        // the signals received on each frame, in order, on the UI thread
+        mSignalBatcher.onSignalReceived(signalInfo, isSelfSignal);
+    }
+
+    private void processSignals(List<SignalInfo<String>> signals) {
+        // Redraw once for the whole batch
+        mProcessingBatch = true;
+        try {
+            for (SignalInfo<String> signalInfo : signals) {
+                processSignal(signalInfo);
+            }
+        } finally {
+            mProcessingBatch = false;
+            if (mRedrawPending) {
+                mRedrawPending = false;
+                invalidate();
+            }
+        }
+    }
+
+    private void processSignal(SignalInfo signalInfo) {
+        if (!loaded) {
+            resize();
+            loaded = true;
+        }
 
-                String cid = signalInfo.mSrcConnId;
-                String mycid = signalInfo.mDstConnId;
+        String cid = signalInfo.mSrcConnId;
+        String mycid = signalInfo.mDstConnId;
 
-                if (!cid.equals(mycid)) { // Ensure that we only handle signals from other users on the current canvas
-                    Log.i(LOG_TAG, "Incoming annotation");
-                    AnnotationsView.this.setVisibility(VISIBLE);
-                    if (!loaded) {
-                        resize();
-                        loaded = true;
-                    }
+        if (!cid.equals(mycid)) { // Ensure that we only handle signals from other users on the current canvas
+            Log.i(LOG_TAG, "Incoming annotation");
+            AnnotationsView.this.setVisibility(VISIBLE);
+            if (!loaded) {
+                resize();
+                loaded = true;
+            }
 
-                    if (signalInfo.mSignalName != null && signalInfo.mSignalName.contains(Mode.Pen.toString())) {
-                        Log.i(LOG_TAG, "New pen annotations is received");
-                        penAnnotations(signalInfo.mSrcConnId, signalInfo.mData.toString());
+            if (signalInfo.mSignalName != null && signalInfo.mSignalName.contains(Mode.Pen.toString())) {
+                Log.i(LOG_TAG, "New pen annotations is received");
+                penAnnotations(signalInfo.mSrcConnId, signalInfo);
+            } else {
+                if (signalInfo.mSignalName.equalsIgnoreCase(Mode.Undo.toString())) {
+                    Log.i(LOG_TAG, "New undo annotations is received");
+                    mode = Mode.Undo;
+                    undoAnnotation(true, cid);
+                } else {
+                    if (signalInfo.mSignalName.equalsIgnoreCase(Mode.Clear.toString())) {
+                        Log.i(LOG_TAG, "New clear annotations is received");
+                        mode = Mode.Clear;
+                        clearAll(true, cid);
                     } else {
-                        if (signalInfo.mSignalName.equalsIgnoreCase(Mode.Undo.toString())) {
-                            Log.i(LOG_TAG, "New undo annotations is received");
-                            mode = Mode.Undo;
-                            undoAnnotation(true, cid);
+                        if (signalInfo.mSignalName.equalsIgnoreCase(Mode.Text.toString())) {
+                            Log.i(LOG_TAG, "New text annotations is received");
+                            try {
+                                textAnnotation(cid, signalInfo);
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, e.toString());
+                            }
                         } else {
-                            if (signalInfo.mSignalName.equalsIgnoreCase(Mode.Clear.toString())) {
-                                Log.i(LOG_TAG, "New clear annotations is received");
-                                mode = Mode.Clear;
-                                clearAll(true, cid);
-                            } else {
-                                if (signalInfo.mSignalName.equalsIgnoreCase(Mode.Text.toString())) {
-                                    Log.i(LOG_TAG, "New text annotations is received");
-                                    try {
-                                        textAnnotation(cid, signalInfo.mData.toString());
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, e.toString());
-                                    }
-                                } else {
-                                    if (signalInfo.mSignalName.equalsIgnoreCase("otAnnotation_requestPlatform")) {
-                                        try {
-                                            JSONObject jsonObject = new JSONObject();
-                                            jsonObject.put("platform", "android");
-                                            mSession.sendSignal(new SignalInfo(mSession.getConnection().getConnectionId(), null, "otAnnotation_mobileScreenShare", jsonObject), null);
-
-                                        } catch (JSONException e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
+                            if (signalInfo.mSignalName.equalsIgnoreCase("otAnnotation_requestPlatform")) {
+                                try {
+                                    JSONObject jsonObject = new JSONObject();
+                                    jsonObject.put("platform", "android");
+                                    mSession.sendSignal(new SignalInfo(mSession.getConnection().getConnectionId(), null, "otAnnotation_mobileScreenShare", jsonObject), null);
+
+                                } catch (JSONException e) {
+                                    e.printStackTrace();
                                 }
                             }
                         }
                     }
                 }
             }
-        });
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package com.opentok.accelerator.core.listeners;
+
+import com.opentok.accelerator.core.signal.SignalInfo;
+
+/**
+ * Marks a signal listener that never blocks and returns quickly (for example, one that updates a
+ * counter or posts the signal to a Handler). The session invokes these listeners directly on the
+ * thread that dispatches the signals, instead of handing them to the signal dispatcher, which
+ * saves a thread hop for each signal. They receive the signals of a session in order.
+ * A listener that blocks or takes long delays all the signals of the session, so only mark the
+ * listeners that are cheap on every signal. A pooled signal must be retained to be used after
+ * returning (see {@link SignalInfo#retain()}).
+ *
+ * @see com.opentok.accelerator.core.wrapper.OTAcceleratorSession#addSignalListener(String, SignalListener)
+ */
+public interface NonBlockingSignalListener<SignalDataType> extends SignalListener<SignalDataType> {
+}
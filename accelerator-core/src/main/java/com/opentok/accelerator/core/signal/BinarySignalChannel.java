@@ -0,0 +1,246 @@
+package com.opentok.accelerator.core.signal;
+
+import android.os.Debug;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in compact encoding of the JSON data of the signals with {@link BinarySignalCodec}. It
+ * provides a pair of protocols that must be installed (on their own or chained with others) as
+ * the output and input protocols:
+ *   - The output protocol encodes the data of a signal when all its receivers support the codec,
+ *     and the encoded data is smaller. Otherwise the signal is sent as it is, as plain JSON.
+ *   - The input protocol decodes the encoded signals, so the listeners always get the JSON text.
+ * The support is negotiated per connection: each peer sends a {@link #HELLO_SIGNAL} signal to the
+ * connections it learns about, and answers the first one it gets from each connection. A signal
+ * to a single connection is encoded once that connection has said hello, and a broadcast signal
+ * once all the known connections have. Peers are learned from OTWrapper, when the channel is set
+ * with OTWrapper#setBinarySignalChannel, and from the signals received.
+ * Usage:
+ *   BinarySignalChannel channel = new BinarySignalChannel(AnnotationsView.SIGNAL_TYPE);
+ *   channel.getOutputProtocol().start();
+ *   channel.getInputProtocol().start();
+ *   wrapper.setOutputSignalProtocol(channel.getOutputProtocol());
+ *   wrapper.setInputSignalProtocol(channel.getInputProtocol());
+ *   wrapper.setBinarySignalChannel(channel);
+ */
+public class BinarySignalChannel implements SignalPeerTracker {
+    private static final String LOG_TAG = BinarySignalChannel.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    public static final String HELLO_SIGNAL = "otBinHello";
+
+    private static final String CODEC_VERSION = "1";
+    private static final long HELLO_INTERVAL = 100;
+
+    private final Set<String> mSignalNames;
+    private final Sender mSender = new Sender();
+    private final Receiver mReceiver = new Receiver();
+
+    // Guarded by this. true for the peers that support the codec
+    private final HashMap<String, Boolean> mPeers = new HashMap<>();
+    private final LinkedHashSet<String> mPendingHellos = new LinkedHashSet<>();
+
+    private final ConcurrentHashMap<String, CompressionStats> mEncodeStats =
+        new ConcurrentHashMap<String, CompressionStats>();
+    private final ConcurrentHashMap<String, CompressionStats> mDecodeStats =
+        new ConcurrentHashMap<String, CompressionStats>();
+
+    /**
+     * @param signalNames Names of the signals to encode. Pass none to encode all the signals.
+     */
+    public BinarySignalChannel(String... signalNames) {
+        mSignalNames = signalNames == null || signalNames.length == 0 ? null :
+            new HashSet<String>(Arrays.asList(signalNames));
+    }
+
+    /**
+     * @return The protocol to use (or chain) as output protocol. It must be started unless it's
+     *         part of a chain.
+     */
+    public ThreadedSignalProtocol<String, String> getOutputProtocol() {
+        return mSender;
+    }
+
+    /**
+     * @return The protocol to use (or chain) as input protocol. It must be started unless it's
+     *         part of a chain.
+     */
+    public ThreadedSignalProtocol<String, String> getInputProtocol() {
+        return mReceiver;
+    }
+
+    /**
+     * Adds a connection and says hello to it.
+     */
+    @Override
+    public synchronized void addPeer(String connectionId) {
+        if (connectionId != null && !mPeers.containsKey(connectionId)) {
+            mPeers.put(connectionId, false);
+            mPendingHellos.add(connectionId);
+        }
+    }
+
+    @Override
+    public synchronized void removePeer(String connectionId) {
+        mPeers.remove(connectionId);
+        mPendingHellos.remove(connectionId);
+    }
+
+    @Override
+    public synchronized void clearPeers() {
+        mPeers.clear();
+        mPendingHellos.clear();
+    }
+
+    /**
+     * @param connectionId Id of a connection
+     * @return true if the connection has said it supports the codec
+     */
+    public synchronized boolean isSupportedBy(String connectionId) {
+        return Boolean.TRUE.equals(mPeers.get(connectionId));
+    }
+
+    /**
+     * @return Statistics of the signals sent, per signal name. A compressed signal is a signal
+     *         sent encoded.
+     */
+    public Map<String, CompressionStats> getEncodeStats() {
+        return CompressionStats.snapshot(mEncodeStats);
+    }
+
+    /**
+     * @return Statistics of the signals received, per signal name
+     */
+    public Map<String, CompressionStats> getDecodeStats() {
+        return CompressionStats.snapshot(mDecodeStats);
+    }
+
+    private boolean isEncoded(String signalName) {
+        return signalName != null && !HELLO_SIGNAL.equals(signalName) &&
+            (mSignalNames == null || mSignalNames.contains(signalName));
+    }
+
+    // Must be called with the lock held
+    private boolean canEncodeFor(String dstConnId) {
+        if (dstConnId != null) {
+            return Boolean.TRUE.equals(mPeers.get(dstConnId));
+        }
+        if (mPeers.isEmpty()) {
+            // Someone may join and get it without knowing the codec
+            return false;
+        }
+        for (Boolean supported : mPeers.values()) {
+            if (!supported) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Sender extends ThreadedSignalProtocol<String, String> {
+        private final BinarySignalCodec mCodec = new BinarySignalCodec();
+
+        @Override
+        protected long getTickInterval() {
+            return HELLO_INTERVAL;
+        }
+
+        @Override
+        protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+            String data = signalInfo.mData;
+            if (!isEncoded(signalInfo.mSignalName) || data == null) {
+                return Collections.singletonList(signalInfo);
+            }
+            boolean canEncode;
+            synchronized (BinarySignalChannel.this) {
+                canEncode = canEncodeFor(signalInfo.mDstConnId);
+            }
+            long startTime = Debug.threadCpuTimeNanos();
+            String encoded = canEncode ? mCodec.encode(data) : null;
+            SignalInfo<String> wireSignal = signalInfo;
+            if (encoded != null && encoded.length() < data.length()) {
+                wireSignal = new SignalInfo<String>(signalInfo.mSrcConnId, signalInfo.mDstConnId,
+                                                    signalInfo.mSignalName, encoded);
+            }
+            long cpuTime = Debug.threadCpuTimeNanos() - startTime;
+            CompressionStats.forSignal(mEncodeStats, signalInfo.mSignalName)
+                .add(wireSignal != signalInfo, Utf8.length(data), Utf8.length(wireSignal.mData),
+                     cpuTime);
+            return Collections.singletonList(wireSignal);
+        }
+
+        @Override
+        protected Collection<SignalInfo<String>> processTick(long now) {
+            synchronized (BinarySignalChannel.this) {
+                if (mPendingHellos.isEmpty()) {
+                    return null;
+                }
+                ArrayList<SignalInfo<String>> hellos = new ArrayList<>(mPendingHellos.size());
+                for (String connectionId : mPendingHellos) {
+                    hellos.add(new SignalInfo<String>(null, connectionId, HELLO_SIGNAL,
+                                                      CODEC_VERSION));
+                }
+                mPendingHellos.clear();
+                return hellos;
+            }
+        }
+    }
+
+    private class Receiver extends ThreadedSignalProtocol<String, String> {
+        private final BinarySignalCodec mCodec = new BinarySignalCodec();
+
+        @Override
+        protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+            String srcConnId = signalInfo.mSrcConnId;
+            if (HELLO_SIGNAL.equals(signalInfo.mSignalName)) {
+                if (srcConnId != null && CODEC_VERSION.equals(signalInfo.mData)) {
+                    synchronized (BinarySignalChannel.this) {
+                        if (!Boolean.TRUE.equals(mPeers.put(srcConnId, true))) {
+                            // Answer, in case our hello was lost or sent before it was listening
+                            mPendingHellos.add(srcConnId);
+                        }
+                    }
+                }
+                return null;
+            }
+            String data = signalInfo.mData;
+            if (data == null || !data.startsWith(BinarySignalCodec.BINARY_PREFIX)) {
+                return Collections.singletonList(signalInfo);
+            }
+            long startTime = Debug.threadCpuTimeNanos();
+            String json;
+            try {
+                json = mCodec.decode(data);
+            } catch (IllegalArgumentException e) {
+                LOG.w(LOG_TAG, "Discarding malformed binary signal: ", signalInfo.mSignalName,
+                      ", ", e.getMessage());
+                return null;
+            }
+            long cpuTime = Debug.threadCpuTimeNanos() - startTime;
+            CompressionStats.forSignal(mDecodeStats, signalInfo.mSignalName)
+                .add(true, Utf8.length(json), Utf8.length(data), cpuTime);
+            return Collections.singletonList(
+                new SignalInfo<String>(srcConnId, signalInfo.mDstConnId, signalInfo.mSignalName,
+                                       json));
+        }
+    }
+}
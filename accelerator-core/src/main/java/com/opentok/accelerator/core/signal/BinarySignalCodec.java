@@ -0,0 +1,637 @@
+package com.opentok.accelerator.core.signal;
+
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact binary encoding of JSON signal data, similar to MessagePack:
+ *   - Integers are zig-zag varints, and decimals without exponent a varint mantissa plus a scale,
+ *     so "123.45" takes 4 bytes and is decoded back exactly as it was written.
+ *   - Object keys and short strings are written once per signal and referenced by index
+ *     afterwards, and the keys used by the accelerator components (annotations, text chat) are on
+ *     a static dictionary shared by all the peers, so they are never written.
+ * The binary data is armored in Base64 after the {@link #BINARY_PREFIX} prefix, because signals
+ * can only carry strings.
+ * The JSON text is read by a streaming tokenizer and the decoded JSON text is written directly, so
+ * no intermediate org.json objects are built. Instances reuse their buffers and are not thread
+ * safe.
+ * Format: <version> <value>, where a value is a tag byte followed by:
+ *   NULL, FALSE, TRUE: nothing
+ *   INT: zig-zag varint
+ *   DECIMAL: zig-zag varint mantissa, varint scale (digits after the point)
+ *   NUMBER: varint length, text of a number that doesn't fit the previous ones
+ *   STRING: varint length, UTF-8 bytes
+ *   STRING_REF: varint index on the string table
+ *   ARRAY: varint count, values
+ *   OBJECT: varint count, pairs of key and value. A key is a varint (index << 1 | 1) for
+ *           references to the string table or (length << 1) followed by the UTF-8 bytes.
+ * The string table starts with the static dictionary, and every key and short string written
+ * literally is appended to it, in the same order on the encoder and the decoder.
+ */
+public final class BinarySignalCodec {
+    public static final String BINARY_PREFIX = "otBin:";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int VERSION = 1;
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INT = 3;
+    private static final int DECIMAL = 4;
+    private static final int NUMBER = 5;
+    private static final int STRING = 6;
+    private static final int STRING_REF = 7;
+    private static final int ARRAY = 8;
+    private static final int OBJECT = 9;
+
+    // Never change the order: peers must agree on the indexes. New entries go at the end, with a
+    // new VERSION.
+    private static final String[] DICTIONARY = {
+        // Annotations
+        "id", "fromId", "fromX", "fromY", "toX", "toY", "color", "lineWidth", "mirrored",
+        "canvasWidth", "canvasHeight", "videoWidth", "videoHeight", "smoothed", "startPoint",
+        "endPoint", "platform", "mode", "text", "font", "width", "height", "guid", "selected",
+        "android", "ios", "web",
+        // Text chat
+        "sender", "alias", "sentOn"
+    };
+    private static final int MAX_TABLE_SIZE = 4096;
+    private static final int MAX_TABLE_STRING_LENGTH = 32;
+    private static final int MAX_DEPTH = 64;
+    private static final int MAX_DECIMAL_DIGITS = 18;
+
+    private final HashMap<String, Integer> mIndexes = new HashMap<>();
+    private final ArrayList<String> mTable = new ArrayList<>();
+    private byte[] mBytes = new byte[1024];
+    private int mLength;
+    private int mPosition;
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * Encodes a JSON text.
+     *
+     * @param json The JSON text
+     * @return The armored binary data, or null if the text is not valid JSON
+     */
+    public String encode(String json) {
+        byte[] bytes = encodeToBytes(json);
+        if (bytes == null) {
+            return null;
+        }
+        return BINARY_PREFIX + Base64.encodeToString(mBytes, 0, mLength, Base64.NO_WRAP);
+    }
+
+    /**
+     * Decodes the data generated by {@link #encode(String)}.
+     *
+     * @param data The armored binary data
+     * @return The JSON text
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public String decode(String data) {
+        if (data == null || !data.startsWith(BINARY_PREFIX)) {
+            throw new IllegalArgumentException("Not binary signal data");
+        }
+        byte[] bytes = Base64.decode(data.substring(BINARY_PREFIX.length()), Base64.NO_WRAP);
+        return decodeFromBytes(bytes, bytes.length);
+    }
+
+    // Returns the internal buffer, holding mLength bytes, or null if the json is not valid
+    byte[] encodeToBytes(String json) {
+        if (json == null) {
+            return null;
+        }
+        resetTable();
+        mLength = 0;
+        writeVarint(VERSION);
+        try {
+            int end = writeValue(json, skipWhitespace(json, 0), 0);
+            if (skipWhitespace(json, end) != json.length()) {
+                return null;
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        return mBytes;
+    }
+
+    String decodeFromBytes(byte[] bytes, int length) {
+        resetTable();
+        byte[] buffer = mBytes;
+        mBytes = bytes;
+        mLength = length;
+        mPosition = 0;
+        mText.setLength(0);
+        try {
+            if (readVarint() != VERSION) {
+                throw new IllegalArgumentException("Unsupported binary signal version");
+            }
+            readValue(0);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated binary signal data");
+        } finally {
+            // Don't keep (or write on) the caller's array
+            mBytes = buffer;
+        }
+        if (mPosition != length) {
+            throw new IllegalArgumentException("Trailing binary signal data");
+        }
+        return mText.toString();
+    }
+
+    // Leaves only the static dictionary on the string table
+    private void resetTable() {
+        if (mTable.isEmpty()) {
+            for (String entry : DICTIONARY) {
+                addToTable(entry);
+            }
+        }
+        while (mTable.size() > DICTIONARY.length) {
+            mIndexes.remove(mTable.remove(mTable.size() - 1));
+        }
+    }
+
+    private void addToTable(String string) {
+        if (mTable.size() < MAX_TABLE_SIZE && !mIndexes.containsKey(string)) {
+            mIndexes.put(string, mTable.size());
+            mTable.add(string);
+        }
+    }
+
+    // Encoding: tokenizes the JSON value at position start, writes it, and returns its end
+    private int writeValue(String json, int start, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Too deep");
+        }
+        char c = json.charAt(start);
+        switch (c) {
+            case '{': {
+                writeByte(OBJECT);
+                int countPosition = reserveCount();
+                int count = 0;
+                int i = skipWhitespace(json, start + 1);
+                if (json.charAt(i) == '}') {
+                    patchCount(countPosition, 0);
+                    return i + 1;
+                }
+                while (true) {
+                    if (json.charAt(i) != '"') {
+                        throw new IllegalArgumentException("Expected a key");
+                    }
+                    int keyEnd = readString(json, i);
+                    writeKey(mText.toString());
+                    i = skipWhitespace(json, keyEnd);
+                    if (json.charAt(i) != ':') {
+                        throw new IllegalArgumentException("Expected ':'");
+                    }
+                    i = writeValue(json, skipWhitespace(json, i + 1), depth + 1);
+                    count++;
+                    i = skipWhitespace(json, i);
+                    if (json.charAt(i) == ',') {
+                        i = skipWhitespace(json, i + 1);
+                    } else if (json.charAt(i) == '}') {
+                        patchCount(countPosition, count);
+                        return i + 1;
+                    } else {
+                        throw new IllegalArgumentException("Expected ',' or '}'");
+                    }
+                }
+            }
+            case '[': {
+                writeByte(ARRAY);
+                int countPosition = reserveCount();
+                int count = 0;
+                int i = skipWhitespace(json, start + 1);
+                if (json.charAt(i) == ']') {
+                    patchCount(countPosition, 0);
+                    return i + 1;
+                }
+                while (true) {
+                    i = writeValue(json, i, depth + 1);
+                    count++;
+                    i = skipWhitespace(json, i);
+                    if (json.charAt(i) == ',') {
+                        i = skipWhitespace(json, i + 1);
+                    } else if (json.charAt(i) == ']') {
+                        patchCount(countPosition, count);
+                        return i + 1;
+                    } else {
+                        throw new IllegalArgumentException("Expected ',' or ']'");
+                    }
+                }
+            }
+            case '"': {
+                int end = readString(json, start);
+                writeString(mText.toString());
+                return end;
+            }
+            case 't':
+                return writeLiteral(json, start, "true", TRUE);
+            case 'f':
+                return writeLiteral(json, start, "false", FALSE);
+            case 'n':
+                return writeLiteral(json, start, "null", NULL);
+            default:
+                return writeNumber(json, start);
+        }
+    }
+
+    private int writeLiteral(String json, int start, String literal, int tag) {
+        if (!json.startsWith(literal, start)) {
+            throw new IllegalArgumentException("Unexpected token");
+        }
+        writeByte(tag);
+        return start + literal.length();
+    }
+
+    private int writeNumber(String json, int start) {
+        int i = start;
+        if (i < json.length() && json.charAt(i) == '-') {
+            i++;
+        }
+        int digitsStart = i;
+        while (i < json.length() && isDigit(json.charAt(i))) {
+            i++;
+        }
+        if (i == digitsStart) {
+            throw new IllegalArgumentException("Unexpected token");
+        }
+        int pointPosition = -1;
+        if (i < json.length() && json.charAt(i) == '.') {
+            pointPosition = i++;
+            int fractionStart = i;
+            while (i < json.length() && isDigit(json.charAt(i))) {
+                i++;
+            }
+            if (i == fractionStart) {
+                throw new IllegalArgumentException("Malformed number");
+            }
+        }
+        boolean hasExponent = false;
+        if (i < json.length() && (json.charAt(i) == 'e' || json.charAt(i) == 'E')) {
+            hasExponent = true;
+            i++;
+            if (i < json.length() && (json.charAt(i) == '+' || json.charAt(i) == '-')) {
+                i++;
+            }
+            int exponentStart = i;
+            while (i < json.length() && isDigit(json.charAt(i))) {
+                i++;
+            }
+            if (i == exponentStart) {
+                throw new IllegalArgumentException("Malformed number");
+            }
+        }
+        int digits = i - digitsStart - (pointPosition >= 0 ? 1 : 0);
+        boolean leadingZero = json.charAt(digitsStart) == '0' &&
+            (pointPosition >= 0 ? pointPosition - digitsStart > 1 : i - digitsStart > 1);
+        if (leadingZero) {
+            throw new IllegalArgumentException("Malformed number");
+        }
+        if (!hasExponent && digits <= MAX_DECIMAL_DIGITS) {
+            long mantissa = 0;
+            for (int j = digitsStart; j < i; j++) {
+                char c = json.charAt(j);
+                if (c != '.') {
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+            }
+            if (digitsStart > start) {
+                mantissa = -mantissa;
+            }
+            if (pointPosition < 0) {
+                writeByte(INT);
+                writeVarint(zigZag(mantissa));
+            } else {
+                writeByte(DECIMAL);
+                writeVarint(zigZag(mantissa));
+                writeVarint(i - pointPosition - 1);
+            }
+        } else {
+            writeByte(NUMBER);
+            writeUtf8(json.substring(start, i));
+        }
+        return i;
+    }
+
+    private void writeKey(String key) {
+        Integer index = mIndexes.get(key);
+        if (index != null) {
+            writeVarint(((long) index << 1) | 1);
+            return;
+        }
+        byte[] bytes = key.getBytes(UTF_8);
+        writeVarint((long) bytes.length << 1);
+        writeBytes(bytes);
+        addToTable(key);
+    }
+
+    private void writeString(String string) {
+        Integer index = mIndexes.get(string);
+        if (index != null) {
+            writeByte(STRING_REF);
+            writeVarint(index);
+            return;
+        }
+        writeByte(STRING);
+        writeUtf8(string);
+        if (string.length() <= MAX_TABLE_STRING_LENGTH) {
+            addToTable(string);
+        }
+    }
+
+    // Reads the JSON string at start into mText, returning its end
+    private int readString(String json, int start) {
+        mText.setLength(0);
+        int i = start + 1;
+        while (true) {
+            char c = json.charAt(i++);
+            if (c == '"') {
+                return i;
+            }
+            if (c != '\\') {
+                mText.append(c);
+                continue;
+            }
+            char escaped = json.charAt(i++);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    mText.append(escaped);
+                    break;
+                case 'b':
+                    mText.append('\b');
+                    break;
+                case 'f':
+                    mText.append('\f');
+                    break;
+                case 'n':
+                    mText.append('\n');
+                    break;
+                case 'r':
+                    mText.append('\r');
+                    break;
+                case 't':
+                    mText.append('\t');
+                    break;
+                case 'u':
+                    mText.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid escape sequence");
+            }
+        }
+    }
+
+    private static int skipWhitespace(String json, int i) {
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Counts are written as fixed 5 byte varints, so they can be patched once known
+    private int reserveCount() {
+        int position = mLength;
+        for (int i = 0; i < 5; i++) {
+            writeByte(0);
+        }
+        return position;
+    }
+
+    private void patchCount(int position, int count) {
+        // Compact it when it fits in fewer bytes, which is almost always
+        int size = varintSize(count);
+        System.arraycopy(mBytes, position + 5, mBytes, position + size, mLength - position - 5);
+        mLength -= 5 - size;
+        int end = mLength;
+        mLength = position;
+        writeVarint(count);
+        mLength = end;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void writeUtf8(String string) {
+        byte[] bytes = string.getBytes(UTF_8);
+        writeVarint(bytes.length);
+        writeBytes(bytes);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        mBytes[mLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBytes.length) {
+            byte[] newBytes = new byte[Math.max(mBytes.length * 2, mLength + extra)];
+            System.arraycopy(mBytes, 0, newBytes, 0, mLength);
+            mBytes = newBytes;
+        }
+    }
+
+    // Decoding: reads the value at mPosition and appends its JSON text to mText
+    private void readValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Too deep");
+        }
+        int tag = mBytes[mPosition++];
+        switch (tag) {
+            case NULL:
+                mText.append("null");
+                break;
+            case FALSE:
+                mText.append("false");
+                break;
+            case TRUE:
+                mText.append("true");
+                break;
+            case INT:
+                mText.append(unZigZag(readVarint()));
+                break;
+            case DECIMAL:
+                appendDecimal(unZigZag(readVarint()), readLength());
+                break;
+            case NUMBER:
+                mText.append(readUtf8(readLength()));
+                break;
+            case STRING: {
+                String string = readUtf8(readLength());
+                if (string.length() <= MAX_TABLE_STRING_LENGTH) {
+                    addToTable(string);
+                }
+                appendString(string);
+                break;
+            }
+            case STRING_REF:
+                appendString(tableEntry(readVarint()));
+                break;
+            case ARRAY: {
+                int count = readLength();
+                mText.append('[');
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        mText.append(',');
+                    }
+                    readValue(depth + 1);
+                }
+                mText.append(']');
+                break;
+            }
+            case OBJECT: {
+                int count = readLength();
+                mText.append('{');
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        mText.append(',');
+                    }
+                    long key = readVarint();
+                    String name;
+                    if ((key & 1) != 0) {
+                        name = tableEntry(key >>> 1);
+                    } else {
+                        name = readUtf8(checkLength(key >>> 1));
+                        addToTable(name);
+                    }
+                    appendString(name);
+                    mText.append(':');
+                    readValue(depth + 1);
+                }
+                mText.append('}');
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown tag: " + tag);
+        }
+    }
+
+    private void appendDecimal(long mantissa, int scale) {
+        String digits = Long.toString(Math.abs(mantissa));
+        if (mantissa < 0) {
+            mText.append('-');
+        }
+        // Pad with zeros so there is at least a digit before the point: 5 with scale 2 is 0.05
+        int padding = Math.max(0, scale + 1 - digits.length());
+        int pointIndex = padding + digits.length() - scale;
+        for (int i = 0; i < padding + digits.length(); i++) {
+            if (i == pointIndex) {
+                mText.append('.');
+            }
+            mText.append(i < padding ? '0' : digits.charAt(i - padding));
+        }
+    }
+
+    private void appendString(String string) {
+        mText.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"':
+                    mText.append("\\\"");
+                    break;
+                case '\\':
+                    mText.append("\\\\");
+                    break;
+                case '\n':
+                    mText.append("\\n");
+                    break;
+                case '\r':
+                    mText.append("\\r");
+                    break;
+                case '\t':
+                    mText.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        mText.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        mText.append(c);
+                    }
+            }
+        }
+        mText.append('"');
+    }
+
+    private String tableEntry(long index) {
+        if (index < 0 || index >= mTable.size()) {
+            throw new IllegalArgumentException("Invalid string reference: " + index);
+        }
+        return mTable.get((int) index);
+    }
+
+    private String readUtf8(int length) {
+        if (length > mLength - mPosition) {
+            throw new IllegalArgumentException("Truncated binary signal data");
+        }
+        String string = new String(mBytes, mPosition, length, UTF_8);
+        mPosition += length;
+        return string;
+    }
+
+    private int readLength() {
+        return checkLength(readVarint());
+    }
+
+    private int checkLength(long length) {
+        if (length < 0 || length > mLength) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        return (int) length;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = mBytes[mPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
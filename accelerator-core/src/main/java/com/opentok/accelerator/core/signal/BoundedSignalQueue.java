@@ -0,0 +1,279 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded {@link SignalQueue} that applies the {@link SignalDropPolicy} configured for each signal
+ * name in a {@link SignalBackpressure} when it's full:
+ *   - offer returns false only for BLOCK and REJECT signals that don't fit.
+ *   - put only waits for BLOCK signals. REJECT signals that don't fit are discarded.
+ *   - COALESCE_LATEST signals replace the queued signal with the same name, source and
+ *     destination (keeping its position) even when the queue is not full. A new state update
+ *     that doesn't fit evicts the oldest DROP_OLDEST signal or, if there's none, the oldest
+ *     queued state update, so the latest state is never the one lost.
+ * All the operations are O(1): the queued signals are kept in a linked list, with two more lists
+ * for the ones that can be dropped and the ones that can be coalesced, and an index of the
+ * latter.
+ * The elements are expected to be SignalInfos. Queues of objects that wrap a signal can override
+ * {@link #getSignalInfo(Object)}.
+ */
+public class BoundedSignalQueue<E> implements SignalQueue<E> {
+    private static final String LOG_TAG = BoundedSignalQueue.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    private static final class Node<E> {
+        E mElement;
+        String mCoalesceKey;
+        Node<E> mPrev;
+        Node<E> mNext;
+        // Links on the list of nodes that can be dropped
+        boolean mDroppable;
+        Node<E> mPrevDroppable;
+        Node<E> mNextDroppable;
+        // Links on the list of nodes that can be coalesced (mCoalesceKey != null)
+        Node<E> mPrevCoalescible;
+        Node<E> mNextCoalescible;
+    }
+
+    private final SignalBackpressure mBackpressure;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final HashMap<String, Node<E>> mCoalescible = new HashMap<>();
+    private Node<E> mHead;
+    private Node<E> mTail;
+    private Node<E> mDroppableHead;
+    private Node<E> mDroppableTail;
+    private Node<E> mCoalescibleHead;
+    private Node<E> mCoalescibleTail;
+    private int mCount = 0;
+
+    public BoundedSignalQueue(SignalBackpressure backpressure) {
+        if (backpressure == null) {
+            throw new IllegalArgumentException("The backpressure configuration cannot be null");
+        }
+        mBackpressure = backpressure;
+    }
+
+    /**
+     * @return The configuration used by this queue, that also keeps its counters
+     */
+    public SignalBackpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    /**
+     * Returns the signal an element represents. By default, the element itself.
+     */
+    protected SignalInfo<?> getSignalInfo(E element) {
+        return (SignalInfo<?>) element;
+    }
+
+    @Override
+    public boolean offer(E element) {
+        mLock.lock();
+        try {
+            SignalInfo<?> signalInfo = getSignalInfo(element);
+            SignalDropPolicy policy = mBackpressure.getPolicy(signalInfo.mSignalName);
+            if (insert(element, signalInfo, policy)) {
+                return true;
+            }
+            if (policy == SignalDropPolicy.REJECT) {
+                reject(signalInfo);
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            SignalInfo<?> signalInfo = getSignalInfo(element);
+            SignalDropPolicy policy = mBackpressure.getPolicy(signalInfo.mSignalName);
+            while (!insert(element, signalInfo, policy)) {
+                if (policy != SignalDropPolicy.BLOCK) {
+                    reject(signalInfo);
+                    return;
+                }
+                mNotFull.await();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                mNotEmpty.await();
+            }
+            return removeHead();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return removeHead();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Must be called with the lock held. Returns false if the element didn't fit
+    private boolean insert(E element, SignalInfo<?> signalInfo, SignalDropPolicy policy) {
+        String coalesceKey = null;
+        if (policy == SignalDropPolicy.COALESCE_LATEST) {
+            coalesceKey = signalInfo.mSignalName + '\0' + signalInfo.mSrcConnId + '\0' +
+                signalInfo.mDstConnId;
+            Node<E> queued = mCoalescible.get(coalesceKey);
+            if (queued != null) {
+                queued.mElement = element;
+                mBackpressure.onCoalesced(signalInfo.mSignalName);
+                return true;
+            }
+        }
+        boolean droppable = policy == SignalDropPolicy.DROP_OLDEST ||
+            policy == SignalDropPolicy.COALESCE_LATEST;
+        if (mCount >= mBackpressure.getCapacity()) {
+            if (!droppable) {
+                return false;
+            }
+            // Only DROP_OLDEST signals are linked on the droppable list, so BLOCK/REJECT signals
+            // are never evicted. A state update can also evict an older one
+            Node<E> oldest = mDroppableHead;
+            if (oldest == null && coalesceKey != null) {
+                oldest = mCoalescibleHead;
+            }
+            if (oldest == null) {
+                // Nothing to make room with, the new signal is the one dropped
+                mBackpressure.onDropped(signalInfo.mSignalName);
+                return true;
+            }
+            unlink(oldest);
+            mBackpressure.onDropped(getSignalInfo(oldest.mElement).mSignalName);
+        }
+
+        Node<E> node = new Node<>();
+        node.mElement = element;
+        node.mPrev = mTail;
+        if (mTail != null) {
+            mTail.mNext = node;
+        } else {
+            mHead = node;
+        }
+        mTail = node;
+        if (policy == SignalDropPolicy.DROP_OLDEST) {
+            node.mDroppable = true;
+            node.mPrevDroppable = mDroppableTail;
+            if (mDroppableTail != null) {
+                mDroppableTail.mNextDroppable = node;
+            } else {
+                mDroppableHead = node;
+            }
+            mDroppableTail = node;
+        }
+        if (coalesceKey != null) {
+            node.mCoalesceKey = coalesceKey;
+            mCoalescible.put(coalesceKey, node);
+            node.mPrevCoalescible = mCoalescibleTail;
+            if (mCoalescibleTail != null) {
+                mCoalescibleTail.mNextCoalescible = node;
+            } else {
+                mCoalescibleHead = node;
+            }
+            mCoalescibleTail = node;
+        }
+        mCount++;
+        mNotEmpty.signal();
+        return true;
+    }
+
+    private E removeHead() {
+        Node<E> head = mHead;
+        unlink(head);
+        mNotFull.signal();
+        return head.mElement;
+    }
+
+    private void unlink(Node<E> node) {
+        if (node.mPrev != null) {
+            node.mPrev.mNext = node.mNext;
+        } else {
+            mHead = node.mNext;
+        }
+        if (node.mNext != null) {
+            node.mNext.mPrev = node.mPrev;
+        } else {
+            mTail = node.mPrev;
+        }
+        if (node.mDroppable) {
+            if (node.mPrevDroppable != null) {
+                node.mPrevDroppable.mNextDroppable = node.mNextDroppable;
+            } else {
+                mDroppableHead = node.mNextDroppable;
+            }
+            if (node.mNextDroppable != null) {
+                node.mNextDroppable.mPrevDroppable = node.mPrevDroppable;
+            } else {
+                mDroppableTail = node.mPrevDroppable;
+            }
+        }
+        if (node.mCoalesceKey != null) {
+            mCoalescible.remove(node.mCoalesceKey);
+            if (node.mPrevCoalescible != null) {
+                node.mPrevCoalescible.mNextCoalescible = node.mNextCoalescible;
+            } else {
+                mCoalescibleHead = node.mNextCoalescible;
+            }
+            if (node.mNextCoalescible != null) {
+                node.mNextCoalescible.mPrevCoalescible = node.mPrevCoalescible;
+            } else {
+                mCoalescibleTail = node.mPrevCoalescible;
+            }
+        }
+        mCount--;
+    }
+
+    private void reject(SignalInfo<?> signalInfo) {
+        mBackpressure.onRejected(signalInfo.mSignalName);
+        LOG.w(LOG_TAG, "Queue full, rejecting signal: ", signalInfo.mSignalName);
+    }
+}
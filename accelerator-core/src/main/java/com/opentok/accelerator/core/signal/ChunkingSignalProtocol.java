@@ -0,0 +1,107 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Output protocol that splits signals whose data doesn't fit in a single OpenTok signal into
+ * several numbered chunks. The receivers must use a {@link ReassemblingSignalProtocol} as (or as
+ * part of) their input protocol to get the original signal back.
+ * Signals that fit are sent untouched, so this protocol is transparent for small signals.
+ * The data of each chunk has the format:
+ *   otChunk:messageId:chunkIndex:chunkCount:piece
+ */
+public class ChunkingSignalProtocol extends ThreadedSignalProtocol<String, String> {
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    /**
+     * Prefix that identifies the data of a chunk
+     */
+    public static final String CHUNK_PREFIX = "otChunk:";
+
+    static final char SEPARATOR = ':';
+
+    // Room for the prefix, the message id and two 6 digits numbers with their separators
+    private static final int MAX_HEADER_LENGTH = CHUNK_PREFIX.length() + 32 + 3 + 12;
+    static final int MAX_CHUNKS = 999999;
+
+    private final int mMaxDataLength;
+    private final String mIdPrefix;
+    private long mNextMessageId = 0;
+
+    public ChunkingSignalProtocol() {
+        this(SignalInfo.MAX_OPENTOK_DATA_LENGTH);
+    }
+
+    /**
+     * @param maxDataLength Maximum length, in UTF-8 bytes, of the data of each generated signal.
+     */
+    public ChunkingSignalProtocol(int maxDataLength) {
+        if (maxDataLength <= MAX_HEADER_LENGTH || maxDataLength > SignalInfo.MAX_OPENTOK_DATA_LENGTH) {
+            throw new IllegalArgumentException("Invalid maximum data length: " + maxDataLength);
+        }
+        mMaxDataLength = maxDataLength;
+        // Message ids only need to be unique per sender connection. The random part avoids
+        // collisions when the protocol is replaced during a session
+        mIdPrefix = Integer.toString(new Random().nextInt(Integer.MAX_VALUE), Character.MAX_RADIX);
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+        String data = signalInfo.mData;
+        if (data == null ||
+            (!data.startsWith(CHUNK_PREFIX) && Utf8.length(data) <= mMaxDataLength)) {
+            return Collections.singletonList(signalInfo);
+        }
+
+        String messageId = mIdPrefix + '.' + Long.toString(mNextMessageId++, Character.MAX_RADIX);
+        int pieceLength = mMaxDataLength - MAX_HEADER_LENGTH;
+        ArrayList<int[]> pieces = new ArrayList<int[]>();
+        int start = 0;
+        while (start < data.length()) {
+            int end = start;
+            int bytes = 0;
+            while (end < data.length()) {
+                char c = data.charAt(end);
+                int charCount = Character.isHighSurrogate(c) && end + 1 < data.length() ? 2 : 1;
+                int charBytes = Utf8.length(data, end, end + charCount);
+                if (bytes + charBytes > pieceLength) {
+                    break;
+                }
+                bytes += charBytes;
+                end += charCount;
+            }
+            pieces.add(new int[] {start, end});
+            start = end;
+        }
+        if (pieces.size() > MAX_CHUNKS) {
+            LOG.w(LOG_TAG, "Signal too big to be sent: ", signalInfo.mSignalName);
+            return null;
+        }
+
+        ArrayList<SignalInfo<String>> chunks = new ArrayList<SignalInfo<String>>(pieces.size());
+        for (int i = 0; i < pieces.size(); i++) {
+            int[] piece = pieces.get(i);
+            String chunkData = new StringBuilder(MAX_HEADER_LENGTH + piece[1] - piece[0])
+                .append(CHUNK_PREFIX).append(messageId)
+                .append(SEPARATOR).append(i)
+                .append(SEPARATOR).append(pieces.size())
+                .append(SEPARATOR).append(data, piece[0], piece[1])
+                .toString();
+            chunks.add(new SignalInfo<String>(signalInfo.mSrcConnId, signalInfo.mDstConnId,
+                                              signalInfo.mSignalName, chunkData));
+        }
+        return chunks;
+    }
+}
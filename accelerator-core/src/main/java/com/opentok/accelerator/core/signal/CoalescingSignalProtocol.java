@@ -0,0 +1,229 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Output protocol that groups signals with the same name and destination that are sent within a
+ * short time window into a single wire signal.
+ * The data of the grouped signals must be JSON arrays (as the annotation signals are), and the data
+ * of the generated signal is the concatenation of all of them, so receivers that already iterate
+ * over the received array don't need any change. A group is sent when the window expires, or before
+ * it would grow over {@link SignalInfo#MAX_OPENTOK_DATA_LENGTH} bytes.
+ * Signals that can't be grouped (other names, data that is not an array) are sent as they are, but
+ * only after all the pending groups, to keep the original order.
+ * Usage:
+ *   wrapper.setOutputSignalProtocol(new CoalescingSignalProtocol(30, "otAnnotation_pen"));
+ */
+public class CoalescingSignalProtocol extends ThreadedSignalProtocol<String, String> {
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    private static final long MIN_TICK_INTERVAL = 1;
+
+    private class Group {
+        final SignalInfo<String> mFirst;
+        final long mCreationTime;
+        final StringBuilder mData = new StringBuilder("[");
+        int mLength = 2; // Brackets
+        int mCount = 0;
+
+        Group(SignalInfo<String> first, long creationTime) {
+            mFirst = first;
+            mCreationTime = creationTime;
+        }
+
+        boolean fits(int elementsLength) {
+            return mLength + elementsLength + (mCount > 0 ? 1 : 0) <= mMaxDataLength;
+        }
+
+        void add(String data, int start, int end, int elementsLength) {
+            if (mCount > 0) {
+                mData.append(',');
+                mLength++;
+            }
+            mData.append(data, start, end);
+            mLength += elementsLength;
+            mCount++;
+        }
+
+        SignalInfo<String> build() {
+            mData.append(']');
+            return new SignalInfo<String>(mFirst.mSrcConnId, mFirst.mDstConnId, mFirst.mSignalName,
+                                          mData.toString());
+        }
+    }
+
+    private final long mWindow;
+    private final Set<String> mSignalNames;
+    private final int mMaxDataLength;
+    private final LinkedHashMap<String, Group> mGroups = new LinkedHashMap<String, Group>();
+
+    private volatile long mReceivedSignals = 0;
+    private volatile long mSentSignals = 0;
+
+    /**
+     * Creates a coalescing protocol that groups every signal whose data is a JSON array.
+     *
+     * @param windowMs Maximum time, in milliseconds, a signal can be held waiting for others.
+     *                 Values between 16 and 50 work well for annotations.
+     */
+    public CoalescingSignalProtocol(long windowMs) {
+        this(windowMs, (String[]) null);
+    }
+
+    /**
+     * Creates a coalescing protocol that only groups signals with the given names.
+     *
+     * @param windowMs Maximum time, in milliseconds, a signal can be held waiting for others.
+     *                 Values between 16 and 50 work well for annotations.
+     * @param signalNames Names of the signals to group. Pass null to group all signals.
+     */
+    public CoalescingSignalProtocol(long windowMs, String... signalNames) {
+        this(windowMs, SignalInfo.MAX_OPENTOK_DATA_LENGTH, signalNames);
+    }
+
+    /**
+     * Creates a coalescing protocol with a custom maximum size for the grouped data.
+     *
+     * @param windowMs Maximum time, in milliseconds, a signal can be held waiting for others.
+     * @param maxDataLength Maximum length, in UTF-8 bytes, of the grouped data. Cannot be over
+     *                      {@link SignalInfo#MAX_OPENTOK_DATA_LENGTH}.
+     * @param signalNames Names of the signals to group. Pass null to group all signals.
+     */
+    public CoalescingSignalProtocol(long windowMs, int maxDataLength, String... signalNames) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("The window must be greater than 0");
+        }
+        if (maxDataLength <= 2 || maxDataLength > SignalInfo.MAX_OPENTOK_DATA_LENGTH) {
+            throw new IllegalArgumentException("Invalid maximum data length: " + maxDataLength);
+        }
+        mWindow = windowMs;
+        mMaxDataLength = maxDataLength;
+        mSignalNames = signalNames == null || signalNames.length == 0 ? null :
+            new HashSet<String>(Arrays.asList(signalNames));
+    }
+
+    /**
+     * @return The number of signals written to this protocol
+     */
+    public long getReceivedSignals() {
+        return mReceivedSignals;
+    }
+
+    /**
+     * @return The number of signals generated by this protocol (the ones that go to the wire)
+     */
+    public long getSentSignals() {
+        return mSentSignals;
+    }
+
+    @Override
+    protected long getTickInterval() {
+        return Math.max(MIN_TICK_INTERVAL, mWindow / 4);
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+        mReceivedSignals++;
+        ArrayList<SignalInfo<String>> ready = new ArrayList<SignalInfo<String>>();
+        String data = signalInfo.mData;
+        int start = -1;
+        int end = -1;
+        if (data != null && (mSignalNames == null || mSignalNames.contains(signalInfo.mSignalName))) {
+            start = 0;
+            end = data.length();
+            while (start < end && Character.isWhitespace(data.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(data.charAt(end - 1))) {
+                end--;
+            }
+        }
+        if (end - start < 2 || data.charAt(start) != '[' || data.charAt(end - 1) != ']') {
+            // Can't be grouped. Flush everything before it to keep the order
+            flush(ready, Long.MAX_VALUE);
+            add(ready, signalInfo);
+            return ready;
+        }
+
+        // Elements of the array, without the brackets
+        start++;
+        end--;
+        int elementsLength = Utf8.length(data, start, end);
+        if (elementsLength == 0) {
+            // Empty array, nothing to add
+            return null;
+        }
+        String key = signalInfo.mSignalName + '\0' +
+            (signalInfo.mDstConnId != null ? signalInfo.mDstConnId : "");
+        Group group = mGroups.get(key);
+        if (group != null && !group.fits(elementsLength)) {
+            mGroups.remove(key);
+            add(ready, group.build());
+            group = null;
+        }
+        if (group == null) {
+            group = new Group(signalInfo, System.currentTimeMillis());
+            if (!group.fits(elementsLength)) {
+                // Too big even on its own, send it as it is
+                LOG.w(LOG_TAG, "Signal too big to be grouped: ", signalInfo.mSignalName);
+                add(ready, signalInfo);
+                return ready;
+            }
+            mGroups.put(key, group);
+        }
+        group.add(data, start, end, elementsLength);
+        return ready;
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processTick(long now) {
+        if (mGroups.isEmpty()) {
+            return null;
+        }
+        ArrayList<SignalInfo<String>> ready = new ArrayList<SignalInfo<String>>();
+        flush(ready, now - mWindow);
+        return ready;
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> onDrain() {
+        if (mGroups.isEmpty()) {
+            return null;
+        }
+        ArrayList<SignalInfo<String>> ready = new ArrayList<SignalInfo<String>>();
+        flush(ready, Long.MAX_VALUE);
+        return ready;
+    }
+
+    // Sends (in creation order) all the groups created before the given time
+    private void flush(ArrayList<SignalInfo<String>> ready, long createdBefore) {
+        Iterator<Group> groups = mGroups.values().iterator();
+        while (groups.hasNext()) {
+            Group group = groups.next();
+            if (group.mCreationTime <= createdBefore) {
+                groups.remove();
+                add(ready, group.build());
+            }
+        }
+    }
+
+    private void add(ArrayList<SignalInfo<String>> ready, SignalInfo<String> signalInfo) {
+        mSentSignals++;
+        ready.add(signalInfo);
+    }
+}
@@ -0,0 +1,130 @@
+package com.opentok.accelerator.core.signal;
+
+import android.os.Debug;
+import android.util.Base64;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Output protocol that deflates the data of the signals bigger than a threshold, and sends it
+ * base64 encoded behind the {@link #COMPRESSED_PREFIX} prefix. The receivers must use a
+ * {@link DecompressingSignalProtocol} as (or as part of) their input protocol.
+ * Signals smaller than the threshold, and signals that wouldn't get smaller, are sent untouched.
+ * The Deflater and the buffers are reused for all the signals, so compressing doesn't generate
+ * garbage besides the resulting String.
+ * Usage:
+ *   wrapper.setOutputSignalProtocol(new CompressingSignalProtocol());
+ */
+public class CompressingSignalProtocol extends ThreadedSignalProtocol<String, String> {
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    /**
+     * Prefix that identifies compressed data
+     */
+    public static final String COMPRESSED_PREFIX = "otDeflate:";
+
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private final int mThreshold;
+    private final Deflater mDeflater;
+    private byte[] mInputBuffer = new byte[1024];
+    private byte[] mOutputBuffer = new byte[1024];
+    private final ConcurrentHashMap<String, CompressionStats> mStats =
+        new ConcurrentHashMap<String, CompressionStats>();
+
+    public CompressingSignalProtocol() {
+        this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param threshold Minimum size, in UTF-8 bytes, of the data to try to compress it.
+     * @param level Compression level, from {@link Deflater#BEST_SPEED} to
+     *              {@link Deflater#BEST_COMPRESSION}.
+     */
+    public CompressingSignalProtocol(int threshold, int level) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        }
+        mThreshold = threshold;
+        mDeflater = new Deflater(level);
+    }
+
+    /**
+     * @return Compression statistics per signal name
+     */
+    public Map<String, CompressionStats> getStats() {
+        return CompressionStats.snapshot(mStats);
+    }
+
+    @Override
+    protected void onClosed() {
+        mDeflater.end();
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+        String data = signalInfo.mData;
+        if (data == null) {
+            return Collections.singletonList(signalInfo);
+        }
+        long startTime = Debug.threadCpuTimeNanos();
+        int length = Utf8.length(data);
+        // Data that looks compressed is always compressed, so the receiver doesn't misread it
+        boolean escape = data.startsWith(COMPRESSED_PREFIX);
+        String compressed = null;
+        if (escape || length >= mThreshold) {
+            int compressedLength = deflate(data, length);
+            int encodedLength = COMPRESSED_PREFIX.length() + (compressedLength + 2) / 3 * 4;
+            if (escape || encodedLength < length) {
+                compressed = COMPRESSED_PREFIX +
+                    Base64.encodeToString(mOutputBuffer, 0, compressedLength, Base64.NO_WRAP);
+            }
+        }
+        long cpuTime = Debug.threadCpuTimeNanos() - startTime;
+        int wireLength = compressed != null ? compressed.length() : length;
+        CompressionStats.forSignal(mStats, signalInfo.mSignalName)
+            .add(compressed != null, length, wireLength, cpuTime);
+        if (compressed == null) {
+            return Collections.singletonList(signalInfo);
+        }
+        LOG.d(LOG_TAG, "Compressed ", signalInfo.mSignalName, ": ", length, " -> ", compressed.length());
+        return Collections.singletonList(
+            new SignalInfo<String>(signalInfo.mSrcConnId, signalInfo.mDstConnId,
+                                   signalInfo.mSignalName, compressed));
+    }
+
+    // Deflates data into mOutputBuffer, returning the compressed length
+    private int deflate(String data, int length) {
+        if (mInputBuffer.length < length) {
+            mInputBuffer = new byte[Math.max(length, mInputBuffer.length * 2)];
+        }
+        Utf8.encode(data, mInputBuffer);
+        mDeflater.reset();
+        mDeflater.setInput(mInputBuffer, 0, length);
+        mDeflater.finish();
+        int compressedLength = 0;
+        while (!mDeflater.finished()) {
+            if (compressedLength == mOutputBuffer.length) {
+                byte[] newBuffer = new byte[mOutputBuffer.length * 2];
+                System.arraycopy(mOutputBuffer, 0, newBuffer, 0, compressedLength);
+                mOutputBuffer = newBuffer;
+            }
+            compressedLength += mDeflater.deflate(mOutputBuffer, compressedLength,
+                                                  mOutputBuffer.length - compressedLength);
+        }
+        return compressedLength;
+    }
+}
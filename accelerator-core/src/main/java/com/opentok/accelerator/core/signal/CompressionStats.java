@@ -0,0 +1,121 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compression statistics for a signal name, as reported by {@link CompressingSignalProtocol} and
+ * {@link DecompressingSignalProtocol}. The values returned by the protocols are snapshots, so they
+ * don't change after being returned.
+ */
+public final class CompressionStats {
+    private long mSignals = 0;
+    private long mCompressedSignals = 0;
+    private long mOriginalBytes = 0;
+    private long mWireBytes = 0;
+    private long mCpuTimeNanos = 0;
+
+    CompressionStats() {
+    }
+
+    private CompressionStats(CompressionStats other) {
+        mSignals = other.mSignals;
+        mCompressedSignals = other.mCompressedSignals;
+        mOriginalBytes = other.mOriginalBytes;
+        mWireBytes = other.mWireBytes;
+        mCpuTimeNanos = other.mCpuTimeNanos;
+    }
+
+    synchronized void add(boolean compressed, int originalBytes, int wireBytes, long cpuTimeNanos) {
+        mSignals++;
+        if (compressed) {
+            mCompressedSignals++;
+        }
+        mOriginalBytes += originalBytes;
+        mWireBytes += wireBytes;
+        mCpuTimeNanos += cpuTimeNanos;
+    }
+
+    synchronized CompressionStats copy() {
+        return new CompressionStats(this);
+    }
+
+    static CompressionStats forSignal(ConcurrentHashMap<String, CompressionStats> stats,
+                                      String signalName) {
+        String key = signalName != null ? signalName : "";
+        CompressionStats signalStats = stats.get(key);
+        if (signalStats == null) {
+            CompressionStats newStats = new CompressionStats();
+            signalStats = stats.putIfAbsent(key, newStats);
+            if (signalStats == null) {
+                signalStats = newStats;
+            }
+        }
+        return signalStats;
+    }
+
+    static Map<String, CompressionStats> snapshot(ConcurrentHashMap<String, CompressionStats> stats) {
+        HashMap<String, CompressionStats> snapshot = new HashMap<String, CompressionStats>();
+        for (Map.Entry<String, CompressionStats> entry : stats.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return Number of signals processed
+     */
+    public long getSignals() {
+        return mSignals;
+    }
+
+    /**
+     * @return Number of signals that were (or arrived) compressed
+     */
+    public long getCompressedSignals() {
+        return mCompressedSignals;
+    }
+
+    /**
+     * @return Total size, in UTF-8 bytes, of the uncompressed data
+     */
+    public long getOriginalBytes() {
+        return mOriginalBytes;
+    }
+
+    /**
+     * @return Total size, in bytes, of the data as sent on the wire
+     */
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    /**
+     * @return Original size divided by the wire size. 1 means no savings.
+     */
+    public double getRatio() {
+        return mWireBytes == 0 ? 1 : (double) mOriginalBytes / mWireBytes;
+    }
+
+    /**
+     * @return CPU time, in nanoseconds, spent compressing or decompressing
+     */
+    public long getCpuTimeNanos() {
+        return mCpuTimeNanos;
+    }
+
+    /**
+     * @return Average CPU time, in nanoseconds, per signal
+     */
+    public long getCpuTimeNanosPerSignal() {
+        return mSignals == 0 ? 0 : mCpuTimeNanos / mSignals;
+    }
+
+    @Override
+    public String toString() {
+        return "signals: " + mSignals + ", compressed: " + mCompressedSignals +
+            ", bytes: " + mOriginalBytes + " -> " + mWireBytes +
+            String.format(", ratio: %.2f, cpu/signal: %d ns", getRatio(), getCpuTimeNanosPerSignal());
+    }
+}
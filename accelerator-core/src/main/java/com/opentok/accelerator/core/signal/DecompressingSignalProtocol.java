@@ -0,0 +1,128 @@
+package com.opentok.accelerator.core.signal;
+
+import android.os.Debug;
+import android.util.Base64;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input protocol that inflates the signals compressed by a {@link CompressingSignalProtocol}.
+ * Signals without the {@link CompressingSignalProtocol#COMPRESSED_PREFIX} prefix are passed through
+ * untouched, so it can be used even if only some of the peers compress their signals.
+ * The Inflater and the output buffer are reused for all the signals.
+ */
+public class DecompressingSignalProtocol extends ThreadedSignalProtocol<String, String> {
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    public static final int DEFAULT_MAX_DATA_LENGTH = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mMaxDataLength;
+    private final Inflater mInflater = new Inflater();
+    private byte[] mOutputBuffer;
+    private final ConcurrentHashMap<String, CompressionStats> mStats =
+        new ConcurrentHashMap<String, CompressionStats>();
+
+    public DecompressingSignalProtocol() {
+        this(DEFAULT_MAX_DATA_LENGTH);
+    }
+
+    /**
+     * @param maxDataLength Maximum size, in bytes, of the inflated data. Bigger signals are
+     *                      discarded, so a peer can't make us run out of memory.
+     */
+    public DecompressingSignalProtocol(int maxDataLength) {
+        if (maxDataLength <= 0) {
+            throw new IllegalArgumentException("Invalid maximum data length: " + maxDataLength);
+        }
+        mMaxDataLength = maxDataLength;
+        mOutputBuffer = new byte[Math.min(4096, maxDataLength)];
+    }
+
+    /**
+     * @return Decompression statistics per signal name
+     */
+    public Map<String, CompressionStats> getStats() {
+        return CompressionStats.snapshot(mStats);
+    }
+
+    @Override
+    protected void onClosed() {
+        mInflater.end();
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+        String data = signalInfo.mData;
+        if (data == null || !data.startsWith(CompressingSignalProtocol.COMPRESSED_PREFIX)) {
+            if (data != null) {
+                int length = Utf8.length(data);
+                CompressionStats.forSignal(mStats, signalInfo.mSignalName)
+                    .add(false, length, length, 0);
+            }
+            return Collections.singletonList(signalInfo);
+        }
+
+        long startTime = Debug.threadCpuTimeNanos();
+        String inflated = null;
+        try {
+            byte[] compressed = Base64.decode(
+                data.substring(CompressingSignalProtocol.COMPRESSED_PREFIX.length()), Base64.NO_WRAP);
+            int length = inflate(compressed);
+            if (length >= 0) {
+                inflated = new String(mOutputBuffer, 0, length, UTF_8);
+                CompressionStats.forSignal(mStats, signalInfo.mSignalName)
+                    .add(true, length, data.length(), Debug.threadCpuTimeNanos() - startTime);
+            } else {
+                LOG.w(LOG_TAG, "Discarding compressed signal too big: ", signalInfo.mSignalName);
+            }
+        } catch (IllegalArgumentException | DataFormatException e) {
+            LOG.w(LOG_TAG, "Discarding malformed compressed signal: ", signalInfo.mSignalName);
+        }
+        if (inflated == null) {
+            return null;
+        }
+        return Collections.singletonList(
+            new SignalInfo<String>(signalInfo.mSrcConnId, signalInfo.mDstConnId,
+                                   signalInfo.mSignalName, inflated));
+    }
+
+    // Inflates compressed into mOutputBuffer, returning the inflated length, or -1 if too long
+    private int inflate(byte[] compressed) throws DataFormatException {
+        mInflater.reset();
+        mInflater.setInput(compressed);
+        int length = 0;
+        while (!mInflater.finished()) {
+            if (length == mOutputBuffer.length) {
+                if (length >= mMaxDataLength) {
+                    return -1;
+                }
+                byte[] newBuffer = new byte[Math.min(mMaxDataLength, mOutputBuffer.length * 2)];
+                System.arraycopy(mOutputBuffer, 0, newBuffer, 0, length);
+                mOutputBuffer = newBuffer;
+            }
+            int inflated = mInflater.inflate(mOutputBuffer, length, mOutputBuffer.length - length);
+            if (inflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                throw new DataFormatException("Truncated data");
+            }
+            length += inflated;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,20 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * A {@link SignalProtocol} that can be shut down without losing the signals it has already
+ * accepted, so it can be replaced while signals are flowing. {@link SignalProcessorThread} drains
+ * the protocols that implement it when it switches to a new one, instead of closing them.
+ */
+public interface DrainableSignalProtocol<OutputDataType, InputDataType>
+        extends SignalProtocol<OutputDataType, InputDataType> {
+
+    /**
+     * Finishes the pipe once the signals already written have been processed. The protocol
+     * processes the pending signals, returns the ones it's still holding (for example, the
+     * signals a coalescing protocol is waiting to group), and closes: read returns all those
+     * signals and then null. It doesn't block.
+     * Signals should not be written once it's been called: they may be dropped.
+     */
+    public void drain();
+
+}
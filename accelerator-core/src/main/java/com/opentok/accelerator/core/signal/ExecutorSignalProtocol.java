@@ -0,0 +1,268 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.Callback;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a {@link ThreadedSignalProtocol} (usually a {@link SignalProtocolChain}) as a serial task
+ * on a shared executor instead of on its own thread, so several sessions and directions can share
+ * a few threads. At most one executor thread runs the protocol at any time, so its processSignal,
+ * processTick and onClosed methods see the same single threaded behaviour they get when the
+ * protocol is started. The wrapped protocol must not be started.
+ * To be fair with the other tasks of the executor, a run processes at most MAX_BATCH signals
+ * before giving the thread back. The ticks of the protocol are scheduled once the first signal is
+ * written. It can be drained (see {@link DrainableSignalProtocol}) like the protocol it runs, and
+ * read without blocking (see {@link NonBlockingSignalProtocol}).
+ * Usage:
+ *   ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+ *   wrapper.setOutputSignalProtocol(new ExecutorSignalProtocol<String, String>(chain, executor));
+ */
+public class ExecutorSignalProtocol<OutputDataType, InputDataType>
+        implements DrainableSignalProtocol<OutputDataType, InputDataType>,
+                   NonBlockingSignalProtocol<OutputDataType, InputDataType>, Runnable {
+    private static final String LOG_TAG = ExecutorSignalProtocol.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    private static final int MAX_BATCH = 32;
+
+    private final ThreadedSignalProtocol<OutputDataType, InputDataType> mProtocol;
+    private final ScheduledExecutorService mExecutor;
+    private final SignalQueue<SignalInfo<InputDataType>> mInputQueue =
+        new LinkedSignalQueue<SignalInfo<InputDataType>>();
+    private final SignalQueue<SignalInfo<OutputDataType>> mOutputQueue =
+        new LinkedSignalQueue<SignalInfo<OutputDataType>>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            mTickDue = true;
+            schedule();
+        }
+    };
+    private volatile boolean mIsOpen = true;
+    private volatile boolean mTickDue = false;
+    private volatile boolean mDraining = false;
+    private volatile boolean mDrained = false;
+    private volatile Thread mReader;
+    // Whether wakeReader interrupted the reader. Guarded by mReaderLock
+    private boolean mReaderWoken = false;
+    private final Object mReaderLock = new Object();
+    private volatile Runnable mReadyListener;
+    // Only accessed from the serial task
+    private ScheduledFuture<?> mTickFuture;
+    private long mTickInterval = 0;
+    private boolean mClosedProtocol = false;
+
+    /**
+     * @param protocol The protocol to run. It must not have been started.
+     * @param executor Executor to run the protocol on. It can be shared by several protocols.
+     */
+    public ExecutorSignalProtocol(ThreadedSignalProtocol<OutputDataType, InputDataType> protocol,
+                                  ScheduledExecutorService executor) {
+        if (protocol == null || executor == null) {
+            throw new IllegalArgumentException("The protocol and the executor cannot be null");
+        }
+        if (protocol.getState() != Thread.State.NEW) {
+            throw new IllegalStateException("The protocol has already been started");
+        }
+        mProtocol = protocol;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void write(SignalInfo<InputDataType> signalInfo) {
+        if (!mIsOpen) {
+            return;
+        }
+        mInputQueue.offer(signalInfo);
+        schedule();
+    }
+
+    @Override
+    public SignalInfo<OutputDataType> read() {
+        mReader = Thread.currentThread();
+        try {
+            while (true) {
+                try {
+                    if (mDrained) {
+                        // Everything left is already on the output queue
+                        return mOutputQueue.poll(0, TimeUnit.MILLISECONDS);
+                    }
+                    return mOutputQueue.take();
+                } catch (InterruptedException e) {
+                    if (!mIsOpen && !mDrained) {
+                        return null;
+                    }
+                }
+            }
+        } finally {
+            synchronized (mReaderLock) {
+                mReader = null;
+                if (mReaderWoken) {
+                    // The interruption may have come after the signal was read: don't let it
+                    // reach the code that processes the signal
+                    mReaderWoken = false;
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setReadyListener(Runnable listener) {
+        mReadyListener = listener;
+    }
+
+    @Override
+    public SignalInfo<OutputDataType> poll() {
+        try {
+            return mOutputQueue.poll(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isFinished() {
+        return mDrained ? mOutputQueue.size() == 0 : !mIsOpen;
+    }
+
+    @Override
+    public void close() {
+        mIsOpen = false;
+        wakeReader();
+        notifyReady();
+        // Let the serial task release the protocol
+        schedule();
+    }
+
+    @Override
+    public void drain() {
+        mDraining = true;
+        // Let the serial task process the pending signals and release the protocol
+        schedule();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!mIsOpen) {
+                closeProtocol();
+                return;
+            }
+            for (int i = 0; i < MAX_BATCH; i++) {
+                SignalInfo<InputDataType> signalInfo = mInputQueue.poll(0, TimeUnit.MILLISECONDS);
+                if (signalInfo == null) {
+                    break;
+                }
+                SignalTrace trace = signalInfo.mTrace;
+                Callback<SignalInfo> onSent = signalInfo.mOnSent;
+                SignalTracer.onProtocolIn(signalInfo);
+                Collection<SignalInfo<OutputDataType>> processedSignals =
+                    mProtocol.processSignal(signalInfo);
+                SignalTracer.onProtocolOut(trace, processedSignals);
+                PersistentSignalOutbox.onProtocolOut(onSent, processedSignals);
+                enqueue(processedSignals);
+            }
+            if (mTickDue) {
+                mTickDue = false;
+                mTickFuture = null;
+                enqueue(mProtocol.processTick(System.currentTimeMillis()));
+            }
+            if (mDraining && mInputQueue.size() == 0) {
+                enqueue(mProtocol.onDrain());
+                mDrained = true;
+                mIsOpen = false;
+                closeProtocol();
+                wakeReader();
+                notifyReady();
+                return;
+            }
+            armTick();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Don't let a failing signal stall the ones queued after it
+            LOG.e(LOG_TAG, "Protocol failed processing a signal: ", e);
+        } finally {
+            mScheduled.set(false);
+        }
+        // Signals written after the last poll, more than a batch, or a tick: schedule again
+        if (mInputQueue.size() > 0 || mTickDue || (!mIsOpen && !mClosedProtocol)) {
+            schedule();
+        }
+    }
+
+    // Wakes up the thread blocked on read, if any, when the pipe is closed or drained
+    private void wakeReader() {
+        synchronized (mReaderLock) {
+            Thread reader = mReader;
+            if (reader != null) {
+                mReaderWoken = true;
+                reader.interrupt();
+            }
+        }
+    }
+
+    private void notifyReady() {
+        Runnable listener = mReadyListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(this);
+        }
+    }
+
+    // Schedules the next tick if the protocol wants them and there isn't one pending
+    private void armTick() {
+        long tickInterval = mProtocol.getTickInterval();
+        if (tickInterval != mTickInterval && mTickFuture != null) {
+            mTickFuture.cancel(false);
+            mTickFuture = null;
+        }
+        mTickInterval = tickInterval;
+        if (tickInterval > 0 && mTickFuture == null) {
+            mTickFuture = mExecutor.schedule(mTick, tickInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void closeProtocol() {
+        if (mClosedProtocol) {
+            return;
+        }
+        mClosedProtocol = true;
+        if (mTickFuture != null) {
+            mTickFuture.cancel(false);
+            mTickFuture = null;
+        }
+        mProtocol.close();
+        mProtocol.onClosed();
+    }
+
+    private void enqueue(Collection<SignalInfo<OutputDataType>> processedSignals) {
+        if (processedSignals != null && !processedSignals.isEmpty()) {
+            for (SignalInfo<OutputDataType> processedSignal : processedSignals) {
+                mOutputQueue.offer(processedSignal);
+            }
+            notifyReady();
+        }
+    }
+}
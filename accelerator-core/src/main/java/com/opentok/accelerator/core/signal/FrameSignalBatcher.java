@@ -0,0 +1,152 @@
+package com.opentok.accelerator.core.signal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.opentok.accelerator.core.listeners.NonBlockingSignalListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the signals received by a view and delivers them on the main thread, as a single batch
+ * per display frame. A burst of signals (for example, the points of an annotation) then costs one
+ * main thread message and one redraw per frame, instead of one for each signal.
+ * It's a {@link NonBlockingSignalListener}, so it can be registered directly on the session, or
+ * invoked from the onSignalReceived method of another listener. The signals are retained until
+ * the batch is delivered, so it works with pooled signals (see {@link SignalInfoPool}).
+ * Usage:
+ *   FrameSignalBatcher<String> batcher = new FrameSignalBatcher<>(
+ *       new FrameSignalBatcher.BatchListener<String>() {
+ *           public void onSignalBatch(List<SignalInfo<String>> signals) {
+ *               ...
+ *               view.invalidate();
+ *           }
+ *       });
+ *   session.addSignalListener("otAnnotation_*", batcher);
+ */
+public class FrameSignalBatcher<DataType> implements NonBlockingSignalListener<DataType>,
+    Choreographer.FrameCallback {
+
+    /**
+     * Receives the batches of signals, on the main thread
+     */
+    public interface BatchListener<DataType> {
+        /**
+         * @param signals Signals received since the previous frame, in arrival order. A signal
+         *                was sent by the local connection if its mSrcConnId equals its
+         *                mDstConnId. Neither the list nor the signals can be used after returning.
+         */
+        void onSignalBatch(List<SignalInfo<DataType>> signals);
+    }
+
+    private final BatchListener<DataType> mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile Choreographer mChoreographer;
+    private ArrayList<SignalInfo<DataType>> mPending = new ArrayList<>();
+    // Only used on the main thread
+    private ArrayList<SignalInfo<DataType>> mDelivering = new ArrayList<>();
+    private boolean mScheduled = false;
+    private long mBatches = 0;
+    private long mSignals = 0;
+
+    // The Choreographer of the main thread can only be obtained on it
+    private final Runnable mScheduleOnMainThread = new Runnable() {
+        @Override
+        public void run() {
+            mChoreographer = Choreographer.getInstance();
+            mChoreographer.postFrameCallback(FrameSignalBatcher.this);
+        }
+    };
+
+    /**
+     * @param listener Listener of the batches
+     */
+    public FrameSignalBatcher(BatchListener<DataType> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("The batch listener cannot be null");
+        }
+        mListener = listener;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mChoreographer = Choreographer.getInstance();
+        }
+    }
+
+    /**
+     * Adds a signal to the batch of the next frame. It can be called from any thread.
+     */
+    @Override
+    public void onSignalReceived(SignalInfo<DataType> signalInfo, boolean isSelfSignal) {
+        signalInfo.retain();
+        boolean schedule;
+        synchronized (this) {
+            mPending.add(signalInfo);
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if (schedule) {
+            Choreographer choreographer = mChoreographer;
+            if (choreographer != null) {
+                choreographer.postFrameCallback(this);
+            } else {
+                mMainHandler.post(mScheduleOnMainThread);
+            }
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        ArrayList<SignalInfo<DataType>> batch;
+        synchronized (this) {
+            batch = mPending;
+            mPending = mDelivering;
+            mDelivering = batch;
+            mScheduled = false;
+            if (!batch.isEmpty()) {
+                mBatches++;
+                mSignals += batch.size();
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            mListener.onSignalBatch(batch);
+        } finally {
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).release();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Discards the signals waiting for the next frame. For example, when the view is detached.
+     */
+    public void clear() {
+        ArrayList<SignalInfo<DataType>> discarded;
+        synchronized (this) {
+            discarded = mPending;
+            mPending = new ArrayList<>();
+        }
+        for (SignalInfo<DataType> signalInfo : discarded) {
+            signalInfo.release();
+        }
+    }
+
+    /**
+     * @return Number of batches delivered
+     */
+    public synchronized long getBatchCount() {
+        return mBatches;
+    }
+
+    /**
+     * @return Number of signals delivered. Divided by {@link #getBatchCount()}, it's the mean
+     *         number of signals per frame.
+     */
+    public synchronized long getSignalCount() {
+        return mSignals;
+    }
+}
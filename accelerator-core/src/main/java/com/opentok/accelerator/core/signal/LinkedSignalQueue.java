@@ -0,0 +1,39 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default, unbounded, {@link SignalQueue}. It's just a thin layer over a LinkedBlockingQueue, so
+ * it's safe to use with any number of readers and writers, at the cost of allocating a node and
+ * taking a lock on every operation.
+ */
+public class LinkedSignalQueue<E> implements SignalQueue<E> {
+
+    private final LinkedBlockingQueue<E> mQueue = new LinkedBlockingQueue<E>();
+
+    @Override
+    public boolean offer(E element) {
+        return mQueue.offer(element);
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        mQueue.put(element);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return mQueue.take();
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return mQueue.poll(timeout, unit);
+    }
+
+    @Override
+    public int size() {
+        return mQueue.size();
+    }
+}
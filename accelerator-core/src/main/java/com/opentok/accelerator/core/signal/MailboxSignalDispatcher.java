@@ -0,0 +1,145 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.listeners.SignalListener;
+import com.opentok.accelerator.core.utils.TaskRunner;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each listener its own serial mailbox running on the shared pool. Each listener receives
+ * its signals in the same order they were received (so, for example, the points of an annotation
+ * stroke are never reordered), while different listeners still run in parallel.
+ * The depth of each mailbox is exposed so slow listeners can be spotted.
+ * Usage:
+ *   wrapper.setSignalDispatcher(new MailboxSignalDispatcher());
+ */
+public class MailboxSignalDispatcher implements SignalDispatcher {
+
+    private static final class ListenerMailbox extends SignalMailbox {
+        final SignalListener[] mListener;
+
+        ListenerMailbox(SignalBackpressure backpressure, SignalListener listener) {
+            super(backpressure);
+            mListener = new SignalListener[] {listener};
+        }
+
+        ListenerMailbox(SignalPriorities priorities, SignalListener listener) {
+            super(priorities);
+            mListener = new SignalListener[] {listener};
+        }
+    }
+
+    private final ConcurrentHashMap<SignalListener, ListenerMailbox> mMailboxes =
+        new ConcurrentHashMap<>();
+    private final SignalBackpressure mBackpressure;
+    private final SignalPriorities mPriorities;
+
+    /**
+     * Creates a dispatcher with unbounded mailboxes.
+     */
+    public MailboxSignalDispatcher() {
+        this((SignalBackpressure) null);
+    }
+
+    /**
+     * Creates a dispatcher whose mailboxes are bounded.
+     *
+     * @param backpressure Capacity of each mailbox and policies to apply when one is full. Note
+     *                     that BLOCK signals block the thread that dispatches the signals (the
+     *                     input protocol reader or, without input protocol, the OpenTok thread).
+     *                     Pass null for unbounded mailboxes.
+     */
+    public MailboxSignalDispatcher(SignalBackpressure backpressure) {
+        mBackpressure = backpressure;
+        mPriorities = null;
+    }
+
+    /**
+     * Creates a dispatcher whose mailboxes deliver the signals of higher priority classes first,
+     * so, for example, a listener receives a chat message before a burst of annotation points
+     * that arrived earlier. Signals of the same class keep their order.
+     *
+     * @param priorities Priority of each signal name and how the classes are scheduled.
+     */
+    public MailboxSignalDispatcher(SignalPriorities priorities) {
+        if (priorities == null) {
+            throw new IllegalArgumentException("The priorities cannot be null");
+        }
+        mBackpressure = null;
+        mPriorities = priorities;
+    }
+
+    /**
+     * @return The backpressure configuration of the mailboxes (which keeps their drop counters),
+     *         or null if they are unbounded
+     */
+    public SignalBackpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    @Override
+    public void dispatch(TaskRunner pool, SignalListener[] listeners, SignalInfo signalInfo,
+                         boolean isSelfSignal) {
+        for (SignalListener listener : listeners) {
+            ListenerMailbox mailbox = mMailboxes.get(listener);
+            if (mailbox == null) {
+                ListenerMailbox newMailbox = mPriorities != null ?
+                    new ListenerMailbox(mPriorities, listener) :
+                    new ListenerMailbox(mBackpressure, listener);
+                mailbox = mMailboxes.putIfAbsent(listener, newMailbox);
+                if (mailbox == null) {
+                    mailbox = newMailbox;
+                }
+            }
+            mailbox.post(pool, mailbox.mListener, signalInfo, isSelfSignal);
+        }
+    }
+
+    @Override
+    public void removeListener(SignalListener listener) {
+        ListenerMailbox mailbox = mMailboxes.remove(listener);
+        if (mailbox != null) {
+            mailbox.clear();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (SignalMailbox mailbox : mMailboxes.values()) {
+            mailbox.clear();
+        }
+    }
+
+    /**
+     * @param listener A registered listener
+     * @return Number of signals waiting to be delivered to the listener
+     */
+    public int getQueueDepth(SignalListener listener) {
+        SignalMailbox mailbox = mMailboxes.get(listener);
+        return mailbox != null ? mailbox.getDepth() : 0;
+    }
+
+    /**
+     * @return Number of signals waiting to be delivered to each listener
+     */
+    public Map<SignalListener, Integer> getQueueDepths() {
+        HashMap<SignalListener, Integer> depths = new HashMap<>();
+        for (Map.Entry<SignalListener, ListenerMailbox> entry : mMailboxes.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getDepth());
+        }
+        return depths;
+    }
+
+    /**
+     * @return Maximum number of signals that have been waiting at the same time for each listener
+     */
+    public Map<SignalListener, Integer> getMaxQueueDepths() {
+        HashMap<SignalListener, Integer> depths = new HashMap<>();
+        for (Map.Entry<SignalListener, ListenerMailbox> entry : mMailboxes.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getMaxDepth());
+        }
+        return depths;
+    }
+}
@@ -0,0 +1,34 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * A {@link SignalProtocol} that can also be read without blocking, and that tells its reader when
+ * there are signals to read. A {@link SignalProcessorThread} that runs on a shared
+ * {@link SignalRuntime} reads these protocols from a task when they're ready, instead of keeping
+ * a thread blocked on read.
+ */
+public interface NonBlockingSignalProtocol<OutputDataType, InputDataType>
+        extends SignalProtocol<OutputDataType, InputDataType> {
+
+    /**
+     * Sets the listener invoked when signals become available to read, and when the protocol is
+     * closed or drained. It may be invoked from any thread (usually, the one that processes the
+     * signals), so it must not block.
+     *
+     * @param listener The listener, or null to remove it
+     */
+    public void setReadyListener(Runnable listener);
+
+    /**
+     * Reads a processed signal, if there's one available. It doesn't block.
+     *
+     * @return The processed signal, or null if there's none right now
+     */
+    public SignalInfo<OutputDataType> poll();
+
+    /**
+     * @return Whether the protocol has been closed, or drained and all its signals read, so
+     *         poll will never return a signal again.
+     */
+    public boolean isFinished();
+
+}
@@ -0,0 +1,355 @@
+package com.opentok.accelerator.core.signal;
+
+import android.content.Context;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.Callback;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outbox that keeps the signals it's given in a {@link SignalJournal} until they are sent, so they
+ * survive the death of the process and are sent on the next connection.
+ * When it's set on an {@link com.opentok.accelerator.core.wrapper.OTAcceleratorSession}, the signals
+ * with the configured names go through it before the output signal path. The session attaches the
+ * outbox when it connects or reconnects, and the pending signals are then sent in order. It's
+ * detached while the session is reconnecting or disconnected, so signals keep accumulating.
+ * A signal is marked as sent in the journal only once the session hands it to OpenTok, after the
+ * output protocol (see {@link SignalInfo#mOnSent}). If the protocol splits it (in chunks, for
+ * example), that's once all its parts are handed. Marking a signal sent also marks the ones before
+ * it, so the outbox signals must keep their order on the output path. The signals handed to the
+ * session but not sent when it disconnects are sent again on the next connection, so a signal can
+ * be sent twice, but it's never lost.
+ * All the work (recovery, journal writes, sending) is done on a background thread, so adding a
+ * signal never blocks the caller. The thread finishes while the outbox is idle.
+ * Signals sent to a single connection are only kept while the process lives: the connection ids
+ * are not valid on a new connection.
+ * Usage:
+ *   PersistentSignalOutbox outbox = new PersistentSignalOutbox(context, "TextChat");
+ *   wrapper.setSignalOutbox(outbox);
+ */
+public class PersistentSignalOutbox {
+    private static final String LOG_TAG = PersistentSignalOutbox.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    public static final String DEFAULT_JOURNAL_NAME = "ot_signal_outbox.journal";
+
+    private static final long THREAD_KEEP_ALIVE_MS = 5000;
+
+    private final Set<String> mSignalNames;
+    private final SignalJournal mJournal;
+    private final ThreadPoolExecutor mExecutor;
+    // Only accessed from the outbox thread
+    private final ArrayDeque<SignalJournal.Entry> mPending = new ArrayDeque<>();
+    // Signals handed to the session and not sent yet, in order. Only accessed from the outbox
+    // thread
+    private final ArrayDeque<SignalJournal.Entry> mInFlight = new ArrayDeque<>();
+    private boolean mOpen = false;
+    private boolean mJournalFailed = false;
+    private volatile Callback<SignalInfo> mSender;
+    private volatile int mPendingCount = 0;
+    private volatile long mSentSignals = 0;
+
+    /**
+     * Creates an outbox whose journal is on the files directory of the app.
+     *
+     * @param context Context of the app
+     * @param signalNames Names of the signals to keep. Pass none to keep all the signals.
+     */
+    public PersistentSignalOutbox(Context context, String... signalNames) {
+        this(new File(context.getFilesDir(), DEFAULT_JOURNAL_NAME), signalNames);
+    }
+
+    /**
+     * @param journalFile File of the journal. Only one outbox can use it at a time.
+     * @param signalNames Names of the signals to keep. Pass none to keep all the signals.
+     */
+    public PersistentSignalOutbox(File journalFile, String... signalNames) {
+        if (journalFile == null) {
+            throw new IllegalArgumentException("The journal file cannot be null");
+        }
+        mSignalNames = signalNames == null || signalNames.length == 0 ? null :
+            new HashSet<String>(Arrays.asList(signalNames));
+        mJournal = new SignalJournal(journalFile);
+        mExecutor = new ThreadPoolExecutor(1, 1, THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, LOG_TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recover();
+            }
+        });
+    }
+
+    // Invokes a callback once it has been invoked a number of times
+    private static final class SentCountdown implements Callback<SignalInfo> {
+        private final Callback<SignalInfo> mOnSent;
+        private final AtomicInteger mRemaining;
+
+        SentCountdown(Callback<SignalInfo> onSent, int count) {
+            mOnSent = onSent;
+            mRemaining = new AtomicInteger(count);
+        }
+
+        @Override
+        public void run(SignalInfo sentSignal) {
+            if (mRemaining.decrementAndGet() == 0) {
+                mOnSent.run(sentSignal);
+            }
+        }
+    }
+
+    // Called by the protocols with the signals generated from an outbox signal. When there are
+    // several (the chunks of a signal, for example), it's only sent once all of them are
+    static <T> void onProtocolOut(Callback<SignalInfo> onSent,
+                                  Collection<SignalInfo<T>> processedSignals) {
+        if (onSent == null || processedSignals == null) {
+            return;
+        }
+        // The signals that belong to other outbox signals keep their callbacks
+        int count = 0;
+        for (SignalInfo<T> processedSignal : processedSignals) {
+            if (processedSignal.mOnSent == null || processedSignal.mOnSent == onSent) {
+                count++;
+            }
+        }
+        Callback<SignalInfo> callback = count > 1 ? new SentCountdown(onSent, count) : onSent;
+        for (SignalInfo<T> processedSignal : processedSignals) {
+            if (processedSignal.mOnSent == null || processedSignal.mOnSent == onSent) {
+                processedSignal.mOnSent = callback;
+            }
+        }
+    }
+
+    /**
+     * @param signalName Name of a signal
+     * @return true if the signals with that name are kept on this outbox
+     */
+    public boolean accepts(String signalName) {
+        return mSignalNames == null || (signalName != null && mSignalNames.contains(signalName));
+    }
+
+    /**
+     * Adds a signal to the outbox. It returns immediately: the signal is written to the journal,
+     * and sent if the outbox is attached, on the outbox thread.
+     */
+    public void add(final SignalInfo<String> signalInfo) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mOpen) {
+                    recover();
+                }
+                SignalJournal.Entry entry = null;
+                if (!mJournalFailed) {
+                    try {
+                        entry = mJournal.append(signalInfo);
+                    } catch (IOException e) {
+                        LOG.e(LOG_TAG, "Cannot write signal to the journal: ", e.getMessage());
+                    }
+                }
+                if (entry == null) {
+                    // Keep it in memory at least
+                    entry = new SignalJournal.Entry(0, signalInfo, 0);
+                }
+                mPending.add(entry);
+                mPendingCount = mPending.size();
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Starts sending the pending signals, in order, through the given callback. Called by the
+     * session when it connects or reconnects.
+     *
+     * @param sender Callback that sends a signal on the session
+     */
+    public void attach(Callback<SignalInfo> sender) {
+        mSender = sender;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mOpen) {
+                    recover();
+                }
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Stops sending signals. Called by the session when it's reconnecting or disconnected. The
+     * signals that were handed to it and not sent yet are sent again on the next attach.
+     */
+    public void detach() {
+        mSender = null;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                requeueInFlight();
+            }
+        });
+    }
+
+    /**
+     * @return Number of signals waiting to be sent
+     */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * @return Number of signals sent through this outbox
+     */
+    public long getSentSignals() {
+        return mSentSignals;
+    }
+
+    /**
+     * Detaches the outbox and closes its journal. The pending signals stay on the journal: they
+     * are loaded again if the outbox is used again, or by an outbox created with the same journal.
+     * The wrapper closes its outbox when it's replaced or the wrapper disconnects.
+     */
+    public void close() {
+        mSender = null;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mOpen) {
+                    return;
+                }
+                mOpen = false;
+                mPending.clear();
+                mInFlight.clear();
+                mPendingCount = 0;
+                try {
+                    mJournal.close();
+                } catch (IOException e) {
+                    LOG.w(LOG_TAG, "Cannot close the journal: ", e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.e(LOG_TAG, "Outbox thread not available: ", e.getMessage());
+        }
+    }
+
+    private void recover() {
+        mOpen = true;
+        mJournalFailed = false;
+        try {
+            for (SignalJournal.Entry entry : mJournal.recover()) {
+                if (entry.mSignalInfo.mDstConnId != null) {
+                    LOG.w(LOG_TAG, "Discarding signal to a connection of a previous session: ",
+                          entry.mSignalInfo.mSignalName);
+                    continue;
+                }
+                mPending.add(entry);
+            }
+            mPendingCount = mPending.size();
+            LOG.d(LOG_TAG, "Recovered ", mPendingCount, " signals");
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Cannot open the journal, signals won't be persisted: ", e.getMessage());
+            mJournalFailed = true;
+        }
+    }
+
+    // Runs on the outbox thread
+    private void drain() {
+        Callback<SignalInfo> sender = mSender;
+        if (sender == null || mPending.isEmpty()) {
+            return;
+        }
+        while (!mPending.isEmpty() && mSender != null) {
+            final SignalJournal.Entry entry = mPending.poll();
+            mInFlight.add(entry);
+            entry.mSignalInfo.mOnSent = new Callback<SignalInfo>() {
+                @Override
+                public void run(SignalInfo sentSignal) {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSent(entry);
+                        }
+                    });
+                }
+            };
+            sender.run(entry.mSignalInfo);
+        }
+        mPendingCount = mPending.size() + mInFlight.size();
+    }
+
+    // Runs on the outbox thread when the session hands a signal to OpenTok
+    private void onSent(SignalJournal.Entry sentEntry) {
+        if (!mInFlight.contains(sentEntry)) {
+            // Sent again after a detach, or the outbox was closed
+            return;
+        }
+        SignalJournal.Entry lastSent = null;
+        SignalJournal.Entry entry;
+        do {
+            // The signals before it were sent, or discarded by the output protocol
+            entry = mInFlight.poll();
+            mSentSignals++;
+            if (entry.mId != 0) {
+                lastSent = entry;
+            }
+        } while (entry != sentEntry);
+        mPendingCount = mPending.size() + mInFlight.size();
+        if (lastSent != null && !mJournalFailed) {
+            try {
+                // One record marks all the signals sent in order up to it
+                mJournal.markSent(lastSent);
+                ArrayList<SignalJournal.Entry> unsent = new ArrayList<>(mInFlight);
+                unsent.addAll(mPending);
+                mJournal.maybeCompact(unsent);
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, "Cannot update the journal: ", e.getMessage());
+            }
+        }
+    }
+
+    // Runs on the outbox thread. The signals that weren't sent go back to the pending ones
+    private void requeueInFlight() {
+        Iterator<SignalJournal.Entry> it = mInFlight.descendingIterator();
+        while (it.hasNext()) {
+            mPending.addFirst(it.next());
+        }
+        mInFlight.clear();
+    }
+}
@@ -0,0 +1,94 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.listeners.SignalListener;
+import com.opentok.accelerator.core.utils.LogWrapper;
+import com.opentok.accelerator.core.utils.TaskRunner;
+
+/**
+ * Dispatches every (signal, listener) pair as an independent task on the pool. It gives the most
+ * parallelism, but two signals can reach the same listener in any order.
+ * The tasks are reused, and each of them retains the signal until its listener returns, so
+ * pooled signals (see {@link SignalInfoPool}) are recycled once all their listeners are done.
+ */
+public class PoolSignalDispatcher implements SignalDispatcher {
+    private final String LOG_TAG = this.getClass().getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    // A (signal, listener) pair to deliver. They're reused, so dispatching doesn't allocate.
+    private final class Delivery implements Runnable {
+        SignalListener mListener;
+        SignalInfo mSignalInfo;
+        boolean mIsSelfSignal;
+
+        @Override
+        public void run() {
+            SignalListener listener = mListener;
+            SignalInfo signalInfo = mSignalInfo;
+            boolean isSelfSignal = mIsSelfSignal;
+            recycle(this);
+            if (LOG.isLoggable(LogWrapper.LOG_DEBUG)) {
+                LOG.d(LOG_TAG, "Dispatching signal: ", signalInfo.mSignalName,
+                      " : ", signalInfo.mData,
+                      " on thread: ", Thread.currentThread().getId());
+            }
+            try {
+                SignalTracer.deliver(listener, signalInfo, isSelfSignal);
+            } finally {
+                signalInfo.release();
+            }
+        }
+    }
+
+    private static final int MAX_FREE_DELIVERIES = 64;
+
+    private final Delivery[] mFreeDeliveries = new Delivery[MAX_FREE_DELIVERIES];
+    private int mFreeCount = 0;
+
+    @Override
+    public void dispatch(TaskRunner pool, SignalListener[] listeners, SignalInfo signalInfo,
+                         boolean isSelfSignal) {
+        for (SignalListener listener : listeners) {
+            if (LOG.isLoggable(LogWrapper.LOG_DEBUG)) {
+                LOG.d(LOG_TAG, "Starting thread to process: ", signalInfo.mSignalName,
+                      " : ", signalInfo.mData);
+            }
+            Delivery delivery = obtain();
+            delivery.mListener = listener;
+            delivery.mSignalInfo = signalInfo.retain();
+            delivery.mIsSelfSignal = isSelfSignal;
+            pool.runAsync(delivery);
+        }
+    }
+
+    private synchronized Delivery obtain() {
+        if (mFreeCount == 0) {
+            return new Delivery();
+        }
+        Delivery delivery = mFreeDeliveries[--mFreeCount];
+        mFreeDeliveries[mFreeCount] = null;
+        return delivery;
+    }
+
+    private synchronized void recycle(Delivery delivery) {
+        delivery.mListener = null;
+        delivery.mSignalInfo = null;
+        if (mFreeCount < MAX_FREE_DELIVERIES) {
+            mFreeDeliveries[mFreeCount++] = delivery;
+        }
+    }
+
+    @Override
+    public void removeListener(SignalListener listener) {
+    }
+
+    @Override
+    public void clear() {
+    }
+}
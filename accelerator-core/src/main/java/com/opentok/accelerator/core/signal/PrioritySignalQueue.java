@@ -0,0 +1,147 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unbounded {@link SignalQueue} that keeps a FIFO per {@link SignalPriority} class and takes the
+ * signals following the scheduling of a {@link SignalPriorities} configuration. Signals of the same
+ * class keep their order, but a signal can overtake signals of lower classes.
+ * The elements are expected to be SignalInfos. Queues of objects that wrap a signal can override
+ * {@link #getSignalInfo(Object)}.
+ */
+public class PrioritySignalQueue<E> implements SignalQueue<E> {
+    private static final SignalPriority[] CLASSES = SignalPriority.values();
+
+    private final SignalPriorities mPriorities;
+    private final ArrayDeque<E>[] mQueues;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private int mCount = 0;
+    // Weighted scheduling state: the class being served and how many signals it can still take
+    private int mCurrentClass = 0;
+    private int mCredit;
+
+    @SuppressWarnings("unchecked")
+    public PrioritySignalQueue(SignalPriorities priorities) {
+        if (priorities == null) {
+            throw new IllegalArgumentException("The priorities cannot be null");
+        }
+        mPriorities = priorities;
+        mQueues = new ArrayDeque[CLASSES.length];
+        for (int i = 0; i < CLASSES.length; i++) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+        mCredit = priorities.getWeight(CLASSES[0]);
+    }
+
+    /**
+     * @return The configuration used by this queue
+     */
+    public SignalPriorities getPriorities() {
+        return mPriorities;
+    }
+
+    /**
+     * Returns the signal an element represents. By default, the element itself.
+     */
+    protected SignalInfo<?> getSignalInfo(E element) {
+        return (SignalInfo<?>) element;
+    }
+
+    /**
+     * @param priority A priority class
+     * @return Number of signals of the class waiting
+     */
+    public int size(SignalPriority priority) {
+        mLock.lock();
+        try {
+            return mQueues[priority.ordinal()].size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E element) {
+        SignalPriority priority = mPriorities.getPriority(getSignalInfo(element).mSignalName);
+        mLock.lock();
+        try {
+            mQueues[priority.ordinal()].addLast(element);
+            mCount++;
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        offer(element);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                mNotEmpty.await();
+            }
+            return next();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Must be called with the lock held and at least one element queued
+    private E next() {
+        mCount--;
+        if (mPriorities.isStrict()) {
+            for (ArrayDeque<E> queue : mQueues) {
+                if (!queue.isEmpty()) {
+                    return queue.pollFirst();
+                }
+            }
+        }
+        while (true) {
+            ArrayDeque<E> queue = mQueues[mCurrentClass];
+            if (mCredit > 0 && !queue.isEmpty()) {
+                mCredit--;
+                return queue.pollFirst();
+            }
+            // Turn of the next class. An empty class loses its turn
+            mCurrentClass = (mCurrentClass + 1) % mQueues.length;
+            mCredit = mPriorities.getWeight(CLASSES[mCurrentClass]);
+        }
+    }
+}
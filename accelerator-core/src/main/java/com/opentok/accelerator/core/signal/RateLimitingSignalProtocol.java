@@ -0,0 +1,255 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Output protocol that keeps the sent signals under the {@link SignalRateLimits} configured, so
+ * the OpenTok servers don't throttle the client. Signals that find no token are not failed but
+ * queued, and sent as soon as the buckets are refilled, which smooths the bursts (a fast finger on
+ * the whiteboard, for example) into a steady rate.
+ * Each signal name has its own queue, and the queues are served in turns, so a name that has run
+ * out of tokens doesn't hold back the others. The signals of the same name are always sent in
+ * order.
+ * Usage:
+ *   RateLimitingSignalProtocol limiter = new RateLimitingSignalProtocol(limits);
+ *   limiter.start();
+ *   wrapper.setOutputSignalProtocol(limiter);
+ *   Log.d(TAG, limiter.getSessionStats().toString());
+ */
+public class RateLimitingSignalProtocol extends ThreadedSignalProtocol<String, String> {
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    private static final class TokenBucket {
+        final double mRate;
+        final int mBurst;
+        volatile double mTokens;
+        long mLastRefill;
+
+        TokenBucket(SignalRateLimits.Limit limit, long now) {
+            mRate = limit.getRate() / 1e9;
+            mBurst = limit.getBurst();
+            mTokens = mBurst;
+            mLastRefill = now;
+        }
+
+        void refill(long now) {
+            if (now > mLastRefill) {
+                mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate);
+                mLastRefill = now;
+            }
+        }
+    }
+
+    // Signals waiting for a token, and counters, of a signal name
+    private static final class Lane {
+        final TokenBucket mBucket;
+        final ArrayDeque<SignalInfo<String>> mPending = new ArrayDeque<>();
+        volatile int mQueued = 0;
+        volatile long mSent = 0;
+        volatile long mDelayed = 0;
+        volatile long mRejected = 0;
+        boolean mActive = false;
+
+        Lane(TokenBucket bucket) {
+            mBucket = bucket;
+        }
+    }
+
+    private final SignalRateLimits mLimits;
+    private final TokenBucket mSessionBucket;
+    private final long mTickInterval;
+    // Only accessed from the protocol thread, but the stats are read from any thread
+    private final ConcurrentHashMap<String, Lane> mLanes = new ConcurrentHashMap<>();
+    // Lanes with signals waiting, in the order they are served
+    private final ArrayDeque<Lane> mActiveLanes = new ArrayDeque<>();
+    private final Lane mNoNameLane = new Lane(null);
+    private volatile int mQueued = 0;
+    private volatile long mSent = 0;
+    private volatile long mDelayed = 0;
+    private volatile long mRejected = 0;
+
+    /**
+     * @param limits The rate limits to apply
+     */
+    public RateLimitingSignalProtocol(SignalRateLimits limits) {
+        if (limits == null) {
+            throw new IllegalArgumentException("The rate limits cannot be null");
+        }
+        mLimits = limits;
+        mSessionBucket = new TokenBucket(limits.getSessionLimit(), System.nanoTime());
+        // Check the waiting signals as often as the fastest bucket gets a new token
+        mTickInterval = Math.max(1, (long) Math.ceil(1000 / limits.getMaxRate()));
+    }
+
+    /**
+     * @return The rate limits applied
+     */
+    public SignalRateLimits getLimits() {
+        return mLimits;
+    }
+
+    /**
+     * @return The state of the session bucket and the counters of all the signals
+     */
+    public SignalRateStats getSessionStats() {
+        return new SignalRateStats(mSessionBucket.mTokens, mQueued, mSent, mDelayed, mRejected);
+    }
+
+    /**
+     * @return The state of the bucket and the counters of each signal name sent
+     */
+    public Map<String, SignalRateStats> getStats() {
+        HashMap<String, SignalRateStats> stats = new HashMap<>();
+        for (Map.Entry<String, Lane> entry : mLanes.entrySet()) {
+            Lane lane = entry.getValue();
+            stats.put(entry.getKey(),
+                      new SignalRateStats(lane.mBucket != null ? lane.mBucket.mTokens : Double.NaN,
+                                          lane.mQueued, lane.mSent, lane.mDelayed,
+                                          lane.mRejected));
+        }
+        return stats;
+    }
+
+    @Override
+    protected long getTickInterval() {
+        // Nothing to do while no signal is waiting
+        return mQueued > 0 ? mTickInterval : 0;
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+        long now = System.nanoTime();
+        Lane lane = laneFor(signalInfo.mSignalName, now);
+        if (mQueued == 0) {
+            // Fast path: nothing waiting, so no order to keep
+            mSessionBucket.refill(now);
+            if (lane.mBucket != null) {
+                lane.mBucket.refill(now);
+            }
+            if (hasToken(lane)) {
+                send(lane, false);
+                return Collections.singletonList(signalInfo);
+            }
+        }
+        if (mQueued >= mLimits.getMaxQueued()) {
+            lane.mRejected++;
+            mRejected++;
+            LOG.w(LOG_TAG, "Too many signals waiting, rejecting signal: ", signalInfo.mSignalName);
+            return null;
+        }
+        lane.mPending.add(signalInfo);
+        lane.mQueued++;
+        mQueued++;
+        if (!lane.mActive) {
+            lane.mActive = true;
+            mActiveLanes.add(lane);
+        }
+        return drain(now);
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processTick(long now) {
+        return mQueued > 0 ? drain(System.nanoTime()) : null;
+    }
+
+    // The protocol that replaces this one doesn't know about the waiting signals: send them all,
+    // in the same order, even if there are no tokens for them
+    @Override
+    protected Collection<SignalInfo<String>> onDrain() {
+        if (mQueued == 0) {
+            return null;
+        }
+        ArrayList<SignalInfo<String>> ready = new ArrayList<>(mQueued);
+        while (!mActiveLanes.isEmpty()) {
+            Lane lane = mActiveLanes.poll();
+            ready.add(lane.mPending.poll());
+            lane.mQueued--;
+            mQueued--;
+            send(lane, true);
+            if (lane.mPending.isEmpty()) {
+                lane.mActive = false;
+            } else {
+                mActiveLanes.add(lane);
+            }
+        }
+        return ready;
+    }
+
+    // Sends the waiting signals that have tokens, serving the lanes in turns
+    private ArrayList<SignalInfo<String>> drain(long now) {
+        ArrayList<SignalInfo<String>> ready = null;
+        mSessionBucket.refill(now);
+        int blockedLanes = 0;
+        while (!mActiveLanes.isEmpty() && blockedLanes < mActiveLanes.size() &&
+               mSessionBucket.mTokens >= 1) {
+            Lane lane = mActiveLanes.poll();
+            if (lane.mBucket != null) {
+                lane.mBucket.refill(now);
+            }
+            if (!hasToken(lane)) {
+                mActiveLanes.add(lane);
+                blockedLanes++;
+                continue;
+            }
+            blockedLanes = 0;
+            if (ready == null) {
+                ready = new ArrayList<>();
+            }
+            ready.add(lane.mPending.poll());
+            lane.mQueued--;
+            mQueued--;
+            send(lane, true);
+            if (lane.mPending.isEmpty()) {
+                lane.mActive = false;
+            } else {
+                mActiveLanes.add(lane);
+            }
+        }
+        return ready;
+    }
+
+    private boolean hasToken(Lane lane) {
+        return mSessionBucket.mTokens >= 1 && (lane.mBucket == null || lane.mBucket.mTokens >= 1);
+    }
+
+    private void send(Lane lane, boolean delayed) {
+        mSessionBucket.mTokens -= 1;
+        if (lane.mBucket != null) {
+            lane.mBucket.mTokens -= 1;
+        }
+        lane.mSent++;
+        mSent++;
+        if (delayed) {
+            lane.mDelayed++;
+            mDelayed++;
+        }
+    }
+
+    private Lane laneFor(String signalName, long now) {
+        if (signalName == null) {
+            return mNoNameLane;
+        }
+        Lane lane = mLanes.get(signalName);
+        if (lane == null) {
+            SignalRateLimits.Limit limit = mLimits.getLimit(signalName);
+            lane = new Lane(limit != null ? new TokenBucket(limit, now) : null);
+            mLanes.put(signalName, lane);
+        }
+        return lane;
+    }
+}
@@ -0,0 +1,183 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Input protocol that rebuilds the signals split by a {@link ChunkingSignalProtocol}.
+ * Chunks are grouped per (source connection, message id) and can arrive in any order. Signals that
+ * are not chunks are passed through untouched.
+ * To avoid a misbehaving or disconnected sender using too much memory:
+ *   - Messages with more than maxMessageLength characters are discarded.
+ *   - When all the partial messages together go over maxBufferedLength characters, the partial
+ *     message that has been updated less recently is discarded.
+ *   - Partial messages that don't get a new chunk in timeoutMs milliseconds are discarded.
+ */
+public class ReassemblingSignalProtocol extends ThreadedSignalProtocol<String, String> {
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 256 * 1024;
+    public static final int DEFAULT_MAX_BUFFERED_LENGTH = 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private static class PartialMessage {
+        final String[] mPieces;
+        int mReceivedPieces = 0;
+        int mLength = 0;
+        long mLastUpdate;
+
+        PartialMessage(int pieces) {
+            mPieces = new String[pieces];
+        }
+    }
+
+    private final int mMaxMessageLength;
+    private final int mMaxBufferedLength;
+    private final long mTimeout;
+    // Access ordered, so the first entry is always the one updated less recently
+    private final LinkedHashMap<String, PartialMessage> mPartialMessages =
+        new LinkedHashMap<String, PartialMessage>(16, 0.75f, true);
+    private int mBufferedLength = 0;
+    private volatile long mDiscardedMessages = 0;
+
+    public ReassemblingSignalProtocol() {
+        this(DEFAULT_MAX_MESSAGE_LENGTH, DEFAULT_MAX_BUFFERED_LENGTH, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param maxMessageLength Maximum length, in characters, of a rebuilt message.
+     * @param maxBufferedLength Maximum length, in characters, of all the partial messages together.
+     * @param timeoutMs Time, in milliseconds, after which a partial message that doesn't receive
+     *                  any chunk is discarded.
+     */
+    public ReassemblingSignalProtocol(int maxMessageLength, int maxBufferedLength, long timeoutMs) {
+        if (maxMessageLength <= 0 || maxBufferedLength < maxMessageLength || timeoutMs <= 0) {
+            throw new IllegalArgumentException("Invalid reassembly limits");
+        }
+        mMaxMessageLength = maxMessageLength;
+        mMaxBufferedLength = maxBufferedLength;
+        mTimeout = timeoutMs;
+    }
+
+    /**
+     * @return Number of messages discarded because they were too big or incomplete
+     */
+    public long getDiscardedMessages() {
+        return mDiscardedMessages;
+    }
+
+    @Override
+    protected long getTickInterval() {
+        return Math.max(1, mTimeout / 4);
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+        String data = signalInfo.mData;
+        if (data == null || !data.startsWith(ChunkingSignalProtocol.CHUNK_PREFIX)) {
+            return Collections.singletonList(signalInfo);
+        }
+
+        // otChunk:messageId:index:count:piece
+        int idStart = ChunkingSignalProtocol.CHUNK_PREFIX.length();
+        int idEnd = data.indexOf(ChunkingSignalProtocol.SEPARATOR, idStart);
+        int indexEnd = idEnd < 0 ? -1 : data.indexOf(ChunkingSignalProtocol.SEPARATOR, idEnd + 1);
+        int countEnd = indexEnd < 0 ? -1 : data.indexOf(ChunkingSignalProtocol.SEPARATOR, indexEnd + 1);
+        int index;
+        int count;
+        try {
+            index = countEnd < 0 ? -1 : Integer.parseInt(data.substring(idEnd + 1, indexEnd));
+            count = countEnd < 0 ? -1 : Integer.parseInt(data.substring(indexEnd + 1, countEnd));
+        } catch (NumberFormatException e) {
+            index = count = -1;
+        }
+        if (idEnd <= idStart || count <= 0 || count > ChunkingSignalProtocol.MAX_CHUNKS ||
+            index < 0 || index >= count) {
+            LOG.w(LOG_TAG, "Discarding malformed chunk of: ", signalInfo.mSignalName);
+            return null;
+        }
+
+        String key = signalInfo.mSrcConnId + '\0' + data.substring(idStart, idEnd);
+        String piece = data.substring(countEnd + 1);
+        PartialMessage message = mPartialMessages.get(key);
+        if (message == null) {
+            message = new PartialMessage(count);
+            mPartialMessages.put(key, message);
+        } else if (message.mPieces.length != count) {
+            LOG.w(LOG_TAG, "Discarding chunk with inconsistent count for: ", signalInfo.mSignalName);
+            return null;
+        }
+        message.mLastUpdate = System.currentTimeMillis();
+        if (message.mPieces[index] != null) {
+            // Duplicated chunk
+            return null;
+        }
+        if (message.mLength + piece.length() > mMaxMessageLength) {
+            LOG.w(LOG_TAG, "Discarding message too long: ", signalInfo.mSignalName);
+            discard(key, message);
+            return null;
+        }
+        message.mPieces[index] = piece;
+        message.mReceivedPieces++;
+        message.mLength += piece.length();
+        mBufferedLength += piece.length();
+
+        if (message.mReceivedPieces == count) {
+            mPartialMessages.remove(key);
+            mBufferedLength -= message.mLength;
+            StringBuilder fullData = new StringBuilder(message.mLength);
+            for (String messagePiece : message.mPieces) {
+                fullData.append(messagePiece);
+            }
+            return Collections.singletonList(
+                new SignalInfo<String>(signalInfo.mSrcConnId, signalInfo.mDstConnId,
+                                       signalInfo.mSignalName, fullData.toString()));
+        }
+
+        // Make room, starting with the message updated less recently (which can be this one)
+        Iterator<PartialMessage> messages = mPartialMessages.values().iterator();
+        while (mBufferedLength > mMaxBufferedLength && messages.hasNext()) {
+            PartialMessage oldest = messages.next();
+            messages.remove();
+            discarded(oldest);
+        }
+        return null;
+    }
+
+    @Override
+    protected Collection<SignalInfo<String>> processTick(long now) {
+        Iterator<PartialMessage> messages = mPartialMessages.values().iterator();
+        while (messages.hasNext()) {
+            PartialMessage message = messages.next();
+            if (now - message.mLastUpdate < mTimeout) {
+                // Access ordered, so the rest are newer
+                break;
+            }
+            LOG.d(LOG_TAG, "Discarding stale partial message");
+            messages.remove();
+            discarded(message);
+        }
+        return null;
+    }
+
+    private void discard(String key, PartialMessage message) {
+        mPartialMessages.remove(key);
+        discarded(message);
+    }
+
+    private void discarded(PartialMessage message) {
+        mBufferedLength -= message.mLength;
+        mDiscardedMessages++;
+    }
+}
@@ -0,0 +1,646 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Opt-in reliable delivery of signals. It provides a pair of protocols that must be installed (on
+ * their own or chained with others) as the output and input protocols of all the peers that use
+ * it:
+ *   - The output protocol gives each reliable signal a sequence number, keeps it on a bounded
+ *     outbox until every peer it was sent to acknowledges it, and retransmits it, only to the
+ *     peers that haven't acknowledged it, when it's not acknowledged in time.
+ *   - The input protocol removes the header of the reliable signals, discards the duplicates, and
+ *     acknowledges the received ones.
+ * Acks are batched: a peer acknowledges everything received from another one (the highest
+ * contiguous sequence number plus the ones received after a gap) in a single ack. When a reliable
+ * signal is sent to that peer before the ack is due, the ack travels inside it if it fits.
+ * Otherwise it's sent on its own, as a {@link #ACK_SIGNAL} signal.
+ * Each signal also carries the lowest sequence number of its stream the sender may still send
+ * (its base). The receivers don't wait for the signals before it, so a peer that joins late
+ * doesn't wait for the signals sent before it joined.
+ * While the session is reconnecting the reliable signals are kept on the outbox, and the whole
+ * outbox is sent again when it reconnects. OTWrapper notifies the channel about reconnections and
+ * peers when it's set with OTWrapper#setReliableSignalChannel.
+ * Reliable signals are delivered to the listeners as soon as they arrive, so they can be delivered
+ * out of order after a retransmission.
+ * Wire format of the reliable signals:
+ *   otRel:<b|d><sequence>.<base>:<acks>:<data>
+ * where b is used for broadcast signals and d for signals to a single connection, and acks is a
+ * comma separated list of <connection id>=<b|d><highest contiguous sequence>[+<sequence>]*
+ */
+public class ReliableSignalChannel implements SignalPeerTracker {
+    private static final String LOG_TAG = ReliableSignalChannel.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    public static final String RELIABLE_PREFIX = "otRel:";
+    public static final String ACK_SIGNAL = "otRelAck";
+    public static final int DEFAULT_MAX_OUTBOX = 256;
+    public static final long DEFAULT_RETRANSMIT_TIMEOUT = 1000;
+    public static final long DEFAULT_ACK_DELAY = 50;
+
+    private static final int MAX_RETRIES = 8;
+    private static final int MAX_SELECTIVE_ACKS = 16;
+    // Sequence numbers received after a gap that are remembered before giving the gap up
+    private static final int MAX_RECEIVE_WINDOW = 1024;
+    private static final char BROADCAST = 'b';
+    private static final char DIRECT = 'd';
+
+    private static final class OutboxEntry {
+        final char mStream;
+        final long mSequence;
+        final SignalInfo<String> mSignalInfo;
+        final HashSet<String> mPending;
+        long mSentTime;
+        int mRetries = 0;
+
+        OutboxEntry(char stream, long sequence, SignalInfo<String> signalInfo,
+                    HashSet<String> pending) {
+            mStream = stream;
+            mSequence = sequence;
+            mSignalInfo = signalInfo;
+            mPending = pending;
+        }
+    }
+
+    // Sequence numbers received on a stream
+    private static final class ReceiveWindow {
+        long mContiguous = 0;
+        final TreeSet<Long> mAfterGap = new TreeSet<>();
+
+        // Returns false if the sequence number had already been received. base is the lowest
+        // sequence number the sender may still send
+        boolean record(long sequence, long base) {
+            if (base - 1 > mContiguous) {
+                // The signals before base were acknowledged, given up, or never sent to us
+                mContiguous = base - 1;
+                mAfterGap.headSet(base).clear();
+            }
+            if (sequence <= mContiguous || !mAfterGap.add(sequence)) {
+                return false;
+            }
+            if (mAfterGap.size() > MAX_RECEIVE_WINDOW) {
+                // The sender gave the gap up long ago
+                mContiguous = mAfterGap.first() - 1;
+            }
+            while (!mAfterGap.isEmpty() && mAfterGap.first() == mContiguous + 1) {
+                mContiguous = mAfterGap.pollFirst();
+            }
+            return true;
+        }
+
+        boolean isEmpty() {
+            return mContiguous == 0 && mAfterGap.isEmpty();
+        }
+
+        void reset() {
+            mContiguous = 0;
+            mAfterGap.clear();
+        }
+
+        void appendAck(StringBuilder ack, char stream) {
+            ack.append(stream).append(mContiguous);
+            int count = 0;
+            for (Long sequence : mAfterGap) {
+                if (count++ == MAX_SELECTIVE_ACKS) {
+                    break;
+                }
+                ack.append('+').append(sequence);
+            }
+        }
+    }
+
+    private static final class Peer {
+        final ReceiveWindow mBroadcast = new ReceiveWindow();
+        final ReceiveWindow mDirect = new ReceiveWindow();
+        long mNextDirectSequence = 1;
+        // Time the oldest signal not acknowledged yet was received, or 0
+        long mAckPendingSince = 0;
+    }
+
+    private final Set<String> mSignalNames;
+    private final int mMaxOutbox;
+    private final long mRetransmitTimeout;
+    private final long mAckDelay;
+    private final Sender mSender = new Sender();
+    private final Receiver mReceiver = new Receiver();
+
+    // Guarded by this
+    private final HashMap<String, Peer> mPeers = new HashMap<>();
+    private final ReceiveWindow mSelfBroadcast = new ReceiveWindow();
+    private final ReceiveWindow mSelfDirect = new ReceiveWindow();
+    private final LinkedHashMap<String, OutboxEntry> mOutbox = new LinkedHashMap<>();
+    private long mNextBroadcastSequence = 1;
+    private boolean mReconnecting = false;
+
+    private volatile long mRetransmittedSignals = 0;
+    private volatile long mExpiredSignals = 0;
+    private volatile long mDuplicateSignals = 0;
+    private volatile long mAckSignals = 0;
+    private volatile long mPiggybackedAcks = 0;
+
+    /**
+     * Creates a channel with the default limits.
+     *
+     * @param signalNames Names of the signals to deliver reliably. Pass none to make all the
+     *                    signals reliable.
+     */
+    public ReliableSignalChannel(String... signalNames) {
+        this(DEFAULT_MAX_OUTBOX, DEFAULT_RETRANSMIT_TIMEOUT, signalNames);
+    }
+
+    /**
+     * @param maxOutbox Maximum number of signals waiting to be acknowledged. When it's reached,
+     *                  the oldest one is given up.
+     * @param retransmitTimeoutMs Time to wait for the ack of a signal before sending it again. It's
+     *                            doubled on each retry.
+     * @param signalNames Names of the signals to deliver reliably. Pass none to make all the
+     *                    signals reliable.
+     */
+    public ReliableSignalChannel(int maxOutbox, long retransmitTimeoutMs, String... signalNames) {
+        if (maxOutbox <= 0) {
+            throw new IllegalArgumentException("Invalid outbox size: " + maxOutbox);
+        }
+        if (retransmitTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Invalid retransmit timeout: " + retransmitTimeoutMs);
+        }
+        mMaxOutbox = maxOutbox;
+        mRetransmitTimeout = retransmitTimeoutMs;
+        mAckDelay = Math.min(DEFAULT_ACK_DELAY, retransmitTimeoutMs / 4);
+        mSignalNames = signalNames == null || signalNames.length == 0 ? null :
+            new HashSet<String>(Arrays.asList(signalNames));
+    }
+
+    /**
+     * @return The protocol to use (or chain) as output protocol. It must be started unless it's
+     *         part of a chain.
+     */
+    public ThreadedSignalProtocol<String, String> getOutputProtocol() {
+        return mSender;
+    }
+
+    /**
+     * @return The protocol to use (or chain) as input protocol. It must be started unless it's
+     *         part of a chain.
+     */
+    public ThreadedSignalProtocol<String, String> getInputProtocol() {
+        return mReceiver;
+    }
+
+    /**
+     * Adds a connection the broadcast reliable signals must be delivered to. Peers are also added
+     * when a signal is received from them.
+     */
+    @Override
+    public synchronized void addPeer(String connectionId) {
+        peerFor(connectionId);
+    }
+
+    /**
+     * Removes a connection that has left the session, so no more signals wait for its acks.
+     */
+    @Override
+    public synchronized void removePeer(String connectionId) {
+        if (mPeers.remove(connectionId) == null) {
+            return;
+        }
+        Iterator<OutboxEntry> entries = mOutbox.values().iterator();
+        while (entries.hasNext()) {
+            OutboxEntry entry = entries.next();
+            entry.mPending.remove(connectionId);
+            if (entry.mPending.isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all the peers and gives up the signals on the outbox. Called when the session is
+     * disconnected, since the connections of the next one are new.
+     */
+    @Override
+    public synchronized void clearPeers() {
+        mPeers.clear();
+        mOutbox.clear();
+        mSelfBroadcast.reset();
+        mSelfDirect.reset();
+        mReconnecting = false;
+    }
+
+    /**
+     * Holds the reliable signals on the outbox until {@link #onReconnected()}.
+     */
+    public synchronized void onReconnecting() {
+        mReconnecting = true;
+    }
+
+    /**
+     * Sends again all the signals on the outbox. Called when the session has reconnected.
+     */
+    public synchronized void onReconnected() {
+        mReconnecting = false;
+        for (OutboxEntry entry : mOutbox.values()) {
+            // Sent on the next tick of the output protocol
+            entry.mSentTime = 0;
+        }
+    }
+
+    /**
+     * @return Number of signals waiting to be acknowledged
+     */
+    public synchronized int getOutboxSize() {
+        return mOutbox.size();
+    }
+
+    /**
+     * @return Number of signals sent again because their ack didn't arrive in time, or after a
+     *         reconnection
+     */
+    public long getRetransmittedSignals() {
+        return mRetransmittedSignals;
+    }
+
+    /**
+     * @return Number of signals given up without being acknowledged, because they were retried
+     *         too many times or the outbox was full
+     */
+    public long getExpiredSignals() {
+        return mExpiredSignals;
+    }
+
+    /**
+     * @return Number of received signals discarded because they had already been received
+     */
+    public long getDuplicateSignals() {
+        return mDuplicateSignals;
+    }
+
+    /**
+     * @return Number of {@link #ACK_SIGNAL} signals sent
+     */
+    public long getAckSignals() {
+        return mAckSignals;
+    }
+
+    /**
+     * @return Number of acks sent inside a reliable signal, instead of on their own
+     */
+    public long getPiggybackedAcks() {
+        return mPiggybackedAcks;
+    }
+
+    private boolean isReliable(String signalName) {
+        return signalName != null && !ACK_SIGNAL.equals(signalName) &&
+            (mSignalNames == null || mSignalNames.contains(signalName));
+    }
+
+    private class Sender extends ThreadedSignalProtocol<String, String> {
+        @Override
+        protected long getTickInterval() {
+            return Math.max(1, mAckDelay / 2);
+        }
+
+        @Override
+        protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+            if (!isReliable(signalInfo.mSignalName) || signalInfo.mData == null) {
+                return Collections.singletonList(signalInfo);
+            }
+            synchronized (ReliableSignalChannel.this) {
+                return send(signalInfo, System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        protected Collection<SignalInfo<String>> processTick(long now) {
+            synchronized (ReliableSignalChannel.this) {
+                if (mReconnecting) {
+                    return null;
+                }
+                ArrayList<SignalInfo<String>> ready = null;
+                ready = retransmit(ready, now);
+                return sendAcks(ready, now);
+            }
+        }
+    }
+
+    private class Receiver extends ThreadedSignalProtocol<String, String> {
+        @Override
+        protected Collection<SignalInfo<String>> processSignal(SignalInfo<String> signalInfo) {
+            String data = signalInfo.mData;
+            if (ACK_SIGNAL.equals(signalInfo.mSignalName)) {
+                if (data != null) {
+                    synchronized (ReliableSignalChannel.this) {
+                        applyAcks(signalInfo.mSrcConnId, signalInfo.mDstConnId, data, 0,
+                                  data.length());
+                    }
+                }
+                return null;
+            }
+            if (data == null || !data.startsWith(RELIABLE_PREFIX)) {
+                return Collections.singletonList(signalInfo);
+            }
+            synchronized (ReliableSignalChannel.this) {
+                return receive(signalInfo, System.currentTimeMillis());
+            }
+        }
+    }
+
+    // Must be called with the lock held
+    private Collection<SignalInfo<String>> send(SignalInfo<String> signalInfo, long now) {
+        String dstConnId = signalInfo.mDstConnId;
+        char stream;
+        long sequence;
+        HashSet<String> pending;
+        if (dstConnId == null) {
+            stream = BROADCAST;
+            sequence = mNextBroadcastSequence++;
+            pending = new HashSet<>(mPeers.keySet());
+        } else {
+            stream = DIRECT;
+            sequence = peerFor(dstConnId).mNextDirectSequence++;
+            pending = new HashSet<>(Collections.singleton(dstConnId));
+        }
+        if (!pending.isEmpty()) {
+            if (mOutbox.size() >= mMaxOutbox) {
+                Iterator<OutboxEntry> oldest = mOutbox.values().iterator();
+                OutboxEntry expired = oldest.next();
+                oldest.remove();
+                mExpiredSignals++;
+                LOG.w(LOG_TAG, "Outbox full, giving up signal: ", expired.mSignalInfo.mSignalName);
+            }
+            OutboxEntry entry = new OutboxEntry(stream, sequence, signalInfo, pending);
+            entry.mSentTime = mReconnecting ? 0 : now;
+            mOutbox.put(outboxKey(stream, dstConnId, sequence), entry);
+        }
+        if (mReconnecting) {
+            // The signal would be lost, it's sent when the session reconnects
+            return null;
+        }
+        return Collections.singletonList(wireSignal(signalInfo, dstConnId, stream, sequence));
+    }
+
+    // Must be called with the lock held
+    private ArrayList<SignalInfo<String>> retransmit(ArrayList<SignalInfo<String>> ready, long now) {
+        Iterator<OutboxEntry> entries = mOutbox.values().iterator();
+        while (entries.hasNext()) {
+            OutboxEntry entry = entries.next();
+            long timeout = mRetransmitTimeout << Math.min(entry.mRetries, 4);
+            if (entry.mSentTime != 0 && now - entry.mSentTime < timeout) {
+                continue;
+            }
+            if (entry.mRetries >= MAX_RETRIES) {
+                entries.remove();
+                mExpiredSignals++;
+                LOG.w(LOG_TAG, "Signal not acknowledged, giving it up: ",
+                      entry.mSignalInfo.mSignalName);
+                continue;
+            }
+            if (ready == null) {
+                ready = new ArrayList<>();
+            }
+            if (entry.mSentTime != 0) {
+                entry.mRetries++;
+            }
+            entry.mSentTime = now;
+            mRetransmittedSignals++;
+            if (entry.mStream == BROADCAST && entry.mPending.size() * 2 > mPeers.size()) {
+                ready.add(wireSignal(entry.mSignalInfo, null, BROADCAST, entry.mSequence));
+            } else {
+                // Only to the peers that haven't acknowledged it
+                for (String connId : entry.mPending) {
+                    ready.add(wireSignal(entry.mSignalInfo, connId, entry.mStream,
+                                         entry.mSequence));
+                }
+            }
+        }
+        return ready;
+    }
+
+    // Must be called with the lock held. Sends the acks that can't wait any more for a signal
+    private ArrayList<SignalInfo<String>> sendAcks(ArrayList<SignalInfo<String>> ready, long now) {
+        for (Map.Entry<String, Peer> entry : mPeers.entrySet()) {
+            Peer peer = entry.getValue();
+            if (peer.mAckPendingSince == 0 || now - peer.mAckPendingSince < mAckDelay) {
+                continue;
+            }
+            StringBuilder ack = new StringBuilder();
+            appendAcks(ack, entry.getKey(), peer);
+            if (ready == null) {
+                ready = new ArrayList<>();
+            }
+            ready.add(new SignalInfo<String>(null, entry.getKey(), ACK_SIGNAL, ack.toString()));
+            mAckSignals++;
+        }
+        return ready;
+    }
+
+    // Must be called with the lock held
+    private SignalInfo<String> wireSignal(SignalInfo<String> signalInfo, String dstConnId,
+                                          char stream, long sequence) {
+        StringBuilder data = new StringBuilder(RELIABLE_PREFIX.length() + signalInfo.mData.length() + 32);
+        data.append(RELIABLE_PREFIX).append(stream).append(sequence).append('.')
+            .append(baseSequence(stream, signalInfo.mDstConnId, sequence)).append(':');
+        int acksStart = data.length();
+        // The acks that don't fit in the signal are sent on their own
+        int maxAcksLength = SignalInfo.MAX_OPENTOK_DATA_LENGTH - acksStart - 1 -
+            Utf8.length(signalInfo.mData);
+        if (dstConnId != null) {
+            Peer peer = mPeers.get(dstConnId);
+            if (peer != null && peer.mAckPendingSince != 0) {
+                appendAcks(data, dstConnId, peer, acksStart + maxAcksLength);
+            }
+        } else {
+            for (Map.Entry<String, Peer> entry : mPeers.entrySet()) {
+                if (entry.getValue().mAckPendingSince != 0) {
+                    int entryStart = data.length();
+                    if (entryStart > acksStart) {
+                        data.append(',');
+                    }
+                    if (!appendAcks(data, entry.getKey(), entry.getValue(),
+                                    acksStart + maxAcksLength)) {
+                        data.setLength(entryStart);
+                    }
+                }
+            }
+        }
+        if (data.length() > acksStart) {
+            mPiggybackedAcks++;
+        }
+        data.append(':').append(signalInfo.mData);
+        return new SignalInfo<String>(signalInfo.mSrcConnId, dstConnId, signalInfo.mSignalName,
+                                      data.toString());
+    }
+
+    // Must be called with the lock held. Returns the lowest sequence number of the stream still on
+    // the outbox, which can be sent again, or sequence if there's none lower
+    private long baseSequence(char stream, String dstConnId, long sequence) {
+        for (OutboxEntry entry : mOutbox.values()) {
+            // The outbox keeps the order the signals were sent in
+            if (entry.mStream == stream &&
+                (stream == BROADCAST || entry.mSignalInfo.mDstConnId.equals(dstConnId))) {
+                return Math.min(entry.mSequence, sequence);
+            }
+        }
+        return sequence;
+    }
+
+    // Must be called with the lock held. Appends the acks for a peer and clears them if ack stays
+    // within maxLength bytes. Otherwise ack is left as it was, and the acks pending.
+    private boolean appendAcks(StringBuilder ack, String connId, Peer peer, int maxLength) {
+        int start = ack.length();
+        long ackPendingSince = peer.mAckPendingSince;
+        appendAcks(ack, connId, peer);
+        if (Utf8.length(ack) > maxLength) {
+            ack.setLength(start);
+            peer.mAckPendingSince = ackPendingSince;
+            return false;
+        }
+        return true;
+    }
+
+    // Must be called with the lock held. Appends the acks for a peer and clears them
+    private void appendAcks(StringBuilder ack, String connId, Peer peer) {
+        boolean first = true;
+        if (!peer.mBroadcast.isEmpty()) {
+            ack.append(connId).append('=');
+            peer.mBroadcast.appendAck(ack, BROADCAST);
+            first = false;
+        }
+        if (!peer.mDirect.isEmpty()) {
+            if (!first) {
+                ack.append(',');
+            }
+            ack.append(connId).append('=');
+            peer.mDirect.appendAck(ack, DIRECT);
+        }
+        peer.mAckPendingSince = 0;
+    }
+
+    // Must be called with the lock held
+    private Collection<SignalInfo<String>> receive(SignalInfo<String> signalInfo, long now) {
+        String data = signalInfo.mData;
+        int sequenceEnd = data.indexOf(':', RELIABLE_PREFIX.length());
+        int acksEnd = sequenceEnd > 0 ? data.indexOf(':', sequenceEnd + 1) : -1;
+        int baseStart = sequenceEnd > 0 ? data.lastIndexOf('.', sequenceEnd) + 1 : 0;
+        long sequence = -1;
+        long base = -1;
+        char stream = 0;
+        if (acksEnd > 0 && baseStart > RELIABLE_PREFIX.length() + 2) {
+            stream = data.charAt(RELIABLE_PREFIX.length());
+            try {
+                sequence = Long.parseLong(data.substring(RELIABLE_PREFIX.length() + 1,
+                                                         baseStart - 1));
+                base = Long.parseLong(data.substring(baseStart, sequenceEnd));
+            } catch (NumberFormatException e) {
+                sequence = -1;
+            }
+        }
+        if (sequence <= 0 || base <= 0 || base > sequence ||
+            (stream != BROADCAST && stream != DIRECT)) {
+            LOG.w(LOG_TAG, "Discarding malformed reliable signal: ", signalInfo.mSignalName);
+            return null;
+        }
+        String srcConnId = signalInfo.mSrcConnId;
+        String ownConnId = signalInfo.mDstConnId;
+        applyAcks(srcConnId, ownConnId, data, sequenceEnd + 1, acksEnd);
+
+        boolean isNew;
+        if (srcConnId == null || srcConnId.equals(ownConnId)) {
+            // Our own broadcast signals come back to us. They're never acknowledged
+            isNew = (stream == BROADCAST ? mSelfBroadcast : mSelfDirect).record(sequence, base);
+        } else {
+            Peer peer = peerFor(srcConnId);
+            isNew = (stream == BROADCAST ? peer.mBroadcast : peer.mDirect).record(sequence, base);
+            // Acknowledge duplicates too: our previous ack may have been lost
+            if (peer.mAckPendingSince == 0) {
+                peer.mAckPendingSince = now;
+            }
+        }
+        if (!isNew) {
+            mDuplicateSignals++;
+            return null;
+        }
+        return Collections.singletonList(
+            new SignalInfo<String>(srcConnId, ownConnId, signalInfo.mSignalName,
+                                   data.substring(acksEnd + 1)));
+    }
+
+    // Must be called with the lock held. Applies the acks in data[start, end) sent by srcConnId
+    private void applyAcks(String srcConnId, String ownConnId, String data, int start, int end) {
+        if (srcConnId == null || ownConnId == null || start >= end) {
+            return;
+        }
+        while (start < end) {
+            int entryEnd = data.indexOf(',', start);
+            if (entryEnd < 0 || entryEnd > end) {
+                entryEnd = end;
+            }
+            int equals = data.indexOf('=', start);
+            if (equals > start && equals < entryEnd - 1 &&
+                data.regionMatches(start, ownConnId, 0, ownConnId.length()) &&
+                equals - start == ownConnId.length()) {
+                applyAck(srcConnId, data.charAt(equals + 1), data.substring(equals + 2, entryEnd));
+            }
+            start = entryEnd + 1;
+        }
+    }
+
+    private void applyAck(String srcConnId, char stream, String ack) {
+        long contiguous;
+        HashSet<Long> selective = new HashSet<>();
+        try {
+            String[] sequences = ack.split("\\+");
+            contiguous = Long.parseLong(sequences[0]);
+            for (int i = 1; i < sequences.length; i++) {
+                selective.add(Long.parseLong(sequences[i]));
+            }
+        } catch (NumberFormatException e) {
+            LOG.w(LOG_TAG, "Discarding malformed ack from: ", srcConnId);
+            return;
+        }
+        Iterator<OutboxEntry> entries = mOutbox.values().iterator();
+        while (entries.hasNext()) {
+            OutboxEntry entry = entries.next();
+            if (entry.mStream != stream || !entry.mPending.contains(srcConnId)) {
+                continue;
+            }
+            if (entry.mSequence <= contiguous || selective.contains(entry.mSequence)) {
+                entry.mPending.remove(srcConnId);
+                if (entry.mPending.isEmpty()) {
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private Peer peerFor(String connectionId) {
+        Peer peer = mPeers.get(connectionId);
+        if (peer == null) {
+            peer = new Peer();
+            mPeers.put(connectionId, peer);
+        }
+        return peer;
+    }
+
+    private static String outboxKey(char stream, String dstConnId, long sequence) {
+        return stream == BROADCAST ? "b" + sequence : "d" + dstConnId + '\0' + sequence;
+    }
+}
@@ -0,0 +1,204 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock free, single producer/single consumer {@link SignalQueue}.
+ * The slots are preallocated at creation time, so inserting and removing elements doesn't
+ * allocate memory nor take any lock. The price for that is that at any given time there must be
+ * only *one* thread writing and *one* thread reading. That's the case for the output queue of a
+ * {@link ThreadedSignalProtocol} (written by the protocol thread, read by the
+ * {@link SignalProcessorThread}), and for the input queue of an input protocol (written by the
+ * OpenTok signal callback). If you use it for an output protocol, make sure signals are sent
+ * from a single thread.
+ * How the waiting threads behave is controlled by the {@link WaitStrategy}.
+ */
+public class RingBufferSignalQueue<E> implements SignalQueue<E> {
+
+    private final Object[] mBuffer;
+    private final int mMask;
+    private final WaitStrategy mWaitStrategy;
+
+    // Next slot to read. Written only by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to write. Written only by the producer
+    private final AtomicLong mTail = new AtomicLong();
+
+    // Last values seen of the other side index, to avoid reading the shared ones on every call
+    private long mProducerCachedHead = 0;
+    private long mConsumerCachedTail = 0;
+
+    // Only used with WaitStrategy.PARK, so the other side can wake up the parked thread
+    private volatile Thread mWaitingConsumer;
+    private volatile Thread mWaitingProducer;
+
+    /**
+     * Creates a new ring buffer.
+     * @param capacity Minimum number of elements the queue can hold. It's rounded up to the next
+     *                 power of two.
+     * @param waitStrategy What to do while waiting for data or for free space.
+     */
+    public RingBufferSignalQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than 0");
+        }
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("WaitStrategy cannot be null");
+        }
+        int realCapacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mBuffer = new Object[realCapacity];
+        mMask = realCapacity - 1;
+        mWaitStrategy = waitStrategy;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return mWaitStrategy;
+    }
+
+    @Override
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long tail = mTail.get();
+        if (tail - mProducerCachedHead >= mBuffer.length) {
+            mProducerCachedHead = mHead.get();
+            if (tail - mProducerCachedHead >= mBuffer.length) {
+                return false;
+            }
+        }
+        mBuffer[(int) tail & mMask] = element;
+        publish(mTail, tail + 1);
+        wakeUp(mWaitingConsumer);
+        return true;
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        if (offer(element)) {
+            return;
+        }
+        boolean parks = mWaitStrategy.parks();
+        if (parks) {
+            mWaitingProducer = Thread.currentThread();
+        }
+        try {
+            int counter = 0;
+            while (!offer(element)) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                mWaitStrategy.idle(counter++, 0);
+            }
+        } finally {
+            if (parks) {
+                mWaitingProducer = null;
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E element = poll();
+        if (element != null) {
+            return element;
+        }
+        boolean parks = mWaitStrategy.parks();
+        if (parks) {
+            mWaitingConsumer = Thread.currentThread();
+        }
+        try {
+            int counter = 0;
+            while ((element = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                mWaitStrategy.idle(counter++, 0);
+            }
+            return element;
+        } finally {
+            if (parks) {
+                mWaitingConsumer = null;
+            }
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null || timeout <= 0) {
+            return element;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean parks = mWaitStrategy.parks();
+        if (parks) {
+            mWaitingConsumer = Thread.currentThread();
+        }
+        try {
+            int counter = 0;
+            while ((element = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    return null;
+                }
+                mWaitStrategy.idle(counter++, deadline);
+            }
+            return element;
+        } finally {
+            if (parks) {
+                mWaitingConsumer = null;
+            }
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of the queue without waiting.
+     * @return The head of the queue, or null if it's empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long head = mHead.get();
+        if (head >= mConsumerCachedTail) {
+            mConsumerCachedTail = mTail.get();
+            if (head >= mConsumerCachedTail) {
+                return null;
+            }
+        }
+        int index = (int) head & mMask;
+        E element = (E) mBuffer[index];
+        mBuffer[index] = null;
+        publish(mHead, head + 1);
+        wakeUp(mWaitingProducer);
+        return element;
+    }
+
+    @Override
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mBuffer.length));
+    }
+
+    private void publish(AtomicLong index, long value) {
+        // When the other side might be parked we need a full barrier between publishing the index
+        // and checking the waiting thread. Otherwise an ordered store is enough
+        if (mWaitStrategy.parks()) {
+            index.set(value);
+        } else {
+            index.lazySet(value);
+        }
+    }
+
+    private void wakeUp(Thread waitingThread) {
+        if (waitingThread != null) {
+            LockSupport.unpark(waitingThread);
+        }
+    }
+}
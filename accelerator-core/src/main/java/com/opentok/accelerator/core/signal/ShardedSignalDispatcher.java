@@ -0,0 +1,159 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.listeners.SignalListener;
+import com.opentok.accelerator.core.utils.TaskRunner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hashes the received signals by their source connection onto a fixed set of serial lanes running
+ * on the shared pool. All the signals sent by a connection are delivered in order (to all the
+ * listeners), while the signals of different connections are spread across the lanes and processed
+ * in parallel.
+ * Usage:
+ *   wrapper.setSignalDispatcher(new ShardedSignalDispatcher(4));
+ */
+public class ShardedSignalDispatcher implements SignalDispatcher {
+
+    private final SignalMailbox[] mLanes;
+    private final AtomicLongArray mDispatchedSignals;
+    private final SignalBackpressure mBackpressure;
+
+    /**
+     * Creates a dispatcher with a lane per available processor.
+     */
+    public ShardedSignalDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param lanes Number of serial lanes. Signals from more connections than lanes share them.
+     */
+    public ShardedSignalDispatcher(int lanes) {
+        this(lanes, (SignalBackpressure) null);
+    }
+
+    /**
+     * @param lanes Number of serial lanes. Signals from more connections than lanes share them.
+     * @param backpressure Capacity of each lane and policies to apply when one is full. Pass null
+     *                     for unbounded lanes.
+     */
+    public ShardedSignalDispatcher(int lanes, SignalBackpressure backpressure) {
+        if (lanes <= 0) {
+            throw new IllegalArgumentException("Invalid number of lanes: " + lanes);
+        }
+        mBackpressure = backpressure;
+        mLanes = new SignalMailbox[lanes];
+        for (int i = 0; i < lanes; i++) {
+            mLanes[i] = new SignalMailbox(backpressure);
+        }
+        mDispatchedSignals = new AtomicLongArray(lanes);
+    }
+
+    /**
+     * Creates a dispatcher whose lanes deliver the signals of higher priority classes first. The
+     * signals of a connection keep their order within each class.
+     *
+     * @param lanes Number of serial lanes. Signals from more connections than lanes share them.
+     * @param priorities Priority of each signal name and how the classes are scheduled.
+     */
+    public ShardedSignalDispatcher(int lanes, SignalPriorities priorities) {
+        if (lanes <= 0) {
+            throw new IllegalArgumentException("Invalid number of lanes: " + lanes);
+        }
+        if (priorities == null) {
+            throw new IllegalArgumentException("The priorities cannot be null");
+        }
+        mBackpressure = null;
+        mLanes = new SignalMailbox[lanes];
+        for (int i = 0; i < lanes; i++) {
+            mLanes[i] = new SignalMailbox(priorities);
+        }
+        mDispatchedSignals = new AtomicLongArray(lanes);
+    }
+
+    /**
+     * @return The backpressure configuration of the lanes (which keeps their drop counters), or
+     *         null if they are unbounded
+     */
+    public SignalBackpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    @Override
+    public void dispatch(TaskRunner pool, SignalListener[] listeners, SignalInfo signalInfo,
+                         boolean isSelfSignal) {
+        int lane = getLane(signalInfo.mSrcConnId);
+        mDispatchedSignals.incrementAndGet(lane);
+        mLanes[lane].post(pool, listeners, signalInfo, isSelfSignal);
+    }
+
+    @Override
+    public void removeListener(SignalListener listener) {
+        // Lanes are shared by all the listeners: they skip it in the signals already queued
+        for (SignalMailbox lane : mLanes) {
+            lane.removeListener(listener);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (SignalMailbox lane : mLanes) {
+            lane.clear();
+        }
+    }
+
+    /**
+     * @param srcConnId Id of a source connection
+     * @return Index of the lane used for the signals of that connection
+     */
+    public int getLane(String srcConnId) {
+        if (srcConnId == null) {
+            return 0;
+        }
+        int hash = srcConnId.hashCode();
+        // Connection ids share long prefixes, spread the hash before reducing it
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % mLanes.length;
+    }
+
+    /**
+     * @return Number of lanes
+     */
+    public int getLaneCount() {
+        return mLanes.length;
+    }
+
+    /**
+     * @return Number of signals waiting on each lane
+     */
+    public int[] getLaneDepths() {
+        int[] depths = new int[mLanes.length];
+        for (int i = 0; i < mLanes.length; i++) {
+            depths[i] = mLanes[i].getDepth();
+        }
+        return depths;
+    }
+
+    /**
+     * @return Maximum number of signals that have been waiting at the same time on each lane
+     */
+    public int[] getLaneMaxDepths() {
+        int[] depths = new int[mLanes.length];
+        for (int i = 0; i < mLanes.length; i++) {
+            depths[i] = mLanes[i].getMaxDepth();
+        }
+        return depths;
+    }
+
+    /**
+     * @return Number of signals dispatched on each lane
+     */
+    public long[] getLaneSignals() {
+        long[] signals = new long[mLanes.length];
+        for (int i = 0; i < mLanes.length; i++) {
+            signals[i] = mDispatchedSignals.get(i);
+        }
+        return signals;
+    }
+}
@@ -0,0 +1,171 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backpressure configuration for the signal queues: the capacity of each queue and the
+ * {@link SignalDropPolicy} to apply, per signal name, when a queue is full.
+ * The same configuration can be shared by several queues (for example, by the queues of a
+ * ThreadedSignalProtocol and the mailboxes of a dispatcher). It also keeps the counters of the
+ * signals discarded or merged by all of them.
+ * Usage:
+ *   SignalBackpressure backpressure = new SignalBackpressure.SignalBackpressureBuilder(256)
+ *       .policy("otAnnotation_pen", SignalDropPolicy.DROP_OLDEST)
+ *       .policy("otAnnotation_color", SignalDropPolicy.COALESCE_LATEST)
+ *       .policy("TextChat", SignalDropPolicy.BLOCK)
+ *       .build();
+ *   wrapper.setSignalDispatcher(new MailboxSignalDispatcher(backpressure));
+ */
+public class SignalBackpressure {
+
+    private static final class Counters {
+        final AtomicLong mDropped = new AtomicLong();
+        final AtomicLong mCoalesced = new AtomicLong();
+        final AtomicLong mRejected = new AtomicLong();
+    }
+
+    private final int mCapacity;
+    private final SignalDropPolicy mDefaultPolicy;
+    private final HashMap<String, SignalDropPolicy> mPolicies;
+    private final Counters mTotals = new Counters();
+    private final ConcurrentHashMap<String, Counters> mCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new SignalBackpressure instance using a builder pattern
+     * @param builder
+     */
+    public SignalBackpressure(SignalBackpressureBuilder builder) {
+        mCapacity = builder.capacity;
+        mDefaultPolicy = builder.defaultPolicy;
+        mPolicies = new HashMap<>(builder.policies);
+    }
+
+    /**
+     * @return Maximum number of signals of each queue
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @param signalName Name of a signal
+     * @return The policy applied to the signal when the queue is full
+     */
+    public SignalDropPolicy getPolicy(String signalName) {
+        SignalDropPolicy policy = signalName != null ? mPolicies.get(signalName) : null;
+        return policy != null ? policy : mDefaultPolicy;
+    }
+
+    /**
+     * @return Number of signals discarded by the DROP_OLDEST policy, on all the queues
+     */
+    public long getDroppedSignals() {
+        return mTotals.mDropped.get();
+    }
+
+    /**
+     * @return Number of signals replaced by a newer one by the COALESCE_LATEST policy, on all the
+     *         queues
+     */
+    public long getCoalescedSignals() {
+        return mTotals.mCoalesced.get();
+    }
+
+    /**
+     * @return Number of signals discarded by the REJECT policy, on all the queues
+     */
+    public long getRejectedSignals() {
+        return mTotals.mRejected.get();
+    }
+
+    /**
+     * @return The discarded and merged signals, per signal name
+     */
+    public Map<String, SignalDropStats> getStats() {
+        HashMap<String, SignalDropStats> stats = new HashMap<>();
+        for (Map.Entry<String, Counters> entry : mCounters.entrySet()) {
+            Counters counters = entry.getValue();
+            stats.put(entry.getKey(), new SignalDropStats(counters.mDropped.get(),
+                                                          counters.mCoalesced.get(),
+                                                          counters.mRejected.get()));
+        }
+        return stats;
+    }
+
+    void onDropped(String signalName) {
+        mTotals.mDropped.incrementAndGet();
+        countersFor(signalName).mDropped.incrementAndGet();
+    }
+
+    void onCoalesced(String signalName) {
+        mTotals.mCoalesced.incrementAndGet();
+        countersFor(signalName).mCoalesced.incrementAndGet();
+    }
+
+    void onRejected(String signalName) {
+        mTotals.mRejected.incrementAndGet();
+        countersFor(signalName).mRejected.incrementAndGet();
+    }
+
+    private Counters countersFor(String signalName) {
+        String key = signalName != null ? signalName : "";
+        Counters counters = mCounters.get(key);
+        if (counters == null) {
+            Counters newCounters = new Counters();
+            counters = mCounters.putIfAbsent(key, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Defines the SignalBackpressure builder
+     */
+    public static class SignalBackpressureBuilder {
+        private int capacity;
+        private SignalDropPolicy defaultPolicy = SignalDropPolicy.DROP_OLDEST;
+        private HashMap<String, SignalDropPolicy> policies = new HashMap<>();
+
+        /**
+         * @param capacity Maximum number of signals of each queue
+         */
+        public SignalBackpressureBuilder(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Invalid capacity: " + capacity);
+            }
+            this.capacity = capacity;
+        }
+
+        /**
+         * Sets the policy for the signals without a specific one. By default, DROP_OLDEST: a full
+         * mailbox of a slow listener shouldn't block the delivery to all the others.
+         */
+        public SignalBackpressureBuilder defaultPolicy(SignalDropPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("The policy cannot be null");
+            }
+            this.defaultPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets the policy for the signals with the given name.
+         */
+        public SignalBackpressureBuilder policy(String signalName, SignalDropPolicy policy) {
+            if (signalName == null || policy == null) {
+                throw new IllegalArgumentException("The signal name and policy cannot be null");
+            }
+            this.policies.put(signalName, policy);
+            return this;
+        }
+
+        public SignalBackpressure build() {
+            return new SignalBackpressure(this);
+        }
+    }
+}
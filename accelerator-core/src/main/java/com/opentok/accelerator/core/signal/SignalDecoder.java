@@ -0,0 +1,22 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * This interface defines the method a class must implement to be registered as a signal decoder
+ * (see OTAcceleratorSession.registerSignalDecoder). Received signals are decoded just once, before
+ * they are dispatched, and the result is shared by all the listeners of the signal through
+ * {@link SignalInfo#getDecodedData()}. As such, the decoded objects should be treated as read only.
+ * Decoders are invoked on the thread that receives the signals, so they must be thread safe.
+ * {@link SignalDecoders} has ready-made decoders for the common JSON payloads.
+ */
+public interface SignalDecoder<DecodedDataType> {
+
+    /**
+     * Decodes the data of a received signal.
+     * @param data Data of the signal, as received from the wire (or from the input protocol)
+     * @return The decoded data
+     * @throws Exception If the data doesn't have the expected format. The signal is still
+     *                   dispatched, but without decoded data.
+     */
+    public DecodedDataType decode(String data) throws Exception;
+
+}
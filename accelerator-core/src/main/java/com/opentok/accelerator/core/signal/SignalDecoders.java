@@ -0,0 +1,46 @@
+package com.opentok.accelerator.core.signal;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Ready-made {@link SignalDecoder}s for JSON payloads. They are stateless, so the same instance can
+ * be registered for several signals (or by several components for the same signal).
+ */
+public final class SignalDecoders {
+
+    /**
+     * Decodes payloads that must be a JSON object
+     */
+    public static final SignalDecoder<JSONObject> JSON_OBJECT = new SignalDecoder<JSONObject>() {
+        @Override
+        public JSONObject decode(String data) throws Exception {
+            return new JSONObject(data);
+        }
+    };
+
+    /**
+     * Decodes payloads that must be a JSON array
+     */
+    public static final SignalDecoder<JSONArray> JSON_ARRAY = new SignalDecoder<JSONArray>() {
+        @Override
+        public JSONArray decode(String data) throws Exception {
+            return new JSONArray(data);
+        }
+    };
+
+    /**
+     * Decodes any JSON value: the result is a JSONObject, a JSONArray, a String, a Number, a Boolean
+     * or JSONObject.NULL
+     */
+    public static final SignalDecoder<Object> JSON_VALUE = new SignalDecoder<Object>() {
+        @Override
+        public Object decode(String data) throws Exception {
+            return new JSONTokener(data).nextValue();
+        }
+    };
+
+    private SignalDecoders() {
+    }
+}
@@ -0,0 +1,42 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.listeners.SignalListener;
+import com.opentok.accelerator.core.utils.TaskRunner;
+
+/**
+ * This interface defines how the received signals are delivered to their listeners once the input
+ * protocol (if any) has processed them. The implementations differ on the ordering they guarantee:
+ *   - {@link PoolSignalDispatcher}: every (signal, listener) pair is an independent task on the
+ *     pool. No ordering at all. This is the default.
+ *   - {@link MailboxSignalDispatcher}: each listener receives its signals in order, and different
+ *     listeners run in parallel.
+ *   - {@link ShardedSignalDispatcher}: the signals of each source connection are delivered in
+ *     order, and different connections run in parallel.
+ */
+public interface SignalDispatcher {
+
+    /**
+     * Delivers a signal to its listeners. It must not block.
+     * @param pool Pool where the listeners should be invoked
+     * @param listeners Listeners of the signal. The array must not be modified.
+     * @param signalInfo The signal to deliver. It may be pooled: the caller releases it once this
+     *                   method returns, so it must be retained for each delivery made after that
+     *                   (see {@link SignalInfo#retain()}).
+     * @param isSelfSignal Whether the signal was sent by the local connection
+     */
+    public void dispatch(TaskRunner pool, SignalListener[] listeners, SignalInfo signalInfo,
+                         boolean isSelfSignal);
+
+    /**
+     * Invoked when a listener is removed from all the signals, so the dispatcher can release
+     * anything it keeps for it. Pending signals for that listener should be discarded.
+     * @param listener The removed listener
+     */
+    public void removeListener(SignalListener listener);
+
+    /**
+     * Discards all the pending signals. Invoked when the session is disconnected.
+     */
+    public void clear();
+
+}
@@ -0,0 +1,28 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * What a bounded signal queue (see {@link BoundedSignalQueue}) does with a signal when it's full.
+ */
+public enum SignalDropPolicy {
+    /**
+     * Make room by discarding the oldest queued signal that also uses this policy. If there's
+     * none, the new signal is discarded. Meant for transient streams, like pen moves.
+     */
+    DROP_OLDEST,
+    /**
+     * A queued signal with the same name, source and destination is replaced by the new one, full
+     * or not, since only the latest value matters. Meant for state updates. When there's nothing to
+     * replace and the queue is full, it makes room by discarding the oldest DROP_OLDEST signal or,
+     * if there's none, the oldest queued state update.
+     */
+    COALESCE_LATEST,
+    /**
+     * Wait until there's free space. Nothing is lost, but the producer slows down: on a mailbox,
+     * the thread that dispatches the signals to every listener.
+     */
+    BLOCK,
+    /**
+     * Discard the new signal, without waiting.
+     */
+    REJECT
+}
@@ -0,0 +1,43 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * Snapshot of the signals a {@link SignalBackpressure} configuration has discarded or merged.
+ */
+public final class SignalDropStats {
+    private final long mDropped;
+    private final long mCoalesced;
+    private final long mRejected;
+
+    SignalDropStats(long dropped, long coalesced, long rejected) {
+        mDropped = dropped;
+        mCoalesced = coalesced;
+        mRejected = rejected;
+    }
+
+    /**
+     * @return Number of signals discarded by the DROP_OLDEST policy (also used by COALESCE_LATEST
+     *         when the queue is full)
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return Number of queued signals replaced by a newer one by the COALESCE_LATEST policy
+     */
+    public long getCoalesced() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return Number of signals discarded by the REJECT policy
+     */
+    public long getRejected() {
+        return mRejected;
+    }
+
+    @Override
+    public String toString() {
+        return "dropped: " + mDropped + ", coalesced: " + mCoalesced + ", rejected: " + mRejected;
+    }
+}
@@ -1,10 +1,32 @@
 package com.opentok.accelerator.core.signal;
 
+import com.opentok.accelerator.core.utils.Callback;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * Information for a Signal. All the attributes are public since this is only needed to be able
  * to group different values into a single return.
+ * Received signals can be obtained from a {@link SignalInfoPool}, and then they're recycled once
+ * their listeners are done with them. The ownership rules of a pooled signal are:
+ *   - The session owns it until it's dispatched. A protocol it's written to takes that ownership:
+ *     it can pass the same object on or drop it, but not keep it once it's passed on.
+ *   - Listeners can only use it while onSignalReceived runs. A listener that needs it after
+ *     returning (for example, to process it on the UI thread) must {@link #retain()} it before
+ *     returning and {@link #release()} it when it's done.
+ *   - Dispatchers that deliver it asynchronously retain it for each delivery.
+ * Retaining and releasing a signal that isn't pooled does nothing, so listeners can do it always.
  */
 public class SignalInfo<DataType> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<SignalInfo> REF_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(SignalInfo.class, "mRefCount");
+
+    /**
+     * Maximum length, in bytes, of the data of a signal sent through OpenTok.
+     */
+    public static final int MAX_OPENTOK_DATA_LENGTH = 8196;
+
     /**
      * Id of the connection where this signal originated.
      */
@@ -31,10 +53,106 @@ public class SignalInfo<DataType> {
      */
     public DataType mData;
 
+    /**
+     * Result of decoding mData with the {@link SignalDecoder} registered for this signal name, if
+     * any. It's set once, before the signal is dispatched, so all the listeners share the same
+     * object. It's null if there's no decoder for the signal, or if the data couldn't be decoded.
+     */
+    public Object mDecodedData;
+
+    /**
+     * Timestamps of the stages this signal has gone through. It's only set on received signals,
+     * while {@link SignalTracer} is enabled.
+     */
+    public SignalTrace mTrace;
+
+    /**
+     * Invoked once the signal (or all the signals an output protocol generates from it, such as
+     * its chunks) is handed to OpenTok. It's only set on the signals of a {@link PersistentSignalOutbox}, which
+     * uses it to know when they are really sent.
+     */
+    public Callback<SignalInfo> mOnSent;
+
+    // Pool this signal returns to, and number of owners it has. Null and 0 if it isn't pooled.
+    SignalInfoPool mPool;
+    private volatile int mRefCount;
+
     public SignalInfo(String srcConnId, String dstConnId, String signalName, DataType data) {
         mSrcConnId = srcConnId;
         mDstConnId = dstConnId;
         mSignalName = signalName;
         mData = data;
     }
-}
\ No newline at end of file
+
+    /**
+     * Typed accessor for {@link #mDecodedData}.
+     *
+     * @return The decoded data, or null if there's none. Assigning it to a variable of a type that
+     *         doesn't match the one returned by the decoder throws a ClassCastException.
+     */
+    @SuppressWarnings("unchecked")
+    public <DecodedDataType> DecodedDataType getDecodedData() {
+        return (DecodedDataType) mDecodedData;
+    }
+
+    /**
+     * Adds an owner to a pooled signal, so it's not recycled until it's released once more.
+     *
+     * @return This signal
+     */
+    public SignalInfo<DataType> retain() {
+        if (mPool != null) {
+            REF_COUNT.incrementAndGet(this);
+        }
+        return this;
+    }
+
+    /**
+     * Removes an owner from a pooled signal. The last owner returns it to its pool, so the signal
+     * must not be used after releasing it.
+     */
+    public void release() {
+        SignalInfoPool pool = mPool;
+        if (pool == null) {
+            return;
+        }
+        int refCount = REF_COUNT.decrementAndGet(this);
+        if (refCount == 0) {
+            pool.recycle(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("Signal released more times than retained");
+        }
+    }
+
+    /**
+     * @return true if this signal was obtained from a {@link SignalInfoPool}
+     */
+    public boolean isPooled() {
+        return mPool != null;
+    }
+
+    // Called by the pool when it hands the signal to its first owner
+    void reuse(SignalInfoPool pool, String srcConnId, String dstConnId, String signalName,
+               DataType data) {
+        mSrcConnId = srcConnId;
+        mDstConnId = dstConnId;
+        mSignalName = signalName;
+        mData = data;
+        mDecodedData = null;
+        mTrace = null;
+        mOnSent = null;
+        mPool = pool;
+        mRefCount = 1;
+    }
+
+    // Called by the pool when the last owner releases the signal
+    void clear() {
+        mSrcConnId = null;
+        mDstConnId = null;
+        mSignalName = null;
+        mData = null;
+        mDecodedData = null;
+        mTrace = null;
+        mOnSent = null;
+    }
+}
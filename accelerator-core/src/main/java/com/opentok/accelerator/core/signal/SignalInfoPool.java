@@ -0,0 +1,96 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * Bounded pool of the {@link SignalInfo} envelopes of the received signals, so a session that
+ * receives a steady stream of signals doesn't allocate one for each of them. See
+ * {@link SignalInfo} for the ownership rules of the pooled signals.
+ * Signals that are never released (for example, the ones a protocol drops or replaces) aren't a
+ * leak: they're just garbage collected, and the pool creates new ones when it runs out.
+ * It's thread safe.
+ */
+public final class SignalInfoPool {
+    /**
+     * Default number of signals kept by the pool.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final SignalInfo<String>[] mFree;
+    private int mSize = 0;
+    private long mObtained = 0;
+    private long mCreated = 0;
+
+    public SignalInfoPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum number of released signals kept for reuse
+     */
+    @SuppressWarnings("unchecked")
+    public SignalInfoPool(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mFree = new SignalInfo[capacity];
+    }
+
+    /**
+     * Gets a signal from the pool, or creates one if the pool is empty. The caller is its only
+     * owner, and must release it (or hand it to someone who does).
+     */
+    public SignalInfo<String> obtain(String srcConnId, String dstConnId, String signalName,
+                                     String data) {
+        SignalInfo<String> signalInfo = null;
+        synchronized (this) {
+            mObtained++;
+            if (mSize > 0) {
+                signalInfo = mFree[--mSize];
+                mFree[mSize] = null;
+            } else {
+                mCreated++;
+            }
+        }
+        if (signalInfo == null) {
+            signalInfo = new SignalInfo<String>(null, null, null, null);
+        }
+        signalInfo.reuse(this, srcConnId, dstConnId, signalName, data);
+        return signalInfo;
+    }
+
+    /**
+     * @return Number of released signals waiting to be reused
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return Number of signals obtained from the pool
+     */
+    public synchronized long getObtained() {
+        return mObtained;
+    }
+
+    /**
+     * @return Number of signals the pool had to create because it was empty. In the steady state
+     *         it stops growing.
+     */
+    public synchronized long getCreated() {
+        return mCreated;
+    }
+
+    @SuppressWarnings("unchecked")
+    void recycle(SignalInfo<?> signalInfo) {
+        signalInfo.clear();
+        synchronized (this) {
+            if (mSize < mFree.length) {
+                mFree[mSize++] = (SignalInfo<String>) signalInfo;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "obtained: " + mObtained + ", created: " + mCreated + ", free: " + mSize;
+    }
+}
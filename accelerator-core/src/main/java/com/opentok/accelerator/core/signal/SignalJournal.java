@@ -0,0 +1,281 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the signals of a {@link PersistentSignalOutbox}. Each record is
+ *   <body length><CRC32 of the body><body>
+ * where the body is an APPENDED record (id, signal name, source, destination, data) or a SENT
+ * record (id), which marks the signal with that id, and all the previous ones, as sent.
+ * A record torn by a crash is detected by its length or CRC and truncated on recovery. The file is
+ * read through a read only memory map when it's recovered, and written through its FileChannel.
+ * Once the journal is mostly made of sent signals, it's compacted: the pending signals are written
+ * to a new file that atomically replaces it. That keeps the file (and so the recovery time)
+ * proportional to the pending signals, not to all the signals ever sent.
+ * It's not thread safe: it's only used from the outbox thread.
+ */
+final class SignalJournal {
+    private static final String LOG_TAG = SignalJournal.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte APPENDED = 'A';
+    private static final byte SENT = 'S';
+    private static final int HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 4 * SignalInfo.MAX_OPENTOK_DATA_LENGTH;
+    // Don't compact small journals, and compact when less than 1/COMPACT_RATIO of them is pending
+    private static final long MIN_COMPACT_LENGTH = 64 * 1024;
+    private static final int COMPACT_RATIO = 4;
+
+    static final class Entry {
+        final long mId;
+        final SignalInfo<String> mSignalInfo;
+        final int mRecordLength;
+
+        Entry(long id, SignalInfo<String> signalInfo, int recordLength) {
+            mId = id;
+            mSignalInfo = signalInfo;
+            mRecordLength = recordLength;
+        }
+    }
+
+    private final File mFile;
+    private final CRC32 mCrc = new CRC32();
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private long mLength;
+    private long mNextId = 1;
+    private ByteBuffer mBuffer = ByteBuffer.allocate(1024);
+
+    SignalJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Opens the journal, creating it if needed.
+     *
+     * @return The signals appended and not marked as sent, in order
+     */
+    ArrayList<Entry> recover() throws IOException {
+        open();
+        LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+        long validLength = 0;
+        if (mLength > 0) {
+            MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+            while (map.remaining() >= HEADER_LENGTH) {
+                int start = map.position();
+                int length = map.getInt();
+                int crc = map.getInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH || length > map.remaining()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                map.get(body);
+                mCrc.reset();
+                mCrc.update(body, 0, length);
+                if ((int) mCrc.getValue() != crc) {
+                    break;
+                }
+                try {
+                    readRecord(ByteBuffer.wrap(body), HEADER_LENGTH + length, pending);
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    break;
+                }
+                validLength = start + HEADER_LENGTH + length;
+            }
+        }
+        if (validLength < mLength) {
+            LOG.w(LOG_TAG, "Truncating torn journal tail: ", mLength - validLength, " bytes");
+            mChannel.truncate(validLength);
+            mLength = validLength;
+        }
+        mChannel.position(mLength);
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Appends a signal to the journal, and waits until it's on the storage.
+     *
+     * @return The entry of the signal
+     */
+    Entry append(SignalInfo<String> signalInfo) throws IOException {
+        long id = mNextId++;
+        byte[] name = bytes(signalInfo.mSignalName);
+        byte[] src = bytes(signalInfo.mSrcConnId);
+        byte[] dst = bytes(signalInfo.mDstConnId);
+        byte[] data = bytes(signalInfo.mData);
+        int bodyLength = 1 + 8 + 4 * 4 + length(name) + length(src) + length(dst) + length(data);
+        if (bodyLength > MAX_RECORD_LENGTH) {
+            throw new IOException("Signal too big to be journaled: " + signalInfo.mSignalName);
+        }
+        ByteBuffer body = buffer(HEADER_LENGTH + bodyLength);
+        body.position(HEADER_LENGTH);
+        body.put(APPENDED).putLong(id);
+        putBytes(body, name);
+        putBytes(body, src);
+        putBytes(body, dst);
+        putBytes(body, data);
+        write(body, bodyLength);
+        return new Entry(id, signalInfo, HEADER_LENGTH + bodyLength);
+    }
+
+    /**
+     * Marks a signal, and all the ones appended before it, as sent.
+     */
+    void markSent(Entry entry) throws IOException {
+        int bodyLength = 1 + 8;
+        ByteBuffer body = buffer(HEADER_LENGTH + bodyLength);
+        body.position(HEADER_LENGTH);
+        body.put(SENT).putLong(entry.mId);
+        write(body, bodyLength);
+    }
+
+    /**
+     * Rewrites the journal with only the given pending entries, if most of it are sent signals.
+     */
+    void maybeCompact(Collection<Entry> pending) throws IOException {
+        if (mLength < MIN_COMPACT_LENGTH) {
+            return;
+        }
+        long pendingLength = 0;
+        for (Entry entry : pending) {
+            pendingLength += entry.mRecordLength;
+        }
+        if (pendingLength * COMPACT_RATIO > mLength) {
+            return;
+        }
+        LOG.d(LOG_TAG, "Compacting journal: ", mLength, " bytes, ", pending.size(), " pending");
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        SignalJournal compacted = new SignalJournal(tmpFile);
+        compacted.open();
+        compacted.mChannel.truncate(0);
+        compacted.mLength = 0;
+        compacted.mNextId = mNextId;
+        try {
+            for (Entry entry : pending) {
+                if (entry.mId == 0) {
+                    // Not journaled
+                    continue;
+                }
+                compacted.mNextId = entry.mId;
+                compacted.append(entry.mSignalInfo);
+            }
+        } finally {
+            compacted.close();
+        }
+        close();
+        boolean replaced = tmpFile.renameTo(mFile);
+        open();
+        mChannel.position(mLength);
+        if (!replaced) {
+            throw new IOException("Cannot replace the journal with the compacted one");
+        }
+    }
+
+    void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mChannel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mLength = mChannel.size();
+    }
+
+    private void readRecord(ByteBuffer body, int recordLength, LinkedHashMap<Long, Entry> pending) {
+        byte type = body.get();
+        long id = body.getLong();
+        if (type == APPENDED) {
+            String name = getString(body);
+            String src = getString(body);
+            String dst = getString(body);
+            String data = getString(body);
+            pending.put(id, new Entry(id, new SignalInfo<String>(src, dst, name, data), recordLength));
+        } else if (type == SENT) {
+            // Signals are sent in order, so everything up to id has been sent
+            while (!pending.isEmpty()) {
+                Long first = pending.keySet().iterator().next();
+                if (first > id) {
+                    break;
+                }
+                pending.remove(first);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown record type: " + type);
+        }
+        mNextId = Math.max(mNextId, id + 1);
+    }
+
+    private void write(ByteBuffer record, int bodyLength) throws IOException {
+        mCrc.reset();
+        mCrc.update(record.array(), HEADER_LENGTH, bodyLength);
+        record.putInt(0, bodyLength);
+        record.putInt(4, (int) mCrc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            mChannel.write(record);
+        }
+        // Only the data has to be on the storage, not the file metadata
+        mChannel.force(false);
+        mLength += HEADER_LENGTH + bodyLength;
+    }
+
+    private ByteBuffer buffer(int length) {
+        if (mBuffer.capacity() < length) {
+            mBuffer = ByteBuffer.allocate(Math.max(length, mBuffer.capacity() * 2));
+        }
+        mBuffer.clear();
+        mBuffer.limit(length);
+        return mBuffer;
+    }
+
+    private static byte[] bytes(String string) {
+        return string != null ? string.getBytes(UTF_8) : null;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes != null ? bytes.length : 0;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        String string = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+}
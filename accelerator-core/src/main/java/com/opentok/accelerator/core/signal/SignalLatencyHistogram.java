@@ -0,0 +1,138 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, in nanoseconds, with log-linear buckets like HdrHistogram:
+ * each power of two is split in SUB_BUCKETS linear buckets, so the values reported are within
+ * 1/SUB_BUCKETS (about 6%) of the recorded ones, from 1 nanosecond to about 18 minutes, with a
+ * fixed, small memory footprint. Recording is a couple of atomic increments, so it can be called
+ * from any thread without blocking.
+ * The values read while other threads record are not an atomic snapshot, but each of them is
+ * consistent on its own.
+ */
+public final class SignalLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    SignalLatencyHistogram() {
+    }
+
+    /**
+     * Records a latency. Negative values are ignored, and values over the range are recorded as
+     * the maximum of the range.
+     *
+     * @param nanos Latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long value = Math.min(nanos, MAX_VALUE);
+        mBuckets.incrementAndGet(bucketIndex(value));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * @return Number of latencies recorded
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return Highest latency recorded, in nanoseconds
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return Mean latency, in nanoseconds
+     */
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotal.get() / count;
+    }
+
+    /**
+     * @param percentile Percentile, from 0 to 100
+     * @return Latency, in nanoseconds, under which that percentage of the recorded ones are
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(bucketMiddle(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Forgets all the recorded latencies. Latencies recorded at the same time may be partially
+     * kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * @return The summary of the histogram, with the values in microseconds:
+     *         count p50 p90 p99 max
+     */
+    @Override
+    public String toString() {
+        return getCount() + " " + getValueAtPercentile(50) / 1000 + " " +
+            getValueAtPercentile(90) / 1000 + " " + getValueAtPercentile(99) / 1000 + " " +
+            getMax() / 1000;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketMiddle(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,239 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.listeners.SignalListener;
+import com.opentok.accelerator.core.utils.LogWrapper;
+import com.opentok.accelerator.core.utils.TaskRunner;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serial queue of signal deliveries that runs on a shared pool: at most one pool thread drains it
+ * at any time, so its deliveries are made in the order they were posted. Used by the dispatchers
+ * that guarantee some ordering.
+ * To be fair with the other mailboxes, a pool thread delivers at most MAX_BATCH signals before
+ * giving the pool back.
+ * Mailboxes are unbounded unless they are created with a {@link SignalBackpressure}
+ * configuration. In that case, posting a BLOCK signal to a full mailbox blocks the thread that
+ * dispatches the signals. Mailboxes created with {@link SignalPriorities} deliver the signals of
+ * higher classes first.
+ * The mailbox retains each signal until it's delivered. The ones a bounded mailbox discards stay
+ * retained, so pooled signals aren't recycled but garbage collected.
+ */
+class SignalMailbox implements Runnable {
+    private static final String LOG_TAG = SignalMailbox.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    private static final int MAX_BATCH = 32;
+
+    private static final int MAX_FREE_DELIVERIES = 64;
+
+    // Deliveries are reused, so posting doesn't allocate one for each signal
+    private static final class Delivery {
+        SignalListener[] mListeners;
+        SignalInfo mSignalInfo;
+        boolean mIsSelfSignal;
+        long mSequence;
+    }
+
+    private final Delivery[] mFreeDeliveries = new Delivery[MAX_FREE_DELIVERIES];
+    private int mFreeCount = 0;
+
+    private final SignalQueue<Delivery> mQueue;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    // Whether a pool thread is draining the mailbox. It keeps the deliveries serial when clear()
+    // resets mScheduled while a run is in flight.
+    private final AtomicBoolean mRunning = new AtomicBoolean();
+    private volatile TaskRunner mPool;
+    private volatile int mMaxDepth = 0;
+    private final AtomicLong mPosted = new AtomicLong();
+    // Listeners removed while the mailbox had pending deliveries, with the number of deliveries
+    // posted at that time. Those deliveries skip them. Dropped once the mailbox is drained.
+    private final ConcurrentHashMap<SignalListener, Long> mRemovedListeners =
+        new ConcurrentHashMap<>();
+
+    SignalMailbox(SignalPriorities priorities) {
+        mQueue = new PrioritySignalQueue<Delivery>(priorities) {
+            @Override
+            protected SignalInfo<?> getSignalInfo(Delivery delivery) {
+                return delivery.mSignalInfo;
+            }
+        };
+    }
+
+    SignalMailbox(SignalBackpressure backpressure) {
+        if (backpressure == null) {
+            mQueue = new LinkedSignalQueue<>();
+        } else {
+            mQueue = new BoundedSignalQueue<Delivery>(backpressure) {
+                @Override
+                protected SignalInfo<?> getSignalInfo(Delivery delivery) {
+                    return delivery.mSignalInfo;
+                }
+            };
+        }
+    }
+
+    /**
+     * Queues a signal to be delivered, in order, to the given listeners. The mailbox retains the
+     * signal until it's delivered or discarded.
+     */
+    void post(TaskRunner pool, SignalListener[] listeners, SignalInfo signalInfo,
+              boolean isSelfSignal) {
+        mPool = pool;
+        Delivery delivery = obtain();
+        delivery.mListeners = listeners;
+        delivery.mSignalInfo = signalInfo.retain();
+        delivery.mIsSelfSignal = isSelfSignal;
+        delivery.mSequence = mPosted.incrementAndGet();
+        try {
+            mQueue.put(delivery);
+        } catch (InterruptedException e) {
+            LOG.w(LOG_TAG, "Interrupted while waiting to post signal: ", signalInfo.mSignalName);
+            recycle(delivery);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int depth = mQueue.size();
+        if (depth > mMaxDepth) {
+            // Racy, but it's only a statistic
+            mMaxDepth = depth;
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            pool.runAsync(this);
+        }
+    }
+
+    /**
+     * @return Number of signals waiting to be delivered
+     */
+    int getDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return Maximum number of signals that have been waiting at the same time
+     */
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Stops delivering the pending signals to a listener, for mailboxes shared by several
+     * listeners. The signals posted afterwards are delivered to it if it's among their listeners.
+     */
+    void removeListener(SignalListener listener) {
+        if (mQueue.size() > 0 || mRunning.get()) {
+            mRemovedListeners.put(listener, mPosted.get());
+        }
+    }
+
+    /**
+     * Discards the pending deliveries. The pool may also discard the scheduled run of the mailbox
+     * (a disconnected session clears its lane or finishes its pool), so the mailbox is ready to
+     * be scheduled again by the next post.
+     */
+    void clear() {
+        Delivery delivery;
+        while ((delivery = poll()) != null) {
+            recycle(delivery);
+        }
+        mRemovedListeners.clear();
+        mScheduled.set(false);
+    }
+
+    @Override
+    public void run() {
+        if (!mRunning.compareAndSet(false, true)) {
+            // Scheduled again after a clear while the previous run was still delivering. That run
+            // checks the queue before finishing
+            return;
+        }
+        for (int i = 0; i < MAX_BATCH; i++) {
+            long posted = mPosted.get();
+            Delivery delivery = poll();
+            if (delivery == null) {
+                pruneRemovedListeners(posted);
+                break;
+            }
+            for (SignalListener listener : delivery.mListeners) {
+                if (isRemoved(listener, delivery)) {
+                    continue;
+                }
+                try {
+                    SignalTracer.deliver(listener, delivery.mSignalInfo, delivery.mIsSelfSignal);
+                } catch (RuntimeException e) {
+                    // Don't let a failing listener stall the signals queued after this one
+                    LOG.e(LOG_TAG, "Listener failed processing: ",
+                          delivery.mSignalInfo.mSignalName, ". ", e);
+                }
+            }
+            recycle(delivery);
+        }
+        mRunning.set(false);
+        mScheduled.set(false);
+        // Signals posted after the last poll, or more than a batch: schedule again
+        if (mQueue.size() > 0 && mScheduled.compareAndSet(false, true)) {
+            mPool.runAsync(this);
+        }
+    }
+
+    private boolean isRemoved(SignalListener listener, Delivery delivery) {
+        if (mRemovedListeners.isEmpty()) {
+            return false;
+        }
+        Long removedAt = mRemovedListeners.get(listener);
+        return removedAt != null && delivery.mSequence <= removedAt;
+    }
+
+    // The mailbox was empty after 'posted' deliveries: none of them can skip a listener anymore
+    private void pruneRemovedListeners(long posted) {
+        if (mRemovedListeners.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<SignalListener, Long>> it = mRemovedListeners.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() <= posted) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized Delivery obtain() {
+        if (mFreeCount == 0) {
+            return new Delivery();
+        }
+        Delivery delivery = mFreeDeliveries[--mFreeCount];
+        mFreeDeliveries[mFreeCount] = null;
+        return delivery;
+    }
+
+    // Releases the signal of a delivered or discarded delivery, and keeps the delivery for reuse
+    private void recycle(Delivery delivery) {
+        SignalInfo signalInfo = delivery.mSignalInfo;
+        delivery.mListeners = null;
+        delivery.mSignalInfo = null;
+        synchronized (this) {
+            if (mFreeCount < MAX_FREE_DELIVERIES) {
+                mFreeDeliveries[mFreeCount++] = delivery;
+            }
+        }
+        signalInfo.release();
+    }
+
+    private Delivery poll() {
+        try {
+            return mQueue.poll(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
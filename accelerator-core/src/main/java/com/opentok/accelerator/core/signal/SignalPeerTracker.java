@@ -0,0 +1,24 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * Component that keeps per connection state about the other peers of the session, like
+ * {@link ReliableSignalChannel} and {@link BinarySignalChannel}. OTWrapper notifies it about the
+ * connections that join and leave the session.
+ */
+public interface SignalPeerTracker {
+    /**
+     * Called when another connection joins the session, or is already on it when the tracker is
+     * set.
+     */
+    void addPeer(String connectionId);
+
+    /**
+     * Called when another connection leaves the session.
+     */
+    void removePeer(String connectionId);
+
+    /**
+     * Called when the session is disconnected, to forget all the connections of that session.
+     */
+    void clearPeers();
+}
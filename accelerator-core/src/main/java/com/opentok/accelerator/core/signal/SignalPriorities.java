@@ -0,0 +1,143 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns a {@link SignalPriority} to each signal name, and defines how the queues that use it
+ * (see {@link PrioritySignalQueue}) schedule the classes:
+ *   - Strict: a signal is only taken when there are no signals of a higher class waiting.
+ *   - Weighted: the classes are served in turns, taking up to weight signals from each class in
+ *     its turn, so the lower classes are never starved.
+ * Names can be exact ("TextChat") or prefixes ending with '*' ("otAnnotation_*"). Exact names win
+ * over prefixes, and longer prefixes over shorter ones.
+ * Usage:
+ *   SignalPriorities priorities = new SignalPriorities.SignalPrioritiesBuilder()
+ *       .priority("otAnnotation_*", SignalPriority.BULK)
+ *       .priority("otAnnotation_undo", SignalPriority.CONTROL)
+ *       .priority("otAnnotation_clear", SignalPriority.CONTROL)
+ *       .priority("TextChat", SignalPriority.CONTROL)
+ *       .weighted(8, 4, 1)
+ *       .build();
+ *   wrapper.setSignalPriorities(priorities);
+ */
+public class SignalPriorities {
+
+    private final HashMap<String, SignalPriority> mNames;
+    // Longest first
+    private final ArrayList<Map.Entry<String, SignalPriority>> mPrefixes;
+    private final int[] mWeights;
+
+    /**
+     * Creates a new SignalPriorities instance using a builder pattern
+     * @param builder
+     */
+    public SignalPriorities(SignalPrioritiesBuilder builder) {
+        mNames = new HashMap<>();
+        mPrefixes = new ArrayList<>();
+        for (Map.Entry<String, SignalPriority> entry : builder.priorities.entrySet()) {
+            String name = entry.getKey();
+            if (name.endsWith("*")) {
+                mPrefixes.add(new AbstractMap.SimpleImmutableEntry<>(
+                    name.substring(0, name.length() - 1), entry.getValue()));
+            } else {
+                mNames.put(name, entry.getValue());
+            }
+        }
+        Collections.sort(mPrefixes, new Comparator<Map.Entry<String, SignalPriority>>() {
+            @Override
+            public int compare(Map.Entry<String, SignalPriority> a,
+                               Map.Entry<String, SignalPriority> b) {
+                return b.getKey().length() - a.getKey().length();
+            }
+        });
+        mWeights = builder.weights;
+    }
+
+    /**
+     * @param signalName Name of a signal
+     * @return The priority class of the signal
+     */
+    public SignalPriority getPriority(String signalName) {
+        if (signalName == null) {
+            return SignalPriority.DEFAULT;
+        }
+        SignalPriority priority = mNames.get(signalName);
+        if (priority != null) {
+            return priority;
+        }
+        for (Map.Entry<String, SignalPriority> prefix : mPrefixes) {
+            if (signalName.startsWith(prefix.getKey())) {
+                return prefix.getValue();
+            }
+        }
+        return SignalPriority.DEFAULT;
+    }
+
+    /**
+     * @return true if the classes are scheduled strictly by priority
+     */
+    public boolean isStrict() {
+        return mWeights == null;
+    }
+
+    /**
+     * @param priority A priority class
+     * @return How many signals of the class are taken in each turn, when scheduling is weighted
+     */
+    public int getWeight(SignalPriority priority) {
+        return mWeights != null ? mWeights[priority.ordinal()] : 0;
+    }
+
+    /**
+     * Defines the SignalPriorities builder
+     */
+    public static class SignalPrioritiesBuilder {
+        private HashMap<String, SignalPriority> priorities = new HashMap<>();
+        private int[] weights = null;
+
+        public SignalPrioritiesBuilder() { }
+
+        /**
+         * Sets the priority of the signals with the given name, or prefix if it ends with '*'.
+         */
+        public SignalPrioritiesBuilder priority(String signalName, SignalPriority priority) {
+            if (signalName == null || priority == null) {
+                throw new IllegalArgumentException("The signal name and priority cannot be null");
+            }
+            this.priorities.put(signalName, priority);
+            return this;
+        }
+
+        /**
+         * Schedules the classes strictly by priority. This is the default.
+         */
+        public SignalPrioritiesBuilder strict() {
+            this.weights = null;
+            return this;
+        }
+
+        /**
+         * Schedules the classes in turns.
+         *
+         * @param control Signals taken from the CONTROL class in each turn
+         * @param normal Signals taken from the DEFAULT class in each turn
+         * @param bulk Signals taken from the BULK class in each turn
+         */
+        public SignalPrioritiesBuilder weighted(int control, int normal, int bulk) {
+            if (control <= 0 || normal <= 0 || bulk <= 0) {
+                throw new IllegalArgumentException("Weights must be greater than 0");
+            }
+            this.weights = new int[] {control, normal, bulk};
+            return this;
+        }
+
+        public SignalPriorities build() {
+            return new SignalPriorities(this);
+        }
+    }
+}
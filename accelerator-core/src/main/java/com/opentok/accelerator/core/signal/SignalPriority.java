@@ -0,0 +1,19 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * Priority classes for the signals, from the highest to the lowest. See {@link SignalPriorities}.
+ */
+public enum SignalPriority {
+    /**
+     * Commands that should never wait behind other traffic: undo, clear, chat messages...
+     */
+    CONTROL,
+    /**
+     * Signals without a specific priority
+     */
+    DEFAULT,
+    /**
+     * High volume traffic that can wait: annotation points, file transfers...
+     */
+    BULK
+}
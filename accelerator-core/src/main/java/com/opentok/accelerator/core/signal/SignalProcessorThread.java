@@ -3,11 +3,30 @@ package com.opentok.accelerator.core.signal;
 import com.opentok.accelerator.core.GlobalLogLevel;
 import com.opentok.accelerator.core.utils.Callback;
 import com.opentok.accelerator.core.utils.LogWrapper;
+import com.opentok.accelerator.core.utils.TaskRunner;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class implements a thread that reads from a input signal pipe and invokes a Callback
  * function (on the same thread) for each processed signal.
- *
+ * The pipe can be replaced while signals are flowing. {@link #switchPipe(SignalProtocol)} closes
+ * the old pipe, and the signals it hasn't delivered yet are lost. {@link #switchPipe(SignalProtocol,
+ * boolean)} can drain it instead (if it's a {@link DrainableSignalProtocol}): the thread keeps
+ * reading the old pipe until it has delivered all the signals it had accepted, and then goes on
+ * with the new one, so the order is kept. The signals written to the new pipe meanwhile wait on
+ * it. The time each drain takes, and the signals delivered while draining, are recorded on the
+ * {@link SignalSwapStats} of the thread.
+ * Created with a {@link TaskRunner} (usually a serial lane of a {@link SignalRuntime}), it doesn't
+ * start its thread while its pipes are {@link NonBlockingSignalProtocol}s: it reads them from a
+ * task submitted to the runner each time they have signals, and gives the runner back after
+ * MAX_BATCH signals. If a pipe that can only be read blocking is set, the thread is started and
+ * reads all the pipes from then on.
+ * With {@link #setSignalPriorities(SignalPriorities)}, the signals a non blocking pipe has ready
+ * (up to MAX_BACKLOG) are moved to a backlog and delivered following their priority classes, so
+ * control and chat signals overtake the bulk ones the callback hasn't taken yet.
  */
 public class SignalProcessorThread<OutputDataType, InputDataType> extends Thread {
     private static final String LOG_TAG = SignalProcessorThread.class.getSimpleName();
@@ -19,33 +38,126 @@ public class SignalProcessorThread<OutputDataType, InputDataType> extends Thread
         LOG.setLogLevel(logLevel);
     }
 
-    private SignalProtocol<OutputDataType, InputDataType> mProcessedProtocol;
-    private boolean mChangingPipe = false;
-    private Callback<SignalInfo<OutputDataType>> mCallback;
+    private static final int MAX_BATCH = 32;
+    private static final int MAX_BACKLOG = 256;
+
+    // A pipe to read, and its drain state
+    private static final class Pipe<OutputDataType, InputDataType> {
+        final SignalProtocol<OutputDataType, InputDataType> mProtocol;
+        // When it was replaced, or 0 if it's the current pipe
+        volatile long mDrainStart = 0;
+        // Only accessed by the thread
+        int mDrainedSignals = 0;
+        // Signals read but not delivered yet, when there are priorities. Only accessed by the
+        // thread
+        PrioritySignalQueue<SignalInfo<OutputDataType>> mBacklog;
+
+        Pipe(SignalProtocol<OutputDataType, InputDataType> protocol) {
+            mProtocol = protocol;
+        }
+    }
+
+    // The pipes being drained, oldest first, and the current one (the last). Guarded by this.
+    private final ArrayDeque<Pipe<OutputDataType, InputDataType>> mPipes = new ArrayDeque<>();
+    private boolean mFinished = false;
+    private final Callback<SignalInfo<OutputDataType>> mCallback;
+    private final SignalSwapStats mSwapStats;
+    private final TaskRunner mRunner;
+    // Wake ups since the last time the pump found nothing to read. The pump is scheduled when it
+    // goes from 0 to 1, so there's at most one pump at any time.
+    private final AtomicInteger mWakeUps = new AtomicInteger();
+    // Guarded by this
+    private boolean mThreaded;
+    private boolean mPumping = false;
+    private volatile SignalPriorities mPriorities;
+
+    private final Runnable mWakeUp = new Runnable() {
+        @Override
+        public void run() {
+            if (mWakeUps.getAndIncrement() == 0) {
+                mRunner.runAsync(mPump);
+            }
+        }
+    };
+
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
 
     public SignalProcessorThread(SignalProtocol protocol, Callback<SignalInfo<OutputDataType>> cb) {
-        mProcessedProtocol = protocol;
+        this(protocol, cb, new SignalSwapStats());
+    }
+
+    /**
+     * @param protocol The pipe to read. The thread is only started if it's not null.
+     * @param cb Callback invoked with each processed signal
+     * @param swapStats Where the drained swaps are recorded. It can be shared by the successive
+     *                  threads that process the same direction.
+     */
+    public SignalProcessorThread(SignalProtocol protocol, Callback<SignalInfo<OutputDataType>> cb,
+                                 SignalSwapStats swapStats) {
+        this(protocol, cb, swapStats, null);
+    }
+
+    /**
+     * @param protocol The pipe to read. Nothing is started if it's null.
+     * @param cb Callback invoked with each processed signal
+     * @param swapStats Where the drained swaps are recorded. It can be null.
+     * @param runner Where the non blocking pipes are read. It must not run the tasks on the
+     *               thread that submits them. Pass null to read all the pipes on this thread.
+     */
+    public SignalProcessorThread(SignalProtocol protocol, Callback<SignalInfo<OutputDataType>> cb,
+                                 SignalSwapStats swapStats, TaskRunner runner) {
         mCallback = cb;
-        if (mProcessedProtocol != null) {
-            this.start();
+        mSwapStats = swapStats != null ? swapStats : new SignalSwapStats();
+        mRunner = runner;
+        mThreaded = runner == null;
+        if (protocol != null) {
+            synchronized (this) {
+                addPipe(protocol);
+            }
         }
     }
 
+    /**
+     * @return The drained swaps made by this thread
+     */
+    public SignalSwapStats getSwapStats() {
+        return mSwapStats;
+    }
+
+    /**
+     * Sets the priority classes of the processed signals. Signals of the same class keep their
+     * order. Only the signals of {@link NonBlockingSignalProtocol}s can be reordered.
+     *
+     * @param priorities Priority of each signal name and how the classes are scheduled. Pass null
+     *                   to deliver the signals in the order they're read.
+     */
+    public void setSignalPriorities(SignalPriorities priorities) {
+        mPriorities = priorities;
+    }
+
     @Override
     public void run() {
-        SignalInfo<OutputDataType> signal;
-        final SignalInfo<OutputDataType> FAKE_SIGNAL = new SignalInfo<OutputDataType>("", "", "", null);
-        do {
-            signal = mProcessedProtocol.read();
+        while (true) {
+            Pipe<OutputDataType, InputDataType> pipe;
+            synchronized (this) {
+                pipe = mPipes.peekFirst();
+                if (pipe == null) {
+                    mFinished = true;
+                    return;
+                }
+            }
+            SignalInfo<OutputDataType> signal = next(pipe, true);
             if (signal != null) {
-                LOG.d(LOG_TAG, "(", mProcessedProtocol.getClass().getSimpleName(),
-                      "): got a processed signal: ", signal.mSignalName);
-                mCallback.run(signal);
-            } else if (mChangingPipe) {
-                mChangingPipe = false;
-                signal = FAKE_SIGNAL;
+                deliver(pipe, signal);
+            } else {
+                onPipeFinished(pipe);
             }
-        } while ((mProcessedProtocol != null) && (signal != null));
+        }
     }
 
     /**
@@ -54,14 +166,213 @@ public class SignalProcessorThread<OutputDataType, InputDataType> extends Thread
      * @param newProtocol The new input queue
      * @return Usually, this, to allow chaining.
      */
-    public synchronized SignalProcessorThread<OutputDataType, InputDataType> switchPipe(
+    public SignalProcessorThread<OutputDataType, InputDataType> switchPipe(
             SignalProtocol<OutputDataType, InputDataType> newProtocol) {
-        mChangingPipe = true;
-        SignalProtocol<OutputDataType, InputDataType> aux = mProcessedProtocol;
-        mProcessedProtocol = newProtocol;
-        if (aux != null) {
-            aux.close();
+        return switchPipe(newProtocol, false);
+    }
+
+    /**
+     * Replaces the pipe this thread reads.
+     *
+     * @param newProtocol The new input queue. Pass null to stop the thread once the old pipe is
+     *                    closed or drained.
+     * @param drain If true, and the current pipe is a {@link DrainableSignalProtocol}, it's drained
+     *              before reading the new one. Otherwise, it's closed (as well as the pipes that
+     *              are still draining).
+     * @return The thread that reads the new pipe: usually this, or a new one if this thread had
+     *         finished. Null if newProtocol is null.
+     */
+    public synchronized SignalProcessorThread<OutputDataType, InputDataType> switchPipe(
+            SignalProtocol<OutputDataType, InputDataType> newProtocol, boolean drain) {
+        if (drain) {
+            Pipe<OutputDataType, InputDataType> current = mPipes.peekLast();
+            if (current != null && current.mDrainStart == 0) {
+                if (current.mProtocol instanceof DrainableSignalProtocol) {
+                    current.mDrainStart = System.nanoTime();
+                    ((DrainableSignalProtocol) current.mProtocol).drain();
+                } else {
+                    LOG.w(LOG_TAG, "Closing a pipe that can't be drained: ",
+                          current.mProtocol.getClass().getSimpleName());
+                    current.mProtocol.close();
+                }
+            }
+        } else {
+            for (Pipe<OutputDataType, InputDataType> pipe : mPipes) {
+                if (pipe.mProtocol instanceof NonBlockingSignalProtocol) {
+                    ((NonBlockingSignalProtocol) pipe.mProtocol).setReadyListener(null);
+                }
+                pipe.mProtocol.close();
+            }
+            mPipes.clear();
+        }
+        if (newProtocol == null) {
+            return null;
+        }
+        if (mFinished) {
+            SignalProcessorThread<OutputDataType, InputDataType> thread =
+                new SignalProcessorThread<OutputDataType, InputDataType>(newProtocol, mCallback,
+                                                                         mSwapStats, mRunner);
+            thread.setSignalPriorities(mPriorities);
+            return thread;
+        }
+        addPipe(newProtocol);
+        return this;
+    }
+
+    // Must be called with the lock held
+    private void addPipe(SignalProtocol<OutputDataType, InputDataType> protocol) {
+        mPipes.add(new Pipe<OutputDataType, InputDataType>(protocol));
+        if (!mThreaded && !(protocol instanceof NonBlockingSignalProtocol)) {
+            // From now on, all the pipes are read on the thread
+            mThreaded = true;
+        }
+        if (mThreaded) {
+            // If the pump is running, it starts the thread when it returns
+            if (!mPumping && getState() == State.NEW) {
+                this.start();
+            }
+        } else {
+            ((NonBlockingSignalProtocol) protocol).setReadyListener(mWakeUp);
+            // It may have signals already
+            mWakeUp.run();
+        }
+    }
+
+    // Reads the non blocking pipes until they're empty. Runs on the runner.
+    private void pump() {
+        synchronized (this) {
+            if (mThreaded) {
+                // The thread reads the pipes now. The wake ups are left set so no more pumps run.
+                return;
+            }
+            mPumping = true;
+        }
+        try {
+            int wakeUps = mWakeUps.get();
+            int delivered = 0;
+            while (true) {
+                Pipe<OutputDataType, InputDataType> pipe;
+                synchronized (this) {
+                    pipe = mThreaded ? null : mPipes.peekFirst();
+                    if (pipe == null) {
+                        mFinished = !mThreaded;
+                        return;
+                    }
+                }
+                NonBlockingSignalProtocol<OutputDataType, InputDataType> protocol =
+                    (NonBlockingSignalProtocol<OutputDataType, InputDataType>) pipe.mProtocol;
+                SignalInfo<OutputDataType> signal = next(pipe, false);
+                if (signal != null) {
+                    deliver(pipe, signal);
+                    if (++delivered == MAX_BATCH) {
+                        // Give the runner back, keeping the wake ups so no other pump is scheduled
+                        mRunner.runAsync(mPump);
+                        return;
+                    }
+                } else if (protocol.isFinished()) {
+                    onPipeFinished(pipe);
+                } else if (mWakeUps.compareAndSet(wakeUps, 0)) {
+                    // Nothing to read and no wake up since we started: wait for the next one
+                    return;
+                } else {
+                    wakeUps = mWakeUps.get();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mPumping = false;
+                if (mThreaded && getState() == State.NEW) {
+                    this.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The next signal to deliver from a pipe: its next one or, if there are priorities,
+     *         the first one of the backlog after moving the signals the pipe has ready to it. Null
+     *         if the pipe is finished or, when it's not read blocking, it has nothing ready.
+     */
+    private SignalInfo<OutputDataType> next(Pipe<OutputDataType, InputDataType> pipe,
+                                            boolean blocking) {
+        PrioritySignalQueue<SignalInfo<OutputDataType>> backlog = pipe.mBacklog;
+        if (backlog == null || backlog.size() == 0) {
+            SignalInfo<OutputDataType> signal = blocking ? pipe.mProtocol.read() :
+                ((NonBlockingSignalProtocol<OutputDataType, InputDataType>) pipe.mProtocol).poll();
+            SignalPriorities priorities = mPriorities;
+            if (signal == null || priorities == null ||
+                !(pipe.mProtocol instanceof NonBlockingSignalProtocol)) {
+                return signal;
+            }
+            if (backlog == null || backlog.getPriorities() != priorities) {
+                backlog = new PrioritySignalQueue<SignalInfo<OutputDataType>>(priorities);
+                pipe.mBacklog = backlog;
+            }
+            backlog.offer(signal);
+        }
+        if (mPriorities != null) {
+            // Only a pipe that can be polled has a backlog
+            NonBlockingSignalProtocol<OutputDataType, InputDataType> protocol =
+                (NonBlockingSignalProtocol<OutputDataType, InputDataType>) pipe.mProtocol;
+            SignalInfo<OutputDataType> signal;
+            while (backlog.size() < MAX_BACKLOG && (signal = protocol.poll()) != null) {
+                backlog.offer(signal);
+            }
+        }
+        return pollNow(backlog);
+    }
+
+    // Polls the backlog even if the thread has been interrupted, keeping the interruption
+    private static <E> E pollNow(PrioritySignalQueue<E> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.poll(0, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void deliver(Pipe<OutputDataType, InputDataType> pipe, SignalInfo<OutputDataType> signal) {
+        if (pipe.mDrainStart != 0) {
+            pipe.mDrainedSignals++;
+        }
+        if (LOG.isLoggable(LogWrapper.LOG_DEBUG)) {
+            LOG.d(LOG_TAG, "(", pipe.mProtocol.getClass().getSimpleName(),
+                  "): got a processed signal: ", signal.mSignalName);
+        }
+        try {
+            mCallback.run(signal);
+        } catch (RuntimeException e) {
+            // Don't let a failing signal stop the ones queued after it
+            LOG.e(LOG_TAG, "Failed processing signal: ", signal.mSignalName, ". ", e);
+        }
+    }
+
+    // The pipe was closed, or it has been drained
+    private void onPipeFinished(Pipe<OutputDataType, InputDataType> pipe) {
+        boolean drained;
+        synchronized (this) {
+            drained = mPipes.peekFirst() == pipe;
+            if (drained) {
+                mPipes.pollFirst();
+            }
+        }
+        if (pipe.mProtocol instanceof NonBlockingSignalProtocol) {
+            ((NonBlockingSignalProtocol) pipe.mProtocol).setReadyListener(null);
+        }
+        if (drained && pipe.mDrainStart != 0) {
+            long swapNanos = System.nanoTime() - pipe.mDrainStart;
+            mSwapStats.onSwapped(swapNanos, pipe.mDrainedSignals);
+            LOG.i(LOG_TAG, "Drained ", pipe.mProtocol.getClass().getSimpleName(), " in ",
+                  swapNanos / 1000, "us, delivering ", pipe.mDrainedSignals, " signals");
         }
-        return mProcessedProtocol != null ? this : null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,204 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Protocol that runs several {@link ThreadedSignalProtocol} stages inline, one after the other,
+ * on a single thread. The signals returned by a stage are passed straight to the next one, without
+ * any queue or thread switch between them, so a pipeline of several stages costs the same threads
+ * as a single protocol.
+ * The stages are regular ThreadedSignalProtocols (their processSignal, processTick and onClosed
+ * are used unchanged) but they must not be started: only the chain is. The chain ticks as often as
+ * its most frequent stage, and each stage's processTick is invoked at its own interval.
+ * To run the chain on a shared executor instead of its own thread, wrap it in an
+ * {@link ExecutorSignalProtocol}.
+ * Usage:
+ *   SignalProtocolChain<String, String> output =
+ *       new SignalProtocolChain.SignalProtocolChainBuilder<String, String>()
+ *           .stage(new CoalescingSignalProtocol(30, "otAnnotation_pen"))
+ *           .stage(new CompressingSignalProtocol())
+ *           .stage(new ChunkingSignalProtocol())
+ *           .build();
+ *   output.start();
+ *   wrapper.setOutputSignalProtocol(output);
+ */
+public class SignalProtocolChain<OutputDataType, InputDataType>
+        extends ThreadedSignalProtocol<OutputDataType, InputDataType> {
+
+    private final ThreadedSignalProtocol[] mStages;
+    private final long[] mNextTicks;
+
+    /**
+     * Creates a new SignalProtocolChain instance using a builder pattern
+     * @param builder
+     */
+    public SignalProtocolChain(SignalProtocolChainBuilder<OutputDataType, InputDataType> builder) {
+        this(builder, new LinkedSignalQueue<SignalInfo<InputDataType>>(),
+             new LinkedSignalQueue<SignalInfo<OutputDataType>>());
+    }
+
+    /**
+     * Creates a new SignalProtocolChain instance that uses the given queues at its ends.
+     *
+     * @param builder
+     * @param inputQueue Queue where the written signals wait to be processed by the first stage.
+     * @param outputQueue Queue where the signals processed by the last stage wait to be read.
+     */
+    public SignalProtocolChain(SignalProtocolChainBuilder<OutputDataType, InputDataType> builder,
+                               SignalQueue<SignalInfo<InputDataType>> inputQueue,
+                               SignalQueue<SignalInfo<OutputDataType>> outputQueue) {
+        super(inputQueue, outputQueue);
+        if (builder.stages.isEmpty()) {
+            throw new IllegalArgumentException("A protocol chain needs at least one stage");
+        }
+        mStages = builder.stages.toArray(new ThreadedSignalProtocol[builder.stages.size()]);
+        mNextTicks = new long[mStages.length];
+    }
+
+    /**
+     * @return Number of stages of the chain
+     */
+    public int getStageCount() {
+        return mStages.length;
+    }
+
+    @Override
+    protected Collection<SignalInfo<OutputDataType>> processSignal(
+            SignalInfo<InputDataType> signalInfo) {
+        return runStages(0, Collections.<SignalInfo>singletonList(signalInfo));
+    }
+
+    @Override
+    protected long getTickInterval() {
+        long interval = 0;
+        long now = 0;
+        for (int i = 0; i < mStages.length; i++) {
+            long stageInterval = mStages[i].getTickInterval();
+            if (stageInterval <= 0) {
+                mNextTicks[i] = 0;
+                continue;
+            }
+            if (mNextTicks[i] == 0) {
+                // First tick of the stage, or its interval was 0 until now
+                if (now == 0) {
+                    now = System.currentTimeMillis();
+                }
+                mNextTicks[i] = now + stageInterval;
+            }
+            if (interval == 0 || stageInterval < interval) {
+                interval = stageInterval;
+            }
+        }
+        return interval;
+    }
+
+    @Override
+    protected Collection<SignalInfo<OutputDataType>> processTick(long now) {
+        ArrayList<SignalInfo<OutputDataType>> ready = null;
+        for (int i = 0; i < mStages.length; i++) {
+            if (mNextTicks[i] == 0 || now < mNextTicks[i]) {
+                continue;
+            }
+            mNextTicks[i] = now + mStages[i].getTickInterval();
+            Collection<SignalInfo<OutputDataType>> processed =
+                runStages(i + 1, mStages[i].processTick(now));
+            if (processed != null) {
+                if (ready == null) {
+                    ready = new ArrayList<>(processed);
+                } else {
+                    ready.addAll(processed);
+                }
+            }
+        }
+        return ready;
+    }
+
+    @Override
+    protected Collection<SignalInfo<OutputDataType>> onDrain() {
+        // The signals held by a stage still go through the stages after it
+        ArrayList<SignalInfo<OutputDataType>> ready = null;
+        for (int i = 0; i < mStages.length; i++) {
+            Collection<SignalInfo<OutputDataType>> processed =
+                runStages(i + 1, mStages[i].onDrain());
+            if (processed != null) {
+                if (ready == null) {
+                    ready = new ArrayList<>(processed);
+                } else {
+                    ready.addAll(processed);
+                }
+            }
+        }
+        return ready;
+    }
+
+    @Override
+    protected void onClosed() {
+        for (ThreadedSignalProtocol stage : mStages) {
+            stage.close();
+            stage.onClosed();
+        }
+    }
+
+    // Passes the signals through the stages from firstStage on
+    @SuppressWarnings("unchecked")
+    private Collection<SignalInfo<OutputDataType>> runStages(int firstStage,
+                                                             Collection<SignalInfo> signals) {
+        for (int i = firstStage; i < mStages.length && signals != null; i++) {
+            if (signals.size() == 1) {
+                signals = mStages[i].processSignal(signals.iterator().next());
+                continue;
+            }
+            ArrayList<SignalInfo> processed = null;
+            for (SignalInfo signalInfo : signals) {
+                Collection<SignalInfo> stageSignals = mStages[i].processSignal(signalInfo);
+                if (stageSignals != null && !stageSignals.isEmpty()) {
+                    if (processed == null) {
+                        processed = new ArrayList<>(stageSignals);
+                    } else {
+                        processed.addAll(stageSignals);
+                    }
+                }
+            }
+            signals = processed;
+        }
+        if (signals == null || signals.isEmpty()) {
+            return null;
+        }
+        return (Collection<SignalInfo<OutputDataType>>) (Collection) signals;
+    }
+
+    /**
+     * Defines the SignalProtocolChain builder. The stages are run in the order they are added, so
+     * the output type of each stage must be the input type of the next one.
+     */
+    public static class SignalProtocolChainBuilder<OutputDataType, InputDataType> {
+        private ArrayList<ThreadedSignalProtocol> stages = new ArrayList<>();
+
+        /**
+         * Adds a stage at the end of the chain.
+         *
+         * @param stage A protocol that hasn't been started and isn't part of another chain.
+         */
+        public SignalProtocolChainBuilder<OutputDataType, InputDataType> stage(
+                ThreadedSignalProtocol<?, ?> stage) {
+            if (stage == null) {
+                throw new IllegalArgumentException("The stage cannot be null");
+            }
+            if (stage.getState() != Thread.State.NEW) {
+                throw new IllegalStateException("The stage has already been started: " +
+                                                stage.getClass().getSimpleName());
+            }
+            if (stages.contains(stage)) {
+                throw new IllegalArgumentException("The stage is already part of the chain");
+            }
+            this.stages.add(stage);
+            return this;
+        }
+
+        public SignalProtocolChain<OutputDataType, InputDataType> build() {
+            return new SignalProtocolChain<OutputDataType, InputDataType>(this);
+        }
+    }
+}
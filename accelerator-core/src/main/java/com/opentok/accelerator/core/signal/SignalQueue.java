@@ -0,0 +1,48 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue engine used by {@link ThreadedSignalProtocol} to hand signals between the thread that
+ * writes them, the protocol thread and the thread that reads the processed signals (usually a
+ * {@link SignalProcessorThread}).
+ * Implementations decide how the elements are stored and how a consumer waits for new elements,
+ * but all of them must keep FIFO order.
+ */
+public interface SignalQueue<E> {
+
+    /**
+     * Inserts an element if it can be done immediately.
+     * @param element The element to insert. Must not be null.
+     * @return true if the element was inserted, false if the queue is full.
+     */
+    boolean offer(E element);
+
+    /**
+     * Inserts an element, waiting if needed for free space.
+     * @param element The element to insert. Must not be null.
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    void put(E element) throws InterruptedException;
+
+    /**
+     * Retrieves and removes the head of the queue, waiting until an element is available.
+     * @return The head of the queue
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    E take() throws InterruptedException;
+
+    /**
+     * Retrieves and removes the head of the queue, waiting up to the given time for an element.
+     * @param timeout How long to wait before giving up
+     * @param unit Unit of the timeout
+     * @return The head of the queue, or null if the timeout elapsed first
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    E poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * @return The (approximate, if there are concurrent readers/writers) number of elements
+     */
+    int size();
+}
@@ -0,0 +1,138 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.HashMap;
+
+/**
+ * Rate limits used by a {@link RateLimitingSignalProtocol}: a token bucket for all the signals of
+ * the session and, optionally, one for each signal name. A signal is sent only when there is a
+ * token in the session bucket and in the bucket of its name. Each bucket is refilled at its rate
+ * and holds at most burst tokens, so that many signals can be sent at once after an idle period.
+ * Usage:
+ *   SignalRateLimits limits = new SignalRateLimits.SignalRateLimitsBuilder(20, 40)
+ *       .limit("otAnnotation_pen", 10, 20)
+ *       .maxQueued(2048)
+ *       .build();
+ *   wrapper.setOutputSignalProtocol(new RateLimitingSignalProtocol(limits));
+ */
+public class SignalRateLimits {
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+
+    /**
+     * Rate and burst of a token bucket
+     */
+    public static final class Limit {
+        private final double mRate;
+        private final int mBurst;
+
+        Limit(double rate, int burst) {
+            if (!(rate > 0) || burst <= 0) {
+                throw new IllegalArgumentException("Invalid rate limit: " + rate + "/s, burst " + burst);
+            }
+            mRate = rate;
+            mBurst = burst;
+        }
+
+        /**
+         * @return Tokens added to the bucket per second
+         */
+        public double getRate() {
+            return mRate;
+        }
+
+        /**
+         * @return Maximum number of tokens of the bucket
+         */
+        public int getBurst() {
+            return mBurst;
+        }
+    }
+
+    private final Limit mSessionLimit;
+    private final HashMap<String, Limit> mLimits;
+    private final int mMaxQueued;
+
+    /**
+     * Creates a new SignalRateLimits instance using a builder pattern
+     * @param builder
+     */
+    public SignalRateLimits(SignalRateLimitsBuilder builder) {
+        mSessionLimit = builder.sessionLimit;
+        mLimits = new HashMap<>(builder.limits);
+        mMaxQueued = builder.maxQueued;
+    }
+
+    /**
+     * @return The limit of all the signals of the session
+     */
+    public Limit getSessionLimit() {
+        return mSessionLimit;
+    }
+
+    /**
+     * @param signalName Name of a signal
+     * @return The limit of the signals with that name, or null if only the session limit applies
+     */
+    public Limit getLimit(String signalName) {
+        return signalName != null ? mLimits.get(signalName) : null;
+    }
+
+    /**
+     * @return Maximum number of signals waiting for a token. Signals sent when it's reached are
+     *         rejected.
+     */
+    public int getMaxQueued() {
+        return mMaxQueued;
+    }
+
+    // Fastest refill rate of all the buckets, in tokens per second
+    double getMaxRate() {
+        double maxRate = mSessionLimit.getRate();
+        for (Limit limit : mLimits.values()) {
+            maxRate = Math.max(maxRate, limit.getRate());
+        }
+        return maxRate;
+    }
+
+    /**
+     * Defines the SignalRateLimits builder
+     */
+    public static class SignalRateLimitsBuilder {
+        private Limit sessionLimit;
+        private HashMap<String, Limit> limits = new HashMap<>();
+        private int maxQueued = DEFAULT_MAX_QUEUED;
+
+        /**
+         * @param signalsPerSecond Rate of the session bucket
+         * @param burst Capacity of the session bucket
+         */
+        public SignalRateLimitsBuilder(double signalsPerSecond, int burst) {
+            this.sessionLimit = new Limit(signalsPerSecond, burst);
+        }
+
+        /**
+         * Adds a bucket for the signals with the given name.
+         */
+        public SignalRateLimitsBuilder limit(String signalName, double signalsPerSecond, int burst) {
+            if (signalName == null) {
+                throw new IllegalArgumentException("The signal name cannot be null");
+            }
+            this.limits.put(signalName, new Limit(signalsPerSecond, burst));
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of signals waiting for a token. By default, DEFAULT_MAX_QUEUED.
+         */
+        public SignalRateLimitsBuilder maxQueued(int maxQueued) {
+            if (maxQueued <= 0) {
+                throw new IllegalArgumentException("Invalid maximum queued signals: " + maxQueued);
+            }
+            this.maxQueued = maxQueued;
+            return this;
+        }
+
+        public SignalRateLimits build() {
+            return new SignalRateLimits(this);
+        }
+    }
+}
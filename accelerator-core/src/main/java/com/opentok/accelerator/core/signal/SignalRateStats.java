@@ -0,0 +1,63 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * Snapshot of the state of a {@link RateLimitingSignalProtocol} bucket: the whole session, or a
+ * signal name.
+ */
+public final class SignalRateStats {
+    private final double mTokens;
+    private final int mQueued;
+    private final long mSent;
+    private final long mDelayed;
+    private final long mRejected;
+
+    SignalRateStats(double tokens, int queued, long sent, long delayed, long rejected) {
+        mTokens = tokens;
+        mQueued = queued;
+        mSent = sent;
+        mDelayed = delayed;
+        mRejected = rejected;
+    }
+
+    /**
+     * @return Tokens available in the bucket when it was last updated. NaN for signal names
+     *         without a bucket of their own.
+     */
+    public double getTokens() {
+        return mTokens;
+    }
+
+    /**
+     * @return Number of signals waiting for a token
+     */
+    public int getQueued() {
+        return mQueued;
+    }
+
+    /**
+     * @return Number of signals sent
+     */
+    public long getSent() {
+        return mSent;
+    }
+
+    /**
+     * @return Number of the sent signals that had to wait for a token
+     */
+    public long getDelayed() {
+        return mDelayed;
+    }
+
+    /**
+     * @return Number of signals discarded because too many signals were waiting
+     */
+    public long getRejected() {
+        return mRejected;
+    }
+
+    @Override
+    public String toString() {
+        return "tokens: " + mTokens + ", queued: " + mQueued + ", sent: " + mSent +
+            ", delayed: " + mDelayed + ", rejected: " + mRejected;
+    }
+}
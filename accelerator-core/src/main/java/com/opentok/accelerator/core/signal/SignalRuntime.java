@@ -0,0 +1,232 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.LogWrapper;
+import com.opentok.accelerator.core.utils.TaskRunner;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by the signal processing of several sessions. By default each session owns a
+ * {@link com.opentok.accelerator.core.utils.WorkStealingThreadPool} for its listeners and a
+ * thread for each signal processor, so an app that holds several sessions (a lobby and a room, or
+ * breakout rooms) ends up with dozens of mostly idle threads. A runtime runs all that work on a
+ * single executor, sized to the number of cores.
+ * The work is submitted through lanes: each session gets its own (one for its listeners and a
+ * serial one for each signal processor). A lane runs at most QUANTUM tasks before going to the
+ * back of the executor queue, so a session that receives a burst of signals can't starve the
+ * others.
+ * Since the threads are shared, the signal listeners must not block for long: a blocked listener
+ * holds a thread of every session. The protocols can run on the same threads by wrapping them in
+ * an {@link ExecutorSignalProtocol} that uses {@link #getExecutor()}.
+ * Usage:
+ *   SignalRuntime runtime = SignalRuntime.getDefault();
+ *   lobbyWrapper.setSignalRuntime(runtime);
+ *   roomWrapper.setSignalRuntime(runtime);
+ *   roomWrapper.setOutputSignalProtocol(
+ *       new ExecutorSignalProtocol<String, String>(chain, runtime.getExecutor()));
+ */
+public final class SignalRuntime {
+    private static final String LOG_TAG = SignalRuntime.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+      new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    private static final int QUANTUM = 16;
+
+    private static SignalRuntime sDefault;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final int mThreadCount;
+
+    /**
+     * @return The runtime shared by the whole process. Its threads are created the first time
+     *         it's used, one per core (and at least 2).
+     */
+    public static synchronized SignalRuntime getDefault() {
+        if (sDefault == null) {
+            sDefault = new SignalRuntime(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        }
+        return sDefault;
+    }
+
+    /**
+     * Creates a runtime with its own threads. Most apps should use {@link #getDefault()}.
+     *
+     * @param threadCount Number of threads
+     */
+    public SignalRuntime(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+        }
+        mThreadCount = threadCount;
+        mExecutor = new ScheduledThreadPoolExecutor(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, LOG_TAG + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return Number of threads of the runtime
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * @return The executor of the runtime, to run the protocols on it with an
+     *         {@link ExecutorSignalProtocol}. Its tasks must not block.
+     */
+    public ScheduledExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Creates a serial lane: its tasks run one at a time, in the order they're submitted.
+     *
+     * @param name Name of the lane, for the logs
+     */
+    public Lane newLane(String name) {
+        return new Lane(name, 1);
+    }
+
+    /**
+     * Creates a lane.
+     *
+     * @param name Name of the lane, for the logs
+     * @param maxConcurrency Maximum number of its tasks that can run at the same time
+     */
+    public Lane newLane(String name, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency must be positive: " + maxConcurrency);
+        }
+        return new Lane(name, maxConcurrency);
+    }
+
+    /**
+     * Stops the threads of the runtime. The default runtime can't be shut down.
+     */
+    public void shutdown() {
+        synchronized (SignalRuntime.class) {
+            if (this == sDefault) {
+                throw new IllegalStateException("The default runtime can't be shut down");
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Queue of tasks of a session that runs on the runtime threads.
+     */
+    public final class Lane implements TaskRunner {
+        private final String mName;
+        private final int mMaxConcurrency;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private int mRunning = 0;
+        private boolean mClosed = false;
+        private long mExecuted = 0;
+
+        private final Runnable mRunner = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < QUANTUM; i++) {
+                    Runnable task;
+                    synchronized (Lane.this) {
+                        task = mTasks.pollFirst();
+                        if (task == null) {
+                            mRunning--;
+                            return;
+                        }
+                        mExecuted++;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // Don't let a failing task stop the ones queued after it
+                        LOG.e(LOG_TAG, mName, ": task failed: ", e);
+                    }
+                }
+                // Let the other lanes run before going on
+                mExecutor.execute(this);
+            }
+        };
+
+        private Lane(String name, int maxConcurrency) {
+            mName = name;
+            mMaxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public void runAsync(Runnable runnable) {
+            synchronized (this) {
+                if (mClosed) {
+                    LOG.w(LOG_TAG, mName, ": discarding a task submitted after close");
+                    return;
+                }
+                mTasks.addLast(runnable);
+                if (mRunning >= mMaxConcurrency) {
+                    return;
+                }
+                mRunning++;
+            }
+            mExecutor.execute(mRunner);
+        }
+
+        /**
+         * Discards the tasks that haven't started yet.
+         *
+         * @return Number of discarded tasks
+         */
+        public synchronized int clear() {
+            int discarded = mTasks.size();
+            mTasks.clear();
+            return discarded;
+        }
+
+        /**
+         * Discards the pending tasks and the ones submitted from now on.
+         */
+        public synchronized void close() {
+            mClosed = true;
+            mTasks.clear();
+        }
+
+        /**
+         * @return Number of tasks waiting to run
+         */
+        public synchronized int getPendingTasks() {
+            return mTasks.size();
+        }
+
+        /**
+         * @return Number of tasks run
+         */
+        public synchronized long getExecutedTasks() {
+            return mExecuted;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mName + ": executed: " + mExecuted + ", pending: " + mTasks.size() +
+                ", running: " + mRunning;
+        }
+    }
+}
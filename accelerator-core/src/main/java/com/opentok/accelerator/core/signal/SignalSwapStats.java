@@ -0,0 +1,67 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * Counters of the protocol swaps made by a {@link SignalProcessorThread}: how many drained
+ * swaps have finished, how long the old protocols took to drain and how many signals they
+ * delivered while draining. It's thread safe.
+ */
+public final class SignalSwapStats {
+    private long mSwaps = 0;
+    private long mDrainedSignals = 0;
+    private long mLastSwapNanos = 0;
+    private long mMaxSwapNanos = 0;
+    private long mTotalSwapNanos = 0;
+
+    public SignalSwapStats() {
+    }
+
+    synchronized void onSwapped(long swapNanos, int drainedSignals) {
+        mSwaps++;
+        mDrainedSignals += drainedSignals;
+        mLastSwapNanos = swapNanos;
+        mMaxSwapNanos = Math.max(mMaxSwapNanos, swapNanos);
+        mTotalSwapNanos += swapNanos;
+    }
+
+    /**
+     * @return Number of drained swaps that have finished
+     */
+    public synchronized long getSwaps() {
+        return mSwaps;
+    }
+
+    /**
+     * @return Number of signals the old protocols delivered after they were replaced
+     */
+    public synchronized long getDrainedSignals() {
+        return mDrainedSignals;
+    }
+
+    /**
+     * @return Time, in nanoseconds, the last replaced protocol took to drain
+     */
+    public synchronized long getLastSwapLatency() {
+        return mLastSwapNanos;
+    }
+
+    /**
+     * @return Longest time, in nanoseconds, a replaced protocol took to drain
+     */
+    public synchronized long getMaxSwapLatency() {
+        return mMaxSwapNanos;
+    }
+
+    /**
+     * @return Mean time, in nanoseconds, the replaced protocols took to drain
+     */
+    public synchronized long getMeanSwapLatency() {
+        return mSwaps == 0 ? 0 : mTotalSwapNanos / mSwaps;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "swaps: " + mSwaps + ", drained signals: " + mDrainedSignals +
+            ", last latency: " + mLastSwapNanos / 1000 + "us, max latency: " +
+            mMaxSwapNanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,105 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timestamps of the stages a received signal goes through, from the moment the session gets it
+ * to the moment its listeners finish with it. It's attached to the {@link SignalInfo} when
+ * {@link SignalTracer} is enabled, and carried along by the protocols to the signals they
+ * generate. The times are {@link System#nanoTime()} values, and 0 for the stages the signal
+ * hasn't gone through (for example, the protocol stages when there is no input protocol).
+ * A signal delivered to several listeners keeps the start of the first one and the end of the
+ * last one. The time of each delivery is kept by the {@link SignalTracer} histograms.
+ */
+public final class SignalTrace {
+    /**
+     * Stages of a received signal, in order
+     */
+    public enum Stage {
+        /** The session got the signal from OpenTok */
+        WRITE,
+        /** The first input protocol took the signal from its queue */
+        PROTOCOL_IN,
+        /** The last input protocol processed the signal */
+        PROTOCOL_OUT,
+        /** The signal was handed to the signal dispatcher */
+        DISPATCH_ENQUEUED,
+        /** A listener started processing the signal */
+        LISTENER_START,
+        /** A listener finished processing the signal */
+        LISTENER_END
+    }
+
+    static final Stage[] STAGES = Stage.values();
+
+    private final AtomicLongArray mTimes = new AtomicLongArray(STAGES.length);
+
+    /**
+     * Creates a trace whose WRITE stage is now
+     */
+    public SignalTrace() {
+        mTimes.set(Stage.WRITE.ordinal(), System.nanoTime());
+    }
+
+    /**
+     * @param stage A stage
+     * @return The time the signal went through the stage, or 0 if it hasn't
+     */
+    public long getTime(Stage stage) {
+        return mTimes.get(stage.ordinal());
+    }
+
+    /**
+     * @return Nanoseconds between two stages, or -1 if the signal hasn't gone through both
+     */
+    public long getElapsed(Stage from, Stage to) {
+        long fromTime = getTime(from);
+        long toTime = getTime(to);
+        return fromTime == 0 || toTime == 0 ? -1 : toTime - fromTime;
+    }
+
+    /**
+     * Sets the time of a stage to now.
+     */
+    public void mark(Stage stage) {
+        mTimes.set(stage.ordinal(), System.nanoTime());
+    }
+
+    void mark(Stage stage, long now) {
+        mTimes.set(stage.ordinal(), now);
+    }
+
+    // Keeps the first time a stage is reached, for the stages a signal can go through several times
+    void markFirst(Stage stage, long now) {
+        mTimes.compareAndSet(stage.ordinal(), 0, now);
+    }
+
+    /**
+     * @return Time of the last stage, before the given one, that the signal went through, or 0
+     */
+    long getPreviousTime(Stage stage) {
+        for (int i = stage.ordinal() - 1; i >= 0; i--) {
+            long time = mTimes.get(i);
+            if (time != 0) {
+                return time;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        long writeTime = mTimes.get(0);
+        for (Stage stage : STAGES) {
+            long time = mTimes.get(stage.ordinal());
+            if (time != 0) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append(stage).append(": +").append((time - writeTime) / 1000).append("us");
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,244 @@
+package com.opentok.accelerator.core.signal;
+
+import com.opentok.accelerator.core.listeners.SignalListener;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide tracing of the latency of the received signals. When it's enabled, each received
+ * signal carries a {@link SignalTrace}, and the time spent on each stage is recorded on
+ * {@link SignalLatencyHistogram}s:
+ *   - Per signal name and stage: the time from the previous stage the signal went through to that
+ *     one. For example, PROTOCOL_IN is the wait on the input protocol queue, DISPATCH_ENQUEUED the
+ *     wait for the signal processor thread, LISTENER_START the wait on the pool (or the mailbox)
+ *     and LISTENER_END the listener execution. The last two are recorded once per listener.
+ *   - Per signal name: the total time, from WRITE to the end of each listener.
+ *   - Per listener class: its execution time. Keyed by class name, so the tracer doesn't retain
+ *     the listeners (which are often Views or Fragments).
+ * Signal names are chosen by the remote peers, so only the first MAX_SIGNAL_NAMES names get their
+ * own histograms. The signals with any other name are recorded under OTHER_SIGNALS.
+ * When it's disabled (the default), signals carry no trace and the only cost is a null check on
+ * each stage.
+ * Usage:
+ *   SignalTracer.setEnabled(true);
+ *   ...
+ *   Log.d(TAG, SignalTracer.dump());
+ */
+public final class SignalTracer {
+    private static final int TOTAL = SignalTrace.STAGES.length;
+    private static final int MAX_SIGNAL_NAMES = 64;
+
+    /**
+     * Name under which the signals are recorded once MAX_SIGNAL_NAMES names have histograms
+     */
+    public static final String OTHER_SIGNALS = "(other)";
+
+    private static volatile boolean sEnabled = false;
+    private static final ConcurrentHashMap<String, SignalLatencyHistogram[]> sSignalHistograms =
+        new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, SignalLatencyHistogram>
+        sListenerHistograms = new ConcurrentHashMap<>();
+
+    private SignalTracer() {
+    }
+
+    /**
+     * Enables or disables the tracing of the signals received from now on. The histograms are
+     * kept when it's disabled.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return true if the received signals are being traced
+     */
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Starts the trace of a received signal, if tracing is enabled. Called by the session when it
+     * gets a signal.
+     */
+    public static void onSignalWritten(SignalInfo<?> signalInfo) {
+        if (sEnabled) {
+            signalInfo.mTrace = new SignalTrace();
+        }
+    }
+
+    /**
+     * Records the stages of a signal up to its dispatch. Called by the session when it hands the
+     * signal to the dispatcher.
+     */
+    public static void onSignalDispatched(SignalInfo<?> signalInfo) {
+        SignalTrace trace = signalInfo.mTrace;
+        if (trace == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        trace.mark(SignalTrace.Stage.DISPATCH_ENQUEUED, now);
+        SignalLatencyHistogram[] histograms = histogramsFor(signalInfo.mSignalName);
+        for (int i = SignalTrace.Stage.PROTOCOL_IN.ordinal();
+             i <= SignalTrace.Stage.DISPATCH_ENQUEUED.ordinal(); i++) {
+            SignalTrace.Stage stage = SignalTrace.STAGES[i];
+            long time = trace.getTime(stage);
+            if (time != 0) {
+                histograms[i].record(time - trace.getPreviousTime(stage));
+            }
+        }
+    }
+
+    /**
+     * Delivers a signal to a listener, recording the wait and the execution time if the signal is
+     * traced. Used by the dispatchers.
+     */
+    @SuppressWarnings("unchecked")
+    public static void deliver(SignalListener listener, SignalInfo signalInfo,
+                               boolean isSelfSignal) {
+        SignalTrace trace = signalInfo.mTrace;
+        if (trace == null) {
+            listener.onSignalReceived(signalInfo, isSelfSignal);
+            return;
+        }
+        long start = System.nanoTime();
+        trace.markFirst(SignalTrace.Stage.LISTENER_START, start);
+        try {
+            listener.onSignalReceived(signalInfo, isSelfSignal);
+        } finally {
+            long end = System.nanoTime();
+            trace.mark(SignalTrace.Stage.LISTENER_END, end);
+            SignalLatencyHistogram[] histograms = histogramsFor(signalInfo.mSignalName);
+            long enqueued = trace.getTime(SignalTrace.Stage.DISPATCH_ENQUEUED);
+            if (enqueued != 0) {
+                histograms[SignalTrace.Stage.LISTENER_START.ordinal()].record(start - enqueued);
+            }
+            histograms[SignalTrace.Stage.LISTENER_END.ordinal()].record(end - start);
+            histograms[TOTAL].record(end - trace.getTime(SignalTrace.Stage.WRITE));
+            listenerHistogramFor(listener).record(end - start);
+        }
+    }
+
+    // Called by the protocols when they take a signal from their input queue
+    static void onProtocolIn(SignalInfo<?> signalInfo) {
+        SignalTrace trace = signalInfo.mTrace;
+        if (trace != null) {
+            trace.markFirst(SignalTrace.Stage.PROTOCOL_IN, System.nanoTime());
+        }
+    }
+
+    // Called by the protocols with the signals generated from a traced one
+    static <T> void onProtocolOut(SignalTrace trace, Collection<SignalInfo<T>> processedSignals) {
+        if (trace == null || processedSignals == null) {
+            return;
+        }
+        trace.mark(SignalTrace.Stage.PROTOCOL_OUT, System.nanoTime());
+        for (SignalInfo<T> processedSignal : processedSignals) {
+            if (processedSignal.mTrace == null) {
+                processedSignal.mTrace = trace;
+            }
+        }
+    }
+
+    /**
+     * @param signalName Name of a signal, or OTHER_SIGNALS
+     * @param stage A stage
+     * @return The time signals with that name took to reach the stage from the previous one, or
+     *         null if none has been traced (or they're recorded under OTHER_SIGNALS). Don't record
+     *         on it.
+     */
+    public static SignalLatencyHistogram getHistogram(String signalName, SignalTrace.Stage stage) {
+        SignalLatencyHistogram[] histograms = sSignalHistograms.get(key(signalName));
+        return histograms != null ? histograms[stage.ordinal()] : null;
+    }
+
+    /**
+     * @param signalName Name of a signal, or OTHER_SIGNALS
+     * @return The time signals with that name took from WRITE to the end of each listener, or null
+     *         if none has been traced (or they're recorded under OTHER_SIGNALS)
+     */
+    public static SignalLatencyHistogram getTotalHistogram(String signalName) {
+        SignalLatencyHistogram[] histograms = sSignalHistograms.get(key(signalName));
+        return histograms != null ? histograms[TOTAL] : null;
+    }
+
+    /**
+     * @return The execution time of the listeners that have received traced signals, by class name
+     */
+    public static Map<String, SignalLatencyHistogram> getListenerHistograms() {
+        return new HashMap<>(sListenerHistograms);
+    }
+
+    /**
+     * Forgets all the histograms.
+     */
+    public static void reset() {
+        sSignalHistograms.clear();
+        sListenerHistograms.clear();
+    }
+
+    /**
+     * Dumps all the histograms as text, one per line, with the latencies in microseconds:
+     *   signal <name> <stage|TOTAL> <count> <p50> <p90> <p99> <max>
+     *   listener <class> <count> <p50> <p90> <p99> <max>
+     */
+    public static String dump() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, SignalLatencyHistogram[]> entry : sSignalHistograms.entrySet()) {
+            SignalLatencyHistogram[] histograms = entry.getValue();
+            for (int i = 0; i <= TOTAL; i++) {
+                if (histograms[i].getCount() > 0) {
+                    text.append("signal ").append(entry.getKey()).append(' ')
+                        .append(i < TOTAL ? SignalTrace.STAGES[i].name() : "TOTAL").append(' ')
+                        .append(histograms[i]).append('\n');
+                }
+            }
+        }
+        for (Map.Entry<String, SignalLatencyHistogram> entry : sListenerHistograms.entrySet()) {
+            text.append("listener ").append(entry.getKey()).append(' ')
+                .append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String key(String signalName) {
+        return signalName != null ? signalName : "";
+    }
+
+    private static SignalLatencyHistogram[] histogramsFor(String signalName) {
+        String key = key(signalName);
+        SignalLatencyHistogram[] histograms = sSignalHistograms.get(key);
+        if (histograms == null && sSignalHistograms.size() >= MAX_SIGNAL_NAMES) {
+            // Racy, so the limit can be exceeded by a few names
+            key = OTHER_SIGNALS;
+            histograms = sSignalHistograms.get(key);
+        }
+        if (histograms == null) {
+            SignalLatencyHistogram[] newHistograms = new SignalLatencyHistogram[TOTAL + 1];
+            for (int i = 0; i <= TOTAL; i++) {
+                newHistograms[i] = new SignalLatencyHistogram();
+            }
+            histograms = sSignalHistograms.putIfAbsent(key, newHistograms);
+            if (histograms == null) {
+                histograms = newHistograms;
+            }
+        }
+        return histograms;
+    }
+
+    private static SignalLatencyHistogram listenerHistogramFor(SignalListener listener) {
+        String key = listener.getClass().getName();
+        SignalLatencyHistogram histogram = sListenerHistograms.get(key);
+        if (histogram == null) {
+            SignalLatencyHistogram newHistogram = new SignalLatencyHistogram();
+            histogram = sListenerHistograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+}
@@ -1,19 +1,30 @@
 package com.opentok.accelerator.core.signal;
 
 import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.utils.Callback;
 import com.opentok.accelerator.core.utils.LogWrapper;
 
 import java.util.Collection;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Threaded implementation of a signal pipe.
  * Extenders should only implement processSignal.
+ * By default the signals are passed through unbounded linked queues. Extenders that process a high
+ * volume of signals can use the {@link #ThreadedSignalProtocol(int, WaitStrategy)} constructor
+ * instead to use preallocated ring buffers (see {@link RingBufferSignalQueue} for the restrictions
+ * that applies). To bound the memory used when the reader is slow, use the
+ * {@link #ThreadedSignalProtocol(SignalBackpressure)} constructor.
+ * It can be drained (see {@link DrainableSignalProtocol}): the signals already written are
+ * processed, and the ones the extender is still holding are collected with {@link #onDrain()},
+ * before the protocol closes.
+ * It can also be read without blocking (see {@link NonBlockingSignalProtocol}), so it can be read
+ * from a shared {@link SignalRuntime}.
  */
 public abstract class ThreadedSignalProtocol<OutputDataType, InputDataType>
         extends Thread
-        implements SignalProtocol<OutputDataType, InputDataType> {
+        implements DrainableSignalProtocol<OutputDataType, InputDataType>,
+                   NonBlockingSignalProtocol<OutputDataType, InputDataType> {
     protected final String LOG_TAG = getClass().getSimpleName();
     private static final short LOCAL_LOG_LEVEL = 0xFF;
     private static final LogWrapper LOG =
@@ -24,21 +35,86 @@ public abstract class ThreadedSignalProtocol<OutputDataType, InputDataType>
     }
 
 
-    private BlockingQueue<SignalInfo<InputDataType>> mInputQueue;
+    private SignalQueue<SignalInfo<InputDataType>> mInputQueue;
 
-    private BlockingQueue<SignalInfo<OutputDataType>> mOutputQueue;
+    private SignalQueue<SignalInfo<OutputDataType>> mOutputQueue;
 
-    protected boolean mIsOpen = true;
+    protected volatile boolean mIsOpen = true;
+
+    private volatile boolean mDraining = false;
+    private volatile boolean mDrained = false;
+    private volatile Thread mReader;
+    // Whether wakeReader interrupted the reader. Guarded by mReaderLock
+    private boolean mReaderWoken = false;
+    private final Object mReaderLock = new Object();
+    private volatile Runnable mReadyListener;
 
     public ThreadedSignalProtocol() {
-        mInputQueue = new LinkedBlockingQueue<SignalInfo<InputDataType>>();
-        mOutputQueue = new LinkedBlockingQueue<SignalInfo<OutputDataType>>();
+        this(new LinkedSignalQueue<SignalInfo<InputDataType>>(),
+             new LinkedSignalQueue<SignalInfo<OutputDataType>>());
+    }
+
+    /**
+     * Creates a protocol that uses lock free ring buffers as input and output queues.
+     *
+     * @param capacity Capacity of each queue. When the input queue is full, write waits for space.
+     * @param waitStrategy How the reading/writing threads wait for data or free space.
+     */
+    public ThreadedSignalProtocol(int capacity, WaitStrategy waitStrategy) {
+        this(new RingBufferSignalQueue<SignalInfo<InputDataType>>(capacity, waitStrategy),
+             new RingBufferSignalQueue<SignalInfo<OutputDataType>>(capacity, waitStrategy));
+    }
+
+    /**
+     * Creates a protocol whose input and output queues are bounded.
+     *
+     * @param backpressure Capacity of each queue and policies to apply, per signal name, when one
+     *                     is full. Note that BLOCK signals block the writer (usually the OpenTok
+     *                     thread or the sender) when the input queue is full.
+     */
+    public ThreadedSignalProtocol(SignalBackpressure backpressure) {
+        this(new BoundedSignalQueue<SignalInfo<InputDataType>>(backpressure),
+             new BoundedSignalQueue<SignalInfo<OutputDataType>>(backpressure));
+    }
+
+    /**
+     * Creates a protocol whose input and output queues let the signals with a higher priority
+     * overtake the rest.
+     *
+     * @param priorities Priority of each signal name and how the priority classes are scheduled.
+     */
+    public ThreadedSignalProtocol(SignalPriorities priorities) {
+        this(new PrioritySignalQueue<SignalInfo<InputDataType>>(priorities),
+             new PrioritySignalQueue<SignalInfo<OutputDataType>>(priorities));
+    }
+
+    /**
+     * Creates a protocol that uses the given queues.
+     *
+     * @param inputQueue Queue where the written signals wait to be processed.
+     * @param outputQueue Queue where the processed signals wait to be read.
+     */
+    public ThreadedSignalProtocol(SignalQueue<SignalInfo<InputDataType>> inputQueue,
+                                  SignalQueue<SignalInfo<OutputDataType>> outputQueue) {
+        if (inputQueue == null || outputQueue == null) {
+            throw new IllegalArgumentException("Queues cannot be null");
+        }
+        mInputQueue = inputQueue;
+        mOutputQueue = outputQueue;
     }
 
     @Override
     public void close() {
         mIsOpen = false;
         this.interrupt();
+        wakeReader();
+        notifyReady();
+    }
+
+    @Override
+    public void drain() {
+        mDraining = true;
+        this.interrupt();
     }
 
     /**
@@ -53,39 +129,193 @@ public abstract class ThreadedSignalProtocol<OutputDataType, InputDataType>
     protected abstract Collection<SignalInfo<OutputDataType>> processSignal(
             SignalInfo<InputDataType> signalInfo);
 
+    /**
+     * Extenders that need to do some work even when no signal arrives (flushing buffered signals,
+     * expiring stale state, ...) should return here how often, in milliseconds, they want
+     * {@link #processTick(long)} to be invoked. It's read every time the protocol thread is about to
+     * wait for a signal. The default value, 0, means that processTick is never called.
+     */
+    protected long getTickInterval() {
+        return 0;
+    }
+
+    /**
+     * Invoked on the protocol thread roughly every {@link #getTickInterval()} milliseconds, even if
+     * no signal has been received.
+     *
+     * @param now Current time, as returned by System.currentTimeMillis()
+     * @return The signals that are ready to be read, or null if there are none
+     */
+    protected Collection<SignalInfo<OutputDataType>> processTick(long now) {
+        return null;
+    }
+
+    /**
+     * Invoked on the protocol thread once it stops processing signals, after {@link #close()}.
+     * Extenders can override it to release the resources used while processing.
+     */
+    protected void onClosed() {
+    }
+
+    /**
+     * Invoked on the protocol thread when the protocol is drained, once all the signals written
+     * have been processed. Extenders that hold signals (to group them, or to wait for a rate
+     * limit, ...) should return them here, since there won't be any tick after this. Incomplete
+     * state that can't produce a signal (for example, a partially received message) is lost.
+     *
+     * @return The signals that are still held, or null if there are none
+     */
+    protected Collection<SignalInfo<OutputDataType>> onDrain() {
+        return null;
+    }
+
     @Override
     final public void run() {
+        long nextTick = 0;
         while (mIsOpen) {
             try {
-                LOG.d(LOG_TAG, "Waiting for signal data");
-                Collection<SignalInfo<OutputDataType>> processedSignals = processSignal(mInputQueue.take());
-                if (processedSignals != null) {
-                    for(SignalInfo processedSignal: processedSignals) {
-                        mOutputQueue.add(processedSignal);
+                if (mDraining && mInputQueue.size() == 0) {
+                    enqueue(onDrain());
+                    mDrained = true;
+                    mIsOpen = false;
+                    wakeReader();
+                    notifyReady();
+                    break;
+                }
+                if (LOG.isLoggable(LogWrapper.LOG_DEBUG)) {
+                    LOG.d(LOG_TAG, "Waiting for signal data");
+                }
+                long tickInterval = getTickInterval();
+                SignalInfo<InputDataType> signalInfo;
+                if (tickInterval > 0) {
+                    long now = System.currentTimeMillis();
+                    if (nextTick == 0) {
+                        nextTick = now + tickInterval;
+                    }
+                    signalInfo = mInputQueue.poll(Math.max(0, nextTick - now), TimeUnit.MILLISECONDS);
+                } else {
+                    signalInfo = mInputQueue.take();
+                }
+                if (signalInfo != null) {
+                    SignalTrace trace = signalInfo.mTrace;
+                    Callback<SignalInfo> onSent = signalInfo.mOnSent;
+                    SignalTracer.onProtocolIn(signalInfo);
+                    Collection<SignalInfo<OutputDataType>> processedSignals =
+                        processSignal(signalInfo);
+                    SignalTracer.onProtocolOut(trace, processedSignals);
+                    PersistentSignalOutbox.onProtocolOut(onSent, processedSignals);
+                    enqueue(processedSignals);
+                }
+                if (tickInterval > 0) {
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTick) {
+                        nextTick = now + tickInterval;
+                        enqueue(processTick(now));
                     }
                 }
             } catch (InterruptedException e) {
                 LOG.d(LOG_TAG, "Got interrupted while waiting for data. isOpen: ", mIsOpen);
             }
         }
+        onClosed();
+    }
+
+    private void enqueue(Collection<SignalInfo<OutputDataType>> processedSignals)
+            throws InterruptedException {
+        if (processedSignals != null && !processedSignals.isEmpty()) {
+            for(SignalInfo<OutputDataType> processedSignal: processedSignals) {
+                while (true) {
+                    try {
+                        mOutputQueue.put(processedSignal);
+                        break;
+                    } catch (InterruptedException e) {
+                        // drain() interrupts the thread to wake it up: only give up if closed
+                        if (!mIsOpen) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+            notifyReady();
+        }
+    }
+
+    @Override
+    public void setReadyListener(Runnable listener) {
+        mReadyListener = listener;
+    }
+
+    @Override
+    public SignalInfo<OutputDataType> poll() {
+        try {
+            return mOutputQueue.poll(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isFinished() {
+        return mDrained ? mOutputQueue.size() == 0 : !mIsOpen;
     }
 
     @Override
     public SignalInfo<OutputDataType> read() {
-        while (true) {
-            try {
-                return mOutputQueue.take();
-            } catch (InterruptedException e) {
-                if (!mIsOpen) {
-                    return null;
+        mReader = Thread.currentThread();
+        try {
+            while (true) {
+                try {
+                    if (mDrained) {
+                        // Everything left is already on the output queue
+                        return mOutputQueue.poll(0, TimeUnit.MILLISECONDS);
+                    }
+                    return mOutputQueue.take();
+                } catch (InterruptedException e) {
+                    if (!mIsOpen && !mDrained) {
+                        return null;
+                    }
                 }
             }
+        } finally {
+            synchronized (mReaderLock) {
+                mReader = null;
+                if (mReaderWoken) {
+                    // The interruption may have come after the signal was read: don't let it
+                    // reach the code that processes the signal
+                    mReaderWoken = false;
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    // Wakes up the thread blocked on read, if any, when the pipe is closed or drained
+    private void wakeReader() {
+        synchronized (mReaderLock) {
+            Thread reader = mReader;
+            if (reader != null) {
+                mReaderWoken = true;
+                reader.interrupt();
+            }
+        }
+    }
+
+    private void notifyReady() {
+        Runnable listener = mReadyListener;
+        if (listener != null) {
+            listener.run();
         }
     }
 
     @Override
     public void write(SignalInfo<InputDataType> signalInfo) {
-        mInputQueue.add(signalInfo);
+        try {
+            mInputQueue.put(signalInfo);
+        } catch (InterruptedException e) {
+            LOG.w(LOG_TAG, "Interrupted while waiting to write signal: ", signalInfo.mSignalName);
+            Thread.currentThread().interrupt();
+        }
     }
 
 }
\ No newline at end of file
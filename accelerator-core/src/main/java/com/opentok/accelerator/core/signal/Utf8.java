@@ -0,0 +1,75 @@
+package com.opentok.accelerator.core.signal;
+
+/**
+ * Helpers to measure Strings the way OpenTok does (in UTF-8 bytes) without encoding them, and to
+ * encode them into reusable buffers.
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * @return The number of bytes needed to encode text in UTF-8
+     */
+    static int length(CharSequence text) {
+        return length(text, 0, text.length());
+    }
+
+    /**
+     * @return The number of bytes needed to encode text[start, end) in UTF-8
+     */
+    static int length(CharSequence text, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes text in UTF-8 into buffer, that must have room for {@link #length(CharSequence)}
+     * bytes. Unpaired surrogates are encoded as U+FFFD.
+     *
+     * @return The number of bytes written
+     */
+    static int encode(CharSequence text, byte[] buffer) {
+        int position = 0;
+        int end = text.length();
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                if (Character.isSurrogate(c)) {
+                    c = '\uFFFD';
+                }
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+}
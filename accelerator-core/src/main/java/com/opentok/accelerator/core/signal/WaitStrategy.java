@@ -0,0 +1,59 @@
+package com.opentok.accelerator.core.signal;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Defines what a thread does while it waits on a {@link RingBufferSignalQueue} (a consumer waiting
+ * for data or a producer waiting for free space).
+ *   - SPIN: Busy waits. Lowest latency, but it burns a full core while idle. Only useful for short
+ *     bursts of very high traffic.
+ *   - YIELD: Yields the CPU between checks. Low latency, lower (but not zero) idle cost.
+ *   - PARK: Spins/yields a little and then parks the thread until the other side wakes it up. This
+ *     is the best option for most cases, since signals usually arrive in bursts.
+ */
+public enum WaitStrategy {
+    SPIN,
+    YIELD,
+    PARK;
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long MAX_PARK_NANOS = 1000000L;
+
+    /**
+     * Waits a little. Called in a loop by the waiting thread, which must re-check the condition it's
+     * waiting for after each call.
+     *
+     * @param counter Number of times this method has been called for the current wait.
+     * @param deadline System.nanoTime() value when the wait should end, or 0 to wait forever.
+     */
+    void idle(int counter, long deadline) {
+        switch (this) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                if (counter < SPIN_TRIES) {
+                    break;
+                }
+                if (counter < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                    break;
+                }
+                long parkNanos = MAX_PARK_NANOS;
+                if (deadline != 0) {
+                    parkNanos = Math.min(parkNanos, deadline - System.nanoTime());
+                }
+                if (parkNanos > 0) {
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+                break;
+        }
+    }
+
+    boolean parks() {
+        return this == PARK;
+    }
+}
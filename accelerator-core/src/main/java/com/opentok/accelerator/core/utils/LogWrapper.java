@@ -101,6 +101,14 @@ public class LogWrapper {
     mCurrentLogLevel |= (0xFF ^ levels);
   }
 
+  /**
+   * @return true if messages of the given level are logged. Hot paths can check it before
+   * logging, to avoid building the arguments of a message that would be discarded.
+   */
+  public boolean isLoggable(short level) {
+    return (mCurrentLogLevel & level) != 0;
+  }
+
   public LogWrapper(short logLevel) {
     setLogLevel(logLevel);
   }
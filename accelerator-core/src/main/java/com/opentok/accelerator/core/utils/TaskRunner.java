@@ -0,0 +1,16 @@
+package com.opentok.accelerator.core.utils;
+
+/**
+ * Something that runs tasks asynchronously: a {@link WorkStealingThreadPool} or a
+ * {@link ThreadPool} that owns its threads, or a lane of a shared
+ * {@link com.opentok.accelerator.core.signal.SignalRuntime}.
+ */
+public interface TaskRunner {
+
+    /**
+     * Runs 'runnable' asynchronously. It doesn't block.
+     * @param runnable
+     */
+    void runAsync(Runnable runnable);
+
+}
@@ -11,7 +11,7 @@ import java.util.concurrent.LinkedBlockingQueue;
  * the pool works is:
  *   - At creation time the minimum number of threads is defined (by default, 5)
  */
-public class ThreadPool {
+public class ThreadPool implements TaskRunner {
   private final String LOG_TAG = this.getClass().getSimpleName();
   private static final short LOCAL_LOG_LEVEL = LogWrapper.LOG_ERROR | LogWrapper.LOG_WARN;
   private static final LogWrapper LOG =
@@ -110,6 +110,7 @@ public class ThreadPool {
    * if there are any free, or a new thread will be created to process it otherwise.
    * @param runnable
    */
+  @Override
   public synchronized void runAsync(Runnable runnable) {
     mTasks.add(runnable);
     if (mFreeThreads.size() == 0) {
@@ -0,0 +1,312 @@
+package com.opentok.accelerator.core.utils;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread pool with the same API as {@link ThreadPool}, for tasks submitted from many threads at a
+ * high rate (the signal listeners of a session). The way the pool works is:
+ *   - Each worker thread has its own deque of tasks. The tasks submitted from outside the pool
+ *     are spread among the deques, and the ones submitted from a task go to the deque of its
+ *     worker. A worker without tasks steals the oldest task of another deque before going idle.
+ *   - There's no lock shared by the submitters and the workers: the deques and the list of idle
+ *     workers are lock free, and a submission only wakes up a worker when there's an idle one.
+ *   - A new thread is started only when there are no idle workers, and never beyond the maximum
+ *     number of threads. If the pool is full, the task waits until a worker is free.
+ *   - The threads above the minimum number finish after being idle for the keep alive time.
+ * Since the number of threads is bounded, tasks that block for long delay the rest.
+ */
+public class WorkStealingThreadPool implements TaskRunner {
+  private final String LOG_TAG = this.getClass().getSimpleName();
+  private static final short LOCAL_LOG_LEVEL = LogWrapper.LOG_ERROR | LogWrapper.LOG_WARN;
+  private static final LogWrapper LOG =
+    new LogWrapper((short)(GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+  public static void setLogLevel(short logLevel) {
+    LOG.setLogLevel(logLevel);
+  }
+
+  private static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+  private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+  /**
+   * Slot of the pool: a deque of tasks and, while it's active, the thread that runs them.
+   */
+  private static final class Worker {
+    private final ConcurrentLinkedDeque<Runnable> mTasks = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean mActive = new AtomicBoolean(false);
+    private final int mIndex;
+    private volatile Thread mThread;
+
+    Worker(int index) {
+      mIndex = index;
+    }
+  }
+
+  private class WorkerThread extends Thread {
+
+    private final Worker mWorker;
+
+    WorkerThread(Worker worker) {
+      super(LOG_TAG + "-" + sThreadCount.incrementAndGet());
+      mWorker = worker;
+    }
+
+    private WorkStealingThreadPool getPool() {
+      return WorkStealingThreadPool.this;
+    }
+
+    @Override
+    public void run() {
+      while (!mFinished) {
+        Runnable task = findTask(mWorker);
+        if (task == null) {
+          task = waitForTask(mWorker);
+          if (task == null) {
+            break;
+          }
+        }
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          // Don't let a failing task stop the thread
+          LOG.e(LOG_TAG, "Task failed: ", e);
+        }
+      }
+      if (mWorker.mThread == this) {
+        // Finished by the pool, not retired
+        mWorker.mThread = null;
+        mWorker.mActive.set(false);
+        mLiveThreads.decrementAndGet();
+      }
+      LOG.d(LOG_TAG, "WorkerThread: ", this, " exiting");
+    }
+  }
+
+  private final int mMinLiveThreads;
+  private final int mMaxLiveThreads;
+  private final long mKeepAliveNanos;
+  private final Worker[] mWorkers;
+  // Idle workers, the last one to go idle first. It lets the others time out.
+  private final ConcurrentLinkedDeque<Worker> mIdleWorkers = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger mLiveThreads = new AtomicInteger();
+  private final AtomicInteger mNextWorker = new AtomicInteger();
+  private volatile boolean mFinished = false;
+
+  /**
+   * @param minLiveThreads Threads that are kept alive while the pool is idle
+   * @param maxLiveThreads Maximum number of threads
+   * @param keepAlive Time an idle thread above the minimum waits for a task before finishing. It
+   *                  must be positive.
+   * @param unit Unit of keepAlive
+   */
+  public WorkStealingThreadPool(int minLiveThreads, int maxLiveThreads, long keepAlive,
+                                TimeUnit unit) {
+    if (minLiveThreads < 0 || maxLiveThreads <= 0 || minLiveThreads > maxLiveThreads) {
+      throw new IllegalArgumentException("Invalid number of threads: " + minLiveThreads + ", " +
+                                         maxLiveThreads);
+    }
+    if (keepAlive <= 0) {
+      // The idle threads wait for tasks with it: they would spin without it
+      throw new IllegalArgumentException("Keep alive must be positive: " + keepAlive);
+    }
+    mMinLiveThreads = minLiveThreads;
+    mMaxLiveThreads = maxLiveThreads;
+    mKeepAliveNanos = unit.toNanos(keepAlive);
+    mWorkers = new Worker[maxLiveThreads];
+    for (int i = 0; i < maxLiveThreads; i++) {
+      mWorkers[i] = new Worker(i);
+    }
+    for (int i = 0; i < minLiveThreads; i++) {
+      startThread();
+    }
+  }
+
+  /**
+   * Creates a pool that keeps 2 threads alive and grows up to 2 threads per core (at least 5,
+   * the live threads of a {@link ThreadPool}).
+   */
+  public WorkStealingThreadPool() {
+    this(2, Math.max(5, 2 * Runtime.getRuntime().availableProcessors()),
+         DEFAULT_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs 'runnable' asynchronously. The runnable will be executed on an idle thread if there are
+   * any, on a new thread if the pool isn't full, or when a thread is free otherwise.
+   * @param runnable
+   */
+  @Override
+  public void runAsync(Runnable runnable) {
+    if (mFinished) {
+      LOG.w(LOG_TAG, "Discarding a task submitted after finish");
+      return;
+    }
+    Thread current = Thread.currentThread();
+    Worker target;
+    if (current instanceof WorkerThread && ((WorkerThread) current).getPool() == this) {
+      target = ((WorkerThread) current).mWorker;
+    } else {
+      target = mWorkers[(mNextWorker.getAndIncrement() & Integer.MAX_VALUE) % mWorkers.length];
+    }
+    target.mTasks.addLast(runnable);
+    signalWork();
+  }
+
+  /**
+   * Stops all the threads. The tasks that haven't started yet are discarded.
+   */
+  public void finish() {
+    mFinished = true;
+    for (Worker worker : mWorkers) {
+      worker.mTasks.clear();
+      Thread thread = worker.mThread;
+      if (thread != null) {
+        thread.interrupt();
+        LockSupport.unpark(thread);
+      }
+    }
+    mIdleWorkers.clear();
+  }
+
+  /**
+   * @return Number of live threads
+   */
+  public int getLiveThreads() {
+    return mLiveThreads.get();
+  }
+
+  /**
+   * @return Maximum number of threads
+   */
+  public int getMaxLiveThreads() {
+    return mMaxLiveThreads;
+  }
+
+  /**
+   * @return Number of tasks waiting for a thread
+   */
+  public int getPendingTasks() {
+    int pending = 0;
+    for (Worker worker : mWorkers) {
+      pending += worker.mTasks.size();
+    }
+    return pending;
+  }
+
+  private void signalWork() {
+    Worker idle = mIdleWorkers.pollFirst();
+    if (idle != null) {
+      LockSupport.unpark(idle.mThread);
+    } else {
+      startThread();
+    }
+  }
+
+  private void startThread() {
+    int live;
+    do {
+      live = mLiveThreads.get();
+      if (live >= mMaxLiveThreads || mFinished) {
+        // A busy thread will take the task when it's done
+        return;
+      }
+    } while (!mLiveThreads.compareAndSet(live, live + 1));
+    // There's always a free slot, though a retiring thread can hold it for a moment after
+    // leaving the count
+    Worker worker = null;
+    while (worker == null) {
+      for (Worker candidate : mWorkers) {
+        if (candidate.mActive.compareAndSet(false, true)) {
+          worker = candidate;
+          break;
+        }
+      }
+      if (worker == null) {
+        Thread.yield();
+      }
+    }
+    WorkerThread thread = new WorkerThread(worker);
+    worker.mThread = thread;
+    LOG.d(LOG_TAG, "Adding new thread: ", thread, ". Total size: ", live + 1);
+    thread.start();
+  }
+
+  /**
+   * @return The next task of the worker, or the oldest one of another worker. Null if there
+   *         are no tasks.
+   */
+  private Runnable findTask(Worker worker) {
+    Runnable task = worker.mTasks.pollFirst();
+    if (task != null) {
+      return task;
+    }
+    for (int i = 1; i < mWorkers.length; i++) {
+      task = mWorkers[(worker.mIndex + i) % mWorkers.length].mTasks.pollFirst();
+      if (task != null) {
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parks the worker until there's a task for it.
+   *
+   * @return The task, or null if the thread must finish
+   */
+  private Runnable waitForTask(Worker worker) {
+    long idleSince = System.nanoTime();
+    while (!mFinished) {
+      // Go idle before looking for tasks again: a task submitted after this look either is
+      // found by it or finds the worker idle and wakes it up
+      mIdleWorkers.addFirst(worker);
+      Runnable task = findTask(worker);
+      if (task != null) {
+        if (!mIdleWorkers.remove(worker)) {
+          // A submission picked this worker to run its task: pass the wake up on
+          signalWork();
+        }
+        return task;
+      }
+      // A task may have interrupted its thread, which would make park return right away
+      Thread.interrupted();
+      LockSupport.parkNanos(this, mKeepAliveNanos);
+      if (!mIdleWorkers.remove(worker)) {
+        // Woken up by a submission
+        idleSince = System.nanoTime();
+        continue;
+      }
+      if (System.nanoTime() - idleSince >= mKeepAliveNanos && retire(worker)) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finishes the thread of an idle worker if there are more live threads than the minimum.
+   */
+  private boolean retire(Worker worker) {
+    int live;
+    do {
+      live = mLiveThreads.get();
+      if (live <= mMinLiveThreads) {
+        return false;
+      }
+    } while (!mLiveThreads.compareAndSet(live, live - 1));
+    worker.mThread = null;
+    worker.mActive.set(false);
+    // A task could have been submitted while leaving: make sure some thread runs it
+    if (getPendingTasks() > 0) {
+      signalWork();
+    }
+    LOG.d(LOG_TAG, "Idle thread finishing. Total size: ", live - 1);
+    return true;
+  }
+}
@@ -0,0 +1,74 @@
+package com.opentok.accelerator.core.wrapper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.opentok.accelerator.core.utils.ClientLog;
+import com.tokbox.android.logging.OTKAnalytics;
+import com.tokbox.android.logging.OTKAnalyticsData;
+
+import java.util.UUID;
+
+/**
+ * Client logs of one or several {@link OTWrapper}s. The wrappers created by an
+ * {@link OTSessionManager} share one, so all their events go through a single OTKAnalytics
+ * instance (and its batching) instead of one per session. Each wrapper keeps the data of its own
+ * session, which is set on the analytics before its events are logged.
+ * It's thread safe.
+ */
+final class AnalyticsLogger {
+    private final String mSource;
+    private final String mGuid;
+    private final OTKAnalytics mAnalytics;
+    // Data of the session that logged the last event
+    private OTKAnalyticsData mCurrentData;
+
+    AnalyticsLogger(Context context) {
+        mSource = context.getPackageName();
+
+        SharedPreferences prefs = context.getSharedPreferences("opentok", Context.MODE_PRIVATE);
+        String guidVSol = prefs.getString("guidVSol", null);
+        if (null == guidVSol) {
+            guidVSol = UUID.randomUUID().toString();
+            prefs.edit().putString("guidVSol", guidVSol).apply();
+        }
+        mGuid = guidVSol;
+
+        mCurrentData = newBaseData();
+        mAnalytics = new OTKAnalytics(mCurrentData);
+        mAnalytics.enableConsoleLog(false);
+    }
+
+    /**
+     * Creates the data of a session. The connection id is set once the session connects (see
+     * {@link #setData(OTKAnalyticsData)}).
+     */
+    OTKAnalyticsData newSessionData(String sessionId, String apiKey) {
+        OTKAnalyticsData data = newBaseData();
+        data.setSessionId(sessionId);
+        data.setPartnerId(apiKey);
+        setData(data);
+        return data;
+    }
+
+    /**
+     * Sets the data of a session again, after it's been modified.
+     */
+    synchronized void setData(OTKAnalyticsData data) {
+        mCurrentData = data;
+        mAnalytics.setData(data);
+    }
+
+    synchronized void logEvent(OTKAnalyticsData data, String action, String variation) {
+        if (data != mCurrentData) {
+            mCurrentData = data;
+            mAnalytics.setData(data);
+        }
+        mAnalytics.logEvent(action, variation);
+    }
+
+    private OTKAnalyticsData newBaseData() {
+        return new OTKAnalyticsData.
+                Builder(ClientLog.LOG_CLIENT_VERSION, mSource, ClientLog.LOG_COMPONENTID, mGuid).build();
+    }
+}
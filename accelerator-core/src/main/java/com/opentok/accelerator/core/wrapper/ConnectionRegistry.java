@@ -0,0 +1,474 @@
+package com.opentok.accelerator.core.wrapper;
+
+import com.opentok.android.Connection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connections of a session, indexed by id, by the attributes of their data and by age. The
+ * age index is an order statistic tree (a treap whose nodes know the size of their subtree), so
+ * the seniority queries used for leader election (am I the oldest? what's my rank? who are the k
+ * oldest?) cost O(log n) (plus k) no matter how many people join and leave.
+ * The connections are ordered by creation time, and by id when they were created at the same time,
+ * so every participant sees the same order.
+ * The data of each connection is parsed once, when it's added: a JSON object, or key=value pairs
+ * separated by '&' or ','. Each attribute is indexed, so the connections with a given role (for
+ * example) can be found without going through all of them.
+ * Lookups by id don't block. The rest of the methods are synchronized.
+ */
+public final class ConnectionRegistry {
+
+    /**
+     * A connection of the session
+     */
+    public static final class ConnectionEntry {
+        public final String mConnectionId;
+        public final long mCreationTime;
+        public final String mData;
+        /**
+         * The OpenTok connection. It can be null if the entry wasn't added from a Connection.
+         */
+        public final Connection mConnection;
+        private final Map<String, String> mAttributes;
+
+        ConnectionEntry(String connectionId, long creationTime, String data,
+                        Connection connection) {
+            mConnectionId = connectionId;
+            mCreationTime = creationTime;
+            mData = data;
+            mConnection = connection;
+            mAttributes = parseData(data);
+        }
+
+        /**
+         * @return The value of an attribute of the connection data, or null if it doesn't have it
+         */
+        public String getAttribute(String key) {
+            return mAttributes.get(key);
+        }
+
+        /**
+         * @return The attributes of the connection data
+         */
+        public Map<String, String> getAttributes() {
+            return Collections.unmodifiableMap(mAttributes);
+        }
+
+        // Age order: older first, and by id on ties
+        int compareTo(ConnectionEntry other) {
+            if (mCreationTime != other.mCreationTime) {
+                return mCreationTime < other.mCreationTime ? -1 : 1;
+            }
+            return mConnectionId.compareTo(other.mConnectionId);
+        }
+
+        @Override
+        public String toString() {
+            return mConnectionId + "(" + mCreationTime + ")";
+        }
+    }
+
+    // Treap node. The priorities keep it balanced on average.
+    private static final class Node {
+        final ConnectionEntry mEntry;
+        final int mPriority;
+        Node mLeft;
+        Node mRight;
+        int mSize = 1;
+
+        Node(ConnectionEntry entry, int priority) {
+            mEntry = entry;
+            mPriority = priority;
+        }
+    }
+
+    private final ConcurrentHashMap<String, ConnectionEntry> mById = new ConcurrentHashMap<>();
+    // attribute key -> value -> connections. Guarded by this.
+    private final HashMap<String, HashMap<String, LinkedHashSet<ConnectionEntry>>> mByAttribute =
+        new HashMap<>();
+    // Guarded by this
+    private Node mRoot;
+    private int mSeed = 0x2545F491;
+
+    /**
+     * Adds an OpenTok connection. Adding it again does nothing.
+     *
+     * @return Whether it was added
+     */
+    public boolean add(Connection connection) {
+        long creationTime = connection.getCreationTime() != null ?
+            connection.getCreationTime().getTime() : 0;
+        return add(connection.getConnectionId(), creationTime, connection.getData(), connection);
+    }
+
+    /**
+     * Adds a connection. Adding it again does nothing.
+     *
+     * @param connectionId Id of the connection
+     * @param creationTime Creation time of the connection, in milliseconds
+     * @param data Data of the connection. It can be null.
+     * @return Whether it was added
+     */
+    public boolean add(String connectionId, long creationTime, String data) {
+        return add(connectionId, creationTime, data, null);
+    }
+
+    private synchronized boolean add(String connectionId, long creationTime, String data,
+                                     Connection connection) {
+        if (connectionId == null) {
+            throw new IllegalArgumentException("The connection id cannot be null");
+        }
+        if (mById.containsKey(connectionId)) {
+            return false;
+        }
+        ConnectionEntry entry = new ConnectionEntry(connectionId, creationTime, data, connection);
+        mRoot = insert(mRoot, new Node(entry, nextPriority()));
+        mById.put(connectionId, entry);
+        for (Map.Entry<String, String> attribute : entry.mAttributes.entrySet()) {
+            HashMap<String, LinkedHashSet<ConnectionEntry>> values =
+                mByAttribute.get(attribute.getKey());
+            if (values == null) {
+                values = new HashMap<>();
+                mByAttribute.put(attribute.getKey(), values);
+            }
+            LinkedHashSet<ConnectionEntry> entries = values.get(attribute.getValue());
+            if (entries == null) {
+                entries = new LinkedHashSet<>();
+                values.put(attribute.getValue(), entries);
+            }
+            entries.add(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a connection.
+     *
+     * @return The removed connection, or null if it wasn't there
+     */
+    public synchronized ConnectionEntry remove(String connectionId) {
+        ConnectionEntry entry = connectionId != null ? mById.remove(connectionId) : null;
+        if (entry == null) {
+            return null;
+        }
+        mRoot = delete(mRoot, entry);
+        for (Map.Entry<String, String> attribute : entry.mAttributes.entrySet()) {
+            HashMap<String, LinkedHashSet<ConnectionEntry>> values =
+                mByAttribute.get(attribute.getKey());
+            LinkedHashSet<ConnectionEntry> entries = values.get(attribute.getValue());
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                values.remove(attribute.getValue());
+                if (values.isEmpty()) {
+                    mByAttribute.remove(attribute.getKey());
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Removes all the connections.
+     */
+    public synchronized void clear() {
+        mById.clear();
+        mByAttribute.clear();
+        mRoot = null;
+    }
+
+    /**
+     * @return The OpenTok connection with that id, or null if there's none. It doesn't block.
+     */
+    public Connection get(String connectionId) {
+        ConnectionEntry entry = connectionId != null ? mById.get(connectionId) : null;
+        return entry != null ? entry.mConnection : null;
+    }
+
+    /**
+     * @return The connection with that id, or null if there's none. It doesn't block.
+     */
+    public ConnectionEntry getEntry(String connectionId) {
+        return connectionId != null ? mById.get(connectionId) : null;
+    }
+
+    public boolean contains(String connectionId) {
+        return connectionId != null && mById.containsKey(connectionId);
+    }
+
+    /**
+     * @return Number of connections
+     */
+    public synchronized int size() {
+        return size(mRoot);
+    }
+
+    /**
+     * @return The ids of the connections
+     */
+    public Set<String> getConnectionIds() {
+        return Collections.unmodifiableSet(mById.keySet());
+    }
+
+    /**
+     * @return Number of connections older than this one (0 for the oldest), or -1 if it's not
+     *         registered. O(log n).
+     */
+    public synchronized int getRank(String connectionId) {
+        ConnectionEntry entry = getEntry(connectionId);
+        if (entry == null) {
+            return -1;
+        }
+        int rank = 0;
+        Node node = mRoot;
+        while (node != null) {
+            int cmp = entry.compareTo(node.mEntry);
+            if (cmp < 0) {
+                node = node.mLeft;
+            } else if (cmp > 0) {
+                rank += size(node.mLeft) + 1;
+                node = node.mRight;
+            } else {
+                return rank + size(node.mLeft);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Whether the connection is the oldest one. O(log n).
+     */
+    public boolean isOldest(String connectionId) {
+        return getRank(connectionId) == 0;
+    }
+
+    /**
+     * @param rank Number of connections older than the one returned
+     * @return The connection with that rank, or null if there are not so many. O(log n).
+     */
+    public synchronized ConnectionEntry select(int rank) {
+        if (rank < 0) {
+            return null;
+        }
+        Node node = mRoot;
+        while (node != null) {
+            int leftSize = size(node.mLeft);
+            if (rank < leftSize) {
+                node = node.mLeft;
+            } else if (rank > leftSize) {
+                rank -= leftSize + 1;
+                node = node.mRight;
+            } else {
+                return node.mEntry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The oldest connection, or null if there are none
+     */
+    public ConnectionEntry getOldest() {
+        return select(0);
+    }
+
+    /**
+     * @param count Number of connections to return
+     * @return The oldest connections, oldest first. O(log n + count).
+     */
+    public synchronized List<ConnectionEntry> getOldest(int count) {
+        ArrayList<ConnectionEntry> oldest = new ArrayList<>(Math.max(0, Math.min(count, 16)));
+        collectOldest(mRoot, count, oldest);
+        return oldest;
+    }
+
+    /**
+     * Compares the age of two connections.
+     *
+     * @return -1 if the first one is older, 1 if it's newer and 0 if they were created at the
+     *         same time
+     * @throws IllegalArgumentException If any of them is not registered
+     */
+    public int compareCreationTimes(String connectionId, String otherConnectionId) {
+        ConnectionEntry entry = getEntry(connectionId);
+        ConnectionEntry other = getEntry(otherConnectionId);
+        if (entry == null || other == null) {
+            throw new IllegalArgumentException("Unknown connection: " +
+                                               (entry == null ? connectionId : otherConnectionId));
+        }
+        return entry.mCreationTime < other.mCreationTime ? -1 :
+            (entry.mCreationTime == other.mCreationTime ? 0 : 1);
+    }
+
+    /**
+     * @return The connections whose data has that attribute value, in the order they were added
+     */
+    public synchronized List<ConnectionEntry> findByAttribute(String key, String value) {
+        HashMap<String, LinkedHashSet<ConnectionEntry>> values = mByAttribute.get(key);
+        LinkedHashSet<ConnectionEntry> entries = values != null ? values.get(value) : null;
+        return entries != null ? new ArrayList<>(entries) : new ArrayList<ConnectionEntry>();
+    }
+
+    /**
+     * @return Number of connections whose data has that attribute value
+     */
+    public synchronized int countByAttribute(String key, String value) {
+        HashMap<String, LinkedHashSet<ConnectionEntry>> values = mByAttribute.get(key);
+        LinkedHashSet<ConnectionEntry> entries = values != null ? values.get(value) : null;
+        return entries != null ? entries.size() : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "connections: " + size(mRoot) + ", oldest: " + (mRoot != null ? select(0) : null);
+    }
+
+    // Tree operations. All of them are called with the lock held.
+
+    private static int size(Node node) {
+        return node != null ? node.mSize : 0;
+    }
+
+    private static Node update(Node node) {
+        node.mSize = size(node.mLeft) + size(node.mRight) + 1;
+        return node;
+    }
+
+    private int nextPriority() {
+        // xorshift: good enough to keep the treap balanced, and no allocation
+        int x = mSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mSeed = x;
+        return x;
+    }
+
+    private static Node insert(Node root, Node node) {
+        if (root == null) {
+            return node;
+        }
+        if (node.mPriority > root.mPriority) {
+            Node[] parts = new Node[2];
+            split(root, node.mEntry, parts);
+            node.mLeft = parts[0];
+            node.mRight = parts[1];
+            return update(node);
+        }
+        if (node.mEntry.compareTo(root.mEntry) < 0) {
+            root.mLeft = insert(root.mLeft, node);
+        } else {
+            root.mRight = insert(root.mRight, node);
+        }
+        return update(root);
+    }
+
+    private static Node delete(Node root, ConnectionEntry entry) {
+        if (root == null) {
+            return null;
+        }
+        int cmp = entry.compareTo(root.mEntry);
+        if (cmp == 0) {
+            return merge(root.mLeft, root.mRight);
+        }
+        if (cmp < 0) {
+            root.mLeft = delete(root.mLeft, entry);
+        } else {
+            root.mRight = delete(root.mRight, entry);
+        }
+        return update(root);
+    }
+
+    // Splits the tree in the nodes older than entry (parts[0]) and the rest (parts[1])
+    private static void split(Node root, ConnectionEntry entry, Node[] parts) {
+        if (root == null) {
+            parts[0] = null;
+            parts[1] = null;
+            return;
+        }
+        if (root.mEntry.compareTo(entry) < 0) {
+            split(root.mRight, entry, parts);
+            root.mRight = parts[0];
+            parts[0] = update(root);
+        } else {
+            split(root.mLeft, entry, parts);
+            root.mLeft = parts[1];
+            parts[1] = update(root);
+        }
+    }
+
+    // Merges two trees, all the nodes of left being older than the ones of right
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.mPriority > right.mPriority) {
+            left.mRight = merge(left.mRight, right);
+            return update(left);
+        }
+        right.mLeft = merge(left, right.mLeft);
+        return update(right);
+    }
+
+    private static void collectOldest(Node node, int count, List<ConnectionEntry> oldest) {
+        if (node == null || oldest.size() >= count) {
+            return;
+        }
+        collectOldest(node.mLeft, count, oldest);
+        if (oldest.size() < count) {
+            oldest.add(node.mEntry);
+            collectOldest(node.mRight, count, oldest);
+        }
+    }
+
+    // Connection data parsing
+
+    private static Map<String, String> parseData(String data) {
+        HashMap<String, String> attributes = new HashMap<>();
+        if (data == null) {
+            return attributes;
+        }
+        String trimmed = data.trim();
+        if (trimmed.startsWith("{")) {
+            try {
+                JSONObject json = new JSONObject(trimmed);
+                Iterator<String> keys = json.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    attributes.put(key, json.optString(key));
+                }
+            } catch (JSONException e) {
+                // Not JSON after all: no attributes
+            }
+            return attributes;
+        }
+        int start = 0;
+        int length = trimmed.length();
+        while (start < length) {
+            int end = start;
+            while (end < length && trimmed.charAt(end) != '&' && trimmed.charAt(end) != ',') {
+                end++;
+            }
+            int equals = trimmed.indexOf('=', start);
+            if (equals > start && equals < end) {
+                attributes.put(trimmed.substring(start, equals).trim(),
+                               trimmed.substring(equals + 1, end).trim());
+            }
+            start = end + 1;
+        }
+        return attributes;
+    }
+}
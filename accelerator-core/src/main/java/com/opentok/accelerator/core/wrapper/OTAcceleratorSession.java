@@ -2,21 +2,29 @@ package com.opentok.accelerator.core.wrapper;
 
 import android.content.Context;
 import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.signal.MailboxSignalDispatcher;
+import com.opentok.accelerator.core.signal.PersistentSignalOutbox;
+import com.opentok.accelerator.core.signal.PoolSignalDispatcher;
+import com.opentok.accelerator.core.signal.SignalDecoder;
+import com.opentok.accelerator.core.signal.SignalDispatcher;
 import com.opentok.accelerator.core.signal.SignalInfo;
+import com.opentok.accelerator.core.signal.SignalInfoPool;
+import com.opentok.accelerator.core.signal.SignalPriorities;
 import com.opentok.accelerator.core.signal.SignalProcessorThread;
 import com.opentok.accelerator.core.signal.SignalProtocol;
+import com.opentok.accelerator.core.signal.SignalRuntime;
+import com.opentok.accelerator.core.signal.SignalSwapStats;
+import com.opentok.accelerator.core.signal.SignalTracer;
 import com.opentok.accelerator.core.utils.Callback;
 import com.opentok.accelerator.core.utils.LogWrapper;
-import com.opentok.accelerator.core.utils.ThreadPool;
+import com.opentok.accelerator.core.utils.TaskRunner;
+import com.opentok.accelerator.core.utils.WorkStealingThreadPool;
 import com.opentok.android.Connection;
 import com.opentok.android.OpentokError;
 import com.opentok.android.Session;
 import com.opentok.android.Stream;
 
-import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -27,21 +35,28 @@ public class OTAcceleratorSession extends Session {
     private static final LogWrapper LOG =
             new LogWrapper((short) (GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
     private final String LOG_TAG = this.getClass().getSimpleName();
-    ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+    final ConnectionRegistry connections = new ConnectionRegistry();
     private HashSet<SessionListener> mSessionListeners = new HashSet<>();
     private HashSet<ConnectionListener> mConnectionsListeners = new HashSet<>();
     private HashSet<ArchiveListener> mArchiveListeners = new HashSet<>();
     private HashSet<StreamPropertiesListener> mStreamPropertiesListeners = new HashSet<>();
     private HashSet<ReconnectionListener> mReconnectionListeners = new HashSet<>();
-    private ConcurrentHashMap<String, ArrayList<com.opentok.accelerator.core.listeners.SignalListener>>
-            mSignalListeners =
-            new ConcurrentHashMap<>();
+    private final SignalListenerRegistry mSignalListeners = new SignalListenerRegistry();
+    private ConcurrentHashMap<String, SignalDecoder<?>> mSignalDecoders = new ConcurrentHashMap<>();
     //signal protocol
     private SignalProtocol mInputSignalProtocol;
     private SignalProtocol mOutputSignalProtocol;
     private SignalProcessorThread mInputSignalProcessor;
     private SignalProcessorThread mOutputSignalProcessor;
-    private ThreadPool mSignalThreadPool;
+    private final SignalSwapStats mInputSwapStats = new SignalSwapStats();
+    private final SignalSwapStats mOutputSwapStats = new SignalSwapStats();
+    private volatile PersistentSignalOutbox mSignalOutbox;
+    private volatile SignalInfoPool mSignalInfoPool;
+    private WorkStealingThreadPool mSignalThreadPool;
+    private volatile SignalRuntime mSignalRuntime;
+    private volatile SignalRuntime.Lane mSignalLane;
+    private volatile SignalDispatcher mSignalDispatcher = new PoolSignalDispatcher();
+    private SignalPriorities mSignalPriorities;
     private Callback<SignalInfo> mInternalSendSignal = new Callback<SignalInfo>() {
         @Override
         public void run(SignalInfo signalInfo) {
@@ -58,17 +73,35 @@ public class OTAcceleratorSession extends Session {
             dispatchSignal(signalInfo);
         }
     };
+    private Callback<SignalInfo> mSendOutboxSignal = new Callback<SignalInfo>() {
+        @Override
+        public void run(SignalInfo signalInfo) {
+            Connection connection = null;
+            if (signalInfo.mDstConnId != null) {
+                connection = connections.get(signalInfo.mDstConnId);
+                if (connection == null) {
+                    // Don't turn it into a broadcast signal
+                    LOG.w(LOG_TAG, "Discarding outbox signal to a connection that left: ",
+                          signalInfo.mSignalName);
+                    notifySent(signalInfo);
+                    return;
+                }
+            }
+            sendSignalNow(signalInfo, connection);
+        }
+    };
     private Session.SignalListener mSignalListener = new Session.SignalListener() {
         @Override
         public void onSignalReceived(Session session, String signalName, String data,
                                      Connection connection) {
             String connId = connection != null ? connection.getConnectionId() : null;
-            SignalInfo inputSignal = new SignalInfo(connId, OTAcceleratorSession.this.getConnection().getConnectionId(), signalName, data);
-            if (mInputSignalProtocol != null) {
-                mInputSignalProtocol.write(inputSignal);
-            } else {
-                dispatchSignal(inputSignal);
-            }
+            String ownConnId = OTAcceleratorSession.this.getConnection().getConnectionId();
+            SignalInfoPool pool = mSignalInfoPool;
+            SignalInfo inputSignal = pool != null ?
+                    pool.obtain(connId, ownConnId, signalName, data) :
+                    new SignalInfo(connId, ownConnId, signalName, data);
+            SignalTracer.onSignalWritten(inputSignal);
+            receiveSignal(inputSignal);
         }
     };
 
@@ -91,24 +124,21 @@ public class OTAcceleratorSession extends Session {
      * Registers a signal listener for a given signal.
      *
      * @param signalName Name of the signal this listener will listen to. Pass "*" if the listener
-     *                   is to be invoked for all signals.
-     * @param listener   Listener that will be invoked when a signal is received.
+     *                   is to be invoked for all signals. It can also be a prefix ending in '*'
+     *                   ("otAnnotation_*") or a glob using '*' and '?' ("ot*_pen"). A listener
+     *                   registered for several patterns that match a signal is invoked only once.
+     * @param listener   Listener that will be invoked when a signal is received. If it's a
+     *                   {@link com.opentok.accelerator.core.listeners.NonBlockingSignalListener},
+     *                   it's invoked directly on the thread that dispatches the signals.
      */
     public void addSignalListener(String signalName,
                                   com.opentok.accelerator.core.listeners.SignalListener listener) {
         LOG.d(LOG_TAG, "Adding Signal Listener for: ", signalName);
-        if (mSignalThreadPool == null) {
-            mSignalThreadPool = new ThreadPool();
+        if (mSignalThreadPool == null && mSignalRuntime == null) {
+            mSignalThreadPool = new WorkStealingThreadPool();
         }
-        ArrayList<com.opentok.accelerator.core.listeners.SignalListener> perNameListeners =
-                mSignalListeners.get(signalName);
-        if (perNameListeners == null) {
-            perNameListeners = new ArrayList<>();
-            mSignalListeners.put(signalName, perNameListeners);
-        }
-        if (perNameListeners.indexOf(listener) == -1) {
+        if (mSignalListeners.add(signalName, listener)) {
             LOG.d(LOG_TAG, "Signal listener for: ", signalName, " is new!");
-            perNameListeners.add(listener);
         }
     }
 
@@ -121,34 +151,48 @@ public class OTAcceleratorSession extends Session {
      * @param listener Listener to be removed
      */
     public void removeSignalListener(com.opentok.accelerator.core.listeners.SignalListener listener) {
-        Enumeration<String> signalNames = mSignalListeners.keys();
-        while (signalNames.hasMoreElements()) {
-            String signalName = signalNames.nextElement();
-            LOG.d(LOG_TAG, "removeSignal(", listener.toString(), ") for ", signalName);
-            removeSignalListener(signalName, listener);
-        }
+        LOG.d(LOG_TAG, "removeSignal(", listener.toString(), ")");
+        mSignalListeners.remove(listener);
+        mSignalDispatcher.removeListener(listener);
     }
 
     /**
      * Removes a signal listener.
      *
-     * @param signalName Name of the signal this listener will listen to. Pass "*" if the listener
-     *                   is to be invoked for all signals.
+     * @param signalName Name or pattern the listener was registered with.
      * @param listener   Listener to be removed.
      */
     public void removeSignalListener(String signalName,
                                      com.opentok.accelerator.core.listeners.SignalListener listener) {
-        ArrayList<com.opentok.accelerator.core.listeners.SignalListener> perNameListeners =
-                mSignalListeners.get(signalName);
-        if (perNameListeners == null) {
-            return;
-        }
-        perNameListeners.remove(listener);
-        if (perNameListeners.size() == 0) {
-            mSignalListeners.remove(signalName);
+        mSignalListeners.remove(signalName, listener);
+    }
+
+    /**
+     * Registers the decoder for a given signal. The data of the received signals with that name is
+     * decoded just once, before dispatching them, and the result is available to all the listeners
+     * through {@link SignalInfo#getDecodedData()}. Only signals whose data is still a String after
+     * the input protocol are decoded.
+     *
+     * @param signalName Name of the signal to decode.
+     * @param decoder    Decoder for the signal. Registering a different decoder for the same name
+     *                   replaces the previous one.
+     */
+    public void registerSignalDecoder(String signalName, SignalDecoder<?> decoder) {
+        SignalDecoder<?> previous = mSignalDecoders.put(signalName, decoder);
+        if (previous != null && previous != decoder) {
+            LOG.w(LOG_TAG, "Replacing the signal decoder for: ", signalName);
         }
     }
 
+    /**
+     * Removes the decoder registered for a given signal.
+     *
+     * @param signalName Name of the signal.
+     */
+    public void unregisterSignalDecoder(String signalName) {
+        mSignalDecoders.remove(signalName);
+    }
+
     /**
      * Sends a new signal
      *
@@ -156,6 +200,58 @@ public class OTAcceleratorSession extends Session {
      * @param connection Destiantion connection. If null, the signal will be sent to all.
      */
     public void sendSignal(SignalInfo signalInfo, Connection connection) {
+        PersistentSignalOutbox outbox = mSignalOutbox;
+        if (outbox != null && outbox.accepts(signalInfo.mSignalName)) {
+            outbox.add(signalInfo);
+        } else {
+            sendSignalNow(signalInfo, connection);
+        }
+    }
+
+    /**
+     * Sets an outbox that keeps the signals it accepts until they are sent, even if the process
+     * dies. Those signals can be sent while the session is not connected: they are sent, in order,
+     * once it connects or reconnects.
+     *
+     * @param outbox The outbox. Pass null to send all the signals immediately.
+     */
+    public void setSignalOutbox(PersistentSignalOutbox outbox) {
+        PersistentSignalOutbox previous = mSignalOutbox;
+        if (previous != null && previous != outbox) {
+            previous.detach();
+        }
+        mSignalOutbox = outbox;
+        if (outbox != null && getConnection() != null) {
+            outbox.attach(mSendOutboxSignal);
+        }
+    }
+
+    /**
+     * @return The outbox of the session, or null if it has none
+     */
+    public PersistentSignalOutbox getSignalOutbox() {
+        return mSignalOutbox;
+    }
+
+    /**
+     * Sets a pool for the envelopes of the received signals, so receiving them doesn't allocate
+     * one for each signal. With a pool, listeners can only use the signal they receive while
+     * onSignalReceived runs, unless they retain it (see {@link SignalInfo} for the details).
+     *
+     * @param pool The pool. Pass null (the default) to create a new SignalInfo for each signal.
+     */
+    public void setSignalInfoPool(SignalInfoPool pool) {
+        mSignalInfoPool = pool;
+    }
+
+    /**
+     * @return The pool of the received signals, or null if the session has none
+     */
+    public SignalInfoPool getSignalInfoPool() {
+        return mSignalInfoPool;
+    }
+
+    private void sendSignalNow(SignalInfo signalInfo, Connection connection) {
         if (mOutputSignalProtocol != null) {
             mOutputSignalProtocol.write(signalInfo);
         } else {
@@ -181,6 +277,15 @@ public class OTAcceleratorSession extends Session {
             sendSignal(signalInfo.mSignalName, (String) signalInfo.mData,
                     connection);
         }
+        notifySent(signalInfo);
+    }
+
+    // Lets the outbox know that one of its signals has left (or won't ever leave) the session
+    private void notifySent(SignalInfo signalInfo) {
+        Callback<SignalInfo> onSent = signalInfo.mOnSent;
+        if (onSent != null) {
+            onSent.run(signalInfo);
+        }
     }
 
     /**
@@ -200,33 +305,67 @@ public class OTAcceleratorSession extends Session {
         return mSignalListener;
     }
 
-    private void dispatchSignal(ArrayList<com.opentok.accelerator.core.listeners.SignalListener> listeners,
-                                final SignalInfo signalInfo, boolean global) {
-        if (listeners != null) {
-            Iterator<com.opentok.accelerator.core.listeners.SignalListener> listenerIterator =
-                    listeners.iterator();
-            while (listenerIterator.hasNext()) {
-                LOG.d(LOG_TAG, "Starting thread to process: ", signalInfo.mSignalName,
-                        " : ", signalInfo.mData);
-                final com.opentok.accelerator.core.listeners.SignalListener listener =
-                        listenerIterator.next();
-                mSignalThreadPool.runAsync(new Runnable() {
-                    @Override
-                    public void run() {
-                        LOG.d(LOG_TAG, "Dispatching signal: ", signalInfo.mSignalName,
-                                " : ", signalInfo.mData,
-                                " on thread: ", Thread.currentThread().getId());
-                        listener.
-                                onSignalReceived(signalInfo,
-                                        OTAcceleratorSession.this.getConnection().
-                                                getConnectionId().equals(signalInfo.mSrcConnId));
-                    }
-                });
+    /**
+     * @return The connections of the session, ordered by age and indexed by id and by the
+     *         attributes of their data
+     */
+    public ConnectionRegistry getConnectionRegistry() {
+        return connections;
+    }
+
+    /**
+     * Sets the shared runtime where the signal listeners and the signal processors of this
+     * session run, instead of on threads of its own. The session gets its own lanes on it, so it
+     * can't starve the other sessions that share it: its listeners use at most half of the
+     * runtime threads at the same time. It should be set before the signal protocols
+     * and priorities: the processors that already exist keep their threads.
+     *
+     * @param runtime The runtime to use, usually {@link SignalRuntime#getDefault()}. Pass null to
+     *                go back to the session's own threads.
+     */
+    public synchronized void setSignalRuntime(SignalRuntime runtime) {
+        mSignalRuntime = runtime;
+        if (runtime != null) {
+            mSignalLane = runtime.newLane(getSessionId() + "/listeners",
+                                          Math.max(1, runtime.getThreadCount() / 2));
+            if (mSignalThreadPool != null) {
+                mSignalThreadPool.finish();
+                mSignalThreadPool = null;
             }
         } else {
-            LOG.d(LOG_TAG, "dispatchSignal: No ", (global ? "global " : ""),
-                    "listeners registered for: ", signalInfo.mSignalName);
+            mSignalLane = null;
+            if (mSignalThreadPool == null) {
+                mSignalThreadPool = new WorkStealingThreadPool();
+            }
+        }
+    }
+
+    /**
+     * @return The runtime the signals are processed on, or null if the session uses its own
+     *         threads
+     */
+    public SignalRuntime getSignalRuntime() {
+        return mSignalRuntime;
+    }
+
+    /**
+     * Sets how the received signals are delivered to their listeners. By default a
+     * {@link PoolSignalDispatcher} is used, which doesn't guarantee any ordering.
+     *
+     * @param dispatcher The dispatcher to use. It cannot be null.
+     */
+    public void setSignalDispatcher(SignalDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("The signal dispatcher cannot be null");
         }
+        mSignalDispatcher = dispatcher;
+    }
+
+    /**
+     * @return The dispatcher that delivers the received signals to their listeners
+     */
+    public SignalDispatcher getSignalDispatcher() {
+        return mSignalDispatcher;
     }
 
     /**
@@ -236,9 +375,23 @@ public class OTAcceleratorSession extends Session {
      *                      raw signals.
      */
     public synchronized void setInputSignalProtocol(SignalProtocol inputProtocol) {
+        setInputSignalProtocol(inputProtocol, false);
+    }
+
+    /**
+     * Sets an input signal processor.
+     *
+     * @param inputProtocol The input protocol you want to enforce. Pass null if you wish to receive
+     *                      raw signals.
+     * @param drain If true, the current protocol is drained instead of closed (if it's a
+     *              {@link com.opentok.accelerator.core.signal.DrainableSignalProtocol}): the
+     *              signals it has accepted are dispatched before the ones of the new protocol.
+     */
+    public synchronized void setInputSignalProtocol(SignalProtocol inputProtocol, boolean drain) {
         mInputSignalProtocol = inputProtocol;
-        mInputSignalProcessor =
-                refreshSignalProcessor(mInputSignalProcessor, mInputSignalProtocol, mDispatchSignal);
+        mInputSignalProcessor = refreshSignalProcessor(mInputSignalProcessor, mInputSignalProtocol,
+                                                       mDispatchSignal, drain, mInputSwapStats,
+                                                       "input");
     }
 
     /**
@@ -247,27 +400,154 @@ public class OTAcceleratorSession extends Session {
      * @param outputProtocol
      */
     public synchronized void setOutputSignalProtocol(SignalProtocol outputProtocol) {
+        setOutputSignalProtocol(outputProtocol, false);
+    }
+
+    /**
+     * Sets an output signal protocol.
+     *
+     * @param outputProtocol
+     * @param drain If true, the current protocol is drained instead of closed (if it's a
+     *              {@link com.opentok.accelerator.core.signal.DrainableSignalProtocol}): the
+     *              signals it has accepted are sent before the ones of the new protocol.
+     */
+    public synchronized void setOutputSignalProtocol(SignalProtocol outputProtocol, boolean drain) {
         mOutputSignalProtocol = outputProtocol;
-        mOutputSignalProcessor =
-                refreshSignalProcessor(mOutputSignalProcessor, mOutputSignalProtocol, mInternalSendSignal);
+        mOutputSignalProcessor = refreshSignalProcessor(mOutputSignalProcessor, mOutputSignalProtocol,
+                                                        mInternalSendSignal, drain, mOutputSwapStats,
+                                                        "output");
     }
 
-    private void dispatchSignal(final SignalInfo signalInfo) {
-        LOG.d(LOG_TAG, "Dispatching signal: ", signalInfo.mSignalName, " with: ", signalInfo.mData);
-        dispatchSignal(mSignalListeners.get("*"), signalInfo, true);
+    /**
+     * @return The drained swaps of the input signal protocol
+     */
+    public SignalSwapStats getInputSignalSwapStats() {
+        return mInputSwapStats;
+    }
 
-        if (signalInfo.mSignalName != null) {
-            dispatchSignal(mSignalListeners.get(signalInfo.mSignalName), signalInfo, false);
+    /**
+     * @return The drained swaps of the output signal protocol
+     */
+    public SignalSwapStats getOutputSignalSwapStats() {
+        return mOutputSwapStats;
+    }
+
+    /**
+     * Sets the priority classes of the sent and received signals, so control and chat signals can
+     * overtake a burst of bulk signals (annotations, for example). Signals of the same class keep
+     * their order.
+     * The signals can only be reordered where they queue:
+     *   - The input and output signal processors deliver the signals their protocols have ready
+     *     following the priorities.
+     *   - The dispatcher is replaced with a {@link MailboxSignalDispatcher} created with the
+     *     priorities, which reorders the signals waiting for their listeners (the default
+     *     dispatcher hands each signal to the pool right away).
+     * To reorder the signals waiting to be processed inside a protocol, create it with the same
+     * priorities.
+     *
+     * @param priorities Priority of each signal name and how the classes are scheduled. Pass null
+     *                   to keep the arrival order and go back to the default dispatcher.
+     */
+    public synchronized void setSignalPriorities(SignalPriorities priorities) {
+        mSignalPriorities = priorities;
+        if (mInputSignalProcessor != null) {
+            mInputSignalProcessor.setSignalPriorities(priorities);
+        }
+        if (mOutputSignalProcessor != null) {
+            mOutputSignalProcessor.setSignalPriorities(priorities);
+        }
+        setSignalDispatcher(priorities != null ? new MailboxSignalDispatcher(priorities) :
+                            new PoolSignalDispatcher());
+    }
+
+    private void attachSignalOutbox(boolean attach) {
+        PersistentSignalOutbox outbox = mSignalOutbox;
+        if (outbox != null) {
+            if (attach) {
+                outbox.attach(mSendOutboxSignal);
+            } else {
+                outbox.detach();
+            }
+        }
+    }
+
+    private void receiveSignal(SignalInfo signalInfo) {
+        if (mInputSignalProtocol != null) {
+            mInputSignalProtocol.write(signalInfo);
+        } else {
+            dispatchSignal(signalInfo);
+        }
+    }
+
+    private void decodeSignal(SignalInfo signalInfo) {
+        if (signalInfo.mSignalName == null || signalInfo.mDecodedData != null ||
+            !(signalInfo.mData instanceof String)) {
+            return;
+        }
+        SignalDecoder<?> decoder = mSignalDecoders.get(signalInfo.mSignalName);
+        if (decoder != null) {
+            try {
+                signalInfo.mDecodedData = decoder.decode((String) signalInfo.mData);
+            } catch (Exception e) {
+                LOG.w(LOG_TAG, "Cannot decode signal: ", signalInfo.mSignalName, ". ", e.getMessage());
+            }
+        }
+    }
+
+    // The session owns the signal until it's dispatched: the dispatcher retains it if it needs
+    // it for longer
+    private void dispatchSignal(final SignalInfo signalInfo) {
+        try {
+            if (LOG.isLoggable(LogWrapper.LOG_DEBUG)) {
+                LOG.d(LOG_TAG, "Dispatching signal: ", signalInfo.mSignalName, " with: ",
+                      signalInfo.mData);
+            }
+            decodeSignal(signalInfo);
+            SignalListenerRegistry.Listeners listeners =
+                    mSignalListeners.getListeners(signalInfo.mSignalName);
+            if (listeners.isEmpty()) {
+                if (LOG.isLoggable(LogWrapper.LOG_DEBUG)) {
+                    LOG.d(LOG_TAG, "dispatchSignal: No listeners registered for: ",
+                          signalInfo.mSignalName);
+                }
+                return;
+            }
+            SignalTracer.onSignalDispatched(signalInfo);
+            boolean isSelfSignal = getConnection().getConnectionId().equals(signalInfo.mSrcConnId);
+            if (listeners.mDispatched.length > 0) {
+                SignalRuntime.Lane lane = mSignalLane;
+                TaskRunner runner = lane != null ? lane : mSignalThreadPool;
+                mSignalDispatcher.dispatch(runner, listeners.mDispatched, signalInfo, isSelfSignal);
+            }
+            // The non blocking listeners run here, while the dispatched ones run on the pool
+            for (com.opentok.accelerator.core.listeners.SignalListener listener : listeners.mInline) {
+                try {
+                    SignalTracer.deliver(listener, signalInfo, isSelfSignal);
+                } catch (RuntimeException e) {
+                    // Don't let a failing listener stop the delivery of this or the next signals
+                    LOG.e(LOG_TAG, "Listener failed processing: ", signalInfo.mSignalName, ". ", e);
+                }
+            }
+        } finally {
+            signalInfo.release();
         }
     }
 
     private SignalProcessorThread refreshSignalProcessor(SignalProcessorThread currentProcessor,
                                                          SignalProtocol signalProtocol,
-                                                         Callback<SignalInfo> cb) {
+                                                         Callback<SignalInfo> cb,
+                                                         boolean drain,
+                                                         SignalSwapStats swapStats,
+                                                         String name) {
         if (currentProcessor != null) {
-            return currentProcessor.switchPipe(signalProtocol);
+            return currentProcessor.switchPipe(signalProtocol, drain);
         } else {
-            return new SignalProcessorThread(signalProtocol, cb);
+            SignalRuntime runtime = mSignalRuntime;
+            TaskRunner runner = runtime != null ? runtime.newLane(getSessionId() + "/" + name) : null;
+            SignalProcessorThread processor =
+                new SignalProcessorThread(signalProtocol, cb, swapStats, runner);
+            processor.setSignalPriorities(mSignalPriorities);
+            return processor;
         }
     }
 
@@ -301,10 +581,12 @@ public class OTAcceleratorSession extends Session {
         for (SessionListener l : mSessionListeners) {
             l.onConnected(this);
         }
+        attachSignalOutbox(true);
     }
 
     @Override
     public void onReconnecting() {
+        attachSignalOutbox(false);
         for (ReconnectionListener l : mReconnectionListeners) {
             l.onReconnecting(this);
         }
@@ -315,17 +597,26 @@ public class OTAcceleratorSession extends Session {
         for (ReconnectionListener l : mReconnectionListeners) {
             l.onReconnected(this);
         }
+        attachSignalOutbox(true);
     }
 
     @Override
     public void onDisconnected() {
+        attachSignalOutbox(false);
         for (SessionListener l : mSessionListeners) {
             l.onDisconnected(this);
         }
+        // Drop the queued runs before the mailboxes they drain, so a mailbox isn't left
+        // scheduled with its run discarded
+        SignalRuntime.Lane lane = mSignalLane;
+        if (lane != null) {
+            lane.clear();
+        }
         if (mSignalThreadPool != null) {
             mSignalThreadPool.finish();
             mSignalThreadPool = null;
         }
+        mSignalDispatcher.clear();
     }
 
     @Override
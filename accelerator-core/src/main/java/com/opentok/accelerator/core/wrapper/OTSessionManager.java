@@ -0,0 +1,260 @@
+package com.opentok.accelerator.core.wrapper;
+
+import android.content.Context;
+
+import com.opentok.accelerator.core.GlobalLogLevel;
+import com.opentok.accelerator.core.listeners.AdvancedListener;
+import com.opentok.accelerator.core.listeners.BasicListener;
+import com.opentok.accelerator.core.signal.SignalInfoPool;
+import com.opentok.accelerator.core.signal.SignalRuntime;
+import com.opentok.accelerator.core.utils.LogWrapper;
+import com.opentok.accelerator.core.utils.OTConfig;
+import com.opentok.android.BaseVideoRenderer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Manages several OpenTok sessions (for example, a lobby and its breakout rooms), each one with
+ * its own {@link OTWrapper}. The wrappers keep their per-session state (connections, publishers,
+ * subscribers and signal protocols) but share:
+ *   - The threads that process their signals (a {@link SignalRuntime}) and the pool of the
+ *     received signals.
+ *   - A single analytics instance for their client logs.
+ *   - The remote video renderers, and the listeners added to the manager.
+ * One of the sessions is the active one. Switching the active session moves the camera
+ * publisher from the old session to the new one, with its capturer running, instead of
+ * destroying it and creating a new one.
+ * Usage:
+ *   OTSessionManager manager = new OTSessionManager(context);
+ *   manager.addBasicListener(listener);
+ *   manager.addSession("lobby", lobbyConfig).connect();
+ *   manager.setActiveSession("lobby").startPublishingMedia(previewConfig, false);
+ *   ...
+ *   manager.addSession("room1", roomConfig).connect();
+ *   manager.setActiveSession("room1");
+ */
+public class OTSessionManager {
+    private static final String LOG_TAG = OTSessionManager.class.getSimpleName();
+    private static final short LOCAL_LOG_LEVEL = 0xFF;
+    private static final LogWrapper LOG =
+            new LogWrapper((short) (GlobalLogLevel.sMaxLogLevel & LOCAL_LOG_LEVEL));
+
+    public static void setLogLevel(short logLevel) {
+        LOG.setLogLevel(logLevel);
+    }
+
+    private final Context mContext;
+    private final SignalRuntime mSignalRuntime;
+    private final SignalInfoPool mSignalInfoPool;
+    private final AnalyticsLogger mAnalytics;
+    private final LinkedHashMap<String, OTWrapper> mSessions = new LinkedHashMap<>();
+    private final ArrayList<BasicListener> mBasicListeners = new ArrayList<>();
+    private final ArrayList<AdvancedListener<OTWrapper>> mAdvancedListeners = new ArrayList<>();
+    private String mActiveSessionName;
+    private BaseVideoRenderer mVideoRemoteRenderer;
+    private BaseVideoRenderer mScreenRemoteRenderer;
+
+    /**
+     * Creates a manager whose sessions run on the default {@link SignalRuntime}.
+     *
+     * @param context Activity context. Needed by the Opentok APIs
+     */
+    public OTSessionManager(Context context) {
+        this(context, SignalRuntime.getDefault(), new SignalInfoPool());
+    }
+
+    /**
+     * @param context Activity context. Needed by the Opentok APIs
+     * @param runtime Runtime where the signals of all the sessions are processed
+     * @param pool Pool of the received signals of all the sessions. It can be null.
+     */
+    public OTSessionManager(Context context, SignalRuntime runtime, SignalInfoPool pool) {
+        if (context == null || runtime == null) {
+            throw new IllegalArgumentException("The context and the runtime cannot be null");
+        }
+        mContext = context;
+        mSignalRuntime = runtime;
+        mSignalInfoPool = pool;
+        mAnalytics = new AnalyticsLogger(context);
+    }
+
+    /**
+     * Adds a session. It isn't connected: call connect on the returned wrapper. The first session
+     * added is the active one.
+     *
+     * @param name Name of the session in this manager (the room, for example)
+     * @param otConfig Information about the OpenTok session
+     * @return The wrapper of the session
+     */
+    public synchronized OTWrapper addSession(String name, OTConfig otConfig) {
+        if (name == null || otConfig == null) {
+            throw new IllegalArgumentException("The name and the config cannot be null");
+        }
+        if (mSessions.containsKey(name)) {
+            throw new IllegalArgumentException("There's already a session named " + name);
+        }
+        OTWrapper wrapper = new OTWrapper(mContext, otConfig, mAnalytics);
+        wrapper.setSignalRuntime(mSignalRuntime);
+        if (mSignalInfoPool != null) {
+            wrapper.setSignalInfoPool(mSignalInfoPool);
+        }
+        if (mVideoRemoteRenderer != null) {
+            wrapper.setRemoteVideoRenderer(mVideoRemoteRenderer, false);
+        }
+        if (mScreenRemoteRenderer != null) {
+            wrapper.setRemoteVideoRenderer(mScreenRemoteRenderer, true);
+        }
+        for (BasicListener listener : mBasicListeners) {
+            wrapper.addBasicListener(listener);
+        }
+        for (AdvancedListener<OTWrapper> listener : mAdvancedListeners) {
+            wrapper.addAdvancedListener(listener);
+        }
+        mSessions.put(name, wrapper);
+        if (mActiveSessionName == null) {
+            mActiveSessionName = name;
+        }
+        LOG.d(LOG_TAG, "Added session ", name, ". Sessions: ", mSessions.size());
+        return wrapper;
+    }
+
+    /**
+     * Disconnects a session and removes it. If it was the active one, there's no active session
+     * until another one is set.
+     *
+     * @param name Name of the session
+     */
+    public synchronized void removeSession(String name) {
+        OTWrapper wrapper = mSessions.remove(name);
+        if (wrapper == null) {
+            return;
+        }
+        if (name.equals(mActiveSessionName)) {
+            mActiveSessionName = null;
+        }
+        wrapper.disconnect();
+    }
+
+    /**
+     * @param name Name of the session
+     * @return Its wrapper, or null if there's no session with that name
+     */
+    public synchronized OTWrapper getSession(String name) {
+        return mSessions.get(name);
+    }
+
+    /**
+     * @return The wrappers of all the sessions, in the order they were added
+     */
+    public synchronized List<OTWrapper> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    /**
+     * @return The wrapper of the active session, or null if there's none
+     */
+    public synchronized OTWrapper getActiveSession() {
+        return mActiveSessionName != null ? mSessions.get(mActiveSessionName) : null;
+    }
+
+    /**
+     * Makes another session the active one. If the old active session has a camera publisher, it
+     * moves to the new one: it's unpublished from the old session and, if it was being published,
+     * published on the new one once it's connected. Otherwise it's previewed there. The other
+     * sessions stay connected: pause them if their media isn't needed.
+     *
+     * @param name Name of the session
+     * @return Its wrapper
+     */
+    public synchronized OTWrapper setActiveSession(String name) {
+        OTWrapper next = mSessions.get(name);
+        if (next == null) {
+            throw new IllegalArgumentException("There's no session named " + name);
+        }
+        OTWrapper previous = getActiveSession();
+        mActiveSessionName = name;
+        if (previous != null && previous != next && previous.handOffPublisher(next)) {
+            LOG.d(LOG_TAG, "Moving the publisher to session ", name);
+        }
+        return next;
+    }
+
+    /**
+     * Adds a listener to all the sessions, including the ones added later. The listener gets the
+     * wrapper of the session as first argument of its callbacks.
+     */
+    public synchronized void addBasicListener(BasicListener listener) {
+        mBasicListeners.add(listener);
+        for (OTWrapper wrapper : mSessions.values()) {
+            wrapper.addBasicListener(listener);
+        }
+    }
+
+    /**
+     * Removes a listener from all the sessions.
+     */
+    public synchronized void removeBasicListener(BasicListener listener) {
+        mBasicListeners.remove(listener);
+        for (OTWrapper wrapper : mSessions.values()) {
+            wrapper.removeBasicListener(listener);
+        }
+    }
+
+    /**
+     * Adds a listener to all the sessions, including the ones added later.
+     */
+    public synchronized void addAdvancedListener(AdvancedListener<OTWrapper> listener) {
+        mAdvancedListeners.add(listener);
+        for (OTWrapper wrapper : mSessions.values()) {
+            wrapper.addAdvancedListener(listener);
+        }
+    }
+
+    /**
+     * Removes a listener from all the sessions.
+     */
+    public synchronized void removeAdvancedListener(AdvancedListener<OTWrapper> listener) {
+        mAdvancedListeners.remove(listener);
+        for (OTWrapper wrapper : mSessions.values()) {
+            wrapper.removeAdvancedListener(listener);
+        }
+    }
+
+    /**
+     * Sets the renderer of the remote videos of all the sessions, including the ones added later.
+     *
+     * @param renderer The renderer
+     * @param remoteScreen Whether it's used for the remote screens or the remote cameras
+     */
+    public synchronized void setRemoteVideoRenderer(BaseVideoRenderer renderer,
+                                                    boolean remoteScreen) {
+        if (remoteScreen) {
+            mScreenRemoteRenderer = renderer;
+        } else {
+            mVideoRemoteRenderer = renderer;
+        }
+        for (OTWrapper wrapper : mSessions.values()) {
+            wrapper.setRemoteVideoRenderer(renderer, remoteScreen);
+        }
+    }
+
+    /**
+     * @return The runtime where the signals of all the sessions are processed
+     */
+    public SignalRuntime getSignalRuntime() {
+        return mSignalRuntime;
+    }
+
+    /**
+     * Disconnects all the sessions and removes them.
+     */
+    public synchronized void disconnectAll() {
+        for (OTWrapper wrapper : mSessions.values()) {
+            wrapper.disconnect();
+        }
+        mSessions.clear();
+        mActiveSessionName = null;
+    }
+}
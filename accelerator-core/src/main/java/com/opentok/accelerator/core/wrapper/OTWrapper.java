@@ -1,25 +1,34 @@
 package com.opentok.accelerator.core.wrapper;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.view.View;
 import androidx.fragment.app.FragmentActivity;
 import com.opentok.accelerator.core.GlobalLogLevel;
 import com.opentok.accelerator.core.listeners.*;
 import com.opentok.accelerator.core.screensharing.ScreenSharingCapturer;
 import com.opentok.accelerator.core.screensharing.ScreenSharingFragment;
+import com.opentok.accelerator.core.signal.BinarySignalChannel;
+import com.opentok.accelerator.core.signal.PersistentSignalOutbox;
+import com.opentok.accelerator.core.signal.ReliableSignalChannel;
+import com.opentok.accelerator.core.signal.SignalDecoder;
+import com.opentok.accelerator.core.signal.SignalDispatcher;
 import com.opentok.accelerator.core.signal.SignalInfo;
+import com.opentok.accelerator.core.signal.SignalInfoPool;
+import com.opentok.accelerator.core.signal.SignalPeerTracker;
+import com.opentok.accelerator.core.signal.SignalPriorities;
 import com.opentok.accelerator.core.signal.SignalProtocol;
+import com.opentok.accelerator.core.signal.SignalRuntime;
 import com.opentok.accelerator.core.utils.*;
 import com.opentok.android.*;
-import com.tokbox.android.logging.OTKAnalytics;
 import com.tokbox.android.logging.OTKAnalyticsData;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.UUID;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Represents an OpenTok object to enable a video communication.
@@ -46,8 +55,6 @@ public class OTWrapper {
     private HashMap<BasicListener, RetriableBasicListener> mRetriableBasicListeners = new HashMap<>();
     private HashMap<AdvancedListener, RetriableAdvancedListener> mRetriableAdvancedListeners =
             new HashMap<>();
-    private int mConnectionsCount;
-    private int mOlderThanMe = 0;
     private boolean isPreviewing = false;
     private boolean isPublishing = false;
     private boolean startPublishing = false;
@@ -65,22 +72,33 @@ public class OTWrapper {
     //Signal protocol
     private SignalProtocol mInputSignalProtocol;
     private SignalProtocol mOutputSignalProtocol;
+    private SignalDispatcher mSignalDispatcher;
+    private SignalPriorities mSignalPriorities;
+    private volatile ReliableSignalChannel mReliableSignalChannel;
+    private volatile BinarySignalChannel mBinarySignalChannel;
+    private final CopyOnWriteArrayList<SignalPeerTracker> mSignalPeerTrackers =
+        new CopyOnWriteArrayList<>();
+    private PersistentSignalOutbox mSignalOutbox;
+    private SignalInfoPool mSignalInfoPool;
+    private SignalRuntime mSignalRuntime;
     //Analytics for internal use
     private OTKAnalyticsData mAnalyticsData;
-    private OTKAnalytics mAnalytics;
+    private final AnalyticsLogger mAnalytics;
+    //Publisher being handed over to another wrapper
+    private OTWrapper mPublisherTarget;
 
     private Session.ConnectionListener mConnectionListener = new Session.ConnectionListener() {
         @Override
         public void onConnectionCreated(Session session, Connection connection) {
             LOG.d(LOG_TAG, "onConnectionCreated: ", connection.getData());
-            mSession.connections.put(connection.getConnectionId(), connection);
-            mConnectionsCount++;
-            if (connection.getCreationTime().compareTo(mSessionConnection.getCreationTime()) <= 0) {
-                mOlderThanMe++;
+            mSession.connections.add(connection);
+            for (SignalPeerTracker tracker : mSignalPeerTrackers) {
+                tracker.addPeer(connection.getConnectionId());
             }
+            int connectionsCount = mSession.connections.size();
             if (mBasicListeners != null) {
                 for (BasicListener listener : mBasicListeners) {
-                    ((RetriableBasicListener) listener).onConnected(SELF, mConnectionsCount,
+                    ((RetriableBasicListener) listener).onConnected(SELF, connectionsCount,
                             connection.getConnectionId(),
                             connection.getData());
                 }
@@ -91,13 +109,13 @@ public class OTWrapper {
         public void onConnectionDestroyed(Session session, Connection connection) {
             LOG.d(LOG_TAG, "onConnectionDestroyed: ", connection.getData());
             mSession.connections.remove(connection.getConnectionId());
-            mConnectionsCount--;
-            if (connection.getCreationTime().compareTo(mSessionConnection.getCreationTime()) <= 0) {
-                mOlderThanMe--;
+            for (SignalPeerTracker tracker : mSignalPeerTrackers) {
+                tracker.removePeer(connection.getConnectionId());
             }
+            int connectionsCount = mSession.connections.size();
             if (mBasicListeners != null) {
                 for (BasicListener listener : mBasicListeners) {
-                    ((RetriableBasicListener) listener).onDisconnected(SELF, mConnectionsCount,
+                    ((RetriableBasicListener) listener).onDisconnected(SELF, connectionsCount,
                             connection.getConnectionId(),
                             connection.getData());
                 }
@@ -188,6 +206,10 @@ public class OTWrapper {
 
         @Override
         public void onReconnecting(Session session) {
+            ReliableSignalChannel reliableChannel = mReliableSignalChannel;
+            if (reliableChannel != null) {
+                reliableChannel.onReconnecting();
+            }
             if (mAdvancedListeners != null) {
                 for (AdvancedListener listener : mAdvancedListeners) {
                     ((RetriableAdvancedListener) listener).onReconnecting(SELF);
@@ -197,6 +219,10 @@ public class OTWrapper {
 
         @Override
         public void onReconnected(Session session) {
+            ReliableSignalChannel reliableChannel = mReliableSignalChannel;
+            if (reliableChannel != null) {
+                reliableChannel.onReconnected();
+            }
             if (mAdvancedListeners != null) {
                 for (AdvancedListener listener : mAdvancedListeners) {
                     ((RetriableAdvancedListener) listener).onReconnected(SELF);
@@ -321,7 +347,7 @@ public class OTWrapper {
         @Override
         public void onConnected(Session session) {
             mSessionConnection = session.getConnection();
-            mSession.connections.put(mSessionConnection.getConnectionId(), mSessionConnection);
+            mSession.connections.add(mSessionConnection);
             //update internal client logs with connectionId
             mAnalyticsData.setConnectionId(mSessionConnection.getConnectionId());
             mAnalytics.setData(mAnalyticsData);
@@ -329,12 +355,12 @@ public class OTWrapper {
                     ". listeners: ", mBasicListeners);
             addLogEvent(ClientLog.LOG_ACTION_START_COMM, ClientLog.LOG_VARIATION_SUCCESS);
 
-            mConnectionsCount++;
+            int connectionsCount = mSession.connections.size();
             publishIfReady();
 
             if (mBasicListeners != null) {
                 for (BasicListener listener : mBasicListeners) {
-                    ((RetriableBasicListener) listener).onConnected(SELF, mConnectionsCount,
+                    ((RetriableBasicListener) listener).onConnected(SELF, connectionsCount,
                             mSessionConnection.getConnectionId(),
                             mSessionConnection.getData());
                 }
@@ -449,6 +475,10 @@ public class OTWrapper {
             for (BasicListener listener : mBasicListeners) {
                 ((RetriableBasicListener) listener).onStoppedPublishingMedia(SELF, screenSharing);
             }
+            if (!screenSharing) {
+                //the publisher can go to the wrapper waiting for it now
+                finishPublisherHandOff();
+            }
         }
 
         @Override
@@ -534,7 +564,15 @@ public class OTWrapper {
      *                 data to connect.
      */
     public OTWrapper(Context context, OTConfig otConfig) {
+        this(context, otConfig, new AnalyticsLogger(context));
+    }
+
+    /**
+     * Creates an OTWrapper instance that shares its client logs with other wrappers.
+     */
+    OTWrapper(Context context, OTConfig otConfig, AnalyticsLogger analytics) {
         this.mContext = context;
+        this.mAnalytics = analytics;
         this.mOTConfig = otConfig;
         mSubscribers = new HashMap<>();
         mStreams = new ConcurrentHashMap<>();
@@ -605,8 +643,10 @@ public class OTWrapper {
         mSession.setSignalListener(mSession.getSignalListener());
         mSession.setReconnectionListener(mReconnectionListener);
 
-        mOlderThanMe = 0;
-
+        //the runtime must be set before the signal processors are created
+        if (mSignalRuntime != null) {
+            mSession.setSignalRuntime(mSignalRuntime);
+        }
         //check signal protocol
         if (mInputSignalProtocol != null) {
             mSession.setInputSignalProtocol(mInputSignalProtocol);
@@ -614,6 +654,19 @@ public class OTWrapper {
         if (mOutputSignalProtocol != null) {
             mSession.setOutputSignalProtocol(mOutputSignalProtocol);
         }
+        // The priorities set a dispatcher: an explicit one takes precedence
+        if (mSignalPriorities != null) {
+            mSession.setSignalPriorities(mSignalPriorities);
+        }
+        if (mSignalDispatcher != null) {
+            mSession.setSignalDispatcher(mSignalDispatcher);
+        }
+        if (mSignalOutbox != null) {
+            mSession.setSignalOutbox(mSignalOutbox);
+        }
+        if (mSignalInfoPool != null) {
+            mSession.setSignalInfoPool(mSignalInfoPool);
+        }
 
         mSession.connect(mOTConfig.getToken());
     }
@@ -648,7 +701,8 @@ public class OTWrapper {
      * @return the number of active connections.
      */
     public int getConnectionsCount() {
-        return mConnectionsCount;
+        OTAcceleratorSession session = mSession;
+        return session != null ? session.connections.size() : 0;
     }
 
     /**
@@ -658,8 +712,35 @@ public class OTWrapper {
      * <code>false</code>).
      */
     public boolean isTheOldestConnection() {
-        boolean theOldest = mOlderThanMe <= 0;
-        return theOldest;
+        return getConnectionRank() <= 0;
+    }
+
+    /**
+     * Returns the seniority of the local connection, for example to elect a leader
+     *
+     * @return the number of connections older than the local one (0 if it's the oldest), or -1
+     * if it's not connected
+     */
+    public int getConnectionRank() {
+        OTAcceleratorSession session = mSession;
+        return session != null ? session.connections.getRank(getOwnConnId()) : -1;
+    }
+
+    /**
+     * Returns the oldest connections of the session
+     *
+     * @param count the number of connections to return
+     * @return the ids of the oldest connections, oldest first
+     */
+    public List<String> getOldestConnections(int count) {
+        ArrayList<String> oldest = new ArrayList<>();
+        OTAcceleratorSession session = mSession;
+        if (session != null) {
+            for (ConnectionRegistry.ConnectionEntry entry : session.connections.getOldest(count)) {
+                oldest.add(entry.mConnectionId);
+            }
+        }
+        return oldest;
     }
 
     /**
@@ -672,8 +753,7 @@ public class OTWrapper {
     public int compareConnectionsTimes(String connectionId) {
         int age = 0;
         if (mSession != null) {
-            age = mSession.getConnection().
-                    getCreationTime().compareTo(mSession.connections.get(connectionId).getCreationTime());
+            age = mSession.connections.compareCreationTimes(getOwnConnId(), connectionId);
         }
         return age;
     }
@@ -1027,6 +1107,30 @@ public class OTWrapper {
         }
     }
 
+    /**
+     * Registers the decoder for a given signal, so its data is decoded just once for all the
+     * listeners. See {@link OTAcceleratorSession#registerSignalDecoder(String, SignalDecoder)}.
+     *
+     * @param signalName Name of the signal to decode.
+     * @param decoder    Decoder for the signal.
+     */
+    public void registerSignalDecoder(String signalName, SignalDecoder<?> decoder) {
+        if (mSession != null) {
+            mSession.registerSignalDecoder(signalName, decoder);
+        }
+    }
+
+    /**
+     * Removes the decoder registered for a given signal.
+     *
+     * @param signalName Name of the signal.
+     */
+    public void unregisterSignalDecoder(String signalName) {
+        if (mSession != null) {
+            mSession.unregisterSignalDecoder(signalName);
+        }
+    }
+
     /**
      * Sends a new signal
      *
@@ -1184,9 +1288,24 @@ public class OTWrapper {
      *                      raw signals.
      */
     public synchronized void setInputSignalProtocol(SignalProtocol inputProtocol) {
+        setInputSignalProtocol(inputProtocol, false);
+    }
+
+    /**
+     * Sets an input signal processor, optionally draining the current one: if drain is true and
+     * the current protocol is a {@link com.opentok.accelerator.core.signal.DrainableSignalProtocol},
+     * the signals it has already accepted are delivered to the listeners before the ones of the
+     * new protocol, instead of being lost. The drained swaps are recorded on
+     * {@link OTAcceleratorSession#getInputSignalSwapStats()}.
+     *
+     * @param inputProtocol The input protocol you want to enforce. Pass null if you wish to receive
+     *                      raw signals.
+     * @param drain Whether to drain the current protocol instead of closing it
+     */
+    public synchronized void setInputSignalProtocol(SignalProtocol inputProtocol, boolean drain) {
         mInputSignalProtocol = inputProtocol;
         if (mSession != null) {
-            mSession.setInputSignalProtocol(mInputSignalProtocol);
+            mSession.setInputSignalProtocol(mInputSignalProtocol, drain);
         }
     }
 
@@ -1199,12 +1318,128 @@ public class OTWrapper {
      * @param outputProtocol
      */
     public synchronized void setOutputSignalProtocol(SignalProtocol outputProtocol) {
+        setOutputSignalProtocol(outputProtocol, false);
+    }
+
+    /**
+     * Sets an output signal protocol, optionally draining the current one: if drain is true and
+     * the current protocol is a {@link com.opentok.accelerator.core.signal.DrainableSignalProtocol},
+     * the signals it has already accepted are sent before the ones of the new protocol, instead
+     * of being lost. The drained swaps are recorded on
+     * {@link OTAcceleratorSession#getOutputSignalSwapStats()}.
+     *
+     * @param outputProtocol
+     * @param drain Whether to drain the current protocol instead of closing it
+     */
+    public synchronized void setOutputSignalProtocol(SignalProtocol outputProtocol, boolean drain) {
         mOutputSignalProtocol = outputProtocol;
         if (mSession != null) {
-            mSession.setOutputSignalProtocol(mOutputSignalProtocol);
+            mSession.setOutputSignalProtocol(mOutputSignalProtocol, drain);
+        }
+    }
+
+    /**
+     * Sets how the received signals are delivered to their listeners. For example, a
+     * {@link com.opentok.accelerator.core.signal.MailboxSignalDispatcher} delivers the signals
+     * to each listener in order. By default there's no ordering guarantee.
+     *
+     * @param dispatcher The dispatcher to use.
+     */
+    public synchronized void setSignalDispatcher(SignalDispatcher dispatcher) {
+        mSignalDispatcher = dispatcher;
+        if (mSession != null && mSignalDispatcher != null) {
+            mSession.setSignalDispatcher(mSignalDispatcher);
+        }
+    }
+
+    /**
+     * Sets the priority classes of the sent and received signals, so control and chat signals can
+     * overtake the bulk ones. It replaces the signal dispatcher. See
+     * {@link OTAcceleratorSession#setSignalPriorities(SignalPriorities)}.
+     *
+     * @param priorities Priority of each signal name. Pass null to keep the arrival order.
+     */
+    public synchronized void setSignalPriorities(SignalPriorities priorities) {
+        mSignalPriorities = priorities;
+        if (mSession != null) {
+            mSession.setSignalPriorities(mSignalPriorities);
+        }
+    }
+
+    /**
+     * Sets an outbox that keeps the signals it accepts until they are sent, even if the process
+     * dies, and sends them once the session connects. It can be set before connecting, so the
+     * signals left by a previous run are sent on connect(). The wrapper closes it when it's
+     * replaced or the wrapper disconnects, and it's reopened on the next connect(). See
+     * {@link OTAcceleratorSession#setSignalOutbox(PersistentSignalOutbox)}.
+     *
+     * @param outbox The outbox. Pass null to send all the signals immediately.
+     */
+    public synchronized void setSignalOutbox(PersistentSignalOutbox outbox) {
+        if (mSignalOutbox != null && mSignalOutbox != outbox) {
+            mSignalOutbox.close();
+        }
+        mSignalOutbox = outbox;
+        if (mSession != null) {
+            mSession.setSignalOutbox(mSignalOutbox);
         }
     }
 
+    /**
+     * Sets a pool for the envelopes of the received signals, so receiving them doesn't allocate.
+     * Listeners that use a signal after returning from onSignalReceived must retain it. See
+     * {@link OTAcceleratorSession#setSignalInfoPool(SignalInfoPool)}.
+     *
+     * @param pool The pool. Pass null to create a new SignalInfo for each received signal.
+     */
+    public synchronized void setSignalInfoPool(SignalInfoPool pool) {
+        mSignalInfoPool = pool;
+        if (mSession != null) {
+            mSession.setSignalInfoPool(mSignalInfoPool);
+        }
+    }
+
+    /**
+     * Sets the shared runtime where the signal listeners and processors of this wrapper run,
+     * instead of on threads of its own. Apps that hold several sessions should use the same
+     * runtime for all of them. See
+     * {@link OTAcceleratorSession#setSignalRuntime(SignalRuntime)}.
+     *
+     * @param runtime The runtime, usually {@link SignalRuntime#getDefault()}. Pass null to use
+     *                threads of its own.
+     */
+    public synchronized void setSignalRuntime(SignalRuntime runtime) {
+        mSignalRuntime = runtime;
+        if (mSession != null) {
+            mSession.setSignalRuntime(mSignalRuntime);
+        }
+    }
+
+    /**
+     * Sets the reliable signal channel whose protocols are used as (or are chained into) the
+     * input and output signal protocols, so it's notified about the connections that join and
+     * leave the session and about reconnections. The signals sent while the session is
+     * reconnecting are kept and sent once it reconnects.
+     *
+     * @param channel The channel. Pass null to stop notifying it.
+     */
+    public void setReliableSignalChannel(ReliableSignalChannel channel) {
+        replaceSignalPeerTracker(mReliableSignalChannel, channel);
+        mReliableSignalChannel = channel;
+    }
+
+    /**
+     * Sets the binary signal channel whose protocols are used as (or are chained into) the input
+     * and output signal protocols, so it says hello to the connections that join the session and
+     * knows which ones can receive encoded signals.
+     *
+     * @param channel The channel. Pass null to stop notifying it.
+     */
+    public void setBinarySignalChannel(BinarySignalChannel channel) {
+        replaceSignalPeerTracker(mBinarySignalChannel, channel);
+        mBinarySignalChannel = channel;
+    }
+
     /**
      * Get the OTAcceleratorSession
      *
@@ -1214,8 +1449,118 @@ public class OTWrapper {
         return mSession;
     }
 
+    /**
+     * Moves the camera publisher of this wrapper to another one, with its capturer and renderer
+     * still running, instead of destroying it here and creating a new one there. If it's being
+     * published, it's unpublished here first, and handed over once its stream is destroyed. The
+     * target publishes it once connected if this wrapper was publishing it, and previews it
+     * otherwise.
+     *
+     * @param target The wrapper that gets the publisher
+     * @return Whether there was a publisher to hand over
+     */
+    synchronized boolean handOffPublisher(OTWrapper target) {
+        if (mPublisher == null || target == this || mPublisherTarget != null) {
+            return false;
+        }
+        mPublisherTarget = target;
+        if (isPublishing && mSession != null) {
+            addLogEvent(ClientLog.LOG_ACTION_END_COMM, ClientLog.LOG_VARIATION_ATTEMPT);
+            mSession.unpublish(mPublisher);
+        } else {
+            finishPublisherHandOff();
+        }
+        return true;
+    }
+
+    /**
+     * Takes the publisher handed over by another wrapper.
+     *
+     * @param publisher The publisher
+     * @param config Its configuration
+     * @param publish Whether to publish it, once connected
+     * @param preview Whether it was previewing
+     */
+    synchronized void adoptPublisher(Publisher publisher, PreviewConfig config, boolean publish,
+                                     boolean preview) {
+        if (mPublisher != null) {
+            LOG.w(LOG_TAG, "adoptPublisher: replacing the current publisher");
+            if (isPublishing && mSession != null) {
+                mSession.unpublish(mPublisher);
+            }
+            detachPublisherView();
+        }
+        mPreviewConfig = config;
+        mPublisher = publisher;
+        mPublisher.setPublisherListener(mPublisherListener);
+        mPublisher.setCameraListener(mCameraListener);
+        isPublishing = false;
+        startPublishing = publish;
+        //the publisher needs a view, so it's previewed if it's not published
+        isPreviewing = preview || !publish;
+        if (isPreviewing) {
+            attachPublisherView();
+        }
+        if (publish) {
+            publishIfReady();
+        }
+    }
+
     //Private methods
+    private synchronized void finishPublisherHandOff() {
+        OTWrapper target = mPublisherTarget;
+        if (target == null || mPublisher == null) {
+            mPublisherTarget = null;
+            return;
+        }
+        Publisher publisher = mPublisher;
+        boolean publish = startPublishing;
+        boolean preview = isPreviewing;
+        mPublisherTarget = null;
+        mPublisher = null;
+        isPublishing = false;
+        startPublishing = false;
+        isPreviewing = false;
+        //the view moves to the target, so the publisher isn't stopped
+        if (!isNullOrEmpty(mBasicListeners)) {
+            for (BasicListener listener : mBasicListeners) {
+                ((RetriableBasicListener) listener).onPreviewViewDestroyed(SELF);
+            }
+        }
+        target.adoptPublisher(publisher, mPreviewConfig, publish, preview);
+    }
+
+    private void replaceSignalPeerTracker(SignalPeerTracker oldTracker,
+                                          SignalPeerTracker newTracker) {
+        if (oldTracker != null) {
+            mSignalPeerTrackers.remove(oldTracker);
+        }
+        if (newTracker == null) {
+            return;
+        }
+        mSignalPeerTrackers.add(newTracker);
+        if (mSession != null) {
+            String ownConnectionId = mSessionConnection != null ?
+                mSessionConnection.getConnectionId() : null;
+            for (String connectionId : mSession.connections.getConnectionIds()) {
+                if (!connectionId.equals(ownConnectionId)) {
+                    newTracker.addPeer(connectionId);
+                }
+            }
+        }
+    }
+
     private void cleanup() {
+        //a publisher being handed over goes on in the other wrapper
+        finishPublisherHandOff();
+        if (mSignalOutbox != null) {
+            // Its pending signals stay on the journal, and it's reopened on the next connect()
+            mSignalOutbox.close();
+        }
+        // The connections of the next session are new
+        for (SignalPeerTracker tracker : mSignalPeerTrackers) {
+            tracker.clearPeers();
+        }
         if (mSession != null) {
             mSession.cleanUpSignals();
             if (mSubscribers.size() > 0) {
@@ -1230,7 +1575,6 @@ public class OTWrapper {
             }
             mSession.disconnect();
         }
-        mConnectionsCount = 0;
         mPublisher = null;
         mSession = null;
         mSubscribers = new HashMap<>();
@@ -1487,28 +1831,13 @@ public class OTWrapper {
     //Analytics
     private void initAnalytics() {
         //Init the analytics logging
-        String source = mContext.getPackageName();
-
-        SharedPreferences prefs = mContext.getSharedPreferences("opentok", Context.MODE_PRIVATE);
-        String guidVSol = prefs.getString("guidVSol", null);
-        if (null == guidVSol) {
-            guidVSol = UUID.randomUUID().toString();
-            prefs.edit().putString("guidVSol", guidVSol).apply();
-        }
-
-        mAnalyticsData = new OTKAnalyticsData.
-                Builder(ClientLog.LOG_CLIENT_VERSION, source, ClientLog.LOG_COMPONENTID, guidVSol).build();
-        mAnalytics = new OTKAnalytics(mAnalyticsData);
-        mAnalytics.enableConsoleLog(false);
-
-        mAnalyticsData.setSessionId(getOTConfig().getSessionId());
-        mAnalyticsData.setPartnerId(getOTConfig().getApiKey());
-        mAnalytics.setData(mAnalyticsData);
+        mAnalyticsData = mAnalytics.newSessionData(getOTConfig().getSessionId(),
+                getOTConfig().getApiKey());
     }
 
     private void addLogEvent(String action, String variation) {
         if (mAnalytics != null) {
-            mAnalytics.logEvent(action, variation);
+            mAnalytics.logEvent(mAnalyticsData, action, variation);
         }
     }
 }
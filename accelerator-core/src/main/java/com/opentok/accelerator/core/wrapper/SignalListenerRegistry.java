@@ -0,0 +1,277 @@
+package com.opentok.accelerator.core.wrapper;
+
+import com.opentok.accelerator.core.listeners.NonBlockingSignalListener;
+import com.opentok.accelerator.core.listeners.SignalListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copy on write registry of signal listeners, used by {@link OTAcceleratorSession}.
+ * Listeners can be registered for:
+ *   - An exact signal name: "otAnnotation_pen"
+ *   - A prefix, ending the pattern with '*': "otAnnotation_*". "*" matches all the signals.
+ *   - A glob, using '*' (any sequence of characters) and '?' (any single character) anywhere:
+ *     "ot*_pen"
+ * Every change builds a new immutable snapshot, so looking up the listeners of a signal doesn't
+ * need any lock and never sees a half updated registry. Snapshots index the exact names in a hash
+ * map and the prefixes in a trie, and they cache the resolved listeners of each signal name, so the
+ * lookup cost doesn't grow with the number of registered patterns.
+ * The resolved listeners are split between the {@link NonBlockingSignalListener}s, which the
+ * session invokes directly, and the ones handed to the signal dispatcher.
+ */
+final class SignalListenerRegistry {
+    private static final SignalListener[] NO_LISTENERS = new SignalListener[0];
+    private static final Listeners NONE = new Listeners(NO_LISTENERS, NO_LISTENERS);
+    // Peers choose the signal names, so don't let them grow the cache without limit
+    private static final int MAX_CACHED_NAMES = 512;
+
+    /**
+     * Listeners of a signal name, in registration order within each array. The arrays must not be
+     * modified.
+     */
+    static final class Listeners {
+        final SignalListener[] mInline;
+        final SignalListener[] mDispatched;
+
+        Listeners(SignalListener[] inline, SignalListener[] dispatched) {
+            mInline = inline;
+            mDispatched = dispatched;
+        }
+
+        boolean isEmpty() {
+            return mInline.length == 0 && mDispatched.length == 0;
+        }
+
+        static Listeners split(ArrayList<SignalListener> listeners) {
+            if (listeners.isEmpty()) {
+                return NONE;
+            }
+            ArrayList<SignalListener> inline = new ArrayList<>();
+            ArrayList<SignalListener> dispatched = new ArrayList<>();
+            for (SignalListener listener : listeners) {
+                if (listener instanceof NonBlockingSignalListener) {
+                    inline.add(listener);
+                } else {
+                    dispatched.add(listener);
+                }
+            }
+            return new Listeners(toArray(inline), toArray(dispatched));
+        }
+
+        private static SignalListener[] toArray(ArrayList<SignalListener> listeners) {
+            return listeners.isEmpty() ? NO_LISTENERS :
+                listeners.toArray(new SignalListener[listeners.size()]);
+        }
+    }
+
+    private static final class TrieNode {
+        final HashMap<Character, TrieNode> mChildren = new HashMap<>();
+        SignalListener[] mListeners = NO_LISTENERS;
+    }
+
+    private static final class Glob {
+        final String mPattern;
+        final SignalListener[] mListeners;
+
+        Glob(String pattern, SignalListener[] listeners) {
+            mPattern = pattern;
+            mListeners = listeners;
+        }
+
+        boolean matches(String name) {
+            // Iterative wildcard matching, backtracking only to the last '*'
+            int p = 0;
+            int n = 0;
+            int starP = -1;
+            int starN = 0;
+            while (n < name.length()) {
+                if (p < mPattern.length() &&
+                    (mPattern.charAt(p) == '?' || mPattern.charAt(p) == name.charAt(n))) {
+                    p++;
+                    n++;
+                } else if (p < mPattern.length() && mPattern.charAt(p) == '*') {
+                    starP = p++;
+                    starN = n;
+                } else if (starP >= 0) {
+                    p = starP + 1;
+                    n = ++starN;
+                } else {
+                    return false;
+                }
+            }
+            while (p < mPattern.length() && mPattern.charAt(p) == '*') {
+                p++;
+            }
+            return p == mPattern.length();
+        }
+    }
+
+    private static final class Snapshot {
+        // The listeners of each pattern are kept in registration order
+        final LinkedHashMap<String, SignalListener[]> mPatterns;
+        final HashMap<String, SignalListener[]> mExactNames = new HashMap<>();
+        final TrieNode mPrefixes = new TrieNode();
+        final ArrayList<Glob> mGlobs = new ArrayList<>();
+        final ConcurrentHashMap<String, Listeners> mResolved = new ConcurrentHashMap<>();
+        final Listeners mAllSignals;
+
+        Snapshot(LinkedHashMap<String, SignalListener[]> patterns) {
+            mPatterns = patterns;
+            for (Map.Entry<String, SignalListener[]> entry : patterns.entrySet()) {
+                String pattern = entry.getKey();
+                int firstWildcard = firstWildcard(pattern);
+                if (firstWildcard < 0) {
+                    mExactNames.put(pattern, entry.getValue());
+                } else if (firstWildcard == pattern.length() - 1 &&
+                           pattern.charAt(firstWildcard) == '*') {
+                    TrieNode node = mPrefixes;
+                    for (int i = 0; i < firstWildcard; i++) {
+                        Character c = pattern.charAt(i);
+                        TrieNode child = node.mChildren.get(c);
+                        if (child == null) {
+                            child = new TrieNode();
+                            node.mChildren.put(c, child);
+                        }
+                        node = child;
+                    }
+                    node.mListeners = entry.getValue();
+                } else {
+                    mGlobs.add(new Glob(pattern, entry.getValue()));
+                }
+            }
+            mAllSignals = Listeners.split(new ArrayList<>(Arrays.asList(mPrefixes.mListeners)));
+        }
+
+        Listeners resolve(String signalName) {
+            if (signalName == null) {
+                return mAllSignals;
+            }
+            Listeners listeners = mResolved.get(signalName);
+            if (listeners != null) {
+                return listeners;
+            }
+            ArrayList<SignalListener> matching = new ArrayList<>();
+            // Prefixes, shortest first, so "*" listeners keep being the first ones invoked
+            TrieNode node = mPrefixes;
+            add(matching, node.mListeners);
+            for (int i = 0; i < signalName.length(); i++) {
+                node = node.mChildren.get(signalName.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                add(matching, node.mListeners);
+            }
+            SignalListener[] exact = mExactNames.get(signalName);
+            if (exact != null) {
+                add(matching, exact);
+            }
+            for (Glob glob : mGlobs) {
+                if (glob.matches(signalName)) {
+                    add(matching, glob.mListeners);
+                }
+            }
+            listeners = Listeners.split(matching);
+            if (mResolved.size() < MAX_CACHED_NAMES) {
+                mResolved.put(signalName, listeners);
+            }
+            return listeners;
+        }
+
+        private static void add(ArrayList<SignalListener> matching, SignalListener[] listeners) {
+            for (SignalListener listener : listeners) {
+                // A listener registered with several matching patterns is invoked only once
+                if (!matching.contains(listener)) {
+                    matching.add(listener);
+                }
+            }
+        }
+
+        private static int firstWildcard(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '*' || c == '?') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private volatile Snapshot mSnapshot = new Snapshot(new LinkedHashMap<String, SignalListener[]>());
+
+    /**
+     * Adds a listener for a signal name or pattern.
+     *
+     * @return false if the listener was already registered for that pattern
+     */
+    synchronized boolean add(String pattern, SignalListener listener) {
+        LinkedHashMap<String, SignalListener[]> patterns = new LinkedHashMap<>(mSnapshot.mPatterns);
+        SignalListener[] listeners = patterns.get(pattern);
+        if (listeners == null) {
+            listeners = NO_LISTENERS;
+        } else if (Arrays.asList(listeners).contains(listener)) {
+            return false;
+        }
+        SignalListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        patterns.put(pattern, newListeners);
+        mSnapshot = new Snapshot(patterns);
+        return true;
+    }
+
+    /**
+     * Removes a listener from a signal name or pattern.
+     */
+    synchronized void remove(String pattern, SignalListener listener) {
+        LinkedHashMap<String, SignalListener[]> patterns = new LinkedHashMap<>(mSnapshot.mPatterns);
+        if (removeFrom(patterns, pattern, listener)) {
+            mSnapshot = new Snapshot(patterns);
+        }
+    }
+
+    /**
+     * Removes a listener from all the signal names and patterns it's registered for.
+     */
+    synchronized void remove(SignalListener listener) {
+        LinkedHashMap<String, SignalListener[]> patterns = new LinkedHashMap<>(mSnapshot.mPatterns);
+        boolean changed = false;
+        for (String pattern : mSnapshot.mPatterns.keySet()) {
+            changed |= removeFrom(patterns, pattern, listener);
+        }
+        if (changed) {
+            mSnapshot = new Snapshot(patterns);
+        }
+    }
+
+    /**
+     * Returns the listeners for a received signal, without locking.
+     *
+     * @param signalName Name of the received signal. If null, only the "*" listeners are returned.
+     */
+    Listeners getListeners(String signalName) {
+        return mSnapshot.resolve(signalName);
+    }
+
+    private static boolean removeFrom(LinkedHashMap<String, SignalListener[]> patterns,
+                                      String pattern, SignalListener listener) {
+        SignalListener[] listeners = patterns.get(pattern);
+        if (listeners == null) {
+            return false;
+        }
+        ArrayList<SignalListener> remaining = new ArrayList<>(Arrays.asList(listeners));
+        if (!remaining.remove(listener)) {
+            return false;
+        }
+        if (remaining.isEmpty()) {
+            patterns.remove(pattern);
+        } else {
+            patterns.put(pattern, remaining.toArray(new SignalListener[remaining.size()]));
+        }
+        return true;
+    }
+}
@@ -22,13 +22,15 @@ import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.opentok.accelerator.R;
-import com.opentok.accelerator.core.listeners.SignalListener;
+import com.opentok.accelerator.core.listeners.NonBlockingSignalListener;
+import com.opentok.accelerator.core.signal.FrameSignalBatcher;
+import com.opentok.accelerator.core.signal.PersistentSignalOutbox;
+import com.opentok.accelerator.core.signal.SignalDecoders;
 import com.opentok.accelerator.core.signal.SignalInfo;
 import com.opentok.accelerator.core.wrapper.OTAcceleratorSession;
 import com.opentok.accelerator.textchat.config.OpenTokConfig;
 import com.tokbox.android.logging.OTKAnalytics;
 import com.tokbox.android.logging.OTKAnalyticsData;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -36,7 +38,7 @@ import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 
-public class TextChatFragment extends Fragment implements SignalListener {
+public class TextChatFragment extends Fragment implements NonBlockingSignalListener {
 
     private final static String LOG_TAG = Fragment.class.getSimpleName();
 
@@ -61,6 +63,16 @@ public class TextChatFragment extends Fragment implements SignalListener {
 
     private List<ChatMessage> messagesList = new ArrayList<ChatMessage>();
     private MessagesAdapter mMessageAdapter;
+    // Received messages are added in batches, one per frame, with a single list update for each
+    private final FrameSignalBatcher<String> mSignalBatcher = new FrameSignalBatcher<>(
+        new FrameSignalBatcher.BatchListener<String>() {
+            @Override
+            public void onSignalBatch(List<SignalInfo<String>> signals) {
+                processSignals(signals);
+            }
+        });
+    private boolean mProcessingBatch = false;
+    private boolean mMessagesChanged = false;
 
     private OTAcceleratorSession mSession;
     private String mApiKey;
@@ -358,6 +370,7 @@ public class TextChatFragment extends Fragment implements SignalListener {
         mAnalytics.setData(mAnalyticsData);
 
         addLogEvent(OpenTokConfig.LOG_ACTION_INITIALIZE, OpenTokConfig.LOG_VARIATION_ATTEMPT);
+        this.mSession.registerSignalDecoder(SIGNAL_TYPE, SignalDecoders.JSON_OBJECT);
         this.mSession.addSignalListener(SIGNAL_TYPE, this);
         addLogEvent(OpenTokConfig.LOG_ACTION_INITIALIZE, OpenTokConfig.LOG_VARIATION_SUCCESS);
     }
@@ -401,14 +414,22 @@ public class TextChatFragment extends Fragment implements SignalListener {
                         messagesList.set(messagesList.size() - 1, msg);
                     }
 
-                    mMessageAdapter.notifyDataSetChanged();
-                    mRecyclerView.smoothScrollToPosition(mMessageAdapter.getItemCount() - 1); //update based on adapter
-
+                    showMessages();
                 }
             });
         }
     }
 
+    // Updates the list, or waits for the end of the batch of messages being processed
+    private void showMessages() {
+        if (mProcessingBatch) {
+            mMessagesChanged = true;
+            return;
+        }
+        mMessageAdapter.notifyDataSetChanged();
+        mRecyclerView.smoothScrollToPosition(mMessageAdapter.getItemCount() - 1); //update based on adapter
+    }
+
     // Called when the user clicks the send button.
     private void sendMessage() {
         //checkMessage
@@ -433,8 +454,14 @@ public class TextChatFragment extends Fragment implements SignalListener {
                     e.printStackTrace();
                 }
                 addLogEvent(OpenTokConfig.LOG_ACTION_SEND_MESSAGE, OpenTokConfig.LOG_VARIATION_ATTEMPT);
+                PersistentSignalOutbox outbox = mSession.getSignalOutbox();
                 if (mSession.getConnection() != null) {
                     mSession.sendSignal(new SignalInfo(mSession.getConnection().getConnectionId(), null, SIGNAL_TYPE, messageObj.toString()), null);
+                } else if (outbox != null && outbox.accepts(SIGNAL_TYPE)) {
+                    //the message is shown once it's sent, when the session connects
+                    mSession.sendSignal(new SignalInfo(null, null, SIGNAL_TYPE, messageObj.toString()), null);
+                    mMsgEditText.setEnabled(true);
+                    mMsgEditText.setText("");
                 } else {
                     Log.i(LOG_TAG, "The session is not connected. You cannot send any messages.");
                 }
@@ -568,6 +595,27 @@ public class TextChatFragment extends Fragment implements SignalListener {
 
     @Override
     public void onSignalReceived(SignalInfo signalInfo, boolean isSelfSignal) {
+        // It's a non blocking listener: the batcher delivers the messages received on each frame,
+        // in order, on the UI thread
+        mSignalBatcher.onSignalReceived(signalInfo, isSelfSignal);
+    }
+
+    private void processSignals(List<SignalInfo<String>> signals) {
+        mProcessingBatch = true;
+        try {
+            for (SignalInfo<String> signalInfo : signals) {
+                processSignal(signalInfo);
+            }
+        } finally {
+            mProcessingBatch = false;
+            if (mMessagesChanged) {
+                mMessagesChanged = false;
+                showMessages();
+            }
+        }
+    }
+
+    private void processSignal(SignalInfo signalInfo) {
         String senderId = null;
         String senderAlias = null;
         String text = null;
@@ -577,8 +625,8 @@ public class TextChatFragment extends Fragment implements SignalListener {
         JSONObject sender;
 
         try {
-            if (signalInfo.mData != null && isValid((String) signalInfo.mData)) {
-                json = new JSONObject((String) signalInfo.mData);
+            json = getJsonMessage(signalInfo);
+            if (json != null) {
                 if (!json.isNull("text") && !json.isNull("sentOn") && !json.isNull("sender")) {
                     text = json.getString("text");
                     date = json.getLong("sentOn");
@@ -649,16 +697,19 @@ public class TextChatFragment extends Fragment implements SignalListener {
         }
     }
 
-    private boolean isValid(String message) {
-        try {
-            new JSONObject(message);
-        } catch (JSONException ex) {
+    // The session decodes the message just once for all its listeners (see the decoder registered
+    // in init). Parse it here only if it wasn't decoded
+    private JSONObject getJsonMessage(SignalInfo signalInfo) {
+        if (signalInfo.mDecodedData instanceof JSONObject) {
+            return (JSONObject) signalInfo.mDecodedData;
+        }
+        if (signalInfo.mData instanceof String) {
             try {
-                new JSONArray(message);
-            } catch (JSONException ex1) {
-                return false;
+                return new JSONObject((String) signalInfo.mData);
+            } catch (JSONException ex) {
+                return null;
             }
         }
-        return true;
+        return null;
     }
 }
\ No newline at end of file